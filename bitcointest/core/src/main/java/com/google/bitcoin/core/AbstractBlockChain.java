@@ -24,14 +24,14 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executor;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -86,6 +86,9 @@ public abstract class AbstractBlockChain {
     /** Keeps a map of block hashes to StoredBlocks. */
     private final BlockStore blockStore;
 
+    // The best chain by height, so that walking back through it doesn't need the block store.
+    private final HeaderChainIndex chainIndex;
+
     /**
      * Tracks the top of the best known chain.<p>
      *
@@ -113,8 +116,8 @@ public abstract class AbstractBlockChain {
         final Map<Sha256Hash, Transaction> filteredTxn;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
-            Preconditions.checkArgument((block.transactions == null && filtered)
-                                        || (block.transactions != null && !filtered));
+            // A bare header, from addHeaders(), has neither transactions nor a filter.
+            Preconditions.checkArgument(block.transactions == null || !filtered);
             if (!shouldVerifyTransactions())
                 this.block = block.cloneAsHeader();
             else
@@ -125,7 +128,9 @@ public abstract class AbstractBlockChain {
     }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
     // were downloading the block chain.
-    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    private final OrphanBlockPool orphanBlocks = new OrphanBlockPool();
+    // Connected blocks whose orphaned children still have to be connected by tryConnectingOrphans.
+    private final LinkedList<Sha256Hash> orphanParents = new LinkedList<Sha256Hash>();
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -143,6 +148,7 @@ public abstract class AbstractBlockChain {
     public AbstractBlockChain(NetworkParameters params, List<BlockChainListener> listeners,
                               BlockStore blockStore) throws BlockStoreException {
         this.blockStore = blockStore;
+        this.chainIndex = new HeaderChainIndex(blockStore);
         chainHead = blockStore.getChainHead();
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = params;
@@ -248,8 +254,16 @@ public abstract class AbstractBlockChain {
      * Accessing block's transactions in another thread while this method runs may result in undefined behavior.
      */
     public boolean add(Block block) throws VerificationException, PrunedException {
+        return add(block, null);
+    }
+
+    /**
+     * Processes a block received from the given peer, like {@link #add(Block)}. If the block can't be connected yet,
+     * it is held in the orphan pool, where the number of blocks each peer can have waiting is limited.
+     */
+    public boolean add(Block block, @Nullable PeerAddress source) throws VerificationException, PrunedException {
         try {
-            return add(block, true, null, null);
+            return add(block, true, null, null, source, false);
         } catch (BlockStoreException e) {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
@@ -270,6 +284,14 @@ public abstract class AbstractBlockChain {
      * If the block can be connected to the chain, returns true.
      */
     public boolean add(FilteredBlock block) throws VerificationException, PrunedException {
+        return add(block, null);
+    }
+
+    /**
+     * Processes a filtered block received from the given peer, like {@link #add(FilteredBlock)}. If the block can't be
+     * connected yet, it is held in the orphan pool, where the number of blocks each peer can have waiting is limited.
+     */
+    public boolean add(FilteredBlock block, @Nullable PeerAddress source) throws VerificationException, PrunedException {
         try {
             // The block has a list of hashes of transactions that matched the Bloom filter, and a list of associated
             // Transaction objects. There may be fewer Transaction objects than hashes, this is expected. It can happen
@@ -278,7 +300,8 @@ public abstract class AbstractBlockChain {
             // a false positive, as expected in any Bloom filtering scheme). The filteredTxn list here will usually
             // only be full of data when we are catching up to the head of the chain and thus haven't witnessed any
             // of the transactions.
-            return add(block.getBlockHeader(), true, block.getTransactionHashes(), block.getAssociatedTransactions());
+            return add(block.getBlockHeader(), true, block.getTransactionHashes(), block.getAssociatedTransactions(),
+                    source, false);
         } catch (BlockStoreException e) {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
@@ -293,6 +316,112 @@ public abstract class AbstractBlockChain {
         }
     }
     
+    /**
+     * <p>Processes a run of block headers, such as those in a {@link HeadersMessage}, each of which must follow on from
+     * the one before. This does the same as passing each header to {@link #add(Block)} in turn, but is much faster
+     * for big batches: the proof of work and timestamps of the headers are checked in parallel before the chain is
+     * locked, and the new chain head is written to the block store once at the end rather than after every header.
+     * Only a chain which doesn't verify transactions can accept headers.</p>
+     *
+     * <p>Returns true if all the headers were connected. If one can't be connected it is kept as an orphan, the rest
+     * are ignored and false is returned.</p>
+     */
+    public boolean addHeaders(List<Block> headers) throws VerificationException, PrunedException {
+        if (shouldVerifyTransactions())
+            throw new VerificationException("Got block headers while running in full-block mode");
+        verifyHeaders(headers);
+        lock.lock();
+        try {
+            try {
+                deferChainHeadWrites = true;
+                for (Block header : headers) {
+                    if (!add(header, true, null, null, null, true))
+                        return false;
+                }
+                return true;
+            } finally {
+                deferChainHeadWrites = false;
+                // The store must end up with the chain head we have in memory, even if a header failed to verify.
+                if (chainHeadWriteDeferred) {
+                    chainHeadWriteDeferred = false;
+                    doSetChainHead(getChainHead());
+                }
+            }
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        } catch (VerificationException e) {
+            try {
+                notSettingChainHead();
+            } catch (BlockStoreException e1) {
+                throw new RuntimeException(e1);
+            }
+            throw new VerificationException("Could not verify block headers", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The smallest number of headers worth handing to another thread.
+    private static final int MIN_HEADER_BATCH_PART = 250;
+
+    // Checks the proof of work and timestamp of each header and that each follows on from the one before, spreading
+    // the work over several threads if there are enough headers. This also computes and caches each header's hash.
+    static void verifyHeaders(final List<Block> headers) throws VerificationException {
+        int numParts = Math.min(HeaderVerificationThreads.COUNT + 1,
+                (headers.size() + MIN_HEADER_BATCH_PART - 1) / MIN_HEADER_BATCH_PART);
+        if (numParts <= 1) {
+            verifyHeaderRange(headers, 0, headers.size());
+        } else {
+            // Split the work into equal parts, one of which is done by this thread.
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(numParts - 1);
+            int partSize = (headers.size() + numParts - 1) / numParts;
+            for (int start = partSize; start < headers.size(); start += partSize) {
+                final int from = start;
+                final int to = Math.min(start + partSize, headers.size());
+                futures.add(HeaderVerificationThreads.EXECUTOR.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws VerificationException {
+                        verifyHeaderRange(headers, from, to);
+                        return null;
+                    }
+                }));
+            }
+            try {
+                verifyHeaderRange(headers, 0, partSize);
+                for (Future<Void> future : futures)
+                    future.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof VerificationException)
+                    throw (VerificationException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            } finally {
+                for (Future<Void> future : futures)
+                    future.cancel(false);
+            }
+        }
+        for (int i = 1; i < headers.size(); i++) {
+            if (!headers.get(i).getPrevBlockHash().equals(headers.get(i - 1).getHash()))
+                throw new VerificationException("Header " + headers.get(i).getHashAsString() +
+                        " does not follow on from the one before it");
+        }
+    }
+
+    private static void verifyHeaderRange(List<Block> headers, int from, int to) throws VerificationException {
+        for (int i = from; i < to; i++)
+            headers.get(i).verifyHeader();
+    }
+
+    // Threads which verifyHeaders spreads work over, created the first time a batch is big enough to need them.
+    private static class HeaderVerificationThreads {
+        // The thread calling verifyHeaders does its share of the work too.
+        static final int COUNT = Runtime.getRuntime().availableProcessors() - 1;
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Math.max(COUNT, 1),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Header verification thread %d").build());
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -321,13 +450,18 @@ public abstract class AbstractBlockChain {
      */
     protected abstract TransactionOutputChanges connectTransactions(StoredBlock newBlock) throws VerificationException, BlockStoreException, PrunedException;    
     
+    // Whilst addHeaders is running, the chain head is only written to the block store at the end.
+    private boolean deferChainHeadWrites;
+    private boolean chainHeadWriteDeferred;
+
     // Stat counters.
     private long statsLastTime = System.currentTimeMillis();
     private long statsBlocksAdded;
 
     // filteredTxHashList contains all transactions, filteredTxn just a subset
     private boolean add(Block block, boolean tryConnecting,
-                        @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn)
+                        @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn,
+                        @Nullable PeerAddress source, boolean headerVerified)
             throws BlockStoreException, VerificationException, PrunedException {
         lock.lock();
         try {
@@ -339,12 +473,11 @@ public abstract class AbstractBlockChain {
                 statsLastTime = System.currentTimeMillis();
                 statsBlocksAdded = 0;
             }
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // Quick check for duplicates to avoid an expensive check further down (in findSplit).
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
-            if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
+            if (tryConnecting && orphanBlocks.contains(block.getHash())) {
                 return false;
             }
 
@@ -371,7 +504,8 @@ public abstract class AbstractBlockChain {
             // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
             // article here for more details: http://code.google.com/p/bitcoinj/wiki/SecurityModel
             try {
-                block.verifyHeader();
+                if (!headerVerified)
+                    block.verifyHeader();
                 if (contentsImportant)
                     block.verifyTransactions();
             } catch (VerificationException e) {
@@ -389,7 +523,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                orphanBlocks.add(new OrphanBlock(block, filteredTxHashList, filteredTxn), source);
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
@@ -398,7 +532,7 @@ public abstract class AbstractBlockChain {
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             statsBlocksAdded++;
             return true;
@@ -432,7 +566,7 @@ public abstract class AbstractBlockChain {
                         block.getHashAsString(), filteredTxHashList.size(), filteredTxn.size());
                 for (Sha256Hash hash : filteredTxHashList) log.debug("  matched tx {}", hash);
             }
-            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, blockStore))
+            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head))
                 throw new VerificationException("Block's timestamp is too early");
             
             // This block connects to the best known block, it is a normal continuation of the system.
@@ -454,7 +588,7 @@ public abstract class AbstractBlockChain {
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, head, blockStore);
+                StoredBlock splitPoint = findSplit(newBlock, head);
                 if (splitPoint != null && splitPoint.equals(newBlock)) {
                     // newStoredBlock is a part of the same chain, there's no fork. This happens when we receive a block
                     // that we already saw and linked into the chain previously, which isn't the chain head.
@@ -470,7 +604,7 @@ public abstract class AbstractBlockChain {
                     throw new VerificationException("Block forks the chain but splitPoint is null");
                 } else {
                     // We aren't actually spending any transactions (yet) because we are on a fork
-                    addToBlockStore(storedPrev, block);
+                    chainIndex.addSideBlock(addToBlockStore(storedPrev, block));
                     int splitPointHeight = splitPoint.getHeight();
                     String splitPointHash = splitPoint.getHeader().getHashAsString();
                     log.info("Block forks the chain at height {}/block {}, but it did not cause a reorganize:\n{}",
@@ -569,16 +703,8 @@ public abstract class AbstractBlockChain {
     /**
      * Gets the median timestamp of the last 11 blocks
      */
-    private static long getMedianTimestampOfRecentBlocks(StoredBlock storedBlock,
-                                                         BlockStore store) throws BlockStoreException {
-        long[] timestamps = new long[11];
-        int unused = 9;
-        timestamps[10] = storedBlock.getHeader().getTimeSeconds();
-        while (unused >= 0 && (storedBlock = storedBlock.getPrev(store)) != null)
-            timestamps[unused--] = storedBlock.getHeader().getTimeSeconds();
-        
-        Arrays.sort(timestamps, unused+1, 11);
-        return timestamps[unused + (11-unused)/2];
+    private long getMedianTimestampOfRecentBlocks(StoredBlock storedBlock) throws BlockStoreException {
+        return getChainIndex().getMedianTimestamp(storedBlock);
     }
     
     /**
@@ -603,14 +729,14 @@ public abstract class AbstractBlockChain {
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
         StoredBlock head = getChainHead();
-        final StoredBlock splitPoint = findSplit(newChainHead, head, blockStore);
+        final StoredBlock splitPoint = findSplit(newChainHead, head);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
         log.info("Old chain head: {}", head.getHeader().getHashAsString());
         log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
         log.info("Split at block: {}", splitPoint.getHeader().getHashAsString());
         // Then build a list of all blocks in the old part of the chain and the new part.
-        final LinkedList<StoredBlock> oldBlocks = getPartialChain(head, splitPoint, blockStore);
-        final LinkedList<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint, blockStore);
+        final LinkedList<StoredBlock> oldBlocks = getPartialChain(head, splitPoint);
+        final LinkedList<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint);
         // Disconnect each transaction in the previous main chain that is no longer in the new main chain
         StoredBlock storedNewHead = splitPoint;
         if (shouldVerifyTransactions()) {
@@ -629,7 +755,7 @@ public abstract class AbstractBlockChain {
             // Walk in ascending chronological order.
             for (Iterator<StoredBlock> it = newBlocks.descendingIterator(); it.hasNext();) {
                 cursor = it.next();
-                if (expensiveChecks && cursor.getHeader().getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
+                if (expensiveChecks && cursor.getHeader().getTimeSeconds() <= getMedianTimestampOfRecentBlocks(chainIndex.getPrev(cursor)))
                     throw new VerificationException("Block's timestamp is too early during reorg");
                 TransactionOutputChanges txOutChanges;
                 if (cursor != newChainHead || block == null)
@@ -670,13 +796,13 @@ public abstract class AbstractBlockChain {
     /**
      * Returns the set of contiguous blocks between 'higher' and 'lower'. Higher is included, lower is not.
      */
-    private static LinkedList<StoredBlock> getPartialChain(StoredBlock higher, StoredBlock lower, BlockStore store) throws BlockStoreException {
+    private LinkedList<StoredBlock> getPartialChain(StoredBlock higher, StoredBlock lower) throws BlockStoreException {
         checkArgument(higher.getHeight() > lower.getHeight(), "higher and lower are reversed");
         LinkedList<StoredBlock> results = new LinkedList<StoredBlock>();
         StoredBlock cursor = higher;
         while (true) {
             results.add(cursor);
-            cursor = checkNotNull(cursor.getPrev(store), "Ran off the end of the chain");
+            cursor = checkNotNull(chainIndex.getPrev(cursor), "Ran off the end of the chain");
             if (cursor.equals(lower)) break;
         }
         return results;
@@ -687,26 +813,14 @@ public abstract class AbstractBlockChain {
      * found (ie they are not part of the same chain). Returns newChainHead or chainHead if they don't actually diverge
      * but are part of the same chain.
      */
-    private static StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead,
-                                         BlockStore store) throws BlockStoreException {
-        StoredBlock currentChainCursor = oldChainHead;
-        StoredBlock newChainCursor = newChainHead;
+    private StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead) throws BlockStoreException {
         // Loop until we find the block both chains have in common. Example:
         //
         //    A -> B -> C -> D
         //         \--> E -> F -> G
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
-        while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(store);
-                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
-                newChainCursor = newChainCursor.getPrev(store);
-                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
-            }
-        }
-        return currentChainCursor;
+        return getChainIndex().findSplit(newChainHead, oldChainHead);
     }
 
     /**
@@ -747,47 +861,76 @@ public abstract class AbstractBlockChain {
     }
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        doSetChainHead(chainHead);
+        if (deferChainHeadWrites)
+            chainHeadWriteDeferred = true;
+        else
+            doSetChainHead(chainHead);
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
+        chainIndex.setChainHead(chainHead);
+    }
+
+    /** Returns the index of the best chain, brought up to date with the chain head. */
+    HeaderChainIndex getChainIndex() throws BlockStoreException {
+        chainIndex.setChainHead(getChainHead());
+        return chainIndex;
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks which descend from the given block, which has just been connected. Parents are
+     * always connected before their children. An orphan which turns out to be invalid is dropped along with its own
+     * descendants, and the rest carry on being connected.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connectedHash) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                log.debug("Trying to connect {}", orphanBlock.block.getHash());
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
+        orphanParents.add(connectedHash);
+        if (orphanBlocks.size() == 0) {
+            orphanParents.clear();
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int blocksConnected = 0;
+        // An invalid orphan only loses its own descendants, the other orphans are still connected before it's reported.
+        VerificationException invalid = null;
+        while (!orphanParents.isEmpty()) {
+            Sha256Hash parent = orphanParents.peek();
+            // Orphans are taken out of the pool one at a time, so if a store error stops us part way through, the
+            // parent stays queued and the children which are left get connected the next time round.
+            for (Sha256Hash childHash : orphanBlocks.getChildren(parent)) {
+                OrphanBlock orphanBlock = orphanBlocks.removeConnectable(childHash);
+                if (orphanBlock == null)
                     continue;
+                log.debug("Connecting orphan {}", childHash);
+                boolean finished = false;
+                try {
+                    // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+                    add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn, null, true);
+                    finished = true;
+                } catch (VerificationException e) {
+                    finished = true;
+                    int dropped = orphanBlocks.removeDescendants(childHash);
+                    log.warn("Dropping invalid orphan block {} and {} orphans descending from it: {}", childHash,
+                            dropped, e.toString());
+                    if (invalid == null)
+                        invalid = e;
+                    continue;
+                } finally {
+                    // Put the orphan back to be tried again if something other than the block itself was at fault.
+                    if (!finished)
+                        orphanBlocks.add(orphanBlock, null);
                 }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                orphanParents.add(childHash);
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+            orphanParents.poll();
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks in {} ms, {} orphans left.", blocksConnected,
+                    System.currentTimeMillis() - start, orphanBlocks.size());
+        }
+        if (invalid != null)
+            throw invalid;
     }
 
     // February 16th 2012
@@ -819,17 +962,13 @@ public abstract class AbstractBlockChain {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // We need to find a block far back in the chain, which the chain index can do without walking the store.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.getInterval() - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        StoredBlock cursor = getChainIndex().getAncestor(storedPrev, storedPrev.getHeight() - (params.getInterval() - 1));
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
@@ -932,14 +1071,7 @@ public abstract class AbstractBlockChain {
     public Block getOrphanRoot(Sha256Hash from) {
         lock.lock();
         try {
-            OrphanBlock cursor = orphanBlocks.get(from);
-            if (cursor == null)
-                return null;
-            OrphanBlock tmp;
-            while ((tmp = orphanBlocks.get(cursor.block.getPrevBlockHash())) != null) {
-                cursor = tmp;
-            }
-            return cursor.block;
+            return orphanBlocks.getRoot(from);
         } finally {
             lock.unlock();
         }
@@ -949,7 +1081,71 @@ public abstract class AbstractBlockChain {
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
         try {
-            return orphanBlocks.containsKey(block);
+            return orphanBlocks.contains(block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Limits how many orphan blocks are held until their parents arrive: at most maxBlocks of them in total, with an
+     * estimated size of at most maxBytes, and at most maxBlocksPerPeer received from any one peer. When a limit is
+     * reached the oldest orphans are thrown away. The defaults are 1000 blocks, 32 megabytes and 500 blocks.
+     */
+    public void setOrphanLimits(int maxBlocks, long maxBytes, int maxBlocksPerPeer) {
+        lock.lock();
+        try {
+            orphanBlocks.setLimits(maxBlocks, maxBytes, maxBlocksPerPeer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphan blocks currently waiting for their parents. */
+    public int getOrphanCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the estimated size in bytes of the orphan blocks currently waiting for their parents. */
+    public long getOrphanBytes() {
+        lock.lock();
+        try {
+            return orphanBlocks.getBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks have been thrown away to keep within the limits set by {@link #setOrphanLimits}. */
+    public long getEvictedOrphanCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.getEvictedCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks have been connected to the chain once their parents arrived. */
+    public long getConnectedOrphanCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.getConnectedCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how long connected orphan blocks waited for their parents on average, in milliseconds. */
+    public long getAverageOrphanWaitMillis() {
+        lock.lock();
+        try {
+            return orphanBlocks.getAverageWaitMillis();
         } finally {
             lock.unlock();
         }
@@ -36,7 +36,6 @@ import java.util.LinkedList;
 import java.util.List;
 
 import static com.google.bitcoin.core.Utils.doubleDigest;
-import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -726,6 +725,9 @@ public class Block extends Message {
             tree.add(t.getHash().getBytes());
         }
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
+        // Both children of a node are written (byte reversed) into this one buffer, so hashing an interior node needs
+        // no intermediate arrays beyond the resulting hash.
+        byte[] pair = new byte[64];
         // Step through each level, stopping when we reach the root (levelSize == 1).
         for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
             // For each pair of nodes on that level:
@@ -733,9 +735,9 @@ public class Block extends Message {
                 // The right hand node can be the same as the left hand, in the case where we don't have enough
                 // transactions.
                 int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+                reverseInto(tree.get(levelOffset + left), pair, 0);
+                reverseInto(tree.get(levelOffset + right), pair, 32);
+                tree.add(Utils.reverseBytes(doubleDigest(pair, 0, 64)));
             }
             // Move to the next level.
             levelOffset += levelSize;
@@ -743,6 +745,11 @@ public class Block extends Message {
         return tree;
     }
 
+    private static void reverseInto(byte[] hash, byte[] out, int offset) {
+        for (int i = 0; i < 32; i++)
+            out[offset + i] = hash[31 - i];
+    }
+
     private void checkTransactions() throws VerificationException {
         // The first transaction in a block must always be a coinbase transaction.
         if (!transactions.get(0).isCoinBase())
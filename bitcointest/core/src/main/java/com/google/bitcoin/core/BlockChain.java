@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -119,8 +120,8 @@ public class BlockChain extends AbstractBlockChain {
     }
 
     @Override
-    public boolean add(FilteredBlock block) throws VerificationException, PrunedException {
-        boolean success = super.add(block);
+    public boolean add(FilteredBlock block, @Nullable PeerAddress source) throws VerificationException, PrunedException {
+        boolean success = super.add(block, source);
         if (success) {
             trackFilteredTransactions(block.getTransactionCount());
         }
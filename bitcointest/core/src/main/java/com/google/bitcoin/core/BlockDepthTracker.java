@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Counts the blocks added to the best chain, and the work they represent, on behalf of the
+ * {@link TransactionConfidence} objects of a wallet's transactions. A BUILDING transaction works out its depth and work
+ * done from how far the counter moved since it last looked, so a new block costs the same no matter how many
+ * transactions it buries.</p>
+ *
+ * <p>Also keeps the set of confidence objects that asked to be told about new blocks, see
+ * {@link TransactionConfidence#requestDepthNotifications(int)}. This class never calls out whilst holding its lock, so
+ * it is safe to use whilst holding a confidence object's lock.</p>
+ */
+class BlockDepthTracker {
+    private int blocks;
+    private BigInteger work = BigInteger.ZERO;
+    private final Set<TransactionConfidence> watched = new LinkedHashSet<TransactionConfidence>();
+    // How deep transactions get buried before the wallet stops reporting new blocks to them, unless they asked for more.
+    private int eventHorizon;
+
+    BlockDepthTracker(int eventHorizon) {
+        this.eventHorizon = eventHorizon;
+    }
+
+    /** Counts a new block on top of the best chain. */
+    synchronized void blockAdded(Block header) throws VerificationException {
+        blocks++;
+        work = work.add(header.getWork());
+    }
+
+    synchronized int getBlocks() {
+        return blocks;
+    }
+
+    synchronized BigInteger getWork() {
+        return work;
+    }
+
+    synchronized int getEventHorizon() {
+        return eventHorizon;
+    }
+
+    /**
+     * Sets the event horizon of the wallet, which must then add itself again to each of its transactions with
+     * {@link TransactionConfidence#addDepthTracker(BlockDepthTracker)} to have them watched or not accordingly.
+     */
+    synchronized void setEventHorizon(int eventHorizon) {
+        this.eventHorizon = eventHorizon;
+    }
+
+    synchronized void watch(TransactionConfidence confidence) {
+        watched.add(confidence);
+    }
+
+    synchronized void unwatch(TransactionConfidence confidence) {
+        watched.remove(confidence);
+    }
+
+    /** Returns a snapshot of the confidence objects that want to hear about new blocks. */
+    synchronized List<TransactionConfidence> getWatched() {
+        return new ArrayList<TransactionConfidence>(watched);
+    }
+}
@@ -0,0 +1,589 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Spreads the download of a run of blocks, whose headers the download peer has already sent us, over all the peers
+ * in a {@link PeerGroup} instead of fetching every block from the download peer alone. Each peer has a window of
+ * blocks it may have requested from it at once, and is asked for more as its blocks arrive, so faster peers end up
+ * serving more of the chain. A block which a peer hasn't sent within the stall timeout is asked for from another peer
+ * instead. Blocks arrive in whatever order the peers send them, and are held here until they can be handed to the
+ * block chain in order, which is done on a thread of its own so that no peer's network thread is held up adding
+ * blocks to the chain.</p>
+ *
+ * <p>A block which fails verification is asked for again from another peer, and the peer which sent it is
+ * disconnected. If it fails again, or it came from the peer which sent the headers, the headers are what's wrong, so
+ * that peer is disconnected instead and another one takes over the chain download.</p>
+ *
+ * <p>The scheduler also records how quickly each peer delivers blocks, which can be read with {@link #getStats()}.
+ * You don't normally create one of these yourself: use {@link PeerGroup#getBlockDownloadScheduler()}.</p>
+ */
+public class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** How many blocks may be requested from each peer at once by default. */
+    public static final int DEFAULT_WINDOW_SIZE = 16;
+    /** How long to wait for a requested block by default before asking a different peer for it. */
+    public static final long DEFAULT_STALL_TIMEOUT_MSEC = 10 * 1000;
+    /** How many bytes of blocks may be held waiting for the blocks before them by default. */
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 16 * 1024 * 1024;
+    // How far past the next block to be handed to the chain we will request blocks. The buffered bytes limit is what
+    // normally stops us first, this just keeps the search for blocks to request short when they are tiny.
+    private static final int MAX_LOOKAHEAD = 1024;
+
+    private final NetworkParameters params;
+    private final ReentrantLock lock = Threading.lock("blockdownloadscheduler");
+    // Hands blocks to the chain, one at a time and in order. The thread goes away when there's nothing to deliver.
+    private final ThreadPoolExecutor deliveryExecutor;
+    // Whether a delivery task is waiting to run, so that a burst of blocks doesn't queue up a task for each one.
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+
+    private static class Request {
+        final Sha256Hash hash;
+        final int height;
+        // The peer which received the headers and will pass the block to the chain.
+        final Peer owner;
+        final boolean filtered;
+        // The peer the block is currently requested from, if any, and when it was asked.
+        @Nullable Peer peer;
+        long requestTime;
+        // The last peer which didn't deliver the block in time. It isn't asked again unless nobody else can be.
+        @Nullable Peer stalledPeer;
+        // The Block or FilteredBlock once it has arrived, and the peer which sent it.
+        @Nullable Message data;
+        @Nullable Peer source;
+        // Whether a copy of the block has already failed verification.
+        boolean rejected;
+
+        Request(Sha256Hash hash, int height, Peer owner, boolean filtered) {
+            this.hash = hash;
+            this.height = height;
+            this.owner = owner;
+            this.filtered = filtered;
+        }
+    }
+
+    private static class PeerState {
+        int inFlight;
+        long blocksReceived;
+        long bytesReceived;
+        int stalls;
+        // How long the peer has had requests outstanding, which is what its throughput is measured over.
+        long busyMillis;
+        long busySince;
+    }
+
+    // Requests in the order the blocks go to the chain, so the first one is the next to be delivered.
+    @GuardedBy("lock") private final LinkedList<Request> queue = new LinkedList<Request>();
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Request> requests = new HashMap<Sha256Hash, Request>();
+    // The peers we can download from, in the order they connected.
+    @GuardedBy("lock") private final LinkedHashMap<Peer, PeerState> peers = new LinkedHashMap<Peer, PeerState>();
+    @GuardedBy("lock") private int windowSize = DEFAULT_WINDOW_SIZE;
+    @GuardedBy("lock") private long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MSEC;
+    @GuardedBy("lock") private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    // The total size of the blocks which have arrived but not yet been handed to the chain.
+    @GuardedBy("lock") private long bufferedBytes;
+
+    /**
+     * A snapshot of how a peer has performed at delivering the blocks the scheduler asked it for.
+     */
+    public static class PeerStats {
+        private final long blocksReceived, bytesReceived, busyMillis;
+        private final int blocksInFlight, stalls;
+
+        PeerStats(PeerState state, long now) {
+            blocksReceived = state.blocksReceived;
+            bytesReceived = state.bytesReceived;
+            busyMillis = state.busyMillis + (state.inFlight > 0 ? now - state.busySince : 0);
+            blocksInFlight = state.inFlight;
+            stalls = state.stalls;
+        }
+
+        /** Returns how many requested blocks the peer has sent us. */
+        public long getBlocksReceived() {
+            return blocksReceived;
+        }
+
+        /** Returns the total size of the requested blocks the peer has sent us. */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /** Returns how many blocks are currently requested from the peer. */
+        public int getBlocksInFlight() {
+            return blocksInFlight;
+        }
+
+        /** Returns how many times the peer failed to send a block before the stall timeout. */
+        public int getStalls() {
+            return stalls;
+        }
+
+        /**
+         * Returns how many bytes per second the peer has sent us whilst it had blocks requested from it, or zero if it
+         * hasn't been asked for anything yet.
+         */
+        public long getBytesPerSecond() {
+            return busyMillis == 0 ? 0 : bytesReceived * 1000 / busyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d blocks, %d bytes/sec, %d in flight, %d stalls", blocksReceived,
+                    getBytesPerSecond(), blocksInFlight, stalls);
+        }
+    }
+
+    BlockDownloadScheduler(NetworkParameters params) {
+        this.params = params;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Block delivery thread");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        deliveryExecutor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                builder.build());
+        deliveryExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Sets how many blocks may be requested from each peer at once. */
+    public void setWindowSize(int windowSize) {
+        checkArgument(windowSize > 0);
+        lock.lock();
+        try {
+            this.windowSize = windowSize;
+        } finally {
+            lock.unlock();
+        }
+        requestMore();
+    }
+
+    /**
+     * Sets how many bytes of blocks may be held waiting for a slow peer to send the blocks before them. Once there are
+     * this many, only the blocks filling the gap in front of them are requested until it has been filled. Blocks which
+     * are in flight, up to the window size from each peer, come on top of this.
+     */
+    public void setMaxBufferedBytes(long maxBufferedBytes) {
+        checkArgument(maxBufferedBytes > 0);
+        lock.lock();
+        try {
+            this.maxBufferedBytes = maxBufferedBytes;
+        } finally {
+            lock.unlock();
+        }
+        requestMore();
+    }
+
+    /** Sets how long to wait for a requested block before asking a different peer for it. */
+    public void setStallTimeoutMillis(long stallTimeoutMillis) {
+        checkArgument(stallTimeoutMillis > 0);
+        lock.lock();
+        try {
+            this.stallTimeoutMillis = stallTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many scheduled blocks have not yet been passed to the block chain. */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the statistics of every connected peer. */
+    public Map<Peer, PeerStats> getStats() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            Map<Peer, PeerStats> stats = new LinkedHashMap<Peer, PeerStats>();
+            for (Map.Entry<Peer, PeerState> entry : peers.entrySet())
+                stats.put(entry.getKey(), new PeerStats(entry.getValue(), now));
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the statistics of the given peer, or null if it isn't connected. */
+    @Nullable
+    public PeerStats getStats(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            return state == null ? null : new PeerStats(state, Utils.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes the given peer available to download blocks from. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer))
+                peers.put(peer, new PeerState());
+        } finally {
+            lock.unlock();
+        }
+        requestMore();
+    }
+
+    /**
+     * Forgets about the given peer. Blocks requested from it are asked for from other peers instead, and blocks it
+     * scheduled are dropped, as whichever peer takes over the chain download will fetch them again.
+     */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            cancelLocked(peer);
+            for (Request request : queue) {
+                if (request.peer == peer)
+                    request.peer = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        requestMore();
+    }
+
+    /**
+     * Drops the blocks the given peer scheduled, because it restarted its chain download and will fetch them again.
+     */
+    void cancel(Peer owner) {
+        lock.lock();
+        try {
+            cancelLocked(owner);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void cancelLocked(Peer owner) {
+        Iterator<Request> it = queue.iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (request.owner == owner) {
+                it.remove();
+                requests.remove(request.hash);
+                if (request.data != null)
+                    bufferedBytes -= request.data.getMessageSize();
+                unassign(request);
+            }
+        }
+    }
+
+    /**
+     * Schedules the download of the blocks with the given headers, which follow on from each other starting at the
+     * given height. The owner is the peer which sent the headers: the blocks are passed to it in order as they
+     * arrive, for it to add to the chain. If filtered is true, filtered blocks are requested instead of full ones.
+     */
+    void schedule(Peer owner, List<Block> headers, int firstHeight, boolean filtered) {
+        lock.lock();
+        try {
+            int height = firstHeight;
+            for (Block header : headers) {
+                Sha256Hash hash = header.getHash();
+                if (!requests.containsKey(hash)) {
+                    Request request = new Request(hash, height, owner, filtered);
+                    queue.add(request);
+                    requests.put(hash, request);
+                }
+                height++;
+            }
+            log.info("{}: Scheduled download of {} blocks, {} now pending", owner, headers.size(), queue.size());
+        } finally {
+            lock.unlock();
+        }
+        requestMore();
+    }
+
+    /**
+     * Called by a peer when it receives a {@link Block} or {@link FilteredBlock}. Returns true if the block was
+     * scheduled here, in which case the peer should do nothing more with it.
+     */
+    boolean receive(Peer from, Message block) {
+        Sha256Hash hash = block.getHash();
+        lock.lock();
+        try {
+            Request request = requests.get(hash);
+            if (request == null)
+                return false;
+            if (request.data != null)
+                return true;  // A duplicate, from a peer which was slow to send it.
+            request.data = block;
+            request.source = from;
+            bufferedBytes += block.getMessageSize();
+            unassign(request);
+            PeerState state = peers.get(from);
+            if (state != null) {
+                state.blocksReceived++;
+                state.bytesReceived += block.getMessageSize();
+            }
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+        requestMore();
+        return true;
+    }
+
+    /**
+     * Called by a peer when it tells us it doesn't have some of the things we asked it for. Any of them which are
+     * scheduled blocks requested from that peer are treated as stalled at the next {@link #checkForStalls()}, rather
+     * than straight away, so that a block nobody has isn't asked for again and again as fast as the peers can reply.
+     */
+    void notFound(Peer from, List<InventoryItem> items) {
+        lock.lock();
+        try {
+            for (InventoryItem item : items) {
+                Request request = requests.get(item.hash);
+                if (request != null && request.peer == from && request.data == null)
+                    request.requestTime = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks other peers for any blocks which have been requested for longer than the stall timeout, and has the peers
+     * which scheduled blocks restart their chain download if none of them has been added to the chain for a while.
+     * This is called regularly by the {@link PeerGroup}.
+     */
+    void checkForStalls() {
+        Set<Peer> owners = new LinkedHashSet<Peer>();
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Request request : queue) {
+                owners.add(request.owner);
+                if (request.peer == null || request.data != null || now - request.requestTime < stallTimeoutMillis)
+                    continue;
+                log.info("{}: Stalled downloading block {}", request.peer, request.hash);
+                PeerState state = peers.get(request.peer);
+                if (state != null)
+                    state.stalls++;
+                request.stalledPeer = request.peer;
+                unassign(request);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Peer owner : owners)
+            owner.maybeRestartStalledDownload();
+        deliver();
+        requestMore();
+    }
+
+    /** Waits until the blocks which have arrived so far have been handed to the chain, if they can be. */
+    void waitForDelivery() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        deliveryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        Uninterruptibles.awaitUninterruptibly(latch);
+    }
+
+    // Gets the delivery thread to hand as many blocks as possible to the chain.
+    private void deliver() {
+        if (!deliveryScheduled.compareAndSet(false, true))
+            return;
+        deliveryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliveryScheduled.set(false);
+                if (deliverAvailable())
+                    requestMore();  // Delivering freed up buffer space.
+            }
+        });
+    }
+
+    // Hands blocks to the chain in order until one is missing, returning whether any were. Only run on the delivery
+    // thread.
+    private boolean deliverAvailable() {
+        boolean delivered = false;
+        while (true) {
+            Request next;
+            lock.lock();
+            try {
+                next = queue.peek();
+                if (next == null || next.data == null)
+                    return delivered;
+                queue.poll();
+                requests.remove(next.hash);
+                bufferedBytes -= next.data.getMessageSize();
+            } finally {
+                lock.unlock();
+            }
+            if (!next.owner.processScheduledBlock(next.data, next.source.getAddress())) {
+                rejected(next);
+                return delivered;
+            }
+            delivered = true;
+        }
+    }
+
+    // Called when a block fails verification. Either the peer which sent it or the peer which sent its header is lying
+    // to us. The sender is given the benefit of the doubt once, so another peer is asked for the block, and if that
+    // fails too the headers are to blame. Whoever is to blame is disconnected, which removes them from here.
+    private void rejected(Request request) {
+        Peer source = checkNotNull(request.source);
+        Peer culprit;
+        lock.lock();
+        try {
+            if (request.rejected || source == request.owner) {
+                culprit = request.owner;
+            } else {
+                culprit = source;
+                // Ask someone else for it, unless the owner has gone in the meantime.
+                if (peers.containsKey(request.owner)) {
+                    request.rejected = true;
+                    request.data = null;
+                    request.source = null;
+                    request.stalledPeer = source;
+                    queue.addFirst(request);
+                    requests.put(request.hash, request);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.warn("{}: Disconnecting, block {} failed verification", culprit, request.hash);
+        culprit.close();
+        requestMore();
+    }
+
+    // Requests the blocks near the front of the queue which aren't already requested from a peer, from whichever
+    // peers have room in their windows.
+    private void requestMore() {
+        Map<Peer, GetDataMessage> getdatas = new LinkedHashMap<Peer, GetDataMessage>();
+        Set<Peer> pingAfter = new HashSet<Peer>();
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            int position = 0;
+            boolean full = bufferedBytes >= maxBufferedBytes;
+            for (Request request : queue) {
+                if (position++ >= MAX_LOOKAHEAD)
+                    break;
+                if (request.data != null) {
+                    // Blocks beyond this one would only add to the pile waiting to be delivered.
+                    if (full)
+                        break;
+                    continue;
+                }
+                if (request.peer != null)
+                    continue;
+                Peer peer = choosePeer(request);
+                if (peer == null)
+                    continue;
+                PeerState state = peers.get(peer);
+                if (state.inFlight++ == 0)
+                    state.busySince = now;
+                request.peer = peer;
+                request.requestTime = now;
+                GetDataMessage getdata = getdatas.get(peer);
+                if (getdata == null) {
+                    getdata = new GetDataMessage(params);
+                    getdatas.put(peer, getdata);
+                }
+                if (request.filtered) {
+                    getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, request.hash));
+                    pingAfter.add(peer);
+                } else {
+                    getdata.addItem(new InventoryItem(InventoryItem.Type.Block, request.hash));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, GetDataMessage> entry : getdatas.entrySet()) {
+            Peer peer = entry.getKey();
+            log.debug("{}: Requesting {} scheduled blocks", peer, entry.getValue().getItems().size());
+            peer.sendMessage(entry.getValue());
+            // A filtered block is followed by its transactions, so the peer only knows it has them all when some
+            // other message arrives.
+            if (pingAfter.contains(peer))
+                peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+    }
+
+    // Picks the peer with the most room in its window which can supply the given block, avoiding the last peer to
+    // stall on it if possible.
+    @GuardedBy("lock")
+    @Nullable
+    private Peer choosePeer(Request request) {
+        Peer best = null, stalled = null;
+        int bestInFlight = windowSize;
+        for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+            Peer peer = entry.getKey();
+            int inFlight = entry.getValue().inFlight;
+            if (inFlight >= windowSize || peer.getBestHeight() < request.height)
+                continue;
+            if (request.filtered && !peer.getPeerVersionMessage().isBloomFilteringSupported())
+                continue;
+            if (peer == request.stalledPeer) {
+                stalled = peer;
+            } else if (inFlight < bestInFlight) {
+                best = peer;
+                bestInFlight = inFlight;
+            }
+        }
+        return best != null ? best : stalled;
+    }
+
+    @GuardedBy("lock")
+    private void unassign(Request request) {
+        if (request.peer == null)
+            return;
+        PeerState state = peers.get(request.peer);
+        if (state != null && --state.inFlight == 0)
+            state.busyMillis += Utils.currentTimeMillis() - state.busySince;
+        request.peer = null;
+    }
+}
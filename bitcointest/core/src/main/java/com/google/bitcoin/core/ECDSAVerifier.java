@@ -0,0 +1,262 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+
+/**
+ * <p>Pure Java ECDSA signature verification specialised for secp256k1, used by {@link ECKey} when the native library
+ * isn't available.</p>
+ *
+ * <p>Bouncy Castle works in affine co-ordinates, which costs a modular inversion for every point addition and
+ * doubling, and allocates a signer and key parameters for every verification. Here points are kept in Jacobian
+ * co-ordinates so that only field multiplications are needed, and u1*G + u2*Q is computed with interleaved window NAF
+ * multiplication. The odd multiples of the generator are precomputed once, and those of a public key are computed
+ * when it is decoded into a {@link PublicKey}, so verifying several signatures by the same key only pays for that
+ * once. Everything here is immutable and thread safe.</p>
+ */
+final class ECDSAVerifier {
+    private static final BigInteger P = ((ECCurve.Fp) ECKey.CURVE.getCurve()).getQ();
+    private static final BigInteger N = ECKey.CURVE.getN();
+    private static final BigInteger B = BigInteger.valueOf(7);
+
+    // Window widths of the NAF for multiples of the generator and of public keys. The generator's table is computed
+    // once so can afford to be much bigger.
+    private static final int G_WINDOW = 8;
+    private static final int Q_WINDOW = 5;
+
+    private static final PublicKey G;
+
+    static {
+        ECPoint g = ECKey.CURVE.getG();
+        G = new PublicKey(g.getX().toBigInteger(), g.getY().toBigInteger(), G_WINDOW);
+    }
+
+    private ECDSAVerifier() {
+    }
+
+    /** A public key decoded into a curve point, along with its precomputed odd multiples. */
+    static final class PublicKey {
+        // Affine co-ordinates of P, 3P, 5P and so on.
+        private final BigInteger[] xs;
+        private final BigInteger[] ys;
+
+        private PublicKey(BigInteger x, BigInteger y, int window) {
+            int count = 1 << (window - 2);
+            xs = new BigInteger[count];
+            ys = new BigInteger[count];
+            // Work out 2P, then keep adding it in Jacobian co-ordinates, then convert them all to affine at once.
+            JacobianPoint twice = new JacobianPoint(x, y, BigInteger.ONE);
+            twice.twice();
+            BigInteger twiceZInverse = twice.z.modInverse(P);
+            BigInteger twiceZInverse2 = twiceZInverse.multiply(twiceZInverse).mod(P);
+            BigInteger twiceX = twice.x.multiply(twiceZInverse2).mod(P);
+            BigInteger twiceY = twice.y.multiply(twiceZInverse2).multiply(twiceZInverse).mod(P);
+            JacobianPoint[] multiples = new JacobianPoint[count];
+            JacobianPoint current = new JacobianPoint(x, y, BigInteger.ONE);
+            for (int i = 0; i < count; i++) {
+                multiples[i] = current.copy();
+                current.add(twiceX, twiceY);
+            }
+            toAffine(multiples, xs, ys);
+        }
+    }
+
+    /**
+     * Decodes an encoded public key, returning null if it isn't a valid point on the curve. The result can be reused
+     * to verify any number of signatures by the key.
+     */
+    @Nullable
+    static PublicKey decodePublicKey(byte[] pub) {
+        ECPoint point;
+        try {
+            point = ECKey.CURVE.getCurve().decodePoint(pub);
+        } catch (RuntimeException e) {
+            return null;  // Not a valid encoding.
+        }
+        if (point.isInfinity())
+            return null;
+        BigInteger x = point.getX().toBigInteger();
+        BigInteger y = point.getY().toBigInteger();
+        if (x.compareTo(P) >= 0 || y.compareTo(P) >= 0)
+            return null;
+        // y^2 = x^3 + 7
+        if (!y.multiply(y).mod(P).equals(x.multiply(x).multiply(x).add(B).mod(P)))
+            return null;
+        return new PublicKey(x, y, Q_WINDOW);
+    }
+
+    /**
+     * Returns whether (r, s) is a valid signature of the given hash by the given key, with the same result as Bouncy
+     * Castle's ECDSASigner.
+     */
+    static boolean verify(byte[] hash, BigInteger r, BigInteger s, PublicKey key) {
+        if (r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0 || s.compareTo(N) >= 0)
+            return false;
+        BigInteger e = new BigInteger(1, hash);
+        int messageBitLength = hash.length * 8;
+        if (messageBitLength > N.bitLength())
+            e = e.shiftRight(messageBitLength - N.bitLength());
+        BigInteger w = s.modInverse(N);
+        BigInteger u1 = e.multiply(w).mod(N);
+        BigInteger u2 = r.multiply(w).mod(N);
+
+        int[] naf1 = windowNaf(u1, G_WINDOW);
+        int[] naf2 = windowNaf(u2, Q_WINDOW);
+        JacobianPoint result = new JacobianPoint(BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO);
+        for (int i = Math.max(naf1.length, naf2.length) - 1; i >= 0; i--) {
+            result.twice();
+            if (i < naf1.length && naf1[i] != 0)
+                result.add(G, naf1[i]);
+            if (i < naf2.length && naf2[i] != 0)
+                result.add(key, naf2[i]);
+        }
+        if (result.isInfinity())
+            return false;
+        // Check that x mod n == r without converting to affine co-ordinates: x = X / Z^2, and as x < p < 2n the only
+        // candidates for x are r and r + n.
+        BigInteger zz = result.z.multiply(result.z).mod(P);
+        if (result.x.equals(r.multiply(zz).mod(P)))
+            return true;
+        BigInteger rPlusN = r.add(N);
+        return rPlusN.compareTo(P) < 0 && result.x.equals(rPlusN.multiply(zz).mod(P));
+    }
+
+    // Returns the width w NAF of k, least significant digit first: every digit is zero or odd and less than 2^(w-1)
+    // in magnitude, and any w consecutive digits contain at most one which isn't zero.
+    private static int[] windowNaf(BigInteger k, int window) {
+        int[] naf = new int[k.bitLength() + 1];
+        int modulus = 1 << window;
+        int length = 0;
+        for (int i = 0; k.signum() > 0; i++) {
+            if (k.testBit(0)) {
+                int digit = k.intValue() & (modulus - 1);
+                if (digit >= modulus / 2)
+                    digit -= modulus;
+                naf[i] = digit;
+                k = k.subtract(BigInteger.valueOf(digit));
+                length = i + 1;
+            }
+            k = k.shiftRight(1);
+        }
+        int[] result = new int[length];
+        System.arraycopy(naf, 0, result, 0, length);
+        return result;
+    }
+
+    // Converts the points to affine co-ordinates, using one inversion for all of them.
+    private static void toAffine(JacobianPoint[] points, BigInteger[] xs, BigInteger[] ys) {
+        BigInteger[] products = new BigInteger[points.length];
+        BigInteger product = BigInteger.ONE;
+        for (int i = 0; i < points.length; i++) {
+            product = product.multiply(points[i].z).mod(P);
+            products[i] = product;
+        }
+        BigInteger inverse = product.modInverse(P);
+        for (int i = points.length - 1; i >= 0; i--) {
+            BigInteger zInverse = i == 0 ? inverse : inverse.multiply(products[i - 1]).mod(P);
+            inverse = inverse.multiply(points[i].z).mod(P);
+            BigInteger zInverse2 = zInverse.multiply(zInverse).mod(P);
+            xs[i] = points[i].x.multiply(zInverse2).mod(P);
+            ys[i] = points[i].y.multiply(zInverse2).multiply(zInverse).mod(P);
+        }
+    }
+
+    /** A mutable point in Jacobian co-ordinates (X, Y, Z), meaning the affine point (X/Z^2, Y/Z^3). */
+    private static final class JacobianPoint {
+        BigInteger x, y, z;
+
+        JacobianPoint(BigInteger x, BigInteger y, BigInteger z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        JacobianPoint copy() {
+            return new JacobianPoint(x, y, z);
+        }
+
+        boolean isInfinity() {
+            return z.signum() == 0;
+        }
+
+        void setInfinity() {
+            x = BigInteger.ONE;
+            y = BigInteger.ONE;
+            z = BigInteger.ZERO;
+        }
+
+        // Doubles this point, using the formulas for curves with a = 0.
+        void twice() {
+            if (isInfinity())
+                return;
+            if (y.signum() == 0) {
+                setInfinity();
+                return;
+            }
+            BigInteger yy = y.multiply(y).mod(P);
+            BigInteger s = x.multiply(yy).shiftLeft(2).mod(P);
+            BigInteger m = x.multiply(x).multiply(BigInteger.valueOf(3)).mod(P);
+            BigInteger newX = m.multiply(m).subtract(s.shiftLeft(1)).mod(P);
+            BigInteger newY = m.multiply(s.subtract(newX)).subtract(yy.multiply(yy).shiftLeft(3)).mod(P);
+            z = y.multiply(z).shiftLeft(1).mod(P);
+            x = newX;
+            y = newY;
+        }
+
+        // Adds the digit'th multiple of the key, where digit is odd and may be negative.
+        void add(PublicKey key, int digit) {
+            int index = Math.abs(digit) >> 1;
+            BigInteger pointY = key.ys[index];
+            add(key.xs[index], digit > 0 ? pointY : P.subtract(pointY));
+        }
+
+        // Adds the given affine point to this one.
+        void add(BigInteger pointX, BigInteger pointY) {
+            if (isInfinity()) {
+                x = pointX;
+                y = pointY;
+                z = BigInteger.ONE;
+                return;
+            }
+            BigInteger zz = z.multiply(z).mod(P);
+            BigInteger u2 = pointX.multiply(zz).mod(P);
+            BigInteger s2 = pointY.multiply(zz).multiply(z).mod(P);
+            BigInteger h = u2.subtract(x).mod(P);
+            BigInteger r = s2.subtract(y).mod(P);
+            if (h.signum() == 0) {
+                if (r.signum() == 0)
+                    twice();
+                else
+                    setInfinity();
+                return;
+            }
+            BigInteger hh = h.multiply(h).mod(P);
+            BigInteger hhh = h.multiply(hh).mod(P);
+            BigInteger v = x.multiply(hh).mod(P);
+            BigInteger newX = r.multiply(r).subtract(hhh).subtract(v.shiftLeft(1)).mod(P);
+            BigInteger newY = r.multiply(v.subtract(newX)).subtract(y.multiply(hhh)).mod(P);
+            z = z.multiply(h).mod(P);
+            x = newX;
+            y = newY;
+        }
+    }
+}
@@ -112,6 +112,7 @@ public class ECKey implements Serializable {
 
     // Transient because it's calculated on demand.
     transient private byte[] pubKeyHash;
+    transient private volatile ECDSAVerifier.PublicKey decodedPub;
 
     /**
      * Generates an entirely new keypair. Point compression is used so the resulting public key will be 33 bytes
@@ -424,6 +425,24 @@ public class ECKey implements Serializable {
     @VisibleForTesting
     public static boolean FAKE_SIGNATURES = false;
 
+    @Nullable private static volatile SignatureCache signatureCache = new SignatureCache();
+
+    /**
+     * Sets the cache of valid signatures which {@link #verify(byte[], ECDSASignature, byte[])} consults before doing
+     * any elliptic curve maths, and adds to afterwards, or null to always verify from scratch. By default a cache of
+     * {@link SignatureCache#DEFAULT_MAX_SIZE} signatures is used, so that a transaction which has already been checked
+     * when it was relayed to us doesn't need its signatures checked again when it appears in a block.
+     */
+    public static void setSignatureCache(@Nullable SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    /** Returns the cache of valid signatures, or null if signatures are always verified from scratch. */
+    @Nullable
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
     /**
      * Signs the given hash and returns the R and S components as BigIntegers. In the Bitcoin protocol, they are
      * usually encoded using DER format, so you want {@link com.google.bitcoin.core.ECKey.ECDSASignature#encodeToDER()}
@@ -478,29 +497,41 @@ public class ECKey implements Serializable {
      * <p>When using native ECDSA verification, data must be 32 bytes, and no element may be
      * larger than 520 bytes.</p>
      *
+     * <p>Signatures which turn out to be valid are remembered in the {@link #getSignatureCache() signature cache}, so
+     * checking the same one again is cheap.</p>
+     *
      * @param data      Hash of the data to verify.
      * @param signature ASN.1 encoded signature.
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, ECDSASignature signature, byte[] pub) {
+        return verify(data, signature, pub, null);
+    }
+
+    private static boolean verify(byte[] data, ECDSASignature signature, byte[] pub,
+                                  @Nullable ECDSAVerifier.PublicKey decodedPub) {
         if (FAKE_SIGNATURES)
             return true;
 
+        SignatureCache cache = signatureCache;
+        if (cache == null)
+            return verifyUncached(data, signature, pub, decodedPub);
+        if (cache.contains(data, signature, pub))
+            return true;
+        boolean valid = verifyUncached(data, signature, pub, decodedPub);
+        if (valid)
+            cache.add(data, signature, pub);
+        return valid;
+    }
+
+    private static boolean verifyUncached(byte[] data, ECDSASignature signature, byte[] pub,
+                                          @Nullable ECDSAVerifier.PublicKey decodedPub) {
         if (NativeSecp256k1.enabled)
             return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
 
-        ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
-        signer.init(false, params);
-        try {
-            return signer.verifySignature(data, signature.r, signature.s);
-        } catch (NullPointerException e) {
-            // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures. Those signatures
-            // are inherently invalid/attack sigs so we just fail them here rather than crash the thread.
-            log.error("Caught NPE inside bouncy castle");
-            e.printStackTrace();
-            return false;
-        }
+        if (decodedPub == null)
+            decodedPub = ECDSAVerifier.decodePublicKey(pub);
+        return decodedPub != null && ECDSAVerifier.verify(data, signature.r, signature.s, decodedPub);
     }
 
     /**
@@ -511,7 +542,7 @@ public class ECKey implements Serializable {
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) {
-        if (NativeSecp256k1.enabled)
+        if (NativeSecp256k1.enabled && signatureCache == null)
             return NativeSecp256k1.verify(data, signature, pub);
         return verify(data, ECDSASignature.decodeFromDER(signature), pub);
     }
@@ -523,14 +554,28 @@ public class ECKey implements Serializable {
      * @param signature ASN.1 encoded signature.
      */
     public boolean verify(byte[] data, byte[] signature) {
-        return ECKey.verify(data, signature, getPubKey());
+        if (NativeSecp256k1.enabled && signatureCache == null)
+            return NativeSecp256k1.verify(data, signature, getPubKey());
+        return verify(data, ECDSASignature.decodeFromDER(signature), getPubKey(), getDecodedPubKey());
     }
 
     /**
      * Verifies the given R/S pair (signature) against a hash using the public key.
      */
     public boolean verify(Sha256Hash sigHash, ECDSASignature signature) {
-        return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
+        return verify(sigHash.getBytes(), signature, getPubKey(), getDecodedPubKey());
+    }
+
+    // Decodes the public key for verification the first time it's needed, so that a key which verifies many
+    // signatures, like the client's key of a payment channel, only does so once.
+    @Nullable
+    private ECDSAVerifier.PublicKey getDecodedPubKey() {
+        if (NativeSecp256k1.enabled)
+            return null;
+        ECDSAVerifier.PublicKey key = decodedPub;
+        if (key == null)
+            decodedPub = key = ECDSAVerifier.decodePublicKey(getPubKey());
+        return key;
     }
 
     /**
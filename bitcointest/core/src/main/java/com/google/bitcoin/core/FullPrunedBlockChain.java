@@ -22,14 +22,10 @@ import com.google.bitcoin.store.FullPrunedBlockStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Nullable;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.concurrent.*;
+import java.util.*;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -110,36 +106,76 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
     
+    /**
+     * Sets the pool used to run the scripts of the transactions in each block. By default a pool with one thread per
+     * processor is shared by every FullPrunedBlockChain. Use {@link ScriptVerificationPool#ScriptVerificationPool(int)}
+     * to choose how many threads are used.
+     */
+    public void setScriptVerificationPool(ScriptVerificationPool pool) {
+        this.scriptVerificationPool = checkNotNull(pool);
+    }
+
     //TODO: Remove lots of duplicated code in the two connectTransactions
-    
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
-    /** A job submitted to the executor which verifies signatures. */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
+    private static class DefaultScriptVerificationPool {
+        static final ScriptVerificationPool POOL = new ScriptVerificationPool();
+    }
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
-        }
+    private ScriptVerificationPool scriptVerificationPool = DefaultScriptVerificationPool.POOL;
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
+    // Waits for the scripts of a block to finish running, and logs how long it took.
+    private void awaitScripts(ScriptVerificationPool.Job scripts, Sha256Hash blockHash) throws VerificationException {
+        scripts.await();
+        if (scripts.getInputCount() > 0 && log.isDebugEnabled()) {
+            long elapsed = Math.max(scripts.getElapsedMillis(), 1);
+            log.debug(String.format("Verified %d inputs of block %s in %dms, %dms of script execution (%.1fx parallel)",
+                    scripts.getInputCount(), blockHash, elapsed, scripts.getScriptMillis(),
+                    (double) scripts.getScriptMillis() / elapsed));
         }
     }
     
+    /**
+     * Fetches, in a single batch, the unspent outputs that the given transactions spend. The returned map is then used
+     * as the view of the unspent output set while the transactions are connected: spent outputs are removed from it
+     * and newly created ones added, so that transactions can spend outputs created earlier in the same block.
+     */
+    private Map<TransactionOutPoint, StoredTransactionOutput> prefetchSpentOutputs(List<Transaction> transactions)
+            throws BlockStoreException {
+        List<TransactionOutPoint> outpoints = new ArrayList<TransactionOutPoint>();
+        for (Transaction tx : transactions) {
+            if (tx.isCoinBase())
+                continue;
+            for (TransactionInput in : tx.getInputs())
+                outpoints.add(in.getOutpoint());
+        }
+        List<StoredTransactionOutput> outputs = blockStore.getTransactionOutputs(outpoints);
+        Map<TransactionOutPoint, StoredTransactionOutput> unspent = new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        for (int i = 0; i < outpoints.size(); i++) {
+            StoredTransactionOutput out = outputs.get(i);
+            if (out != null)
+                unspent.put(outpoints.get(i), out);
+        }
+        return unspent;
+    }
+
+    /**
+     * Adds created to and removes spent from the unspent output set in the store in one batch. Outputs which are both
+     * created and spent (ie, spent later in the same block) are left out entirely as they would cancel out anyway.
+     */
+    private void applyTxOutChanges(List<StoredTransactionOutput> created, List<StoredTransactionOutput> spent)
+            throws BlockStoreException {
+        Set<StoredTransactionOutput> spentSet = new HashSet<StoredTransactionOutput>(spent);
+        List<StoredTransactionOutput> netCreated = new ArrayList<StoredTransactionOutput>(created.size());
+        for (StoredTransactionOutput out : created)
+            if (!spentSet.remove(out))
+                netCreated.add(out);
+        List<StoredTransactionOutput> netSpent = new ArrayList<StoredTransactionOutput>(spentSet.size());
+        for (StoredTransactionOutput out : spent)
+            if (spentSet.contains(out))
+                netSpent.add(out);
+        blockStore.applyUnspentTransactionOutputChanges(netCreated, netSpent);
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -156,11 +192,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
         
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerificationPool.Job scripts = scriptVerificationPool.newJob();
         try {
+            Map<TransactionOutPoint, StoredTransactionOutput> unspent = prefetchSpentOutputs(block.transactions);
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
@@ -187,8 +221,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        StoredTransactionOutput prevOut = unspent.remove(in.getOutpoint());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -209,7 +242,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         
                         //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
                         
-                        blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
                 }
@@ -219,7 +251,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // For each output, add it to the set of unspent outputs so it can be consumed in future.
                     StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                             height, isCoinBase, out.getScriptBytes());
-                    blockStore.addUnspentTransactionOutput(newOut);
+                    unspent.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -235,33 +267,20 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    // The transaction must not be modified while its inputs are being verified.
+                    scripts.add(tx, prevOutScripts, enforcePayToScriptHash);
                 }
             }
             if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            awaitScripts(scripts, block.getHash());
+            applyTxOutChanges(txOutsCreated, txOutsSpent);
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scripts.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scripts.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -286,6 +305,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationPool.Job scripts = scriptVerificationPool.newJob();
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -302,10 +322,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 BigInteger totalFees = BigInteger.ZERO;
                 BigInteger coinbaseValue = null;
-                
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                Map<TransactionOutPoint, StoredTransactionOutput> unspent = prefetchSpentOutputs(transactions);
+
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     BigInteger valueIn = BigInteger.ZERO;
@@ -314,8 +332,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                                    in.getOutpoint().getIndex());
+                            final StoredTransactionOutput prevOut = unspent.remove(in.getOutpoint());
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
@@ -331,7 +348,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             
                             prevOutScripts.add(new Script(prevOut.getScriptBytes()));
                             
-                            blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
                         }
                     }
@@ -341,7 +357,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                                                                                      newBlock.getHeight(), isCoinBase,
                                                                                      out.getScriptBytes());
-                        blockStore.addUnspentTransactionOutput(newOut);
+                        unspent.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                         txOutsCreated.add(newOut);
                     }
                     // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -357,48 +373,34 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
                     
                     if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        // The transaction must not be modified while its inputs are being verified.
+                        scripts.add(tx, prevOutScripts, enforcePayToScriptHash);
                     }
                 }
                 if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                awaitScripts(scripts, newBlock.getHeader().getHash());
+                applyTxOutChanges(txOutsCreated, txOutsSpent);
             } else {
                 txOutChanges = block.getTxOutChanges();
-                if (!params.isCheckpoint(newBlock.getHeight()))
-                    for(StoredTransactionOutput out : txOutChanges.txOutsCreated) {
-                        Sha256Hash hash = out.getHash();
-                        if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
+                if (!params.isCheckpoint(newBlock.getHeight())) {
+                    List<TransactionOutPoint> created = new ArrayList<TransactionOutPoint>(txOutChanges.txOutsCreated.size());
+                    for (StoredTransactionOutput out : txOutChanges.txOutsCreated)
+                        created.add(new TransactionOutPoint(params, out.getIndex(), out.getHash()));
+                    for (StoredTransactionOutput existing : blockStore.getTransactionOutputs(created))
+                        if (existing != null)
                             throw new VerificationException("Block failed BIP30 test!");
-                    }
-                for (StoredTransactionOutput out : txOutChanges.txOutsCreated)
-                    blockStore.addUnspentTransactionOutput(out);
-                for (StoredTransactionOutput out : txOutChanges.txOutsSpent)
-                    blockStore.removeUnspentTransactionOutput(out);
+                }
+                applyTxOutChanges(txOutChanges.txOutsCreated, txOutChanges.txOutsSpent);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scripts.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scripts.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -417,10 +419,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
             if (undoBlock == null) throw new PrunedException(oldBlock.getHeader().getHash());
             TransactionOutputChanges txOutChanges = undoBlock.getTxOutChanges();
-            for(StoredTransactionOutput out : txOutChanges.txOutsSpent)
-                blockStore.addUnspentTransactionOutput(out);
-            for(StoredTransactionOutput out : txOutChanges.txOutsCreated)
-                blockStore.removeUnspentTransactionOutput(out);
+            // Undoing a block makes everything it spent unspent again, and removes everything it created.
+            applyTxOutChanges(txOutChanges.txOutsSpent, txOutChanges.txOutsCreated);
         } catch (PrunedException e) {
             blockStore.abortDatabaseBatchWrite();
             throw e;
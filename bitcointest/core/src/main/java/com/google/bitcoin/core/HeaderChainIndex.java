@@ -0,0 +1,301 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An in-memory index of the best chain held by a {@link BlockStore}, from which the block hash and timestamp at any
+ * height can be read without going to the store. Each block costs 36 bytes, so even the whole main chain only takes a
+ * few megabytes. Blocks on side chains are remembered as they are connected, so walking back from one of them to the
+ * point where it forks off the best chain doesn't need the store either.</p>
+ *
+ * <p>This makes it cheap to find ancestors, median time past and fork points, which would otherwise be found by
+ * loading blocks from the store one at a time. The index is built when first used, from only the top
+ * {@link #INITIAL_DEPTH} blocks so that it is quick even with a database backed store, and is extended further back
+ * only if something asks for an older block. {@link AbstractBlockChain} keeps it up to date by calling
+ * {@link #setChainHead(StoredBlock)}. This class is thread safe.</p>
+ */
+class HeaderChainIndex {
+    /** How many blocks below the chain head are loaded when the index is first built. */
+    static final int INITIAL_DEPTH = 2048;
+    // How many blocks on side chains are remembered.
+    private static final int MAX_SIDE_BLOCKS = 1000;
+    // How many blocks at the top of a block locator are consecutive, before they start getting further apart.
+    private static final int LOCATOR_DENSE_BLOCKS = 100;
+
+    private final BlockStore store;
+
+    // The best chain from baseHeight to the tip: 32 byte hashes one after another, and the header timestamps.
+    private int baseHeight;
+    private int size;
+    private byte[] hashes = new byte[0];
+    private int[] times = new int[0];
+    @Nullable private StoredBlock tip;
+
+    private final LinkedHashMap<Sha256Hash, StoredBlock> sideBlocks = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
+            return size() > MAX_SIDE_BLOCKS;
+        }
+    };
+
+    HeaderChainIndex(BlockStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Makes the given block the tip of the indexed chain. If it doesn't simply extend the previous tip, the index is
+     * unwound back to where the new tip's chain forks off.
+     */
+    synchronized void setChainHead(StoredBlock head) throws BlockStoreException {
+        if (tip != null && tip.getHeader().getHash().equals(head.getHeader().getHash()))
+            return;
+        if (tip == null) {
+            reset(head);
+            return;
+        }
+        // Walk back from the new head until we reach a block already in the index.
+        LinkedList<StoredBlock> newBlocks = new LinkedList<StoredBlock>();
+        StoredBlock cursor = head;
+        while (cursor != null && !isOnBestChainLocked(cursor)) {
+            if (cursor.getHeight() <= baseHeight) {
+                cursor = null;
+                break;
+            }
+            newBlocks.addFirst(cursor);
+            cursor = getPrevLocked(cursor);
+        }
+        if (cursor == null) {
+            // Forked off below the bottom of the index, or not connected to it at all.
+            reset(head);
+            return;
+        }
+        size = cursor.getHeight() - baseHeight + 1;
+        for (StoredBlock block : newBlocks) {
+            append(block);
+            sideBlocks.remove(block.getHeader().getHash());
+        }
+        tip = head;
+    }
+
+    /** Records a block which was connected to a side chain. */
+    synchronized void addSideBlock(StoredBlock block) {
+        sideBlocks.put(block.getHeader().getHash(), block);
+    }
+
+    /** Returns the block before the given one, or null if it isn't known. */
+    @Nullable
+    synchronized StoredBlock getPrev(StoredBlock block) throws BlockStoreException {
+        return getPrevLocked(block);
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, which may be the block itself, or null if it isn't
+     * in the block store.
+     */
+    @Nullable
+    synchronized StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        if (height < 0 || height > block.getHeight())
+            return null;
+        StoredBlock cursor = block;
+        while (cursor.getHeight() > height && !isOnBestChainLocked(cursor)) {
+            cursor = getPrevLocked(cursor);
+            if (cursor == null)
+                return null;
+        }
+        if (cursor.getHeight() == height)
+            return cursor;
+        if (!ensureLoaded(height))
+            return null;
+        return store.get(getHashLocked(height));
+    }
+
+    /**
+     * Returns the median of the timestamps of the given block and the ten blocks before it, or as many of them as
+     * there are.
+     */
+    synchronized long getMedianTimestamp(StoredBlock block) throws BlockStoreException {
+        long[] timestamps = new long[11];
+        int unused = 10;
+        StoredBlock cursor = block;
+        while (unused >= 0 && cursor != null && !isOnBestChainLocked(cursor)) {
+            timestamps[unused--] = cursor.getHeader().getTimeSeconds();
+            cursor = getPrevLocked(cursor);
+        }
+        if (unused >= 0 && cursor != null) {
+            int height = cursor.getHeight();
+            ensureLoaded(Math.max(0, height - unused));
+            for (; unused >= 0 && height >= baseHeight; height--)
+                timestamps[unused--] = getTimeLocked(height);
+        }
+        Arrays.sort(timestamps, unused + 1, 11);
+        return timestamps[unused + (11 - unused) / 2];
+    }
+
+    /**
+     * Returns the block at which the chains ending at the two given blocks diverge, which is one of the blocks
+     * themselves if one chain contains the other, or null if they aren't part of the same chain.
+     */
+    @Nullable
+    synchronized StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead) throws BlockStoreException {
+        if (tip != null && oldChainHead.getHeader().getHash().equals(tip.getHeader().getHash())) {
+            // The usual case: walk back along the new chain until it joins the best chain.
+            StoredBlock cursor = newChainHead;
+            while (cursor != null && !isOnBestChainLocked(cursor))
+                cursor = getPrevLocked(cursor);
+            if (cursor != null)
+                return cursor;
+        }
+        StoredBlock currentChainCursor = oldChainHead;
+        StoredBlock newChainCursor = newChainHead;
+        while (!currentChainCursor.equals(newChainCursor)) {
+            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
+                currentChainCursor = getPrevLocked(currentChainCursor);
+                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+            } else {
+                newChainCursor = getPrevLocked(newChainCursor);
+                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+            }
+        }
+        return currentChainCursor;
+    }
+
+    /**
+     * Returns a block locator starting from the given block, or null if that block isn't on the indexed chain. The
+     * first hundred blocks are consecutive, then the gaps between them double each time until the bottom of the
+     * index is reached. The genesis block is not added unless the index reaches down to it.
+     */
+    @Nullable
+    synchronized List<Sha256Hash> getBlockLocator(StoredBlock from) {
+        if (!isOnBestChainLocked(from))
+            return null;
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(LOCATOR_DENSE_BLOCKS + 32);
+        int step = 1;
+        for (int height = from.getHeight(); height >= baseHeight; height -= step) {
+            locator.add(getHashLocked(height));
+            if (locator.size() >= LOCATOR_DENSE_BLOCKS)
+                step *= 2;
+        }
+        return locator;
+    }
+
+    /** Returns the hash of the block at the given height on the indexed chain, or null if it isn't in the index. */
+    @Nullable
+    synchronized Sha256Hash getHash(int height) {
+        if (height < baseHeight || height >= baseHeight + size)
+            return null;
+        return getHashLocked(height);
+    }
+
+    /** Returns the lowest height in the index. */
+    synchronized int getBaseHeight() {
+        return baseHeight;
+    }
+
+    /** Returns the number of blocks in the index. */
+    synchronized int size() {
+        return size;
+    }
+
+    private boolean isOnBestChainLocked(StoredBlock block) {
+        int height = block.getHeight();
+        if (height < baseHeight || height >= baseHeight + size)
+            return false;
+        byte[] hash = block.getHeader().getHash().getBytes();
+        int offset = (height - baseHeight) * 32;
+        for (int i = 0; i < 32; i++) {
+            if (hashes[offset + i] != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    @Nullable
+    private StoredBlock getPrevLocked(StoredBlock block) throws BlockStoreException {
+        Sha256Hash prevHash = block.getHeader().getPrevBlockHash();
+        StoredBlock prev = sideBlocks.get(prevHash);
+        return prev != null ? prev : store.get(prevHash);
+    }
+
+    private Sha256Hash getHashLocked(int height) {
+        int offset = (height - baseHeight) * 32;
+        return new Sha256Hash(Arrays.copyOfRange(hashes, offset, offset + 32));
+    }
+
+    private long getTimeLocked(int height) {
+        return times[height - baseHeight] & 0xFFFFFFFFL;
+    }
+
+    // Rebuilds the index from the top INITIAL_DEPTH blocks of the chain ending at head.
+    private void reset(StoredBlock head) throws BlockStoreException {
+        baseHeight = head.getHeight();
+        size = 0;
+        tip = head;
+        append(head);
+        ensureLoaded(Math.max(0, head.getHeight() - INITIAL_DEPTH + 1));
+    }
+
+    private void append(StoredBlock block) {
+        if (size == times.length) {
+            int capacity = Math.max(size * 2, 1024);
+            hashes = Arrays.copyOf(hashes, capacity * 32);
+            times = Arrays.copyOf(times, capacity);
+        }
+        System.arraycopy(block.getHeader().getHash().getBytes(), 0, hashes, size * 32, 32);
+        times[size] = (int) block.getHeader().getTimeSeconds();
+        size++;
+    }
+
+    // Extends the bottom of the index down to the given height by loading blocks from the store, returning false if
+    // the store doesn't go back that far.
+    private boolean ensureLoaded(int height) throws BlockStoreException {
+        if (height >= baseHeight)
+            return true;
+        StoredBlock cursor = store.get(getHashLocked(baseHeight));
+        List<StoredBlock> older = new ArrayList<StoredBlock>(baseHeight - height);
+        while (cursor != null && cursor.getHeight() > height) {
+            cursor = getPrevLocked(cursor);
+            if (cursor != null)
+                older.add(cursor);
+        }
+        int count = older.size();
+        if (count > 0) {
+            byte[] newHashes = new byte[(times.length + count) * 32];
+            int[] newTimes = new int[times.length + count];
+            System.arraycopy(hashes, 0, newHashes, count * 32, size * 32);
+            System.arraycopy(times, 0, newTimes, count, size);
+            // The blocks were loaded from the top down.
+            for (int i = 0; i < count; i++) {
+                StoredBlock block = older.get(count - 1 - i);
+                System.arraycopy(block.getHeader().getHash().getBytes(), 0, newHashes, i * 32, 32);
+                newTimes[i] = (int) block.getHeader().getTimeSeconds();
+            }
+            hashes = newHashes;
+            times = newTimes;
+            size += count;
+            baseHeight -= count;
+        }
+        return baseHeight <= height;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>The elements of a Bloom filter, grouped by what they came from (a key, a script or a transaction), along with a
+ * filter that has them inserted. Elements added since the filter was last asked for are inserted into it then, so
+ * asking again for a filter with the same parameters costs no more than copying it.</p>
+ *
+ * <p>Elements can't be taken out of a Bloom filter, so removed ones stay in it and just make it match more than it
+ * should. Once they push its false positive rate past {@link PeerGroup#MAX_FP_RATE_INCREASE} times what it would be
+ * without them, or the filter is asked for with different parameters, it is built again from the elements that are
+ * left. That doesn't need the owners to be looked at again.</p>
+ *
+ * <p>Not thread safe, {@link Wallet} only uses it with its lock held.</p>
+ */
+final class IncrementalBloomFilter {
+    private final HashMap<Object, byte[][]> elementsByOwner = new HashMap<Object, byte[][]>();
+    private int size;
+    // Elements added since the filter was last brought up to date.
+    private final ArrayList<byte[]> uninserted = new ArrayList<byte[]>();
+    // How many elements that aren't wanted any more are still in the filter.
+    private int removed;
+
+    @Nullable private BloomFilter filter;
+    private int filterElements;
+    private double filterFalsePositiveRate;
+    private long filterTweak;
+
+    /**
+     * Sets the elements that come from the given owner, replacing any it had before. Only those that weren't there
+     * before need inserting into the filter.
+     */
+    void put(Object owner, List<byte[]> elements) {
+        byte[][] previous = elementsByOwner.get(owner);
+        if (elements.isEmpty()) {
+            if (previous != null)
+                remove(owner);
+            return;
+        }
+        byte[][] current = elements.toArray(new byte[elements.size()][]);
+        elementsByOwner.put(owner, current);
+        size += current.length;
+        if (previous == null) {
+            uninserted.addAll(elements);
+            return;
+        }
+        size -= previous.length;
+        for (byte[] element : current) {
+            if (!contains(previous, element))
+                uninserted.add(element);
+        }
+        for (byte[] element : previous) {
+            if (!contains(current, element))
+                removed++;
+        }
+    }
+
+    /** Removes the elements that came from the given owner. */
+    void remove(Object owner) {
+        byte[][] previous = elementsByOwner.remove(owner);
+        if (previous == null)
+            return;
+        size -= previous.length;
+        removed += previous.length;
+    }
+
+    /** Returns true if elements have been put for the given owner. */
+    boolean contains(Object owner) {
+        return elementsByOwner.containsKey(owner);
+    }
+
+    /** Returns how many elements there are. */
+    int size() {
+        return size;
+    }
+
+    /** Removes every element. */
+    void clear() {
+        elementsByOwner.clear();
+        uninserted.clear();
+        size = 0;
+        removed = 0;
+        filter = null;
+    }
+
+    /** Returns a new filter with the given parameters holding all the elements. */
+    BloomFilter getFilter(int elements, double falsePositiveRate, long tweak) {
+        if (filter == null || filterElements != elements || filterFalsePositiveRate != falsePositiveRate ||
+                filterTweak != tweak || tooManyRemoved(falsePositiveRate)) {
+            filter = new BloomFilter(elements, falsePositiveRate, tweak);
+            filterElements = elements;
+            filterFalsePositiveRate = falsePositiveRate;
+            filterTweak = tweak;
+            for (byte[][] owned : elementsByOwner.values()) {
+                for (byte[] element : owned)
+                    filter.insert(element);
+            }
+            uninserted.clear();
+            removed = 0;
+        } else {
+            for (byte[] element : uninserted)
+                filter.insert(element);
+            uninserted.clear();
+        }
+        BloomFilter copy = new BloomFilter(elements, falsePositiveRate, tweak);
+        copy.merge(filter);
+        return copy;
+    }
+
+    private boolean tooManyRemoved(double falsePositiveRate) {
+        if (removed == 0)
+            return false;
+        double wanted = Math.max(falsePositiveRate, filter.getFalsePositiveRate(size));
+        return filter.getFalsePositiveRate(size + removed) > wanted * PeerGroup.MAX_FP_RATE_INCREASE;
+    }
+
+    private static boolean contains(byte[][] elements, byte[] element) {
+        for (byte[] e : elements) {
+            if (Arrays.equals(e, element))
+                return true;
+        }
+        return false;
+    }
+}
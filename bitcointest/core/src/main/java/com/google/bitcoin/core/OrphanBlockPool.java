@@ -0,0 +1,277 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.core.AbstractBlockChain.OrphanBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The blocks an {@link AbstractBlockChain} has received but can't connect yet because their parent is unknown.
+ * They are indexed both by their own hash and by the hash of their parent, so that when a block is connected its
+ * orphaned children can be picked out directly rather than by scanning the whole pool.</p>
+ *
+ * <p>The pool is bounded by the number of blocks, by their estimated size in memory, and by the number of blocks from
+ * any one peer, so a peer which sends us lots of junk that doesn't connect can neither exhaust our memory nor push out
+ * the orphans sent by everyone else. When a limit is reached the oldest orphans are evicted. This class is not thread
+ * safe: the block chain only uses it whilst holding its lock.</p>
+ */
+class OrphanBlockPool {
+    private static final Logger log = LoggerFactory.getLogger(OrphanBlockPool.class);
+
+    /** The number of orphan blocks held by default. */
+    static final int DEFAULT_MAX_BLOCKS = 1000;
+    /** The estimated size in bytes of the orphan blocks held by default. */
+    static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    /** The number of orphan blocks from any one peer held by default. */
+    static final int DEFAULT_MAX_BLOCKS_PER_SOURCE = 500;
+
+    private static final class Entry {
+        final OrphanBlock orphan;
+        @Nullable final PeerAddress source;
+        final int size;
+        final long addedTime;
+        // An ancestor of this block which was the root of its orphan chain when last looked up. It stays an ancestor
+        // for as long as it is in the pool, so getRoot() can carry on from there instead of from this block.
+        @Nullable Sha256Hash rootHint;
+
+        Entry(OrphanBlock orphan, @Nullable PeerAddress source, int size, long addedTime) {
+            this.orphan = orphan;
+            this.source = source;
+            this.size = size;
+            this.addedTime = addedTime;
+        }
+
+        Sha256Hash hash() {
+            return orphan.block.getHash();
+        }
+
+        Sha256Hash prevHash() {
+            return orphan.block.getPrevBlockHash();
+        }
+    }
+
+    // All the orphans in the order they arrived, so the first is the one to evict.
+    private final LinkedHashMap<Sha256Hash, Entry> byHash = new LinkedHashMap<Sha256Hash, Entry>();
+    private final HashMap<Sha256Hash, List<Entry>> byPrevHash = new HashMap<Sha256Hash, List<Entry>>();
+    private final HashMap<PeerAddress, LinkedHashSet<Sha256Hash>> bySource = new HashMap<PeerAddress, LinkedHashSet<Sha256Hash>>();
+
+    private int maxBlocks = DEFAULT_MAX_BLOCKS;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int maxBlocksPerSource = DEFAULT_MAX_BLOCKS_PER_SOURCE;
+    private long bytes;
+
+    // Statistics.
+    private long evicted;
+    private long connected;
+    private long totalWaitMillis;
+
+    /** Sets the limits on the pool, evicting the oldest orphans if it is now over them. */
+    void setLimits(int maxBlocks, long maxBytes, int maxBlocksPerSource) {
+        checkArgument(maxBlocks > 0 && maxBytes > 0 && maxBlocksPerSource > 0);
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+        this.maxBlocksPerSource = maxBlocksPerSource;
+        for (LinkedHashSet<Sha256Hash> hashes : new ArrayList<LinkedHashSet<Sha256Hash>>(bySource.values())) {
+            while (hashes.size() > maxBlocksPerSource)
+                evict(byHash.get(hashes.iterator().next()));
+        }
+        while (byHash.size() > maxBlocks || (bytes > maxBytes && byHash.size() > 1))
+            evict(byHash.values().iterator().next());
+    }
+
+    boolean contains(Sha256Hash hash) {
+        return byHash.containsKey(hash);
+    }
+
+    /**
+     * Adds an orphan received from the given peer, or from nowhere in particular if the source is null, first evicting
+     * older orphans to make room for it if necessary.
+     */
+    void add(OrphanBlock orphan, @Nullable PeerAddress source) {
+        Sha256Hash hash = orphan.block.getHash();
+        if (byHash.containsKey(hash))
+            return;
+        Entry entry = new Entry(orphan, source, estimateSize(orphan), System.currentTimeMillis());
+        if (source != null) {
+            LinkedHashSet<Sha256Hash> fromSource = bySource.get(source);
+            while (fromSource != null && fromSource.size() >= maxBlocksPerSource)
+                evict(byHash.get(fromSource.iterator().next()));
+        }
+        while (!byHash.isEmpty() && (byHash.size() >= maxBlocks || bytes + entry.size > maxBytes))
+            evict(byHash.values().iterator().next());
+
+        byHash.put(hash, entry);
+        List<Entry> siblings = byPrevHash.get(entry.prevHash());
+        if (siblings == null) {
+            siblings = new ArrayList<Entry>(1);
+            byPrevHash.put(entry.prevHash(), siblings);
+        }
+        siblings.add(entry);
+        if (source != null) {
+            LinkedHashSet<Sha256Hash> fromSource = bySource.get(source);
+            if (fromSource == null) {
+                fromSource = new LinkedHashSet<Sha256Hash>();
+                bySource.put(source, fromSource);
+            }
+            fromSource.add(hash);
+        }
+        bytes += entry.size;
+    }
+
+    /**
+     * Returns the hashes of the orphans whose parent is the given block, in the order they arrived. This is called once
+     * the parent has been connected, so that each orphan can be taken out with {@link #removeConnectable(Sha256Hash)}
+     * and connected after it.
+     */
+    List<Sha256Hash> getChildren(Sha256Hash parent) {
+        List<Entry> children = byPrevHash.get(parent);
+        if (children == null)
+            return Collections.emptyList();
+        List<Sha256Hash> result = new ArrayList<Sha256Hash>(children.size());
+        for (Entry child : children)
+            result.add(child.hash());
+        return result;
+    }
+
+    /**
+     * Removes and returns the given orphan because its parent has been connected, or returns null if it is not in the
+     * pool.
+     */
+    @Nullable
+    OrphanBlock removeConnectable(Sha256Hash hash) {
+        Entry entry = byHash.get(hash);
+        if (entry == null)
+            return null;
+        remove(entry);
+        connected++;
+        totalWaitMillis += System.currentTimeMillis() - entry.addedTime;
+        return entry.orphan;
+    }
+
+    /**
+     * Removes every orphan which descends from the given block, which has turned out to be invalid, so they could
+     * never be connected either. Returns how many were removed.
+     */
+    int removeDescendants(Sha256Hash invalid) {
+        int removed = 0;
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(invalid);
+        while (!parents.isEmpty()) {
+            List<Entry> children = byPrevHash.remove(parents.poll());
+            if (children == null)
+                continue;
+            for (Entry child : children) {
+                unlink(child);
+                parents.add(child.hash());
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the oldest ancestor of the given orphan which is in the pool, which may be the orphan itself, or null if
+     * the given block is not an orphan.
+     */
+    @Nullable
+    Block getRoot(Sha256Hash from) {
+        Entry start = byHash.get(from);
+        if (start == null)
+            return null;
+        Entry cursor = start;
+        while (true) {
+            Entry next = cursor.rootHint == null ? null : byHash.get(cursor.rootHint);
+            if (next == null || next == cursor)
+                next = byHash.get(cursor.prevHash());
+            if (next == null)
+                break;
+            cursor = next;
+        }
+        start.rootHint = cursor.hash();
+        return cursor.orphan.block;
+    }
+
+    /** Returns the number of orphans in the pool. */
+    int size() {
+        return byHash.size();
+    }
+
+    /** Returns the estimated size in bytes of the orphans in the pool. */
+    long getBytes() {
+        return bytes;
+    }
+
+    /** Returns how many orphans have been evicted to keep the pool within its limits. */
+    long getEvictedCount() {
+        return evicted;
+    }
+
+    /** Returns how many orphans have left the pool because their parent was connected. */
+    long getConnectedCount() {
+        return connected;
+    }
+
+    /** Returns the average time orphans spent in the pool before their parent was connected, in milliseconds. */
+    long getAverageWaitMillis() {
+        return connected == 0 ? 0 : totalWaitMillis / connected;
+    }
+
+    private void evict(Entry entry) {
+        log.info("Evicting orphan block {}", entry.hash());
+        remove(entry);
+        evicted++;
+    }
+
+    private void remove(Entry entry) {
+        unlink(entry);
+        List<Entry> siblings = byPrevHash.get(entry.prevHash());
+        if (siblings != null) {
+            siblings.remove(entry);
+            if (siblings.isEmpty())
+                byPrevHash.remove(entry.prevHash());
+        }
+    }
+
+    // Removes the entry from everything but the index by parent.
+    private void unlink(Entry entry) {
+        byHash.remove(entry.hash());
+        if (entry.source != null) {
+            LinkedHashSet<Sha256Hash> fromSource = bySource.get(entry.source);
+            fromSource.remove(entry.hash());
+            if (fromSource.isEmpty())
+                bySource.remove(entry.source);
+        }
+        bytes -= entry.size;
+    }
+
+    private static int estimateSize(OrphanBlock orphan) {
+        int size = orphan.block.transactions == null ? Block.HEADER_SIZE : orphan.block.getOptimalEncodingMessageSize();
+        if (orphan.filteredTxHashes != null)
+            size += orphan.filteredTxHashes.size() * 32;
+        if (orphan.filteredTxn != null) {
+            for (Transaction tx : orphan.filteredTxn.values())
+                size += tx.getOptimalEncodingMessageSize();
+        }
+        return size;
+    }
+}
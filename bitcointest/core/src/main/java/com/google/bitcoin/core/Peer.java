@@ -41,6 +41,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -93,6 +94,10 @@ public class Peer extends PeerSocketHandler {
     // so we can use this to calculate the height of the peers chain, by adding it to the initial height in the version
     // message. This method can go wrong if the peer re-orgs onto a shorter (but harder) chain, however, this is rare.
     private final AtomicInteger blocksAnnounced = new AtomicInteger();
+    // How many blocks and filtered blocks the peer has sent us, used to measure how fast it delivers. Block headers
+    // are counted separately, as a single message carries thousands of them.
+    private final AtomicLong blocksReceived = new AtomicLong();
+    private final AtomicLong headersReceived = new AtomicLong();
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
@@ -106,6 +111,22 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean downloadBlockBodies = true;
     // Whether to request filtered blocks instead of full blocks if the protocol version allows for them.
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
+    // The last of the blocks requested straight from a headers message after passing the fast catchup time. When it
+    // arrives, chain download carries on with getblocks.
+    @GuardedBy("lock") private Sha256Hash lastBlockFromHeaders;
+    // Whether to carry on with getheaders rather than getblocks once those blocks have arrived, because the headers
+    // message was full and so there are probably more headers to come.
+    @GuardedBy("lock") private boolean continueWithHeaders;
+    // The blocks requested straight from a headers message which haven't arrived yet, and when the last of them did
+    // arrive (or when they were requested). If the peer says it doesn't have one of them, or none of them turns up for
+    // BLOCKS_FROM_HEADERS_TIMEOUT_MSEC, the download starts again from the chain head with getblocks. Blocks scheduled
+    // with the BlockDownloadScheduler aren't in the set, but the same timeout applies to them until the last one has
+    // been added to the chain.
+    @GuardedBy("lock") private final HashSet<Sha256Hash> blocksFromHeaders = new HashSet<Sha256Hash>();
+    @GuardedBy("lock") private long blocksFromHeadersProgressTime;
+    static final long BLOCKS_FROM_HEADERS_TIMEOUT_MSEC = 30 * 1000;
+    // When part of a PeerGroup, spreads the download of blocks whose headers we have over all the group's peers.
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
@@ -319,6 +340,8 @@ public class Peer extends PeerSocketHandler {
         }
         if (m == null) return;
 
+        maybeRestartStalledDownload();
+
         // If we are in the middle of receiving transactions as part of a filtered block push from the remote node,
         // and we receive something that's not a transaction, then we're done.
         if (currentFilteredBlock != null && !(m instanceof Transaction)) {
@@ -333,8 +356,10 @@ public class Peer extends PeerSocketHandler {
         } else if (m instanceof InventoryMessage) {
             processInv((InventoryMessage) m);
         } else if (m instanceof Block) {
+            blocksReceived.incrementAndGet();
             processBlock((Block) m);
         } else if (m instanceof FilteredBlock) {
+            blocksReceived.incrementAndGet();
             startFilteredBlock((FilteredBlock) m);
         } else if (m instanceof Transaction) {
             processTransaction((Transaction) m);
@@ -345,6 +370,7 @@ public class Peer extends PeerSocketHandler {
             // we should save them in the wallet so we don't put too much load on the seed nodes and can
             // properly explore the network.
         } else if (m instanceof HeadersMessage) {
+            headersReceived.addAndGet(((HeadersMessage) m).getBlockHeaders().size());
             processHeaders((HeadersMessage) m);
         } else if (m instanceof AlertMessage) {
             processAlert((AlertMessage) m);
@@ -446,6 +472,21 @@ public class Peer extends PeerSocketHandler {
                 }
             }
         }
+        // It may also be a block we need to carry on downloading the chain.
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null)
+            scheduler.notFound(this, m.getItems());
+        lock.lock();
+        try {
+            for (InventoryItem item : m.getItems()) {
+                if (blocksFromHeaders.contains(item.hash)) {
+                    restartBlockDownloadLocked("peer does not have block " + item.hash);
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void processAlert(AlertMessage m) {
@@ -488,46 +529,86 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
-                // Process headers until we pass the fast catchup time, or are about to catch up with the head
-                // of the chain - always process the last block as a full/filtered block to kick us out of the
-                // fast catchup mode (in which we ignore new blocks).
-                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
-                boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
-                if (!passedTime && !reachedTop) {
+            List<Block> headers = m.getBlockHeaders();
+            // Add headers to the chain until we pass the fast catchup time, or are about to catch up with the head
+            // of the chain - always process the last block as a full/filtered block to kick us out of the fast catchup
+            // mode (in which we ignore new blocks).
+            long blocksLeft = vPeerVersionMessage.bestHeight - blockChain.getBestChainHeight();
+            int numHeaders = 0;
+            while (numHeaders < headers.size() && numHeaders < blocksLeft &&
+                    headers.get(numHeaders).getTimeSeconds() < fastCatchupTimeSecs)
+                numHeaders++;
+            if (numHeaders > 0) {
+                if (!vDownloadData) {
+                    // Not download peer anymore, some other peer probably became better.
+                    log.info("Lost download peer status, throwing away downloaded headers.");
+                    return;
+                }
+                if (!blockChain.addHeaders(headers.subList(0, numHeaders))) {
+                    // A header is unconnected - we don't know how to get from it back to the genesis block yet.
+                    // That must mean that the peer is buggy or malicious because we specifically requested for
+                    // headers that are part of the best chain.
+                    throw new ProtocolException("Got unconnected headers from peer");
+                }
+                // The headers were successfully linked into the chain. Notify the user of our progress.
+                for (int i = 0; i < numHeaders; i++)
+                    invokeOnBlocksDownloaded(headers.get(i));
+            }
+            if (numHeaders < headers.size()) {
+                List<Block> rest = headers.subList(numHeaders, headers.size());
+                BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+                if (scheduler != null) {
                     if (!vDownloadData) {
-                        // Not download peer anymore, some other peer probably became better.
                         log.info("Lost download peer status, throwing away downloaded headers.");
                         return;
                     }
-                    if (blockChain.add(header)) {
-                        // The block was successfully linked into the chain. Notify the user of our progress.
-                        invokeOnBlocksDownloaded(header);
-                    } else {
-                        // This block is unconnected - we don't know how to get from it back to the genesis block yet.
-                        // That must mean that the peer is buggy or malicious because we specifically requested for
-                        // headers that are part of the best chain.
-                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
-                    }
-                } else {
+                    // Fetch the blocks from every peer in the group. The headers haven't been through the chain, so
+                    // check them here to avoid asking all our peers for junk.
+                    AbstractBlockChain.verifyHeaders(rest);
+                    boolean filtered;
                     lock.lock();
                     try {
-                        log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
-                                m.getBlockHeaders().size() - i);
+                        log.info("Passed the fast catchup time, scheduling download of {} blocks", rest.size());
                         this.downloadBlockBodies = true;
-                        // Prevent this request being seen as a duplicate.
-                        this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
-                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                        filtered = vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks;
+                        lastBlockFromHeaders = rest.get(rest.size() - 1).getHash();
+                        continueWithHeaders = headers.size() >= HeadersMessage.MAX_HEADERS;
+                        blocksFromHeadersProgressTime = Utils.currentTimeMillis();
                     } finally {
                         lock.unlock();
                     }
+                    scheduler.schedule(this, rest, blockChain.getBestChainHeight() + 1, filtered);
                     return;
                 }
+                lock.lock();
+                try {
+                    log.info("Passed the fast catchup time, requesting full blocks for the remaining {} headers",
+                            rest.size());
+                    this.downloadBlockBodies = true;
+                    // We already know which blocks come next, so ask for them straight away instead of making another
+                    // round trip with getblocks. Once the last of them arrives we carry on with getblocks from there.
+                    GetDataMessage getdata = new GetDataMessage(params);
+                    boolean filtered = vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks;
+                    for (Block header : rest) {
+                        Sha256Hash hash = header.getHash();
+                        getdata.addItem(new InventoryItem(
+                                filtered ? InventoryItem.Type.FilteredBlock : InventoryItem.Type.Block, hash));
+                        pendingBlockDownloads.add(hash);
+                        blocksFromHeaders.add(hash);
+                    }
+                    blocksFromHeadersProgressTime = Utils.currentTimeMillis();
+                    lastBlockFromHeaders = rest.get(rest.size() - 1).getHash();
+                    sendMessage(getdata);
+                    if (filtered)
+                        sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+                } finally {
+                    lock.unlock();
+                }
+                return;
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
-            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS) {
+            if (headers.size() >= HeadersMessage.MAX_HEADERS) {
                 lock.lock();
                 try {
                     blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
@@ -805,17 +886,22 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was it requested by the block download scheduler, possibly on behalf of another peer?
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.receive(this, m)) return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
         pendingBlockDownloads.remove(m.getHash());
+        blockFromHeadersArrived(m.getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
-            if (blockChain.add(m)) {
+            if (blockChain.add(m, getAddress())) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m);
+                maybeContinueChainDownload(m.getHash());
             } else {
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
@@ -838,8 +924,7 @@ public class Peer extends PeerSocketHandler {
                 lock.lock();
                 try {
                     if (downloadBlockBodies) {
-                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                        blockChainDownloadLocked(orphanRoot.getHash());
+                        blockChainDownloadLocked(getOrphanRootHash(m.getHash()));
                     } else {
                         log.info("Did not start chain download on solved block due to in-flight header download.");
                     }
@@ -861,18 +946,21 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
         }
-        if (!vDownloadData) {
-            log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
-            return;
-        }
         if (blockChain == null) {
             log.warn("Received filtered block but was not configured with an AbstractBlockChain");
             return;
         }
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.receive(this, m)) return;
+        if (!vDownloadData) {
+            log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
+            return;
+        }
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
         pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        blockFromHeadersArrived(m.getBlockHeader().getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -889,9 +977,10 @@ public class Peer extends PeerSocketHandler {
             // confirmation and become stuck forever. The fix is to notice that there's a pending getdata for a tx
             // that appeared in this block and delay processing until it arrived ... it's complicated by the fact that
             // the data may be requested by a different peer to this one.
-            if (blockChain.add(m)) {
+            if (blockChain.add(m, getAddress())) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m.getBlockHeader());
+                maybeContinueChainDownload(m.getHash());
             } else {
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
@@ -910,8 +999,7 @@ public class Peer extends PeerSocketHandler {
                 // no matter how many blocks are solved, and therefore that the (2) duplicate filtering can work.
                 lock.lock();
                 try {
-                    final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                    blockChainDownloadLocked(orphanRoot.getHash());
+                    blockChainDownloadLocked(getOrphanRootHash(m.getHash()));
                 } finally {
                     lock.unlock();
                 }
@@ -1035,8 +1123,7 @@ public class Peer extends PeerSocketHandler {
                     if (blockChain.isOrphan(item.hash) && downloadBlockBodies) {
                         // If an orphan was re-advertised, ask for more blocks unless we are not currently downloading
                         // full block data because we have a getheaders outstanding.
-                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(item.hash));
-                        blockChainDownloadLocked(orphanRoot.getHash());
+                        blockChainDownloadLocked(getOrphanRootHash(item.hash));
                     } else {
                         // Don't re-request blocks we already requested. Normally this should not happen. However there is
                         // an edge case: if a block is solved and we complete the inv<->getdata<->block<->getblocks cycle
@@ -1163,6 +1250,120 @@ public class Peer extends PeerSocketHandler {
         wallets.remove(wallet);
     }
 
+    // Carries on downloading the chain once the last of the blocks requested straight from a headers message has
+    // arrived.
+    private void maybeContinueChainDownload(Sha256Hash hash) {
+        lock.lock();
+        try {
+            if (hash.equals(lastBlockFromHeaders)) {
+                lastBlockFromHeaders = null;
+                if (!vDownloadData)
+                    return;  // Another peer took over the download whilst the blocks were arriving.
+                if (continueWithHeaders) {
+                    continueWithHeaders = false;
+                    downloadBlockBodies = false;
+                }
+                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void blockFromHeadersArrived(Sha256Hash hash) {
+        lock.lock();
+        try {
+            if (blocksFromHeaders.remove(hash))
+                blocksFromHeadersProgressTime = Utils.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Restarts the chain download if none of the blocks requested from a headers message has arrived for a while. Also
+    // called regularly by the BlockDownloadScheduler, as a peer waiting for scheduled blocks may not be sending us
+    // anything itself.
+    void maybeRestartStalledDownload() {
+        lock.lock();
+        try {
+            if ((!blocksFromHeaders.isEmpty() || lastBlockFromHeaders != null) &&
+                    Utils.currentTimeMillis() - blocksFromHeadersProgressTime >= BLOCKS_FROM_HEADERS_TIMEOUT_MSEC)
+                restartBlockDownloadLocked("blocks did not arrive in time");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gives up on the blocks requested from a headers message and asks for the blocks after the chain head with
+    // getblocks, so that the missing blocks are announced again and can be requested afresh.
+    @GuardedBy("lock")
+    private void restartBlockDownloadLocked(String reason) {
+        log.warn("{}: Restarting chain download from the chain head: {}", this, reason);
+        pendingBlockDownloads.removeAll(blocksFromHeaders);
+        blocksFromHeaders.clear();
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null)
+            scheduler.cancel(this);
+        lastBlockFromHeaders = null;
+        continueWithHeaders = false;
+        if (!vDownloadData)
+            return;
+        // The new request may well look just like the last one, which must not stop it being sent.
+        lastGetBlocksBegin = null;
+        lastGetBlocksEnd = null;
+        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+    }
+
+    /**
+     * Called by the {@link BlockDownloadScheduler} with the blocks this peer scheduled, in chain order, once they have
+     * been downloaded from whichever peer they were requested from. Returns false if the block failed verification.
+     */
+    boolean processScheduledBlock(Message m, PeerAddress source) {
+        Block header = m instanceof FilteredBlock ? ((FilteredBlock) m).getBlockHeader() : (Block) m;
+        try {
+            boolean connected = m instanceof FilteredBlock ?
+                    checkNotNull(blockChain).add((FilteredBlock) m, source) : checkNotNull(blockChain).add(header, source);
+            if (connected) {
+                lock.lock();
+                try {
+                    blocksFromHeadersProgressTime = Utils.currentTimeMillis();
+                } finally {
+                    lock.unlock();
+                }
+                invokeOnBlocksDownloaded(header);
+                maybeContinueChainDownload(header.getHash());
+            } else if (vDownloadData) {
+                // The peers we got the headers from and the block from disagree about the chain. Fall back to asking
+                // for the blocks we're missing.
+                lock.lock();
+                try {
+                    blockChainDownloadLocked(getOrphanRootHash(header.getHash()));
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (VerificationException e) {
+            log.warn("{}: Scheduled block from {} failed verification", getAddress(), source, e);
+            return false;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    /** Sets the scheduler used to download the blocks of headers this peer receives. */
+    void setBlockDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        vBlockDownloadScheduler = scheduler;
+    }
+
+    // Returns the hash of the oldest orphan the given one descends from. The orphan may have left the pool since it was
+    // added, if another peer supplied its parent or its orphans pushed it out, in which case its own hash is returned.
+    private Sha256Hash getOrphanRootHash(Sha256Hash orphan) {
+        Block orphanRoot = blockChain.getOrphanRoot(orphan);
+        return orphanRoot == null ? orphan : orphanRoot.getHash();
+    }
+
     // Keep track of the last request we made to the peer in blockChainDownloadLocked so we can avoid redundant and harmful
     // getblocks requests.
     @GuardedBy("lock")
@@ -1204,17 +1405,14 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
-        // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
-        // For now we don't do the exponential thinning as suggested here:
+        // The block locator is the hashes of the top hundred blocks, followed by blocks which get exponentially further
+        // apart, as suggested here:
         //
         //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
         //
-        // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
-        // 50 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
-        // must always put the genesis block as the first entry.
-        BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
+        // The hashes come from the block chain's in-memory index of the best chain, so this doesn't have to scan the
+        // block store. We must always put the genesis block as the last entry.
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
         // Did we already make this request? If so, don't do it again.
         if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
@@ -1223,19 +1421,27 @@ public class Peer extends PeerSocketHandler {
         }
         log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                 toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getHeader().getHash());
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                log.error("Failed to walk the block chain whilst constructing a locator");
-                throw new RuntimeException(e);
+        List<Sha256Hash> blockLocator;
+        try {
+            blockLocator = blockChain.getChainIndex().getBlockLocator(chainHead);
+            if (blockLocator == null) {
+                // The chain head moved whilst we were looking at it, so just walk back from the one we have.
+                blockLocator = new ArrayList<Sha256Hash>(101);
+                BlockStore store = blockChain.getBlockStore();
+                StoredBlock cursor = chainHead;
+                for (int i = 100; cursor != null && i > 0; i--) {
+                    blockLocator.add(cursor.getHeader().getHash());
+                    cursor = cursor.getPrev(store);
+                }
             }
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
         }
-        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-        if (cursor != null) {
-            blockLocator.add(params.getGenesisBlock().getHash());
+        // Only add the genesis block if we didn't already do so.
+        Sha256Hash genesisHash = params.getGenesisBlock().getHash();
+        if (!blockLocator.get(blockLocator.size() - 1).equals(genesisHash)) {
+            blockLocator.add(genesisHash);
         }
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
@@ -1436,6 +1642,16 @@ public class Peer extends PeerSocketHandler {
       return versionMessage;
     }
 
+    /** Returns how many blocks and filtered blocks this peer has sent us. */
+    public long getBlocksReceived() {
+        return blocksReceived.get();
+    }
+
+    /** Returns how many block headers this peer has sent us. */
+    public long getHeadersReceived() {
+        return headersReceived.get();
+    }
+
     /**
      * @return the height of the best chain as claimed by peer: sum of its ver announcement and blocks announced since.
      */
@@ -29,7 +29,6 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.*;
 import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
@@ -112,6 +111,17 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
+    // Spreads the download of blocks whose headers are known over all our peers. Null if there is no chain.
+    @Nullable private final BlockDownloadScheduler blockDownloadScheduler;
+    // How often to check whether any of the blocks requested by the scheduler are overdue.
+    private static final long BLOCK_DOWNLOAD_STALL_CHECK_MSEC = 1000;
+    // Keeps track of how well each peer performs, so the best can be picked for downloading and broadcasting.
+    private final PeerScorer peerScorer = new PeerScorer();
+    // When the current download peer was chosen. It is given a while to prove itself before being switched away from.
+    @GuardedBy("lock") private long downloadPeerSinceMillis;
+    private static final long MIN_DOWNLOAD_PEER_MSEC = 30 * 1000;
+    // The download moves to another peer if the download peer scores less than this fraction of that peer's score.
+    private static final double DOWNLOAD_PEER_SWITCH_RATIO = 0.6;
     @GuardedBy("lock") private long fastCatchupTimeSecs;
     private final CopyOnWriteArrayList<Wallet> wallets;
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
@@ -278,6 +288,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public PeerGroup(NetworkParameters params, @Nullable AbstractBlockChain chain, ClientConnectionManager connectionManager) {
         this.params = checkNotNull(params);
         this.chain = chain;
+        this.blockDownloadScheduler = chain == null ? null : new BlockDownloadScheduler(params);
         this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
         this.wallets = new CopyOnWriteArrayList<Wallet>();
         this.peerFilterProviders = new CopyOnWriteArrayList<PeerFilterProvider>();
@@ -677,6 +688,29 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        if (blockDownloadScheduler != null) {
+            vPingTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        blockDownloadScheduler.checkForStalls();
+                    } catch (RuntimeException e) {
+                        // An exception would cancel the timer, stopping the pings too.
+                        log.error("Exception whilst checking for stalled block downloads", e);
+                    }
+                }
+            }, BLOCK_DOWNLOAD_STALL_CHECK_MSEC, BLOCK_DOWNLOAD_STALL_CHECK_MSEC);
+        }
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    updatePeerScores();
+                } catch (RuntimeException e) {
+                    log.error("Exception whilst updating peer scores", e);
+                }
+            }
+        }, PeerScorer.UPDATE_INTERVAL_MSEC, PeerScorer.UPDATE_INTERVAL_MSEC);
         channels.startAndWait();
         triggerConnections();
     }
@@ -987,6 +1021,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            // Let the peer download blocks scheduled by whichever peer is downloading the chain.
+            if (blockDownloadScheduler != null) {
+                peer.setBlockDownloadScheduler(blockDownloadScheduler);
+                blockDownloadScheduler.addPeer(peer);
+            }
             // Re-evaluate download peers.
             Peer newDownloadPeer = selectDownloadPeer(peers);
             if (downloadPeer != newDownloadPeer) {
@@ -1089,6 +1128,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 downloadPeer.setDownloadData(false);
             }
             downloadPeer = peer;
+            downloadPeerSinceMillis = Utils.currentTimeMillis();
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
                 if (downloadListener != null)
@@ -1155,6 +1195,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         try {
             pendingPeers.remove(peer);
             peers.remove(peer);
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.removePeer(peer);
 
             PeerAddress address = peer.getAddress();
 
@@ -1445,9 +1487,81 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return freqHeights[s - 1];
     }
 
-    private static class PeerAndPing {
+    /**
+     * Updates the score of each peer. If the download peer is doing much worse than another peer which could take its
+     * place, the chain download is moved to that peer. If all our connection slots are in use, one peer which has been
+     * performing poorly for a while is disconnected to make room for another. This is called regularly whilst the
+     * peer group is running.
+     */
+    @VisibleForTesting
+    void updatePeerScores() {
+        Peer slowPeer = null;
+        lock.lock();
+        try {
+            int chainHeight = chain == null ? 0 : chain.getBestChainHeight();
+            peerScorer.update(peers, downloadPeer, downloadListener != null, chainHeight, blockDownloadScheduler);
+            if (downloadPeer != null && chain != null &&
+                    Utils.currentTimeMillis() - downloadPeerSinceMillis >= MIN_DOWNLOAD_PEER_MSEC) {
+                Peer best = selectDownloadPeer(peers);
+                if (best != null && best != downloadPeer &&
+                        peerScorer.getScore(downloadPeer) < DOWNLOAD_PEER_SWITCH_RATIO * peerScorer.getScore(best)) {
+                    log.info("Switching download peer from {} (score {}) to {} (score {})", downloadPeer,
+                            peerScorer.getScore(downloadPeer), best, peerScorer.getScore(best));
+                    if (downloadListener != null)
+                        startBlockChainDownloadFromPeer(best);
+                    else
+                        setDownloadPeer(best);
+                }
+            }
+            if (peers.size() >= getMaxConnections()) {
+                for (Peer peer : peers) {
+                    if (peer != downloadPeer && peerScorer.isChronicallySlow(peer)) {
+                        slowPeer = peer;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (slowPeer != null) {
+            log.info("{}: Disconnecting chronically slow peer", slowPeer);
+            slowPeer.close();
+        }
+    }
+
+    /**
+     * Returns the current score of the given peer, between zero and one, higher being better. Scores are worked out
+     * from the peer's ping time, how quickly it sends us blocks and headers when it has some to send, and how often
+     * it stalls, and are used to pick peers for chain download and transaction broadcast.
+     */
+    public double getPeerScore(Peer peer) {
+        return peerScorer.getScore(peer);
+    }
+
+    /** Returns the current score of every connected peer. See {@link #getPeerScore(Peer)}. */
+    public Map<Peer, Double> getPeerScores() {
+        Map<Peer, Double> scores = new LinkedHashMap<Peer, Double>();
+        for (Peer peer : peers)
+            scores.put(peer, peerScorer.getScore(peer));
+        return scores;
+    }
+
+    /** Sorts the given peers so the best scoring come first, keeping the order of those with equal scores. */
+    void sortByScore(List<Peer> peers) {
+        final Map<Peer, Double> scores = new HashMap<Peer, Double>();
+        for (Peer peer : peers)
+            scores.put(peer, peerScorer.getScore(peer));
+        Collections.sort(peers, new Comparator<Peer>() {
+            public int compare(Peer a, Peer b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+    }
+
+    private static class PeerAndScore {
         Peer peer;
-        long pingTime;
+        double score;
     }
 
     /**
@@ -1459,7 +1573,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Ping time.
+        //  - Score, which takes into account ping time and how well the peer has delivered blocks so far.
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -1479,24 +1593,33 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             highestVersion = Math.max(peer.getPeerVersionMessage().clientVersion, highestVersion);
             preferredVersion = Math.min(highestVersion, PREFERRED_VERSION);
         }
-        List<PeerAndPing> candidates2 = new ArrayList<PeerAndPing>();
+        List<PeerAndScore> candidates2 = new ArrayList<PeerAndScore>();
         for (Peer peer : candidates) {
             if (peer.getPeerVersionMessage().clientVersion >= preferredVersion) {
-                PeerAndPing pap = new PeerAndPing();
-                pap.peer = peer;
-                pap.pingTime = peer.getPingTime();
-                candidates2.add(pap);
+                PeerAndScore pas = new PeerAndScore();
+                pas.peer = peer;
+                pas.score = peerScorer.getScore(peer);
+                candidates2.add(pas);
             }
         }
-        // Sort by ping time.
-        Collections.sort(candidates2, new Comparator<PeerAndPing>() {
-            public int compare(PeerAndPing peerAndPing, PeerAndPing peerAndPing2) {
-                return Longs.compare(peerAndPing.pingTime, peerAndPing2.pingTime);
+        // Sort by score, best first.
+        Collections.sort(candidates2, new Comparator<PeerAndScore>() {
+            public int compare(PeerAndScore peerAndScore, PeerAndScore peerAndScore2) {
+                return Double.compare(peerAndScore2.score, peerAndScore.score);
             }
         });
         return candidates2.get(0).peer;
     }
 
+    /**
+     * Returns the scheduler which spreads the download of blocks over all the connected peers once their headers are
+     * known, or null if this PeerGroup has no block chain. Its statistics show how quickly each peer delivers blocks.
+     */
+    @Nullable
+    public BlockDownloadScheduler getBlockDownloadScheduler() {
+        return blockDownloadScheduler;
+    }
+
     /**
      * Returns the currently selected download peer. Bear in mind that it may have changed as soon as this method
      * returns. Can return null if no peer was selected.
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Keeps a rolling score of how well each peer in a {@link PeerGroup} performs, from its ping time, how quickly it
+ * delivers blocks whilst it has some to send us, and how often it stalls. Block headers don't count towards the delivery
+ * rate, as one message carries thousands of them, but a peer sending them isn't idle. Scores are between zero and one,
+ * higher being better. A peer we know nothing about yet scores in the middle for the things we haven't measured.</p>
+ *
+ * <p>{@link #update} should be called regularly, every {@link #UPDATE_INTERVAL_MSEC} or so. This class is thread
+ * safe.</p>
+ */
+class PeerScorer {
+    private static final Logger log = LoggerFactory.getLogger(PeerScorer.class);
+
+    /** How often the scores should be updated. */
+    static final long UPDATE_INTERVAL_MSEC = 5000;
+    // How much each update moves a peer's delivery rate towards the latest measurement.
+    private static final double RATE_SMOOTHING = 0.3;
+    // How many updates in a row a peer can have blocks to send us without sending any before that counts as a stall.
+    private static final int IDLE_UPDATES_PER_STALL = 3;
+    // How much of a peer's stall count is remembered from one update to the next, so old stalls are forgiven.
+    private static final double STALL_DECAY = 0.95;
+    /** Peers scoring below this for {@link #SLOW_UPDATES} updates in a row are considered chronically slow. */
+    static final double SLOW_SCORE = 0.15;
+    static final int SLOW_UPDATES = 12;
+
+    private static class State {
+        long lastUpdateTime;
+        long lastBlocksReceived;
+        long lastHeadersReceived;
+        long lastStalls;
+        // Blocks per second whilst the peer had something to send us, or negative if never measured.
+        double blocksPerSecond = -1;
+        double stalls;
+        int idleUpdates;
+        int slowUpdates;
+    }
+
+    private final Map<Peer, State> states = new HashMap<Peer, State>();
+    private double bestBlocksPerSecond;
+
+    /**
+     * Updates the scores of the given peers and forgets about any others.
+     *
+     * @param peers the connected peers
+     * @param downloadPeer the peer downloading the chain, if any
+     * @param downloading whether the chain is being downloaded
+     * @param chainHeight the height of our best chain
+     * @param scheduler the scheduler spreading block downloads over the peers, if any
+     */
+    synchronized void update(List<Peer> peers, @Nullable Peer downloadPeer, boolean downloading, int chainHeight,
+                @Nullable BlockDownloadScheduler scheduler) {
+        long now = Utils.currentTimeMillis();
+        Map<Peer, BlockDownloadScheduler.PeerStats> schedulerStats = scheduler == null ?
+                new HashMap<Peer, BlockDownloadScheduler.PeerStats>() : scheduler.getStats();
+        states.keySet().retainAll(peers);
+        for (Peer peer : peers) {
+            BlockDownloadScheduler.PeerStats stats = schedulerStats.get(peer);
+            State state = states.get(peer);
+            if (state == null) {
+                state = new State();
+                state.lastUpdateTime = now;
+                state.lastBlocksReceived = peer.getBlocksReceived();
+                state.lastHeadersReceived = peer.getHeadersReceived();
+                state.lastStalls = stats == null ? 0 : stats.getStalls();
+                states.put(peer, state);
+                continue;
+            }
+            long blocksReceived = peer.getBlocksReceived();
+            long delivered = blocksReceived - state.lastBlocksReceived;
+            state.lastBlocksReceived = blocksReceived;
+            long headersReceived = peer.getHeadersReceived();
+            boolean sentHeaders = headersReceived > state.lastHeadersReceived;
+            state.lastHeadersReceived = headersReceived;
+            long elapsed = now - state.lastUpdateTime;
+            state.lastUpdateTime = now;
+            // The peer has blocks to send us if it is downloading the chain for us and has more than we do, or if the
+            // scheduler is waiting for blocks from it.
+            boolean busy = (downloading && peer == downloadPeer && peer.getBestHeight() > chainHeight) ||
+                    (stats != null && stats.getBlocksInFlight() > 0);
+            long newStalls = 0;
+            if (stats != null) {
+                newStalls = stats.getStalls() - state.lastStalls;
+                state.lastStalls = stats.getStalls();
+            }
+            // Whilst the peer is only sending headers there are no blocks to measure it by.
+            if ((delivered > 0 || (busy && !sentHeaders)) && elapsed > 0) {
+                double rate = delivered * 1000.0 / elapsed;
+                state.blocksPerSecond = state.blocksPerSecond < 0 ? rate :
+                        state.blocksPerSecond * (1 - RATE_SMOOTHING) + rate * RATE_SMOOTHING;
+            }
+            if (busy && delivered == 0 && !sentHeaders) {
+                if (++state.idleUpdates >= IDLE_UPDATES_PER_STALL) {
+                    log.info("{}: Has not sent any blocks for {} updates", peer, state.idleUpdates);
+                    state.idleUpdates = 0;
+                    newStalls++;
+                }
+            } else {
+                state.idleUpdates = 0;
+            }
+            state.stalls = state.stalls * STALL_DECAY + newStalls;
+        }
+        bestBlocksPerSecond = 0;
+        for (State state : states.values())
+            bestBlocksPerSecond = Math.max(bestBlocksPerSecond, state.blocksPerSecond);
+        for (Map.Entry<Peer, State> entry : states.entrySet()) {
+            State state = entry.getValue();
+            if (getScore(entry.getKey()) < SLOW_SCORE)
+                state.slowUpdates++;
+            else
+                state.slowUpdates = 0;
+        }
+    }
+
+    /** Returns the score of the given peer, between zero and one. */
+    synchronized double getScore(Peer peer) {
+        // Ping times of around a second or more are poor.
+        long pingTime = peer.getPingTime();
+        double latency = pingTime == Long.MAX_VALUE ? 0.5 : 1000.0 / (1000.0 + pingTime);
+        State state = states.get(peer);
+        double delivery = 0.5;
+        double stalls = 0;
+        if (state != null) {
+            // Delivery is measured against the fastest peer, as how fast blocks can come depends on us too.
+            if (state.blocksPerSecond >= 0 && bestBlocksPerSecond > 0)
+                delivery = state.blocksPerSecond / bestBlocksPerSecond;
+            stalls = state.stalls;
+        }
+        return (latency + delivery) / 2 / (1 + stalls);
+    }
+
+    /** Returns whether the given peer has scored below {@link #SLOW_SCORE} for a while. */
+    synchronized boolean isChronicallySlow(Peer peer) {
+        State state = states.get(peer);
+        return state != null && state.slowUpdates >= SLOW_UPDATES;
+    }
+}
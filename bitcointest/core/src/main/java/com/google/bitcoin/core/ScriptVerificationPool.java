@@ -0,0 +1,250 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A long lived set of threads which run the scripts of transaction inputs in parallel, used by
+ * {@link FullPrunedBlockChain} to check the signatures in a block.</p>
+ *
+ * <p>Work is split up per input rather than per transaction, so that a single transaction with a great many inputs is
+ * spread over every thread instead of keeping one of them busy while the rest sit idle. All inputs go into one shared
+ * queue which idle threads take from, and the thread waiting for a {@link Job} runs inputs itself until there are
+ * none left, so a job is never stuck behind a busy pool and a pool with no threads at all still works.</p>
+ *
+ * <p>There is deliberately no work stealing between per-thread queues. Stealing pays off when workers fork off their
+ * own subtasks, but here every input is queued up front by the thread adding the block, and running one input means
+ * at least one signature check, which takes far longer than taking it off a shared queue. So threads can't starve
+ * while others have work queued, and contention on the queue is negligible.</p>
+ *
+ * <p>As soon as one input of a job fails, the rest of that job's inputs are skipped instead of being run.</p>
+ */
+public class ScriptVerificationPool {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationPool.class);
+
+    private final LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<Task>();
+    private final List<Thread> threads;
+    private volatile boolean shutdown;
+
+    /** Creates a pool with one thread per available processor. */
+    public ScriptVerificationPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a pool with the given number of threads. The threads are daemons, so they won't keep the JVM alive, and
+     * run until {@link #shutdown()} is called. With zero threads, every job is run by the thread waiting for it.
+     */
+    public ScriptVerificationPool(int numThreads) {
+        checkArgument(numThreads >= 0);
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Script verification thread %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        ThreadFactory factory = builder.build();
+        threads = new ArrayList<Thread>(numThreads);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!shutdown)
+                        queue.take().run();
+                } catch (InterruptedException e) {
+                    // Shut down.
+                }
+            }
+        };
+        for (int i = 0; i < numThreads; i++) {
+            Thread thread = factory.newThread(worker);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /** Returns the number of threads in this pool, not counting the threads waiting for jobs. */
+    public int getThreadCount() {
+        return threads.size();
+    }
+
+    /** Starts a new, empty job. Inputs start being verified as soon as they are added to it. */
+    public Job newJob() {
+        checkState(!shutdown, "Pool has been shut down");
+        return new Job();
+    }
+
+    /** Stops the threads of this pool. Any jobs still running are finished by the threads waiting for them. */
+    public void shutdown() {
+        shutdown = true;
+        for (Thread thread : threads)
+            thread.interrupt();
+    }
+
+    /**
+     * The inputs of one block, or any other group of transactions that pass or fail together.
+     */
+    public class Job {
+        private final AtomicInteger pending = new AtomicInteger();
+        // How many inputs were never run because the job had been cancelled or had already failed.
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicLong scriptNanos = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private long elapsedNanos;
+        private int numInputs;
+        private volatile boolean cancelled;
+        @Nullable private volatile VerificationException failure;
+
+        private Job() {
+        }
+
+        /**
+         * Queues every input of the given transaction to be verified against the matching script from
+         * prevOutScripts. The transaction must not be modified until the job is finished.
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, boolean enforcePayToScriptHash) {
+            checkArgument(prevOutScripts.size() == tx.getInputs().size());
+            int index = 0;
+            for (Script prevOutScript : prevOutScripts) {
+                pending.incrementAndGet();
+                numInputs++;
+                queue.add(new Task(this, tx, index++, prevOutScript, enforcePayToScriptHash));
+            }
+        }
+
+        /**
+         * Skips any inputs of this job which have not been verified yet. If any are skipped, {@link #await()} throws
+         * instead of returning normally, as not every input was verified.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Waits for every input of this job to be verified, helping to verify them in the meantime. Only returns
+         * normally if every input was verified successfully.
+         * @throws VerificationException the first failure of any input.
+         * @throws CancellationException if the job was cancelled before every input had been verified.
+         */
+        public void await() throws VerificationException {
+            while (pending.get() > 0) {
+                Task task = queue.poll();
+                if (task == null)
+                    break;
+                task.run();
+            }
+            synchronized (this) {
+                while (pending.get() > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);  // Shouldn't happen
+                    }
+                }
+            }
+            elapsedNanos = System.nanoTime() - startNanos;
+            VerificationException e = failure;
+            if (e != null)
+                throw e;
+            int numSkipped = skipped.get();
+            if (numSkipped > 0)
+                throw new CancellationException("Job cancelled, " + numSkipped + " of " + numInputs + " inputs were not verified");
+        }
+
+        /** Returns how many inputs have been added to this job. */
+        public int getInputCount() {
+            return numInputs;
+        }
+
+        /** Returns the wall clock time from the job being created until {@link #await()} returned. */
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        /** Returns the time spent running scripts, summed over every thread that worked on this job. */
+        public long getScriptMillis() {
+            return scriptNanos.get() / 1000000;
+        }
+
+        private void fail(VerificationException e) {
+            if (failure == null)
+                failure = e;
+            cancelled = true;
+        }
+
+        private void finished() {
+            if (pending.decrementAndGet() == 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private static class Task {
+        final Job job;
+        final Transaction tx;
+        final int index;
+        final Script prevOutScript;
+        final boolean enforcePayToScriptHash;
+
+        Task(Job job, Transaction tx, int index, Script prevOutScript, boolean enforcePayToScriptHash) {
+            this.job = job;
+            this.tx = tx;
+            this.index = index;
+            this.prevOutScript = prevOutScript;
+            this.enforcePayToScriptHash = enforcePayToScriptHash;
+        }
+
+        void run() {
+            if (job.cancelled) {
+                job.skipped.incrementAndGet();
+                job.finished();
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutScript, enforcePayToScriptHash);
+            } catch (VerificationException e) {
+                job.fail(e);
+            } catch (RuntimeException e) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                job.fail(new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+            } finally {
+                job.scriptNanos.addAndGet(System.nanoTime() - start);
+                job.finished();
+            }
+        }
+    }
+}
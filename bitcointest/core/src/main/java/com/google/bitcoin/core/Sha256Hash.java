@@ -24,8 +24,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -59,12 +57,7 @@ public class Sha256Hash implements Serializable, Comparable {
      * Calculates the (one-time) hash of contents and returns it as a new wrapped hash.
      */
     public static Sha256Hash create(byte[] contents) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            return new Sha256Hash(digest.digest(contents));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        return new Sha256Hash(Utils.singleDigest(contents));
     }
 
     /**
@@ -74,6 +67,14 @@ public class Sha256Hash implements Serializable, Comparable {
         return new Sha256Hash(Utils.doubleDigest(contents));
     }
 
+    /**
+     * Calculates the hash of the hash of the given byte range, avoiding a copy when the data is embedded in a larger
+     * buffer (eg, a transaction inside a serialized block).
+     */
+    public static Sha256Hash createDouble(byte[] contents, int offset, int length) {
+        return new Sha256Hash(Utils.doubleDigest(contents, offset, length));
+    }
+
     /**
      * Returns a hash of the given files contents. Reads the file fully into memory before hashing so only use with
      * small files.
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptOpCodes;
+
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.google.bitcoin.core.Utils.uint32ToByteArrayLE;
+
+/**
+ * <p>Calculates signature hashes from an immutable, pre-serialized view of a {@link Transaction}.</p>
+ *
+ * <p>The simplified form of a transaction that gets signed always has the scripts of all the other inputs blanked
+ * out, so it only depends on the outpoints, sequence numbers, outputs, version and lock time. Those are serialized
+ * once when the calculator is created. Computing the hash for an input then just streams the right slices of those
+ * buffers into the digest, instead of mutating the transaction and reserializing it for every input as was done
+ * previously. Because nothing is mutated, many threads may compute hashes for the same transaction at once.</p>
+ *
+ * <p>A calculator is a snapshot: it must be thrown away when the transaction changes. {@link Transaction} takes
+ * care of this when it invalidates its cached serialization.</p>
+ */
+final class SigHashCalculator {
+    // Each input serialized with an empty script is a 36 byte outpoint, a zero length byte and a 4 byte sequence.
+    private static final int BLANK_INPUT_SIZE = 36 + 1 + 4;
+    // The "null" output used for SIGHASH_SINGLE is a value of -1 followed by an empty script.
+    private static final byte[] NULL_OUTPUT = {
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0
+    };
+    // What the reference client returns when SIGHASH_SINGLE is used with no matching output.
+    private static final Sha256Hash SIGHASH_SINGLE_BUG_HASH =
+            new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final byte[] version;
+    private final byte[] lockTime;
+    private final int numInputs;
+    // All inputs serialized with empty scripts, back to back, and the same again with their sequence numbers zeroed
+    // as is done for SIGHASH_NONE and SIGHASH_SINGLE.
+    private final byte[] blankInputs;
+    private final byte[] blankInputsZeroSequence;
+    // Each output serialized on its own, and all of them prefixed with their count as used for SIGHASH_ALL.
+    private final byte[][] outputs;
+    private final byte[] allOutputs;
+
+    SigHashCalculator(Transaction tx) {
+        version = new byte[4];
+        uint32ToByteArrayLE(tx.getVersion(), version, 0);
+        lockTime = new byte[4];
+        uint32ToByteArrayLE(tx.getLockTime(), lockTime, 0);
+
+        List<TransactionInput> inputs = tx.getInputs();
+        numInputs = inputs.size();
+        blankInputs = new byte[numInputs * BLANK_INPUT_SIZE];
+        blankInputsZeroSequence = new byte[numInputs * BLANK_INPUT_SIZE];
+        for (int i = 0; i < numInputs; i++) {
+            TransactionInput input = inputs.get(i);
+            byte[] outpoint = input.getOutpoint().bitcoinSerialize();
+            int offset = i * BLANK_INPUT_SIZE;
+            System.arraycopy(outpoint, 0, blankInputs, offset, 36);
+            System.arraycopy(outpoint, 0, blankInputsZeroSequence, offset, 36);
+            // The script length byte is already zero, as is the sequence number of the second copy.
+            uint32ToByteArrayLE(input.getSequenceNumber(), blankInputs, offset + 37);
+        }
+
+        List<TransactionOutput> txOutputs = tx.getOutputs();
+        outputs = new byte[txOutputs.size()][];
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(txOutputs.size() * 34 + 9);
+        byte[] count = new VarInt(txOutputs.size()).encode();
+        bos.write(count, 0, count.length);
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = txOutputs.get(i).bitcoinSerialize();
+            bos.write(outputs[i], 0, outputs[i].length);
+        }
+        allOutputs = bos.toByteArray();
+    }
+
+    /**
+     * Calculates the signature hash for the given input, exactly as
+     * {@link Transaction#hashForSignature(int, byte[], byte)} is documented to.
+     */
+    Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        if (inputIndex < 0 || inputIndex >= numInputs)
+            throw new IndexOutOfBoundsException("Input index " + inputIndex + " out of range, " + numInputs + " inputs");
+        // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        int mode = sigHashType & 0x1f;
+        boolean none = mode == Transaction.SigHash.NONE.ordinal() + 1;
+        boolean single = mode == Transaction.SigHash.SINGLE.ordinal() + 1;
+        boolean anyoneCanPay = (sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == Transaction.SIGHASH_ANYONECANPAY_VALUE;
+        if (single && inputIndex >= outputs.length) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. The reference client also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+            //
+            // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            //
+            // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
+            return SIGHASH_SINGLE_BUG_HASH;
+        }
+
+        MessageDigest digest = Utils.threadDigest();
+        digest.update(version);
+
+        // Inputs: either just the one being signed, or all of them with only the one being signed having a script.
+        // The one being signed always keeps its own sequence number.
+        int offset = inputIndex * BLANK_INPUT_SIZE;
+        if (anyoneCanPay) {
+            digest.update((byte) 1);
+        } else {
+            digest.update(new VarInt(numInputs).encode());
+            digest.update(none || single ? blankInputsZeroSequence : blankInputs, 0, offset);
+        }
+        digest.update(blankInputs, offset, 36);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        digest.update(blankInputs, offset + 37, 4);
+        if (!anyoneCanPay) {
+            int next = offset + BLANK_INPUT_SIZE;
+            digest.update(none || single ? blankInputsZeroSequence : blankInputs, next, blankInputs.length - next);
+        }
+
+        // Outputs: none at all, those up to the input index with all but the last nulled out, or every one.
+        if (none) {
+            digest.update((byte) 0);
+        } else if (single) {
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(outputs[inputIndex]);
+        } else {
+            digest.update(allOutputs);
+        }
+
+        digest.update(lockTime);
+        // The hash type is serialized as a four byte little endian integer, although it is really an unsigned char.
+        digest.update(new byte[] {sigHashType, 0, 0, 0});
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        byte[] first = digest.digest();
+        return new Sha256Hash(digest.digest(first));
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which (hash, signature, public key) triples have already been found to be valid, so that a signature
+ * which is checked more than once, for instance when a transaction is first relayed and then again when it is included
+ * in a block, only costs an ECDSA verification the first time. {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}
+ * consults and fills the cache set with {@link ECKey#setSignatureCache(SignatureCache)}, so everything built on top of
+ * it, such as {@link com.google.bitcoin.script.Script#correctlySpends} and therefore {@link FullPrunedBlockChain},
+ * skips signatures which were already validated.</p>
+ *
+ * <p>Only valid signatures are stored. Entries are keyed by a hash of the triple salted with a random value chosen
+ * when the cache is created, so that nobody can craft signatures which collide in the cache. Once the cache is full,
+ * a random entry is evicted for every new one: unlike least recently used eviction this needs no bookkeeping on every
+ * lookup, and it can't be gamed into flushing out a particular entry.</p>
+ *
+ * <p>This class is thread safe and takes no locks, so that the many threads verifying the scripts of a block don't
+ * queue up behind each other: lookups are plain reads of a concurrent set, and adding an entry claims its slot in the
+ * eviction array with a single atomic swap.</p>
+ */
+public class SignatureCache {
+    /** The number of entries a cache holds by default, which takes up a few megabytes. */
+    public static final int DEFAULT_MAX_SIZE = 50000;
+
+    private final byte[] salt = new byte[32];
+    private final Random random;
+    private final int maxSize;
+    // The entries, both as a set for lookups and as an array so that a random one can be picked for eviction. Whatever
+    // is swapped out of a slot is removed from the set, so the two agree once every add has returned.
+    private final Set<Sha256Hash> entries;
+    private final AtomicReferenceArray<Sha256Hash> slots;
+    // How many slots have been handed out. Once they all have, every new entry replaces a random one.
+    private final AtomicInteger used = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache holding up to {@link #DEFAULT_MAX_SIZE} signatures. */
+    public SignatureCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /** Creates a cache holding up to the given number of signatures. */
+    public SignatureCache(int maxSize) {
+        checkArgument(maxSize > 0);
+        this.maxSize = maxSize;
+        SecureRandom secureRandom = new SecureRandom();
+        secureRandom.nextBytes(salt);
+        this.random = new Random(secureRandom.nextLong());
+        this.entries = Collections.newSetFromMap(
+                new ConcurrentHashMap<Sha256Hash, Boolean>(Math.min(maxSize, 1024) * 2, 0.75f, 16));
+        this.slots = new AtomicReferenceArray<Sha256Hash>(maxSize);
+    }
+
+    /** Returns true if the given signature was previously recorded as valid for the given hash and public key. */
+    public boolean contains(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        boolean found = entries.contains(keyOf(data, signature, pub));
+        (found ? hits : misses).incrementAndGet();
+        return found;
+    }
+
+    /** Records that the given signature is valid for the given hash and public key. */
+    public void add(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        Sha256Hash key = keyOf(data, signature, pub);
+        if (!entries.add(key))
+            return;
+        int slot;
+        while (true) {
+            int n = used.get();
+            if (n >= maxSize) {
+                slot = random.nextInt(maxSize);
+                break;
+            }
+            if (used.compareAndSet(n, n + 1)) {
+                slot = n;
+                break;
+            }
+        }
+        // The slot may have been taken by a racing add, or by an entry from before clear(). Either way that entry
+        // is the one evicted.
+        Sha256Hash evicted = slots.getAndSet(slot, key);
+        if (evicted != null)
+            entries.remove(evicted);
+    }
+
+    /**
+     * Forgets every signature, and resets the statistics. Signatures added while this is running may or may not be
+     * kept.
+     */
+    public void clear() {
+        used.set(0);
+        for (int i = 0; i < maxSize; i++) {
+            Sha256Hash evicted = slots.getAndSet(i, null);
+            if (evicted != null)
+                entries.remove(evicted);
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /** Returns the number of signatures currently in the cache. */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Returns the maximum number of signatures the cache holds. */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** Returns how many lookups found the signature in the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many lookups did not find the signature, and so needed a real verification. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the fraction of lookups which were answered by the cache, or zero if there were none. */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Signature cache: %d of %d entries, %d hits, %d misses (%.1f%%)", size(), maxSize,
+                getHits(), getMisses(), getHitRate() * 100);
+    }
+
+    private Sha256Hash keyOf(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        MessageDigest digest = Utils.threadDigest();
+        byte[] length = new byte[4];
+        digest.update(salt);
+        update(digest, length, data);
+        update(digest, length, signature.r.toByteArray());
+        update(digest, length, signature.s.toByteArray());
+        update(digest, length, pub);
+        return new Sha256Hash(digest.digest());
+    }
+
+    // Each field is prefixed with its length so that moving bytes from one field into the next changes the key.
+    private static void update(MessageDigest digest, byte[] length, byte[] bytes) {
+        Utils.uint32ToByteArrayBE(bytes.length, length, 0);
+        digest.update(length);
+        digest.update(bytes);
+    }
+}
@@ -20,7 +20,6 @@ import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
-import com.google.bitcoin.script.ScriptOpCodes;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
@@ -34,6 +33,11 @@ import java.math.BigInteger;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.bitcoin.core.Utils.*;
 import static com.google.common.base.Preconditions.*;
@@ -93,6 +97,74 @@ public class Transaction extends ChildMessage implements Serializable {
      */
     public static final BigInteger MIN_NONDUST_OUTPUT = BigInteger.valueOf(5460);
 
+    @Nullable private static volatile Executor signingExecutor;
+
+    /**
+     * Sets the executor that {@link #signInputs(SigHash, Wallet, KeyParameter)} spreads the signing of inputs over, or
+     * null to sign them all on the calling thread, which is the default. The calling thread always helps out, so
+     * signing still works if the executor is busy or rejects the work.
+     */
+    public static void setSigningExecutor(@Nullable Executor executor) {
+        signingExecutor = executor;
+    }
+
+    /** Returns the executor inputs are signed on, or null if they are signed on the calling thread. */
+    @Nullable
+    public static Executor getSigningExecutor() {
+        return signingExecutor;
+    }
+
+    /**
+     * How long each step of {@link #signInputs(SigHash, Wallet, KeyParameter, Executor)} took: finding and decrypting
+     * the keys, calculating the signature hashes, signing and building the input scripts.
+     */
+    public static class SigningStats {
+        private final int inputsSigned;
+        private final long keysNanos;
+        private final long hashNanos;
+        private final long signNanos;
+        private final long scriptNanos;
+
+        public SigningStats(int inputsSigned, long keysNanos, long hashNanos, long signNanos, long scriptNanos) {
+            this.inputsSigned = inputsSigned;
+            this.keysNanos = keysNanos;
+            this.hashNanos = hashNanos;
+            this.signNanos = signNanos;
+            this.scriptNanos = scriptNanos;
+        }
+
+        /** Returns how many inputs were signed, not counting those that were already signed. */
+        public int getInputsSigned() {
+            return inputsSigned;
+        }
+
+        /** Returns how long it took to look up the key for each input and decrypt them, in milliseconds. */
+        public long getKeysMillis() {
+            return keysNanos / 1000000;
+        }
+
+        /** Returns how long it took to calculate the signature hashes, in milliseconds. */
+        public long getHashMillis() {
+            return hashNanos / 1000000;
+        }
+
+        /** Returns how long the signing took, in milliseconds. Signing is the only step done in parallel. */
+        public long getSignMillis() {
+            return signNanos / 1000000;
+        }
+
+        /** Returns how long it took to put the signatures into the input scripts, in milliseconds. */
+        public long getScriptMillis() {
+            return scriptNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d inputs: keys %dms, hashes %dms, signing %dms, scripts %dms", inputsSigned,
+                    getKeysMillis(), getHashMillis(), getSignMillis(), getScriptMillis());
+        }
+    }
+
     // These are serialized in both bitcoin and java serialization.
     private long version;
     private ArrayList<TransactionInput> inputs;
@@ -108,6 +180,8 @@ public class Transaction extends ChildMessage implements Serializable {
 
     // This is an in memory helper only.
     private transient Sha256Hash hash;
+    // Serialized snapshot used to calculate signature hashes, built on demand and discarded by unCache().
+    private transient volatile SigHashCalculator sigHashCalculator;
 
     // Data about how confirmed this tx is. Serialized, may be null. 
     private TransactionConfidence confidence;
@@ -210,8 +284,12 @@ public class Transaction extends ChildMessage implements Serializable {
      */
     public Sha256Hash getHash() {
         if (hash == null) {
-            byte[] bits = bitcoinSerialize();
-            hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
+            if (bytes != null) {
+                // Hash the cached bytes where they lie, even if they are a slice of a larger block message.
+                hash = new Sha256Hash(reverseBytes(doubleDigest(bytes, offset, length)));
+            } else {
+                hash = new Sha256Hash(reverseBytes(doubleDigest(unsafeBitcoinSerialize())));
+            }
         }
         return hash;
     }
@@ -454,6 +532,7 @@ public class Transaction extends ChildMessage implements Serializable {
     protected void unCache() {
         super.unCache();
         hash = null;
+        sigHashCalculator = null;
     }
 
     protected void parseLite() throws ProtocolException {
@@ -811,6 +890,20 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
      */
     public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey) throws ScriptException {
+        signInputs(hashType, wallet, aesKey, signingExecutor);
+    }
+
+    /**
+     * <p>Signs the inputs as {@link #signInputs(SigHash, Wallet, KeyParameter)} does, spreading the signing over the
+     * given executor, and returns how long each step took.</p>
+     *
+     * <p>All the signature hashes are calculated from one serialized snapshot of the transaction before any signing
+     * starts. When the wallet is encrypted, each key is decrypted once however many inputs it signs for.</p>
+     *
+     * @param executor the executor to sign on, alongside the calling thread, or null to sign on the calling thread only.
+     */
+    public synchronized SigningStats signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey,
+                                                @Nullable Executor executor) throws ScriptException {
         checkState(inputs.size() > 0);
         checkState(outputs.size() > 0);
 
@@ -824,8 +917,13 @@ public class Transaction extends ChildMessage implements Serializable {
         // Note that each input may be claiming an output sent to a different key. So we have to look at the outputs
         // to figure out which key to sign with.
 
+        long startNanos = System.nanoTime();
         TransactionSignature[] signatures = new TransactionSignature[inputs.size()];
         ECKey[] signingKeys = new ECKey[inputs.size()];
+        // The keys to sign each input with, decrypted if need be. Null for inputs that aren't signed here.
+        final ECKey[] privateKeys = new ECKey[inputs.size()];
+        IdentityHashMap<ECKey, ECKey> decryptedKeys = new IdentityHashMap<ECKey, ECKey>();
+        int toSign = 0;
         for (int i = 0; i < inputs.size(); i++) {
             TransactionInput input = inputs.get(i);
             // We don't have the connected output, we assume it was signed already and move on
@@ -851,11 +949,20 @@ public class Transaction extends ChildMessage implements Serializable {
             checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s", input.getOutpoint().getHash());
             // Keep the key around for the script creation step below.
             signingKeys[i] = key;
-            // The anyoneCanPay feature isn't used at the moment.
-            boolean anyoneCanPay = false;
-            byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
-            if (key.hasPrivKey() || key.isEncrypted()) {
-                signatures[i] = calculateSignature(i, key, aesKey, connectedPubKeyScript, hashType, anyoneCanPay);
+            if (key.isEncrypted() && aesKey != null && key.getKeyCrypter() != null) {
+                // Decrypting checks the result against the public key, which costs about as much as signing, so
+                // only do it once per key.
+                ECKey decrypted = decryptedKeys.get(key);
+                if (decrypted == null) {
+                    decrypted = key.decrypt(key.getKeyCrypter(), aesKey);
+                    decryptedKeys.put(key, decrypted);
+                }
+                privateKeys[i] = decrypted;
+                toSign++;
+            } else if (key.hasPrivKey() || key.isEncrypted()) {
+                // An encrypted key without an AES key fails when signing, as it always has.
+                privateKeys[i] = key;
+                toSign++;
             } else {
                 // Create a dummy signature to ensure the transaction is of the correct size when we try to ensure
                 // the right fee-per-kb is attached. If the wallet doesn't have the privkey, the user is assumed to
@@ -863,6 +970,24 @@ public class Transaction extends ChildMessage implements Serializable {
                 signatures[i] = TransactionSignature.dummy();
             }
         }
+        long keysNanos = System.nanoTime();
+
+        // The anyoneCanPay feature isn't used at the moment.
+        boolean anyoneCanPay = false;
+        final Sha256Hash[] hashes = new Sha256Hash[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            if (privateKeys[i] != null)
+                hashes[i] = hashForSignature(i, inputs.get(i).getOutpoint().getConnectedPubKeyScript(), hashType,
+                        anyoneCanPay);
+        }
+        long hashNanos = System.nanoTime();
+
+        ECKey.ECDSASignature[] components = signAll(privateKeys, hashes, aesKey, toSign, executor);
+        for (int i = 0; i < inputs.size(); i++) {
+            if (components[i] != null)
+                signatures[i] = new TransactionSignature(components[i], hashType, anyoneCanPay);
+        }
+        long signNanos = System.nanoTime();
 
         // Now we have calculated each signature, go through and create the scripts. Reminder: the script consists:
         // 1) For pay-to-address outputs: a signature (over a hash of the simplified transaction) and the complete
@@ -888,6 +1013,57 @@ public class Transaction extends ChildMessage implements Serializable {
         }
 
         // Every input is now complete.
+        long endNanos = System.nanoTime();
+        return new SigningStats(toSign, keysNanos - startNanos, hashNanos - keysNanos, signNanos - hashNanos,
+                endNanos - signNanos);
+    }
+
+    // Signs each hash that has a key, on the calling thread and as many threads of the executor as will help. Inputs
+    // are handed out one at a time from a shared counter, so a slow thread doesn't hold up the rest.
+    private static ECKey.ECDSASignature[] signAll(final ECKey[] keys, final Sha256Hash[] hashes,
+                                                  @Nullable final KeyParameter aesKey, int toSign,
+                                                  @Nullable Executor executor) {
+        final ECKey.ECDSASignature[] signatures = new ECKey.ECDSASignature[keys.length];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(toSign);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < keys.length) {
+                    if (keys[i] == null)
+                        continue;
+                    try {
+                        if (failure.get() == null)
+                            signatures[i] = keys[i].sign(hashes[i], aesKey);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        if (executor != null && toSign > 1) {
+            int helpers = Math.min(toSign - 1, Runtime.getRuntime().availableProcessors());
+            try {
+                for (int i = 0; i < helpers; i++)
+                    executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // The calling thread does the rest.
+            }
+        }
+        worker.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (failure.get() != null)
+            throw failure.get();
+        return signatures;
     }
 
     /**
@@ -941,8 +1117,8 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript,
-                                                    SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript,
+                                       SigHash type, boolean anyoneCanPay) {
         byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
         return hashForSignature(inputIndex, connectedScript, sigHashType);
     }
@@ -959,8 +1135,8 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, Script connectedScript,
-                                                    SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashForSignature(int inputIndex, Script connectedScript,
+                                       SigHash type, boolean anyoneCanPay) {
         int sigHash = TransactionSignature.calcSigHashValue(type, anyoneCanPay);
         return hashForSignature(inputIndex, connectedScript.getProgram(), (byte) sigHash);
     }
@@ -969,108 +1145,28 @@ public class Transaction extends ChildMessage implements Serializable {
      * This is required for signatures which use a sigHashType which cannot be represented using SigHash and anyoneCanPay
      * See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has sigHashType 0
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
         // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
-
-        try {
-            // Store all the input scripts and clear them in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            //
-            // Also store the input sequence numbers in case we are clearing them with SigHash.NONE/SINGLE
-            byte[][] inputScripts = new byte[inputs.size()][];
-            long[] inputSequenceNumbers = new long[inputs.size()];
-            for (int i = 0; i < inputs.size(); i++) {
-                inputScripts[i] = inputs.get(i).getScriptBytes();
-                inputSequenceNumbers[i] = inputs.get(i).getSequenceNumber();
-                inputs.get(i).setScriptBytes(TransactionInput.EMPTY_ARRAY);
-            }
-
-            // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Satoshi does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            ArrayList<TransactionOutput> outputs = this.outputs;
-            if ((sigHashType & 0x1f) == (SigHash.NONE.ordinal() + 1)) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                this.outputs = new ArrayList<TransactionOutput>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == (SigHash.SINGLE.ordinal() + 1)) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= this.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. The reference client also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-                    // Put the transaction back to how we found it.
-                    //
-                    // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
-                    for (int i = 0; i < inputs.size(); i++) {
-                        inputs.get(i).setScriptBytes(inputScripts[i]);
-                        inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-                    }
-                    this.outputs = outputs;
-                    // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
-                }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                this.outputs = new ArrayList<TransactionOutput>(this.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    this.outputs.set(i, new TransactionOutput(params, this, NEGATIVE_ONE, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            }
-
-            ArrayList<TransactionInput> inputs = this.inputs;
-            if ((sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                this.inputs = new ArrayList<TransactionInput>();
-                this.inputs.add(input);
-            }
-
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
-            bitcoinSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = new Sha256Hash(doubleDigest(bos.toByteArray()));
-            bos.close();
-
-            // Put the transaction back to how we found it.
-            this.inputs = inputs;
-            for (int i = 0; i < inputs.size(); i++) {
-                inputs.get(i).setScriptBytes(inputScripts[i]);
-                inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
+        //
+        // The simplified transaction is hashed from a serialized snapshot rather than by temporarily blanking out our
+        // own inputs and outputs, so this does not mutate the transaction and can be called from many threads at once.
+        return getSigHashCalculator().hashForSignature(inputIndex, connectedScript, sigHashType);
+    }
+
+    private SigHashCalculator getSigHashCalculator() {
+        SigHashCalculator calculator = sigHashCalculator;
+        if (calculator == null) {
+            // Building the snapshot may trigger lazy parsing, which is not thread safe.
+            synchronized (this) {
+                calculator = sigHashCalculator;
+                if (calculator == null)
+                    sigHashCalculator = calculator = new SigHashCalculator(this);
             }
-            this.outputs = outputs;
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
         }
+        return calculator;
     }
 
     @Override
@@ -77,7 +77,7 @@ public class TransactionBroadcast {
             // thread.
 
             // We will send the tx simultaneously to half the connected peers and wait to hear back from at least half
-            // of the other half, i.e., with 4 peers connected we will send the tx to 2 randomly chosen peers, and then
+            // of the other half, i.e., with 4 peers connected we will send the tx to 2 of them, and then
             // wait for it to show up on one of the other two. This will be taken as sign of network acceptance. As can
             // be seen, 4 peers is probably too little - it doesn't taken many broken peers for tx propagation to have
             // a big effect.
@@ -99,7 +99,9 @@ public class TransactionBroadcast {
             int numConnected = peers.size();
             numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
+            // Prefer the best performing peers, choosing randomly between those that score the same.
             Collections.shuffle(peers, random);
+            peerGroup.sortByScore(peers);
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
                     numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
@@ -23,8 +23,12 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
@@ -53,8 +57,9 @@ import java.util.concurrent.Executor;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link com.google.bitcoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * <p>The block depth and work done of a transaction in a {@link Wallet} are kept up to date by the wallet, which counts
+ * the blocks added to the best chain once for all of its transactions rather than updating each of them. They can
+ * also be updated via the {@link com.google.bitcoin.core.TransactionConfidence#notifyWorkDone(Block)} method.</p>
  * To make a copy that won't be changed, use {@link com.google.bitcoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
@@ -75,6 +80,15 @@ public class TransactionConfidence implements Serializable {
     private int depth;
     // The cumulative work done for the blocks that bury this transaction.
     private BigInteger workDone = BigInteger.ZERO;
+    // The trackers of the wallets holding the transaction, which count the blocks added to the best chain. Whilst
+    // BUILDING, the blocks and work the first of them counted since we last looked at it are added to depth and
+    // workDone, see syncDepth. Null if there are none.
+    @Nullable private transient List<BlockDepthTracker> depthTrackers;
+    private transient int trackerBlocks;
+    private transient BigInteger trackerWork;
+    // Listeners want a DEPTH change for every new block until the transaction is buried this deep. Each wallet also
+    // reports them up to its own event horizon.
+    private int depthNotificationLimit;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -184,7 +198,8 @@ public class TransactionConfidence implements Serializable {
      * <p>Note that this is NOT called when every block arrives. Instead it is called when the transaction
      * transitions between confidence states, ie, from not being seen in the chain to being seen (not necessarily in
      * the best chain). If you want to know when the transaction gets buried under another block, consider using
-     * a future from {@link #getDepthFuture(int)}.</p>
+     * a future from {@link #getDepthFuture(int)}, or ask for DEPTH changes with
+     * {@link #requestDepthNotifications(int)}.</p>
      */
     public void addEventListener(Listener listener, Executor executor) {
         Preconditions.checkNotNull(listener);
@@ -197,9 +212,9 @@ public class TransactionConfidence implements Serializable {
      *
      * <p>Note that this is NOT called when every block arrives. Instead it is called when the transaction
      * transitions between confidence states, ie, from not being seen in the chain to being seen (not necessarily in
-     * the best chain). If you want to know when the transaction gets buried under another block, implement a
-     * {@link BlockChainListener}, attach it to a {@link BlockChain} and then use the getters on the
-     * confidence object to determine the new depth.</p>
+     * the best chain). If you want to know when the transaction gets buried under another block, consider using
+     * a future from {@link #getDepthFuture(int)}, or ask for DEPTH changes with
+     * {@link #requestDepthNotifications(int)}.</p>
      */
     public void addEventListener(Listener listener) {
         addEventListener(listener, Threading.USER_THREAD);
@@ -210,6 +225,126 @@ public class TransactionConfidence implements Serializable {
         return ListenerRegistration.removeFromList(listener, listeners);
     }
 
+    /**
+     * <p>Asks the {@link Wallet} holding this transaction to run the listeners with a DEPTH change for every new block
+     * on the best chain, until the transaction is buried the given number of blocks deep. Wallets only do that for
+     * transactions that ask for it, so that the cost of a new block depends on how many transactions are being
+     * watched rather than on the size of the wallet's history.</p>
+     *
+     * <p>Each wallet does this anyway up to its {@link Wallet#getEventHorizon()} for all its transactions.
+     * Asking for a lower depth than has already been asked for has no effect.</p>
+     */
+    public synchronized void requestDepthNotifications(int depth) {
+        Preconditions.checkArgument(depth >= 0);
+        depthNotificationLimit = Math.max(depthNotificationLimit, depth);
+        if (depthTrackers != null) {
+            for (BlockDepthTracker tracker : depthTrackers)
+                updateWatch(tracker);
+        }
+    }
+
+    /** Returns the depth up to which DEPTH changes were asked for, see {@link #requestDepthNotifications(int)}. */
+    public synchronized int getDepthNotificationLimit() {
+        return depthNotificationLimit;
+    }
+
+    // Whether new blocks could still need to be reported to the listeners by the wallet owning the given tracker.
+    synchronized boolean wantsDepthNotifications(BlockDepthTracker tracker) {
+        int limit = Math.max(depthNotificationLimit, tracker.getEventHorizon());
+        ConfidenceType type = getConfidenceType();
+        if (type == ConfidenceType.BUILDING)
+            return getDepthInBlocks() < limit;
+        else
+            return type != ConfidenceType.DEAD && limit > 0;
+    }
+
+    /**
+     * <p>Makes the depth and work done of this transaction follow the blocks counted by the given tracker whilst it is
+     * BUILDING, and has it report new blocks to the tracker's wallet as long as they are wanted. Adding a tracker that
+     * was already added just checks again whether new blocks are wanted, for instance after the wallet's event horizon
+     * changed.</p>
+     *
+     * <p>A transaction held by several wallets has a tracker from each of them. All of them count the same best chain,
+     * so the depth follows the first one only, and moves on to the next one if that is removed.</p>
+     */
+    synchronized void addDepthTracker(BlockDepthTracker tracker) {
+        if (depthTrackers == null || !depthTrackers.contains(tracker)) {
+            syncDepth();
+            if (depthTrackers == null)
+                depthTrackers = new ArrayList<BlockDepthTracker>(1);
+            depthTrackers.add(tracker);
+            if (depthTrackers.size() == 1)
+                skipTrackedBlocks();
+        }
+        updateWatch(tracker);
+    }
+
+    /** Stops the given tracker following this transaction, as its wallet no longer holds it. */
+    synchronized void removeDepthTracker(BlockDepthTracker tracker) {
+        if (depthTrackers == null || !depthTrackers.contains(tracker))
+            return;
+        syncDepth();
+        tracker.unwatch(this);
+        depthTrackers.remove(tracker);
+        if (depthTrackers.isEmpty())
+            depthTrackers = null;
+        skipTrackedBlocks();
+    }
+
+    private synchronized void updateWatch(BlockDepthTracker tracker) {
+        if (wantsDepthNotifications(tracker))
+            tracker.watch(this);
+        else
+            tracker.unwatch(this);
+    }
+
+    // Tells this object that the blocks its tracker counted since the last update are already included in its depth
+    // and work done, as happens when a tracker is added or removed.
+    private synchronized void skipTrackedBlocks() {
+        if (depthTrackers == null)
+            return;
+        BlockDepthTracker tracker = depthTrackers.get(0);
+        trackerBlocks = tracker.getBlocks();
+        trackerWork = tracker.getWork();
+    }
+
+    /**
+     * Tells this object that the given block, which the given tracker is about to count, is already included in its
+     * depth and work done, as happens when the transaction appears in it. Until the tracker counts the block, the depth
+     * stays as it is.
+     */
+    synchronized void skipNextTrackedBlock(BlockDepthTracker tracker, Block header) throws VerificationException {
+        // Only the first tracker counts towards the depth.
+        if (depthTrackers == null || depthTrackers.get(0) != tracker)
+            return;
+        syncDepth();
+        trackerBlocks = tracker.getBlocks() + 1;
+        trackerWork = tracker.getWork().add(header.getWork());
+    }
+
+    // Brings depth and workDone up to date with the blocks the first tracker counted since we last looked.
+    private synchronized void syncDepth() {
+        if (depthTrackers == null)
+            return;
+        BlockDepthTracker tracker = depthTrackers.get(0);
+        int blocks = tracker.getBlocks();
+        // Nothing new, or the block skipped by skipNextTrackedBlock wasn't counted yet.
+        if (blocks <= trackerBlocks)
+            return;
+        BigInteger work = tracker.getWork();
+        if (confidenceType == ConfidenceType.BUILDING) {
+            depth += blocks - trackerBlocks;
+            workDone = workDone.add(work.subtract(trackerWork));
+        }
+        trackerBlocks = blocks;
+        trackerWork = work;
+    }
+
+    /** Returns the transaction this object describes the confidence of. */
+    Transaction getTransaction() {
+        return transaction;
+    }
+
     /**
      * Returns the chain height at which the transaction appeared if confidence type is BUILDING.
      * @throws IllegalStateException if the confidence type is not BUILDING.
@@ -227,6 +362,7 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setAppearedAtChainHeight(int appearedAtChainHeight) {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
+        syncDepth();
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
@@ -246,6 +382,7 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        syncDepth();
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -333,6 +470,7 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING)
             return false;   // Should this be an assert?
 
+        syncDepth();
         this.depth++;
         this.workDone = this.workDone.add(block.getWork());
         return true;
@@ -349,6 +487,7 @@ public class TransactionConfidence implements Serializable {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        syncDepth();
         return depth;
     }
 
@@ -356,6 +495,7 @@ public class TransactionConfidence implements Serializable {
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        syncDepth();
         this.depth = depth;
     }
 
@@ -367,10 +507,12 @@ public class TransactionConfidence implements Serializable {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
+        syncDepth();
         return workDone;
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
+        syncDepth();
         this.workDone = workDone;
     }
 
@@ -453,13 +595,14 @@ public class TransactionConfidence implements Serializable {
     /**
      * Returns a future that completes when the transaction has been confirmed by "depth" blocks. For instance setting
      * depth to one will wait until it appears in a block on the best chain, and zero will wait until it has been seen
-     * on the network.
+     * on the network. This asks for DEPTH changes up to the given depth, see {@link #requestDepthNotifications(int)}.
      */
     public synchronized ListenableFuture<Transaction> getDepthFuture(final int depth, Executor executor) {
         final SettableFuture<Transaction> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(transaction);
         }
+        requestDepthNotifications(depth);
         addEventListener(new Listener() {
             @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
                 if (getDepthInBlocks() >= depth) {
@@ -474,4 +617,9 @@ public class TransactionConfidence implements Serializable {
     public synchronized ListenableFuture<Transaction> getDepthFuture(final int depth) {
         return getDepthFuture(depth, Threading.USER_THREAD);
     }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        syncDepth();
+        out.defaultWriteObject();
+    }
 }
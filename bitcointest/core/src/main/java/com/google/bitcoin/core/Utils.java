@@ -44,14 +44,16 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  */
 public class Utils {
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+
+    // MessageDigest objects are not thread safe. Rather than funnelling every hash in the process through a single
+    // instance under a lock (which serializes script verification and network threads against each other), each
+    // thread gets its own digest that is reset and reused for every call made on that thread.
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSha256Digest();
         }
-    }
+    };
 
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Bitcoin Signed Message:\n";
@@ -184,6 +186,25 @@ public class Utils {
         }
     }
 
+    /**
+     * Returns a new SHA-256 {@link MessageDigest}. Instances are not thread safe, so this is intended for code that
+     * wants to keep its own digest around rather than going through the thread-local one used by the methods below.
+     */
+    public static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    /** Returns the calling thread's SHA-256 digest, reset and ready for use. */
+    static MessageDigest threadDigest() {
+        MessageDigest d = digest.get();
+        d.reset();
+        return d;
+    }
+
     /**
      * See {@link Utils#doubleDigest(byte[], int, int)}.
      */
@@ -196,20 +217,26 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest d = threadDigest();
+        d.update(input, offset, length);
+        byte[] first = d.digest();
+        return d.digest(first);
     }
 
+    /**
+     * See {@link Utils#singleDigest(byte[], int, int)}.
+     */
+    public static byte[] singleDigest(byte[] input) {
+        return singleDigest(input, 0, input.length);
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given byte range.
+     */
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest d = threadDigest();
+        d.update(input, offset, length);
+        return d.digest();
     }
 
     /**
@@ -217,13 +244,11 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest d = threadDigest();
+        d.update(input1, offset1, length1);
+        d.update(input2, offset2, length2);
+        byte[] first = d.digest();
+        return d.digest(first);
     }
 
     /**
@@ -314,16 +339,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
@@ -36,6 +36,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +48,7 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
@@ -101,6 +103,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
     private static final long serialVersionUID = 2L;
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
+    /** The default for {@link #setEventHorizon(int)}. */
+    public static final int DEFAULT_EVENT_HORIZON = 100;
 
     protected final ReentrantLock lock = Threading.lock("wallet");
 
@@ -131,8 +135,41 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // All transactions together.
     final Map<Sha256Hash, Transaction> transactions;
 
+    // The outputs of unspent and pending transactions that are not spent yet and belong to us, grouped by transaction,
+    // and their total value. Outputs to watched scripts are kept the same way. Transactions are marked dirty as they
+    // move between pools or have their outputs spent, and only those are looked at again the next time the outputs
+    // are needed, so balances and coin selection don't have to walk the whole wallet.
+    private transient LinkedHashMap<Transaction, List<TransactionOutput>> myUnspents;
+    private transient BigInteger myUnspentsValue;
+    private transient LinkedHashMap<Transaction, List<TransactionOutput>> watchedUnspents;
+    private transient HashSet<Transaction> dirtyUnspents;
+    private transient boolean rebuildUnspents;
+    // Outputs set aside for sends that are being signed or broadcast outside the wallet lock, see reserveCoins.
+    @GuardedBy("lock") private transient HashMap<TransactionOutput, Reservation> reservedOutputs;
+    // The Bloom filter elements of the keys, watched scripts and transactions that aren't dead, along with a filter
+    // holding them. They are brought up to date from the keys added and transactions marked dirty since the last
+    // filter was asked for, so PeerGroup recalculating the filter doesn't walk the whole wallet. unownedPubKeyTxns
+    // remembers which transactions pay to raw public keys we don't have, as adding such a key makes those outputs
+    // part of the filter.
+    private transient IncrementalBloomFilter bloomFilterElements;
+    private transient HashSet<Transaction> dirtyBloomFilterTxns;
+    private transient ArrayList<ECKey> newBloomFilterKeys;
+    private transient HashMultimap<ByteBuffer, Transaction> unownedPubKeyTxns;
+    private transient boolean rebuildBloomFilter;
+    // The transactions that changed and the keys that were added since the last journal entry was taken, see
+    // takeJournalChanges. These are null until a journal snapshot has been taken. journalRebuild is set when something
+    // changed that can't be described that way, like a key being removed or a re-org, so the next entry must be a
+    // snapshot of the whole wallet.
+    @Nullable private transient HashSet<Transaction> journalTxns;
+    @Nullable private transient ArrayList<ECKey> journalKeys;
+    private transient boolean journalRebuild;
+
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
+    // Indexes of the keychain by public key hash and by public key, so the ownership checks done for every input and
+    // output we see don't have to scan the whole keychain. Kept in step with it by addKeys, removeKey and encryption.
+    private transient HashMap<ByteBuffer, ECKey> keysByPubKeyHash;
+    private transient HashMap<ByteBuffer, ECKey> keysByPubKey;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
@@ -153,6 +190,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Counts new best chain blocks for the confidence objects of our transactions, so their depth and work done can be
+    // worked out when asked for instead of being updated one by one for every block.
+    private transient BlockDepthTracker depthTracker;
+    // How deep transactions get buried before new blocks stop being reported to their confidence listeners.
+    private transient int eventHorizon;
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -163,6 +205,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     private volatile WalletFiles vFileManager;
+    // Saves take a snapshot of the wallet under the wallet lock and write it out without holding it, so two saves can
+    // finish out of order. Each snapshot is numbered and only renamed over the wallet file if it is newer than the last
+    // one that was, which fileLock guards. Never take the wallet lock whilst holding fileLock.
+    private transient ReentrantLock fileLock;
+    @GuardedBy("lock") private transient long lastSnapshot;
+    @GuardedBy("fileLock") private transient long lastSavedSnapshot;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     private volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -216,7 +264,24 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     private void createTransientState() {
+        fileLock = Threading.lock("wallet-file");
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        eventHorizon = DEFAULT_EVENT_HORIZON;
+        depthTracker = new BlockDepthTracker(eventHorizon);
+        for (Transaction tx : transactions.values())
+            trackDepth(tx);
+        indexKeys();
+        myUnspents = new LinkedHashMap<Transaction, List<TransactionOutput>>();
+        myUnspentsValue = BigInteger.ZERO;
+        watchedUnspents = new LinkedHashMap<Transaction, List<TransactionOutput>>();
+        dirtyUnspents = new HashSet<Transaction>();
+        rebuildUnspents = true;
+        reservedOutputs = new HashMap<TransactionOutput, Reservation>();
+        bloomFilterElements = new IncrementalBloomFilter();
+        dirtyBloomFilterTxns = new HashSet<Transaction>();
+        newBloomFilterKeys = new ArrayList<ECKey>();
+        unownedPubKeyTxns = HashMultimap.create();
+        rebuildBloomFilter = true;
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -229,6 +294,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        // The peers that announced a transaction are saved with it.
+                        if (journalTxns != null && transactions.containsKey(tx.getHash()))
+                            journalTxns.add(tx);
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
@@ -277,7 +345,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            keysByPubKeyHash.remove(ByteBuffer.wrap(key.getPubKeyHash()));
+            keysByPubKey.remove(ByteBuffer.wrap(key.getPubKey()));
+            invalidateDerivedState();
+            return true;
         } finally {
             lock.unlock();
         }
@@ -295,34 +368,64 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
-    /** Saves the wallet first to the given temp file, then renames to the dest file. */
-    public void saveToFile(File temp, File destFile) throws IOException {
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. The wallet is only locked whilst a
+     * snapshot of it is taken, serialization and disk IO happen afterwards without holding the lock. If another save
+     * of a newer snapshot renamed its file over the dest file first, the temp file is deleted instead.
+     *
+     * @return how long the snapshot and the whole save took and how many bytes were written
+     */
+    public WalletFiles.SaveStats saveToFile(File temp, File destFile) throws IOException {
+        long start = System.currentTimeMillis();
         FileOutputStream stream = null;
-        lock.lock();
         try {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            WalletProtobufSerializer.WalletSnapshot walletSnapshot;
+            long snapshot;
+            lock.lock();
+            try {
+                walletSnapshot = serializer.takeSnapshot(this);
+                snapshot = ++lastSnapshot;
+            } finally {
+                lock.unlock();
+            }
+            long snapshotMsec = System.currentTimeMillis() - start;
+            Protos.Wallet walletProto = serializer.walletToProto(walletSnapshot);
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            walletProto.writeTo(stream);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
             stream.getFD().sync();
             stream.close();
             stream = null;
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                canonical.delete();
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
-            } else if (!temp.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + temp + " to " + destFile);
+            fileLock.lock();
+            try {
+                if (snapshot < lastSavedSnapshot) {
+                    log.info("Not saving snapshot {} of the wallet as snapshot {} is already saved", snapshot,
+                            lastSavedSnapshot);
+                    temp.delete();
+                } else if (Utils.isWindows()) {
+                    // Work around an issue on Windows whereby you can't rename over existing files.
+                    File canonical = destFile.getCanonicalFile();
+                    canonical.delete();
+                    if (!temp.renameTo(canonical))
+                        throw new IOException("Failed to rename " + temp + " to " + canonical);
+                    lastSavedSnapshot = snapshot;
+                } else if (!temp.renameTo(destFile)) {
+                    throw new IOException("Failed to rename " + temp + " to " + destFile);
+                } else {
+                    lastSavedSnapshot = snapshot;
+                }
+            } finally {
+                fileLock.unlock();
             }
+            return new WalletFiles.SaveStats(snapshotMsec, System.currentTimeMillis() - start,
+                    walletProto.getSerializedSize());
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
         } finally {
-            lock.unlock();
             if (stream != null) {
                 stream.close();
             }
@@ -374,6 +477,44 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * <p>Sets how many blocks deep a transaction can get buried before new blocks stop being reported to its
+     * confidence listeners and to {@link WalletEventListener#onTransactionConfidenceChanged(Wallet, Transaction)} as
+     * DEPTH changes. The depth returned by {@link TransactionConfidence#getDepthInBlocks()} is always up to date, this
+     * only controls the events. Listeners that need to hear about more blocks for a particular transaction can ask for
+     * them with {@link TransactionConfidence#requestDepthNotifications(int)}. The default is
+     * {@link #DEFAULT_EVENT_HORIZON}.</p>
+     *
+     * <p>The cost of a new block depends on how many transactions are within the event horizon, not on how many the
+     * wallet holds. The new value applies straight away to the transactions already in the wallet, so raising it
+     * starts reporting blocks again for transactions that are buried less deep than the new horizon.</p>
+     *
+     * <p>Note that this property is not serialized. You have to set it each time a Wallet object is constructed, even
+     * if it's loaded from a protocol buffer.</p>
+     */
+    public void setEventHorizon(int eventHorizon) {
+        checkArgument(eventHorizon >= 0);
+        lock.lock();
+        try {
+            this.eventHorizon = eventHorizon;
+            depthTracker.setEventHorizon(eventHorizon);
+            for (Transaction tx : transactions.values())
+                tx.getConfidence().addDepthTracker(depthTracker);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** See {@link Wallet#setEventHorizon(int)} for an explanation of this property. */
+    public int getEventHorizon() {
+        lock.lock();
+        try {
+            return eventHorizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Sets the {@link RiskAnalysis} implementation to use for deciding whether received pending transactions are risky
      * or not. If the analyzer says a transaction is risky, by default it will be dropped. You can customize this
@@ -445,15 +586,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * </p>
      */
     public void shutdownAutosaveAndWait() {
+        WalletFiles files;
         lock.lock();
         try {
-            WalletFiles files = vFileManager;
+            files = vFileManager;
             vFileManager = null;
             checkState(files != null, "Auto saving not enabled.");
-            files.shutdownAndWait();
         } finally {
             lock.unlock();
         }
+        // Not whilst holding the lock, as a save that already started needs it.
+        files.shutdownAndWait();
     }
 
     private void saveLater() {
@@ -483,12 +626,74 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * {@link WalletProtobufSerializer}.
      */
     public void saveToFileStream(OutputStream f) throws IOException {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        WalletProtobufSerializer.WalletSnapshot snapshot;
+        lock.lock();
+        try {
+            snapshot = serializer.takeSnapshot(this);
+        } finally {
+            lock.unlock();
+        }
+        serializer.walletToProto(snapshot).writeTo(f);
+    }
+
+    /**
+     * Takes a snapshot of the whole wallet for saving to a {@link WalletJournal}, and starts keeping track of the
+     * changes made from now on for {@link #takeJournalChanges()}. Only the snapshot is taken under the wallet lock.
+     */
+    public WalletJournal.Entry takeJournalSnapshot() {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        WalletProtobufSerializer.WalletSnapshot snapshot;
+        long sequence;
+        lock.lock();
+        try {
+            snapshot = serializer.takeSnapshot(this);
+            journalTxns = new HashSet<Transaction>();
+            journalKeys = new ArrayList<ECKey>();
+            journalRebuild = false;
+            sequence = ++lastSnapshot;
+        } finally {
+            lock.unlock();
+        }
+        return new WalletJournal.Entry(sequence, serializer.walletToProto(snapshot));
+    }
+
+    /**
+     * Returns the changes made to the wallet since the last journal snapshot or changes were taken, for appending to a
+     * {@link WalletJournal}. The entry holds the transactions that were added or changed and the keys that were added,
+     * along with the wallet wide fields and extensions. Returns null if no snapshot was taken yet or the wallet changed
+     * in a way that can only be saved by taking a new snapshot with {@link #takeJournalSnapshot()}, like a key being
+     * removed or a re-org.
+     */
+    @Nullable
+    public WalletJournal.Entry takeJournalChanges() {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        WalletProtobufSerializer.WalletSnapshot snapshot;
+        long sequence;
         lock.lock();
         try {
-            new WalletProtobufSerializer().writeWallet(this, f);
+            if (journalTxns == null || journalRebuild)
+                return null;
+            List<WalletTransaction> wtxs = new ArrayList<WalletTransaction>(journalTxns.size());
+            for (Transaction tx : journalTxns) {
+                Sha256Hash hash = tx.getHash();
+                if (unspent.containsKey(hash))
+                    wtxs.add(new WalletTransaction(Pool.UNSPENT, tx));
+                else if (spent.containsKey(hash))
+                    wtxs.add(new WalletTransaction(Pool.SPENT, tx));
+                else if (pending.containsKey(hash))
+                    wtxs.add(new WalletTransaction(Pool.PENDING, tx));
+                else if (dead.containsKey(hash))
+                    wtxs.add(new WalletTransaction(Pool.DEAD, tx));
+            }
+            snapshot = serializer.takeSnapshot(this, wtxs, journalKeys);
+            journalTxns.clear();
+            journalKeys.clear();
+            sequence = ++lastSnapshot;
         } finally {
             lock.unlock();
         }
+        return new WalletJournal.Entry(sequence, serializer.walletToProto(snapshot));
     }
 
     /** Returns the parameters this wallet was created with. */
@@ -497,10 +702,18 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a wallet deserialized from the given file.
+     * Returns a wallet deserialized from the given file. If the file has a {@link WalletJournal} next to it, the
+     * journal is replayed on top of it.
      */
     public static Wallet loadFromFile(File f) throws UnreadableWalletException {
         try {
+            if (WalletJournal.getJournalFile(f).exists()) {
+                Wallet wallet = new WalletProtobufSerializer().readWallet(WalletJournal.readWalletProto(f));
+                if (!wallet.isConsistent()) {
+                    log.error("Loaded an inconsistent wallet");
+                }
+                return wallet;
+            }
             FileInputStream stream = null;
             try {
                 stream = new FileInputStream(f);
@@ -863,6 +1076,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
             log.info("  <-pending");
+        markDirty(tx);
 
         if (bestChain) {
             if (wasPending) {
@@ -902,7 +1116,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
-                // count.
+                // count. The depth tracker is told now rather than then, so that a depth read in between, which
+                // doesn't need the wallet lock, doesn't count the block either.
+                tx.getConfidence().skipNextTrackedBlock(depthTracker, block.getHeader());
                 ignoreNextNewBlock.add(txHash);
             }
         }
@@ -976,20 +1192,20 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
+            // Count the block once for all the BUILDING transactions, which pick it up in their depth and work done
+            // next time they are asked for them. Those in ignoreNextNewBlock were already processed in receive() due
+            // to appearing in this block, and skip it.
+            depthTracker.blockAdded(block.getHeader());
+            // Only the transactions that asked for it are told about the new depth.
+            for (TransactionConfidence confidence : depthTracker.getWatched()) {
+                Transaction tx = confidence.getTransaction();
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING && !ignoreNextNewBlock.contains(tx.getHash())
+                        && confidence.getDepthInBlocks() <= Math.max(eventHorizon, confidence.getDepthNotificationLimit()))
                     confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                }
+                if (!confidence.wantsDepthNotifications(depthTracker))
+                    depthTracker.unwatch(confidence);
             }
+            ignoreNextNewBlock.clear();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -1129,6 +1345,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     if (result == TransactionInput.ConnectionResult.SUCCESS) {
                         log.info("Connected pending tx input {}:{}",
                                 pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
+                        markDirty(tx);
                     }
                 }
                 // If the transactions outputs are now all spent, it will be moved into the spent pool by the
@@ -1149,7 +1366,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             pending.remove(tx.getHash());
             unspent.remove(tx.getHash());
             spent.remove(tx.getHash());
-            addWalletTransaction(Pool.DEAD, tx);
+            addWalletTransaction(Pool.DEAD, tx);  // Marks it dirty.
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getOutpoint().fromTx;
                 if (connected == null) continue;
@@ -1189,6 +1406,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever an output of the transaction is spent or unspent.
+        markDirty(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -1376,9 +1595,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         default:
             throw new RuntimeException("Unknown wallet transaction type " + pool);
         }
+        markDirty(tx);
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+        trackDepth(tx);
+    }
+
+    // Makes the depth of the transaction follow the blocks we are told about, and reports them to its listeners until
+    // it is buried beyond the event horizon.
+    private void trackDepth(Transaction tx) {
+        tx.getConfidence().addDepthTracker(depthTracker);
     }
 
     /**
@@ -1447,11 +1674,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             if (fromHeight == 0) {
+                for (Transaction tx : transactions.values())
+                    tx.getConfidence().removeDepthTracker(depthTracker);
                 unspent.clear();
                 spent.clear();
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                invalidateDerivedState();
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1477,6 +1707,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                         tx.disconnectInputs();
                         i.remove();
                         transactions.remove(tx.getHash());
+                        tx.getConfidence().removeDepthTracker(depthTracker);
+                        invalidateDerivedState();
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -1656,6 +1888,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
         // Tracks if this has been passed to wallet.completeTx already: just a safety check.
         private boolean completed;
+        // Set by wallet.reserveCoins, so the same request can't have coins reserved twice.
+        private Reservation reservation;
 
         private SendRequest() {}
 
@@ -1866,117 +2100,336 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void completeTx(SendRequest req) throws InsufficientMoneyException {
         lock.lock();
         try {
-            checkArgument(!req.completed, "Given SendRequest has already been completed.");
-            // Calculate the amount of value we need to import.
-            BigInteger value = BigInteger.ZERO;
-            for (TransactionOutput output : req.tx.getOutputs()) {
-                value = value.add(output.getValue());
-            }
-            BigInteger totalOutput = value;
+            BigInteger fee = selectCoins(req);
+            signTx(req, fee);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            log.info("Completing send tx with {} outputs totalling {} satoshis (not including fees)",
-                    req.tx.getOutputs().size(), value);
+    // Adds inputs and change to the request, leaving the inputs unsigned, and returns the fee it pays. Coins that are
+    // reserved for other sends are not used.
+    private BigInteger selectCoins(SendRequest req) throws InsufficientMoneyException {
+        checkState(lock.isHeldByCurrentThread());
+        checkArgument(!req.completed, "Given SendRequest has already been completed.");
+        checkArgument(req.reservation == null, "Given SendRequest already has coins reserved.");
+        // Calculate the amount of value we need to import.
+        BigInteger value = BigInteger.ZERO;
+        for (TransactionOutput output : req.tx.getOutputs()) {
+            value = value.add(output.getValue());
+        }
+        BigInteger totalOutput = value;
+
+        log.info("Completing send tx with {} outputs totalling {} satoshis (not including fees)",
+                req.tx.getOutputs().size(), value);
+
+        // If any inputs have already been added, we don't need to get their value from wallet
+        BigInteger totalInput = BigInteger.ZERO;
+        for (TransactionInput input : req.tx.getInputs())
+            if (input.getConnectedOutput() != null)
+                totalInput = totalInput.add(input.getConnectedOutput().getValue());
+            else
+                log.warn("SendRequest transaction already has inputs but we don't know how much they are worth - they will be added to fee.");
+        value = value.subtract(totalInput);
+
+        List<TransactionInput> originalInputs = new ArrayList<TransactionInput>(req.tx.getInputs());
+
+        // We need to know if we need to add an additional fee because one of our values are smaller than 0.01 BTC
+        boolean needAtLeastReferenceFee = false;
+        if (req.ensureMinRequiredFee && !req.emptyWallet) { // min fee checking is handled later for emptyWallet
+            for (TransactionOutput output : req.tx.getOutputs())
+                if (output.getValue().compareTo(Utils.CENT) < 0) {
+                    if (output.getValue().compareTo(output.getMinNonDustValue()) < 0)
+                        throw new IllegalArgumentException("Tried to send dust with ensureMinRequiredFee set - no way to complete this");
+                    needAtLeastReferenceFee = true;
+                    break;
+                }
+        }
 
-            // If any inputs have already been added, we don't need to get their value from wallet
-            BigInteger totalInput = BigInteger.ZERO;
-            for (TransactionInput input : req.tx.getInputs())
-                if (input.getConnectedOutput() != null)
-                    totalInput = totalInput.add(input.getConnectedOutput().getValue());
-                else
-                    log.warn("SendRequest transaction already has inputs but we don't know how much they are worth - they will be added to fee.");
-            value = value.subtract(totalInput);
-
-            List<TransactionInput> originalInputs = new ArrayList<TransactionInput>(req.tx.getInputs());
-
-            // We need to know if we need to add an additional fee because one of our values are smaller than 0.01 BTC
-            boolean needAtLeastReferenceFee = false;
-            if (req.ensureMinRequiredFee && !req.emptyWallet) { // min fee checking is handled later for emptyWallet
-                for (TransactionOutput output : req.tx.getOutputs())
-                    if (output.getValue().compareTo(Utils.CENT) < 0) {
-                        if (output.getValue().compareTo(output.getMinNonDustValue()) < 0)
-                            throw new IllegalArgumentException("Tried to send dust with ensureMinRequiredFee set - no way to complete this");
-                        needAtLeastReferenceFee = true;
-                        break;
-                    }
-            }
+        // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
+        // with the actual outputs that'll be used to gather the required amount of value. In this way, users
+        // can customize coin selection policies.
+        //
+        // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
+        // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
+        LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
+        removeReserved(candidates);
+        CoinSelection bestCoinSelection;
+        TransactionOutput bestChangeOutput = null;
+        if (!req.emptyWallet) {
+            // This can throw InsufficientMoneyException.
+            FeeCalculation feeCalculation;
+            feeCalculation = new FeeCalculation(req, value, originalInputs, needAtLeastReferenceFee, candidates);
+            bestCoinSelection = feeCalculation.bestCoinSelection;
+            bestChangeOutput = feeCalculation.bestChangeOutput;
+        } else {
+            // We're being asked to empty the wallet. What this means is ensuring "tx" has only a single output
+            // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
+            checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
+            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+            bestCoinSelection = selector.select(NetworkParameters.MAX_MONEY, candidates);
+            req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
+            totalOutput = bestCoinSelection.valueGathered;
+        }
 
-            // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
-            // with the actual outputs that'll be used to gather the required amount of value. In this way, users
-            // can customize coin selection policies.
-            //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
-            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
-            CoinSelection bestCoinSelection;
-            TransactionOutput bestChangeOutput = null;
-            if (!req.emptyWallet) {
-                // This can throw InsufficientMoneyException.
-                FeeCalculation feeCalculation;
-                feeCalculation = new FeeCalculation(req, value, originalInputs, needAtLeastReferenceFee, candidates);
-                bestCoinSelection = feeCalculation.bestCoinSelection;
-                bestChangeOutput = feeCalculation.bestChangeOutput;
-            } else {
-                // We're being asked to empty the wallet. What this means is ensuring "tx" has only a single output
-                // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
-                checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                bestCoinSelection = selector.select(NetworkParameters.MAX_MONEY, candidates);
-                req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
-                totalOutput = bestCoinSelection.valueGathered;
-            }
+        for (TransactionOutput output : bestCoinSelection.gathered)
+            req.tx.addInput(output);
 
-            for (TransactionOutput output : bestCoinSelection.gathered)
-                req.tx.addInput(output);
+        if (req.ensureMinRequiredFee && req.emptyWallet) {
+            final BigInteger baseFee = req.fee == null ? BigInteger.ZERO : req.fee;
+            final BigInteger feePerKb = req.feePerKb == null ? BigInteger.ZERO : req.feePerKb;
+            Transaction tx = req.tx;
+            if (!adjustOutputDownwardsForFee(tx, bestCoinSelection, baseFee, feePerKb))
+                throw new InsufficientMoneyException.CouldNotAdjustDownwards();
+        }
 
-            if (req.ensureMinRequiredFee && req.emptyWallet) {
-                final BigInteger baseFee = req.fee == null ? BigInteger.ZERO : req.fee;
-                final BigInteger feePerKb = req.feePerKb == null ? BigInteger.ZERO : req.feePerKb;
-                Transaction tx = req.tx;
-                if (!adjustOutputDownwardsForFee(tx, bestCoinSelection, baseFee, feePerKb))
-                    throw new InsufficientMoneyException.CouldNotAdjustDownwards();
+        totalInput = totalInput.add(bestCoinSelection.valueGathered);
+
+        if (bestChangeOutput != null) {
+            req.tx.addOutput(bestChangeOutput);
+            totalOutput = totalOutput.add(bestChangeOutput.getValue());
+            log.info("  with {} coins change", bitcoinValueToFriendlyString(bestChangeOutput.getValue()));
+        }
+        final BigInteger calculatedFee = totalInput.subtract(totalOutput);
+        if (calculatedFee.signum() > 0) {
+            log.info("  with a fee of {}", bitcoinValueToFriendlyString(calculatedFee));
+        }
+        return calculatedFee;
+    }
+
+    // Signs the inputs added by selectCoins and finishes off the request. Doesn't need the wallet lock, as the
+    // transaction isn't in the wallet yet and the keys are looked up under the lock.
+    private void signTx(SendRequest req, BigInteger calculatedFee) {
+        // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
+        req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey);
+
+        // Check size.
+        int size = req.tx.bitcoinSerialize().length;
+        if (size > Transaction.MAX_STANDARD_TX_SIZE) {
+            throw new IllegalArgumentException(
+                    String.format("Transaction could not be created without exceeding max size: %d vs %d", size,
+                        Transaction.MAX_STANDARD_TX_SIZE));
+        }
+
+        // Label the transaction as being self created. We can use this later to spend its change output even before
+        // the transaction is confirmed. We deliberately won't bother notifying listeners here as there's not much
+        // point - the user isn't interested in a confidence transition they made themselves.
+        req.tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        // Label the transaction as being a user requested payment. This can be used to render GUI wallet
+        // transaction lists more appropriately, especially when the wallet starts to generate transactions itself
+        // for internal purposes.
+        req.tx.setPurpose(Transaction.Purpose.USER_PAYMENT);
+        req.completed = true;
+        req.fee = calculatedFee;
+        log.info("  completed: {}", req.tx);
+    }
+
+    /**
+     * <p>Coins set aside for a {@link SendRequest} by {@link Wallet#reserveCoins(Wallet.SendRequest, long, TimeUnit)}.
+     * Whilst a reservation is held its coins are not used to complete other requests, so the transaction can be
+     * signed, committed and broadcast without holding the wallet lock and several sends can be in progress at once.</p>
+     *
+     * <p>A reservation ends when its transaction is committed, when it is released, or when it expires. Coins whose
+     * reservation expired may be spent by other requests, so an expired reservation can't be signed or committed.
+     * If signing fails the reservation is released.</p>
+     */
+    public class Reservation {
+        private final SendRequest req;
+        private final List<TransactionOutput> outputs;
+        private final BigInteger fee;
+        private final long expiryTimeMillis;
+        @GuardedBy("lock") private boolean released;
+
+        private Reservation(SendRequest req, BigInteger fee, long expiryTimeMillis) {
+            this.req = req;
+            this.fee = fee;
+            this.expiryTimeMillis = expiryTimeMillis;
+            ArrayList<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+            for (TransactionInput input : req.tx.getInputs()) {
+                TransactionOutput output = input.getConnectedOutput();
+                if (output != null)
+                    outputs.add(output);
             }
+            this.outputs = Collections.unmodifiableList(outputs);
+        }
+
+        /** Returns the request the coins were reserved for. */
+        public SendRequest getRequest() {
+            return req;
+        }
 
-            totalInput = totalInput.add(bestCoinSelection.valueGathered);
+        /** Returns the wallet outputs that are reserved. */
+        public List<TransactionOutput> getOutputs() {
+            return outputs;
+        }
+
+        /** Returns the time, as given by {@link Utils#currentTimeMillis()}, at which the reservation expires. */
+        public long getExpiryTimeMillis() {
+            return expiryTimeMillis;
+        }
 
-            if (bestChangeOutput != null) {
-                req.tx.addOutput(bestChangeOutput);
-                totalOutput = totalOutput.add(bestChangeOutput.getValue());
-                log.info("  with {} coins change", bitcoinValueToFriendlyString(bestChangeOutput.getValue()));
+        /** Returns true if the coins are still reserved, that is the reservation wasn't committed, released or expired. */
+        public boolean isHeld() {
+            lock.lock();
+            try {
+                return !released && Utils.currentTimeMillis() < expiryTimeMillis;
+            } finally {
+                lock.unlock();
             }
-            final BigInteger calculatedFee = totalInput.subtract(totalOutput);
-            if (calculatedFee.signum() > 0) {
-                log.info("  with a fee of {}", bitcoinValueToFriendlyString(calculatedFee));
+        }
+
+        /**
+         * Signs the transaction, which completes the request in the same way as {@link Wallet#completeTx(Wallet.SendRequest)}.
+         * This doesn't hold the wallet lock, so any number of reservations can be signed at the same time.
+         *
+         * @throws IllegalStateException if the reservation is no longer held.
+         */
+        public Transaction sign() {
+            checkState(!lock.isHeldByCurrentThread(), "Signing a reservation whilst holding the wallet lock");
+            checkState(isHeld(), "Reservation is no longer held");
+            boolean success = false;
+            try {
+                signTx(req, fee);
+                success = true;
+                return req.tx;
+            } finally {
+                if (!success)
+                    release();
             }
+        }
 
-            // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
-            req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey);
+        /**
+         * <p>Commits the signed transaction to the wallet as {@link Wallet#commitTx(Transaction)} does, which ends the
+         * reservation.</p>
+         *
+         * <p>If the reservation expires after it was signed but before this is called, nothing is committed and the
+         * signed transaction must be thrown away, as another send may already have spent its coins. The request stays
+         * completed so it can't have coins reserved again: start over with a new {@link SendRequest}.</p>
+         *
+         * @throws IllegalStateException if the reservation is no longer held or the transaction wasn't signed.
+         */
+        public Transaction commit() throws VerificationException {
+            lock.lock();
+            try {
+                checkState(req.completed, "Reservation must be signed before it is committed");
+                checkState(isHeld(), "Reservation is no longer held");
+                release();
+                commitTx(req.tx);
+                return req.tx;
+            } finally {
+                lock.unlock();
+            }
+        }
 
-            // Check size.
-            int size = req.tx.bitcoinSerialize().length;
-            if (size > Transaction.MAX_STANDARD_TX_SIZE) {
-                throw new IllegalArgumentException(
-                        String.format("Transaction could not be created without exceeding max size: %d vs %d", size,
-                            Transaction.MAX_STANDARD_TX_SIZE));
+        /**
+         * Commits the signed transaction and broadcasts it, in the same way as
+         * {@link Wallet#sendCoins(TransactionBroadcaster, Wallet.SendRequest)}.
+         */
+        public SendResult broadcast(TransactionBroadcaster broadcaster) throws VerificationException {
+            checkState(!lock.isHeldByCurrentThread());
+            SendResult result = new SendResult();
+            result.tx = commit();
+            result.broadcastComplete = broadcaster.broadcastTransaction(result.tx);
+            return result;
+        }
+
+        /** Makes the coins available to other requests again. Does nothing if the reservation has already ended. */
+        public void release() {
+            lock.lock();
+            try {
+                if (released)
+                    return;
+                released = true;
+                for (TransactionOutput output : outputs) {
+                    if (reservedOutputs.get(output) == this)
+                        reservedOutputs.remove(output);
+                }
+            } finally {
+                lock.unlock();
             }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Reservation of %d outputs for %s", outputs.size(), req.tx.getHashAsString());
+        }
+    }
 
-            // Label the transaction as being self created. We can use this later to spend its change output even before
-            // the transaction is confirmed. We deliberately won't bother notifying listeners here as there's not much
-            // point - the user isn't interested in a confidence transition they made themselves.
-            req.tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
-            // Label the transaction as being a user requested payment. This can be used to render GUI wallet
-            // transaction lists more appropriately, especially when the wallet starts to generate transactions itself
-            // for internal purposes.
-            req.tx.setPurpose(Transaction.Purpose.USER_PAYMENT);
-            req.completed = true;
-            req.fee = calculatedFee;
-            log.info("  completed: {}", req.tx);
+    /**
+     * <p>Picks the coins to use for the given request and reserves them for the given time, without signing the
+     * transaction. The request then has inputs and change added as by {@link Wallet#completeTx(Wallet.SendRequest)},
+     * and the returned {@link Reservation} is used to sign and commit it or to give the coins back. Only the coin
+     * selection happens under the wallet lock, so a busy wallet can build, sign and broadcast many sends at once.</p>
+     *
+     * <p>Reserved coins are left out of the candidates given to coin selectors, both here and by
+     * {@link Wallet#completeTx(Wallet.SendRequest)}, and can be checked with {@link Wallet#isReserved(TransactionOutput)}.
+     * They still count towards the balance until the transaction that spends them is committed.</p>
+     *
+     * @param timeout how long the coins are held for if the reservation isn't committed or released
+     * @throws InsufficientMoneyException if there aren't enough unreserved coins to complete the request.
+     * @throws IllegalArgumentException if the request was already completed or has coins reserved.
+     */
+    public Reservation reserveCoins(SendRequest req, long timeout, TimeUnit unit) throws InsufficientMoneyException {
+        checkArgument(timeout > 0);
+        lock.lock();
+        try {
+            BigInteger fee = selectCoins(req);
+            Reservation reservation = new Reservation(req, fee, Utils.currentTimeMillis() + unit.toMillis(timeout));
+            for (TransactionOutput output : reservation.outputs)
+                reservedOutputs.put(output, reservation);
+            req.reservation = reservation;
+            log.info("Reserved {} outputs until {}", reservation.outputs.size(), reservation.expiryTimeMillis);
+            return reservation;
         } finally {
             lock.unlock();
         }
     }
 
+    /** Returns true if the given output is reserved for a send that is in progress, see {@link #reserveCoins}. */
+    public boolean isReserved(TransactionOutput output) {
+        lock.lock();
+        try {
+            Reservation reservation = reservedOutputs.get(output);
+            return reservation != null && reservation.isHeld();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the outputs that are reserved for sends in progress, see {@link #reserveCoins}. */
+    public Set<TransactionOutput> getReservedOutputs() {
+        lock.lock();
+        try {
+            removeExpiredReservations();
+            return new HashSet<TransactionOutput>(reservedOutputs.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeExpiredReservations() {
+        checkState(lock.isHeldByCurrentThread());
+        if (reservedOutputs.isEmpty())
+            return;
+        for (Reservation reservation : new HashSet<Reservation>(reservedOutputs.values())) {
+            if (!reservation.isHeld()) {
+                log.info("{} expired", reservation);
+                reservation.release();
+            }
+        }
+    }
+
+    private void removeReserved(List<TransactionOutput> candidates) {
+        checkState(lock.isHeldByCurrentThread());
+        removeExpiredReservations();
+        if (reservedOutputs.isEmpty())
+            return;
+        for (Iterator<TransactionOutput> it = candidates.iterator(); it.hasNext();) {
+            if (reservedOutputs.containsKey(it.next()))
+                it.remove();
+        }
+    }
+
     /** Reduce the value of the first output of a transaction to pay the given feePerKb as appropriate for its size. */
     private boolean adjustOutputDownwardsForFee(Transaction tx, CoinSelection coinSelection, BigInteger baseFee, BigInteger feePerKb) {
         TransactionOutput output = tx.getOutput(0);
@@ -1999,17 +2452,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
-            LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
-                // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
-            }
-            return candidates;
+            updateUnspents();
+            return getUnspents(myUnspents, excludeImmatureCoinbases);
         } finally {
             lock.unlock();
         }
@@ -2023,26 +2467,104 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public LinkedList<TransactionOutput> getWatchedOutputs(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
-            LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    try {
-                        Script scriptPubKey = output.getScriptPubKey();
-                        if (!watchedScripts.contains(scriptPubKey)) continue;
-                        candidates.add(output);
-                    } catch (ScriptException e) {
-                        // Ignore
-                    }
-                }
-            }
-            return candidates;
+            updateUnspents();
+            return getUnspents(watchedUnspents, excludeImmatureCoinbases);
         } finally {
             lock.unlock();
         }
     }
 
+    private static LinkedList<TransactionOutput> getUnspents(Map<Transaction, List<TransactionOutput>> unspents,
+                                                             boolean excludeImmatureCoinbases) {
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        for (Map.Entry<Transaction, List<TransactionOutput>> entry : unspents.entrySet()) {
+            // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
+            if (excludeImmatureCoinbases && !entry.getKey().isMature()) continue;
+            candidates.addAll(entry.getValue());
+        }
+        return candidates;
+    }
+
+    // Brings myUnspents and watchedUnspents up to date with the transactions that changed since the last call, or
+    // with the whole wallet if something changed that could affect any transaction, like the set of keys.
+    private void updateUnspents() {
+        checkState(lock.isHeldByCurrentThread());
+        if (rebuildUnspents) {
+            myUnspents.clear();
+            myUnspentsValue = BigInteger.ZERO;
+            watchedUnspents.clear();
+            dirtyUnspents.clear();
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+                addUnspents(tx);
+            rebuildUnspents = false;
+            return;
+        }
+        for (Transaction tx : dirtyUnspents) {
+            List<TransactionOutput> outputs = myUnspents.remove(tx);
+            if (outputs != null) {
+                for (TransactionOutput output : outputs)
+                    myUnspentsValue = myUnspentsValue.subtract(output.getValue());
+            }
+            watchedUnspents.remove(tx);
+            Sha256Hash hash = tx.getHash();
+            Transaction current = unspent.get(hash);
+            if (current == null)
+                current = pending.get(hash);
+            if (current != null)
+                addUnspents(current);
+        }
+        dirtyUnspents.clear();
+    }
+
+    // Called whenever a transaction is added to the wallet, changes pools or has its outputs spent or unspent. Marks it
+    // for the unspent outputs, the Bloom filter and the journal to catch up with.
+    private void markDirty(Transaction tx) {
+        dirtyUnspents.add(tx);
+        dirtyBloomFilterTxns.add(tx);
+        if (journalTxns != null)
+            journalTxns.add(tx);
+    }
+
+    // Called when a key is added. Outputs we already have may pay to it, so the unspent outputs are rebuilt.
+    private void markKeyAdded(ECKey key) {
+        newBloomFilterKeys.add(key);
+        if (journalKeys != null)
+            journalKeys.add(key);
+        rebuildUnspents = true;
+    }
+
+    // Called when something changed that could affect any transaction and can't be tracked by markDirty, like a key
+    // being removed, transactions being dropped or a re-org. The unspent outputs and the Bloom filter are rebuilt from
+    // the whole wallet, and the next journal entry has to be a snapshot.
+    private void invalidateDerivedState() {
+        rebuildUnspents = true;
+        rebuildBloomFilter = true;
+        journalRebuild = true;
+    }
+
+    private void addUnspents(Transaction tx) {
+        List<TransactionOutput> mine = null;
+        List<TransactionOutput> watched = null;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (output.isMine(this)) {
+                if (mine == null)
+                    mine = new ArrayList<TransactionOutput>(1);
+                mine.add(output);
+                myUnspentsValue = myUnspentsValue.add(output.getValue());
+            }
+            if (!watchedScripts.isEmpty() && output.isWatched(this)) {
+                if (watched == null)
+                    watched = new ArrayList<TransactionOutput>(1);
+                watched.add(output);
+            }
+        }
+        if (mine != null)
+            myUnspents.put(tx, mine);
+        if (watched != null)
+            watchedUnspents.put(tx, watched);
+    }
+
     /** Returns the address used for change outputs. Note: this will probably go away in future. */
     public Address getChangeAddress() {
         lock.lock();
@@ -2078,9 +2600,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2090,6 +2611,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     throw new KeyCrypterException("Cannot add key because it's encrypted and this wallet is not.");
                 }
                 keychain.add(key);
+                indexKey(key);
+                markKeyAdded(key);
                 added++;
             }
             queueOnKeysAdded(keys);
@@ -2161,6 +2684,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 watchedScripts.add(script);
                 added++;
             }
+            if (added > 0) {
+                invalidateDerivedState();
+            }
 
             queueOnScriptsAdded(scripts);
             saveNow();
@@ -2180,20 +2706,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            return keysByPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            return keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2224,15 +2747,25 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            return keysByPubKey.get(ByteBuffer.wrap(pubkey));
         } finally {
             lock.unlock();
         }
     }
 
+    // Rebuilds the keychain indexes from scratch, after the keychain was replaced or deserialized.
+    private void indexKeys() {
+        keysByPubKeyHash = new HashMap<ByteBuffer, ECKey>();
+        keysByPubKey = new HashMap<ByteBuffer, ECKey>();
+        for (ECKey key : keychain)
+            indexKey(key);
+    }
+
+    private void indexKey(ECKey key) {
+        keysByPubKeyHash.put(ByteBuffer.wrap(key.getPubKeyHash()), key);
+        keysByPubKey.put(ByteBuffer.wrap(key.getPubKey()), key);
+    }
+
     /**
      * Returns true if this wallet contains a keypair with the given public key.
      */
@@ -2281,10 +2814,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (balanceType == BalanceType.AVAILABLE) {
                 return getBalance(coinSelector);
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                updateUnspents();
+                return myUnspentsValue;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2542,6 +3073,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        invalidateDerivedState();
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -2624,6 +3156,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                // It may be back within the event horizon.
+                tx.getConfidence().addDepthTracker(depthTracker);
             }
         }
     }
@@ -2812,6 +3346,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            indexKeys();
+            journalRebuild = true;
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
@@ -2853,6 +3389,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            indexKeys();
+            journalRebuild = true;
 
             // The wallet is now unencrypted.
             keyCrypter = null;
@@ -3037,23 +3575,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     @Override
     public int getBloomFilterElementCount() {
-        int size = getKeychainSize() * 2;
-        for (Transaction tx : getTransactions(false)) {
-            for (TransactionOutput out : tx.getOutputs()) {
-                try {
-                    if (isTxOutputBloomFilterable(out))
-                        size++;
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
-                }
-            }
+        lock.lock();
+        try {
+            updateBloomFilter();
+            // Scripts have an element for each long piece of data in them, and outputs one for their outpoint.
+            return bloomFilterElements.size();
+        } finally {
+            lock.unlock();
         }
-
-        // Some scripts may have more than one bloom element.  That should normally be okay,
-        // because under-counting just increases false-positive rate.
-        size += watchedScripts.size();
-
-        return size;
     }
 
     /**
@@ -3086,47 +3615,81 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Override
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
-        BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
-            }
+            updateBloomFilter();
+            return bloomFilterElements.getFilter(size, falsePositiveRate, nTweak);
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    // Brings bloomFilterElements up to date with the keys added and transactions that changed since the last call, or
+    // with the whole wallet if something changed that can't be handled that way, like a key being removed.
+    private void updateBloomFilter() {
+        checkState(lock.isHeldByCurrentThread());
+        if (rebuildBloomFilter) {
+            bloomFilterElements.clear();
+            unownedPubKeyTxns.clear();
+            for (ECKey key : keychain)
+                bloomFilterElements.put(key, ImmutableList.of(key.getPubKey(), key.getPubKeyHash()));
             for (Script script : watchedScripts) {
+                List<byte[]> elements = new ArrayList<byte[]>();
                 for (ScriptChunk chunk : script.getChunks()) {
                     // Only add long (at least 64 bit) data to the bloom filter.
                     // If any long constants become popular in scripts, we will need logic
                     // here to exclude them.
                     if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
+                        elements.add(chunk.data);
                     }
                 }
+                bloomFilterElements.put(script, elements);
             }
-        } finally {
-            lock.unlock();
+            for (Transaction tx : Iterables.concat(unspent.values(), spent.values(), pending.values()))
+                updateBloomFilterElements(tx);
+            newBloomFilterKeys.clear();
+            dirtyBloomFilterTxns.clear();
+            rebuildBloomFilter = false;
+            return;
         }
-        for (Transaction tx : getTransactions(false)) {
-            for (int i = 0; i < tx.getOutputs().size(); i++) {
-                TransactionOutput out = tx.getOutputs().get(i);
-                try {
-                    if (isTxOutputBloomFilterable(out)) {
-                        TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                        filter.insert(outPoint.bitcoinSerialize());
-                    }
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
+        for (ECKey key : newBloomFilterKeys) {
+            bloomFilterElements.put(key, ImmutableList.of(key.getPubKey(), key.getPubKeyHash()));
+            // Outputs we already have may pay to the new key.
+            dirtyBloomFilterTxns.addAll(unownedPubKeyTxns.get(ByteBuffer.wrap(key.getPubKey())));
+        }
+        newBloomFilterKeys.clear();
+        for (Transaction tx : dirtyBloomFilterTxns)
+            updateBloomFilterElements(tx);
+        dirtyBloomFilterTxns.clear();
+    }
+
+    // Sets the outpoints of the given transaction that belong in the filter, which is none if it is dead or no longer
+    // in the wallet, and keeps unownedPubKeyTxns in step with it.
+    private void updateBloomFilterElements(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        boolean live = unspent.containsKey(hash) || spent.containsKey(hash) || pending.containsKey(hash);
+        List<byte[]> elements = new ArrayList<byte[]>(1);
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            try {
+                Script script = outputs.get(i).getScriptPubKey();
+                boolean filterable = live && isWatchedScript(script);
+                if (script.isSentToRawPubKey()) {
+                    byte[] pubKey = script.getPubKey();
+                    boolean mine = isPubKeyMine(pubKey);
+                    filterable |= live && mine;
+                    if (live && !mine)
+                        unownedPubKeyTxns.put(ByteBuffer.wrap(pubKey), tx);
+                    else
+                        unownedPubKeyTxns.remove(ByteBuffer.wrap(pubKey), tx);
                 }
+                if (filterable)
+                    elements.add(new TransactionOutPoint(params, i, tx).bitcoinSerialize());
+            } catch (ScriptException e) {
+                // Just means we didn't understand the output of this transaction, so it can't be ours.
             }
         }
-
-        return filter;
-    }
-
-    private boolean isTxOutputBloomFilterable(TransactionOutput out) {
-        return (out.isMine(this) && out.getScriptPubKey().isSentToRawPubKey()) ||
-                out.isWatched(this);
+        bloomFilterElements.put(tx, elements);
     }
 
     /** Returns the {@link CoinSelector} object which controls which outputs can be spent by this wallet. */
@@ -3763,8 +4326,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // have already got stuck double spends in their wallet due to the Bloom-filtering block reordering
             // bug that was fixed in 0.10, thus, making a re-key transaction depend on those would cause it to
             // never confirm at all.
+            // Coins reserved for a send in progress are left for the next rotation.
             CoinSelector selector = new KeyTimeCoinSelector(this, keyRotationTimestamp, true);
-            CoinSelection toMove = selector.select(BigInteger.ZERO, calculateAllSpendCandidates(true));
+            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
+            removeReserved(candidates);
+            CoinSelection toMove = selector.select(BigInteger.ZERO, candidates);
             if (toMove.valueGathered.equals(BigInteger.ZERO)) return null;  // Nothing to do.
             rekeyTx = new Transaction(params);
             for (TransactionOutput output : toMove.gathered) {
@@ -25,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -583,18 +584,60 @@ public class Script {
         return false;
     }
     
-    private static BigInteger castToBigInteger(byte[] chunk) throws ScriptException {
+    // Script numbers for -1 to 16, which are by far the most common, so that pushing them needn't allocate.
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        for (int i = -1; i <= 16; i++)
+            SMALL_NUMBERS[i + 1] = Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(i), false));
+    }
+    private static final byte[] TRUE = new byte[] {1};
+    private static final byte[] FALSE = new byte[] {0};
+
+    /**
+     * Decodes a script number: little endian, with the top bit of the last byte as the sign. Numbers taken from the
+     * stack may be at most 4 bytes, so they always fit in a long, as does the result of any arithmetic on them.
+     */
+    static long castToLong(byte[] chunk) throws ScriptException {
         if (chunk.length > 4)
             throw new ScriptException("Script attempted to use an integer larger than 4 bytes");
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+        if (chunk.length == 0)
+            return 0;
+        long result = 0;
+        for (int i = 0; i < chunk.length; i++)
+            result |= (long) (chunk[i] & 0xFF) << (8 * i);
+        int signShift = 8 * chunk.length - 1;
+        if ((result >>> signShift) != 0)
+            return -(result & ~(1L << signShift));
+        return result;
     }
-    
+
+    /** Encodes a number the way castToLong expects, using as few bytes as possible. */
+    static byte[] encodeNumber(long value) {
+        if (value >= -1 && value <= 16)
+            return SMALL_NUMBERS[(int) value + 1];
+        boolean negative = value < 0;
+        long abs = negative ? -value : value;
+        int length = 0;
+        while (length < 8 && (abs >>> (8 * length)) != 0)
+            length++;
+        // If the top bit of the magnitude is in use an extra byte is needed to hold the sign.
+        boolean extraByte = ((abs >>> (8 * (length - 1))) & 0x80) != 0;
+        byte[] result = new byte[extraByte ? length + 1 : length];
+        for (int i = 0; i < length; i++)
+            result[i] = (byte) (abs >>> (8 * i));
+        if (extraByte)
+            result[length] = negative ? (byte) 0x80 : 0;
+        else if (negative)
+            result[length - 1] |= 0x80;
+        return result;
+    }
+
     private static void executeScript(Transaction txContainingThis, long index,
-                                      Script script, LinkedList<byte[]> stack) throws ScriptException {
+                                      Script script, ScriptStack stack) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
-        LinkedList<byte[]> altstack = new LinkedList<byte[]>();
+        ScriptStack altstack = new ScriptStack();
         LinkedList<Boolean> ifStack = new LinkedList<Boolean>();
         
         for (ScriptChunk chunk : script.chunks) {
@@ -607,7 +650,7 @@ public class Script {
                 if (!shouldExecute)
                     continue;
                 
-                stack.add(chunk.data);
+                stack.push(chunk.data);
             } else {
                 int opcode = 0xFF & chunk.data[0];
                 if (opcode > OP_16) {
@@ -633,7 +676,7 @@ public class Script {
                     }
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
+                    ifStack.add(castToBool(stack.pop()));
                     continue;
                 case OP_NOTIF:
                     if (!shouldExecute) {
@@ -642,7 +685,7 @@ public class Script {
                     }
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    ifStack.add(!castToBool(stack.pop()));
                     continue;
                 case OP_ELSE:
                     if (ifStack.isEmpty())
@@ -662,7 +705,7 @@ public class Script {
                 switch(opcode) {
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.push(encodeNumber(-1));
                     break;
                 case OP_1:
                 case OP_2:
@@ -680,14 +723,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.push(encodeNumber(decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException("OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -695,143 +738,100 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException("Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    stack.push(stack.remove(5));
+                    stack.push(stack.remove(5));
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    stack.swap(3, 1);
+                    stack.swap(2, 0);
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek(0)))
+                        stack.push(stack.peek(0));
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(encodeNumber(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek(0));
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    stack.remove(1);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast()).longValue();
+                    long val = castToLong(stack.pop());
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException("OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
-                    if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                    stack.push(opcode == OP_ROLL ? stack.remove((int) val) : stack.peek((int) val));
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    stack.push(stack.remove(2));
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    stack.swap(1, 0);
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(stack.peek(1));
                     break;
                 case OP_CAT:
                 case OP_SUBSTR:
@@ -841,7 +841,7 @@ public class Script {
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(encodeNumber(stack.peek(0).length));
                     break;
                 case OP_INVERT:
                 case OP_AND:
@@ -851,12 +851,12 @@ public class Script {
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {0});
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? TRUE : FALSE);
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException("OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -867,39 +867,33 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast());
+                    long numericOPnum = castToLong(stack.pop());
                                         
                     switch (opcode) {
                     case OP_1ADD:
-                        numericOPnum = numericOPnum.add(BigInteger.ONE);
+                        numericOPnum = numericOPnum + 1;
                         break;
                     case OP_1SUB:
-                        numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                        numericOPnum = numericOPnum - 1;
                         break;
                     case OP_NEGATE:
-                        numericOPnum = numericOPnum.negate();
+                        numericOPnum = -numericOPnum;
                         break;
                     case OP_ABS:
-                        if (numericOPnum.signum() < 0)
-                            numericOPnum = numericOPnum.negate();
+                        if (numericOPnum < 0)
+                            numericOPnum = -numericOPnum;
                         break;
                     case OP_NOT:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ONE;
-                        else
-                            numericOPnum = BigInteger.ZERO;
+                        numericOPnum = numericOPnum == 0 ? 1 : 0;
                         break;
                     case OP_0NOTEQUAL:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ZERO;
-                        else
-                            numericOPnum = BigInteger.ONE;
+                        numericOPnum = numericOPnum == 0 ? 0 : 1;
                         break;
                     default:
                         throw new AssertionError("Unreachable");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+                    stack.push(encodeNumber(numericOPnum));
                     break;
                 case OP_2MUL:
                 case OP_2DIV:
@@ -918,82 +912,52 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast());
+                    long numericOPnum2 = castToLong(stack.pop());
+                    long numericOPnum1 = castToLong(stack.pop());
 
-                    BigInteger numericOPresult;
+                    long numericOPresult;
                     switch (opcode) {
                     case OP_ADD:
-                        numericOPresult = numericOPnum1.add(numericOPnum2);
+                        numericOPresult = numericOPnum1 + numericOPnum2;
                         break;
                     case OP_SUB:
-                        numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                        numericOPresult = numericOPnum1 - numericOPnum2;
                         break;
                     case OP_BOOLAND:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_BOOLOR:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_NUMEQUAL:
-                        if (numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                         break;
                     case OP_NUMNOTEQUAL:
-                        if (!numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_MIN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                         break;
                     case OP_MAX:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                         break;
                     default:
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+                    stack.push(encodeNumber(numericOPresult));
                     break;
                 case OP_MUL:
                 case OP_DIV:
@@ -1004,38 +968,35 @@ public class Script {
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast());
+                    long OPNUMEQUALVERIFYnum2 = castToLong(stack.pop());
+                    long OPNUMEQUALVERIFYnum1 = castToLong(stack.pop());
                     
-                    if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                    if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                         throw new ScriptException("OP_NUMEQUALVERIFY failed");
                     break;
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast());
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
-                    else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                    long OPWITHINnum3 = castToLong(stack.pop());
+                    long OPWITHINnum2 = castToLong(stack.pop());
+                    long OPWITHINnum1 = castToLong(stack.pop());
+                    stack.push(encodeNumber(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? 1 : 0));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = stack.pop();
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
-                    stack.add(ripmemdHash);
+                    stack.push(ripmemdHash);
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1043,21 +1004,17 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new RuntimeException(e);  // Cannot happen.
-                    }
+                    stack.push(Utils.singleDigest(stack.pop()));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.push(Utils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    stack.add(Utils.doubleDigest(stack.pollLast()));
+                    stack.push(Utils.doubleDigest(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
                     lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
@@ -1095,13 +1052,25 @@ public class Script {
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                         int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
+
+        boolean sigValid = checkSig(txContainingThis, index, script, lastCodeSepLocation, pubKey, sigBytes);
 
+        if (opcode == OP_CHECKSIG)
+            stack.push(sigValid ? TRUE : FALSE);
+        else if (opcode == OP_CHECKSIGVERIFY)
+            if (!sigValid)
+                throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
+    }
+
+    // Returns whether sigBytes is a valid signature by pubKey of the input, as OP_CHECKSIG defines it.
+    private static boolean checkSig(Transaction txContainingThis, int index, Script script, int lastCodeSepLocation,
+                                    byte[] pubKey, byte[] sigBytes) {
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
 
@@ -1124,19 +1093,14 @@ public class Script {
             // Because I can't verify there aren't more, we use a very generic Exception catch
             log.warn(e1.toString());
         }
-
-        if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {0});
-        else if (opcode == OP_CHECKSIGVERIFY)
-            if (!sigValid)
-                throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
+        return sigValid;
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast()).intValue();
+        int pubKeyCount = (int) castToLong(stack.pop());
         if (pubKeyCount < 0 || pubKeyCount > 20)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1147,11 +1111,11 @@ public class Script {
 
         LinkedList<byte[]> pubkeys = new LinkedList<byte[]>();
         for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
+            byte[] pubKey = stack.pop();
             pubkeys.add(pubKey);
         }
 
-        int sigCount = castToBigInteger(stack.pollLast()).intValue();
+        int sigCount = (int) castToLong(stack.pop());
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
@@ -1159,10 +1123,28 @@ public class Script {
 
         LinkedList<byte[]> sigs = new LinkedList<byte[]>();
         for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
+            byte[] sig = stack.pop();
             sigs.add(sig);
         }
 
+        boolean valid = checkMultiSig(txContainingThis, index, script, lastCodeSepLocation, pubkeys, sigs);
+
+        // We uselessly remove a stack object to emulate a reference client bug.
+        stack.pop();
+
+        if (opcode == OP_CHECKMULTISIG) {
+            stack.push(valid ? TRUE : FALSE);
+        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
+            if (!valid)
+                throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
+        }
+        return opCount;
+    }
+
+    // Returns whether the signatures match the public keys as OP_CHECKMULTISIG defines it. Both lists are in the order
+    // they come off the stack, top first, and are consumed.
+    private static boolean checkMultiSig(Transaction txContainingThis, int index, Script script, int lastCodeSepLocation,
+                                         LinkedList<byte[]> pubkeys, LinkedList<byte[]> sigs) {
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
 
@@ -1196,17 +1178,135 @@ public class Script {
                 break;
             }
         }
+        return valid;
+    }
 
-        // We uselessly remove a stack object to emulate a reference client bug.
-        stack.pollLast();
+    ////////////////////// Template matched verification ////////////////////////////////
 
-        if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {0});
-        } else if (opcode == OP_CHECKMULTISIGVERIFY) {
-            if (!valid)
-                throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
+    // Scripts which only push data, no more than this many times, are candidates for template matching. Standard
+    // scriptSigs push at most 17 items, the limit just keeps the stack well clear of the interpreter's size limit.
+    private static final int MAX_TEMPLATE_PUSHES = 100;
+
+    /**
+     * Returns the data pushed by this script if it consists only of data pushes the interpreter would accept, or null
+     * if it does anything else.
+     */
+    @Nullable
+    private List<byte[]> getPushesForTemplate() {
+        if (chunks.size() > MAX_TEMPLATE_PUSHES)
+            return null;
+        List<byte[]> pushes = new ArrayList<byte[]>(chunks.size());
+        for (ScriptChunk chunk : chunks) {
+            if (chunk.isOpCode() || chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+                return null;
+            pushes.add(chunk.data);
         }
-        return opCount;
+        return pushes;
+    }
+
+    /**
+     * Returns whether the given scriptPubKey is pay to address, pay to pubkey or bare CHECKMULTISIG, and a stack of
+     * the given size holds enough items to run it, such that {@link #verifyTemplate} gives the same answer as the
+     * interpreter would.
+     */
+    private static boolean canVerifyTemplate(Script script, int stackSize) {
+        List<ScriptChunk> chunks = script.chunks;
+        if (script.isSentToAddress())
+            return stackSize >= 2;
+        if (script.isSentToRawPubKey())
+            return stackSize >= 1 && chunks.get(0).data.length <= MAX_SCRIPT_ELEMENT_SIZE;
+        if (chunks.size() < 4 || !chunks.get(chunks.size() - 1).equalsOpCode(OP_CHECKMULTISIG))
+            return false;
+        ScriptChunk first = chunks.get(0);
+        ScriptChunk last = chunks.get(chunks.size() - 2);
+        if (!first.isOpCode() || !last.isOpCode())
+            return false;
+        int sigCount = 0xFF & first.data[0];
+        int pubKeyCount = 0xFF & last.data[0];
+        if (sigCount < OP_1 || sigCount > OP_16 || pubKeyCount < OP_1 || pubKeyCount > OP_16)
+            return false;
+        sigCount = decodeFromOpN(sigCount);
+        pubKeyCount = decodeFromOpN(pubKeyCount);
+        if (chunks.size() != pubKeyCount + 3 || sigCount > pubKeyCount || stackSize < sigCount + 1)
+            return false;
+        for (int i = 1; i <= pubKeyCount; i++) {
+            ScriptChunk chunk = chunks.get(i);
+            if (chunk.isOpCode() || chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a script accepted by {@link #canVerifyTemplate} directly on the given stack, which has its top at the end,
+     * and returns whether it leaves true on top.
+     */
+    private static boolean verifyTemplate(Transaction txContainingThis, int index, Script script,
+                                          List<byte[]> stack) throws ScriptException {
+        List<ScriptChunk> chunks = script.chunks;
+        int top = stack.size() - 1;
+        if (script.isSentToAddress()) {
+            byte[] pubKey = stack.get(top);
+            if (!Arrays.equals(Utils.sha256hash160(pubKey), chunks.get(2).data))
+                throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+            return checkSig(txContainingThis, index, script, 0, pubKey, stack.get(top - 1));
+        }
+        if (script.isSentToRawPubKey())
+            return checkSig(txContainingThis, index, script, 0, chunks.get(0).data, stack.get(top));
+        int sigCount = decodeFromOpN(0xFF & chunks.get(0).data[0]);
+        int pubKeyCount = chunks.size() - 3;
+        LinkedList<byte[]> pubkeys = new LinkedList<byte[]>();
+        for (int i = pubKeyCount; i >= 1; i--)
+            pubkeys.add(chunks.get(i).data);
+        LinkedList<byte[]> sigs = new LinkedList<byte[]>();
+        for (int i = 0; i < sigCount; i++)
+            sigs.add(stack.get(top - i));
+        return checkMultiSig(txContainingThis, index, script, 0, pubkeys, sigs);
+    }
+
+    /**
+     * Verifies a spend of one of the standard scriptPubKey forms without running the interpreter, if the scriptSig
+     * only pushes data. Returns false if the spend isn't one this can handle, in which case nothing was checked.
+     * @throws ScriptException if the spend is invalid.
+     */
+    private static boolean verifyStandardSpend(Transaction txContainingThis, int index, Script scriptSig,
+                                               Script scriptPubKey, boolean enforceP2SH) throws ScriptException {
+        List<byte[]> stack = scriptSig.getPushesForTemplate();
+        if (stack == null)
+            return false;
+        if (scriptPubKey.isPayToScriptHash()) {
+            if (stack.isEmpty())
+                return false;
+            byte[] redeemScriptBytes = stack.get(stack.size() - 1);
+            byte[] scriptHash = Arrays.copyOfRange(scriptPubKey.getQuickProgram(), 2, 22);
+            if (!Arrays.equals(Utils.sha256hash160(redeemScriptBytes), scriptHash))
+                throw new ScriptException("Script resulted in a non-true stack");
+            if (!enforceP2SH)
+                return true;
+            Script redeemScript = new Script(redeemScriptBytes);
+            List<byte[]> redeemStack = stack.subList(0, stack.size() - 1);
+            if (canVerifyTemplate(redeemScript, redeemStack.size())) {
+                if (!verifyTemplate(txContainingThis, index, redeemScript, redeemStack))
+                    throw new ScriptException("P2SH script execution resulted in a non-true stack");
+                return true;
+            }
+            // Not a standard redeem script, so interpret it, but there's no need to run the scriptSig and
+            // scriptPubKey as well.
+            ScriptStack p2shStack = new ScriptStack();
+            for (byte[] item : redeemStack)
+                p2shStack.push(item);
+            executeScript(txContainingThis, index, redeemScript, p2shStack);
+            if (p2shStack.size() == 0)
+                throw new ScriptException("P2SH stack empty at end of script execution.");
+            if (!castToBool(p2shStack.pop()))
+                throw new ScriptException("P2SH script execution resulted in a non-true stack");
+            return true;
+        }
+        if (!canVerifyTemplate(scriptPubKey, stack.size()))
+            return false;
+        if (!verifyTemplate(txContainingThis, index, scriptPubKey, stack))
+            throw new ScriptException("Script resulted in a non-true stack");
+        return true;
     }
 
     /**
@@ -1228,19 +1328,23 @@ public class Script {
         }
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
+
+        // Nearly every spend is of a standard form which doesn't need the full interpreter.
+        if (verifyStandardSpend(txContainingThis, (int) scriptSigIndex, this, scriptPubKey, enforceP2SH))
+            return;
         
-        LinkedList<byte[]> stack = new LinkedList<byte[]>();
-        LinkedList<byte[]> p2shStack = null;
+        ScriptStack stack = new ScriptStack();
+        ScriptStack p2shStack = null;
         
         executeScript(txContainingThis, scriptSigIndex, this, stack);
         if (enforceP2SH)
-            p2shStack = new LinkedList<byte[]>(stack);
+            p2shStack = new ScriptStack(stack);
         executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
         
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
         
-        if (!castToBool(stack.pollLast()))
+        if (!castToBool(stack.pop()))
             throw new ScriptException("Script resulted in a non-true stack: " + stack);
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
@@ -1261,7 +1365,7 @@ public class Script {
                 if (chunk.isOpCode() && (chunk.data[0] & 0xff) > OP_16)
                     throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
             executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
@@ -1269,7 +1373,7 @@ public class Script {
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
             
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.pop()))
                 throw new ScriptException("P2SH script execution resulted in a non-true stack");
         }
     }
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import java.util.Arrays;
+
+import static com.google.bitcoin.core.Utils.bytesToHexString;
+
+/**
+ * <p>The main or alt stack of the script interpreter: an array of elements with the top of the stack at the end, so
+ * that pushing and popping never allocate once the array is big enough. Elements are shared, never copied, which is
+ * safe because the interpreter never modifies an element once it has been pushed.</p>
+ *
+ * <p>Depths passed to {@link #peek(int)} and {@link #remove(int)} count down from the top of the stack, which is
+ * depth zero.</p>
+ */
+class ScriptStack {
+    // Enough for all standard scripts, so in practice the array is never grown.
+    private static final int INITIAL_CAPACITY = 32;
+
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        elements = new byte[INITIAL_CAPACITY][];
+    }
+
+    /** Creates a stack holding the same elements as the given one. */
+    ScriptStack(ScriptStack other) {
+        elements = Arrays.copyOf(other.elements, Math.max(other.size, INITIAL_CAPACITY));
+        size = other.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    /** Removes and returns the top element. The caller must have checked the stack is not empty. */
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    /** Returns the element at the given depth without removing it. */
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /** Removes and returns the element at the given depth, moving the elements above it down by one. */
+    byte[] remove(int depth) {
+        int position = size - 1 - depth;
+        byte[] element = elements[position];
+        System.arraycopy(elements, position + 1, elements, position, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /** Swaps the elements at the two given depths. */
+    void swap(int depth1, int depth2) {
+        int position1 = size - 1 - depth1;
+        int position2 = size - 1 - depth2;
+        byte[] element = elements[position1];
+        elements[position1] = elements[position2];
+        elements[position2] = element;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(bytesToHexString(elements[i]));
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps the most recently used part of the unspent output set in memory, in
+ * front of another FullPrunedBlockStore such as {@link H2FullPrunedBlockStore} or
+ * {@link PostgresFullPrunedBlockStore}.</p>
+ *
+ * <p>Changes to the unspent output set are held in memory and only written to the underlying store when a
+ * batch write is committed and either the cache has grown past its memory budget or the flush interval has passed,
+ * or when {@link #flush()} is called. Most outputs are spent within a few blocks of being created, and an output
+ * that is created and spent between two flushes is never written to the underlying store at all. The verified chain
+ * head is written in the same database transaction as the unspent output changes, so the underlying store always
+ * holds an unspent output set that matches its verified chain head, and the cache is safe to lose in a crash.</p>
+ *
+ * <p>Blocks and undo blocks are passed straight through to the underlying store. The store must not be modified
+ * by anything else while it is wrapped.</p>
+ *
+ * <p>An output that is added when there is nothing cached for it is assumed not to be in the underlying store. This
+ * is what {@link FullPrunedBlockChain} guarantees by checking {@link #hasUnspentOutputs(Sha256Hash, int)} first,
+ * except for the two historic duplicate coinbase transactions which the reference client also never spends.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default interval after which a commit will flush even when the cache is under its memory budget. */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    // A rough estimate of the memory used by a cached output beyond its script: the map entry, the key, the entry
+    // itself, the StoredTransactionOutput and its hash and value.
+    private static final int ENTRY_OVERHEAD_BYTES = 200;
+
+    private static class CachedOutput {
+        // The output, which is kept around after it has been spent so it can be removed from the underlying store.
+        StoredTransactionOutput output;
+        // True if the output has been spent since the last flush, but not yet removed from the underlying store.
+        boolean spent;
+        // True if this entry has changes which have not yet been written to the underlying store.
+        boolean dirty;
+        // True if the underlying store has never seen this output, so it can simply be forgotten once spent.
+        boolean fresh;
+
+        CachedOutput(StoredTransactionOutput output, boolean dirty, boolean fresh) {
+            this.output = output;
+            this.dirty = dirty;
+            this.fresh = fresh;
+        }
+
+        CachedOutput(CachedOutput other) {
+            this.output = other.output;
+            this.spent = other.spent;
+            this.dirty = other.dirty;
+            this.fresh = other.fresh;
+        }
+    }
+
+    private final FullPrunedBlockStore store;
+    private final long maxCacheBytes;
+    private final long flushIntervalMillis;
+
+    // In access order, so that the least recently used outputs are evicted first.
+    private final LinkedHashMap<StoredTransactionOutPoint, CachedOutput> cache =
+            new LinkedHashMap<StoredTransactionOutPoint, CachedOutput>(16, 0.75f, true);
+    private long cacheBytes;
+
+    // The verified chain head matching the cached unspent output set, or null if it matches the underlying store.
+    @Nullable private StoredBlock verifiedChainHead;
+
+    // While a batch write is in progress, the state of each output before the batch first changed it (null if it
+    // was not cached), and the verified chain head before the batch started.
+    @Nullable private Map<StoredTransactionOutPoint, CachedOutput> undoJournal;
+    @Nullable private StoredBlock undoVerifiedChainHead;
+
+    private long lastFlushTime;
+    private long hits, misses, flushes;
+
+    /**
+     * Wraps the given store, flushing at most every {@link #DEFAULT_FLUSH_INTERVAL_MILLIS} unless the cache grows
+     * past the given number of bytes.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes) {
+        this(store, maxCacheBytes, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Wraps the given store.
+     * @param maxCacheBytes The approximate amount of memory the cached outputs may use before they are flushed and
+     *                      the least recently used ones are evicted.
+     * @param flushIntervalMillis How long changes may be kept in memory before the next commit flushes them.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes, long flushIntervalMillis) {
+        checkArgument(maxCacheBytes > 0);
+        checkArgument(flushIntervalMillis >= 0);
+        this.store = checkNotNull(store);
+        this.maxCacheBytes = maxCacheBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.lastFlushTime = Utils.currentTimeMillis();
+    }
+
+    /** Returns the store this cache writes through to. */
+    public FullPrunedBlockStore getUnderlyingStore() {
+        return store;
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        // The underlying store only moves its chain head up to the verified chain head when that is flushed.
+        StoredBlock chainHead = store.getChainHead();
+        if (verifiedChainHead != null && verifiedChainHead.getHeight() > chainHead.getHeight())
+            return verifiedChainHead;
+        return chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead != null ? verifiedChainHead : store.getVerifiedChainHead();
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        verifiedChainHead = checkNotNull(chainHead);
+        if (undoJournal == null)
+            maybeFlush();
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        CachedOutput cached = cache.get(key);
+        if (cached != null) {
+            hits++;
+            return cached.spent ? null : cached.output;
+        }
+        misses++;
+        StoredTransactionOutput output = store.getTransactionOutput(hash, index);
+        if (output != null)
+            putEntry(key, new CachedOutput(output, false, false));
+        return output;
+    }
+
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        StoredTransactionOutput[] outputs = new StoredTransactionOutput[outpoints.size()];
+        List<TransactionOutPoint> missing = new ArrayList<TransactionOutPoint>();
+        List<Integer> missingPositions = new ArrayList<Integer>();
+        for (int i = 0; i < outpoints.size(); i++) {
+            TransactionOutPoint outpoint = outpoints.get(i);
+            CachedOutput cached = cache.get(new StoredTransactionOutPoint(outpoint.getHash(), outpoint.getIndex()));
+            if (cached != null) {
+                hits++;
+                outputs[i] = cached.spent ? null : cached.output;
+            } else {
+                misses++;
+                missing.add(outpoint);
+                missingPositions.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<StoredTransactionOutput> loaded = store.getTransactionOutputs(missing);
+            for (int i = 0; i < loaded.size(); i++) {
+                StoredTransactionOutput output = loaded.get(i);
+                if (output == null)
+                    continue;
+                outputs[missingPositions.get(i)] = output;
+                putEntry(new StoredTransactionOutPoint(output), new CachedOutput(output, false, false));
+            }
+        }
+        return Arrays.asList(outputs);
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        add(out);
+        if (undoJournal == null)
+            maybeFlush();
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        remove(out);
+        if (undoJournal == null)
+            maybeFlush();
+    }
+
+    public synchronized void applyUnspentTransactionOutputChanges(Collection<StoredTransactionOutput> created,
+                                                                  Collection<StoredTransactionOutput> spent)
+            throws BlockStoreException {
+        for (StoredTransactionOutput out : created)
+            add(out);
+        for (StoredTransactionOutput out : spent)
+            remove(out);
+        if (undoJournal == null)
+            maybeFlush();
+    }
+
+    private void add(StoredTransactionOutput out) {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        CachedOutput cached = cache.get(key);
+        if (cached != null && !cached.spent)
+            return;  // Already unspent, the same as the underlying stores do with duplicates.
+        journal(key, cached);
+        // If the spent output is still in the underlying store, it will be replaced there when this is flushed.
+        putEntry(key, new CachedOutput(out, true, cached == null));
+    }
+
+    private void remove(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        CachedOutput cached = cache.get(key);
+        if (cached == null) {
+            misses++;
+            StoredTransactionOutput stored = store.getTransactionOutput(out.getHash(), out.getIndex());
+            if (stored != null) {
+                cached = new CachedOutput(stored, false, false);
+                putEntry(key, cached);
+            }
+        } else {
+            hits++;
+        }
+        if (cached == null || cached.spent)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        journal(key, cached);
+        if (cached.fresh) {
+            removeEntry(key);
+        } else {
+            CachedOutput spent = new CachedOutput(cached);
+            spent.spent = true;
+            spent.dirty = true;
+            putEntry(key, spent);
+        }
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean anySpent = false;
+        for (int i = 0; i < numOutputs; i++) {
+            CachedOutput cached = cache.get(new StoredTransactionOutPoint(hash, i));
+            if (cached == null)
+                continue;
+            if (!cached.spent)
+                return true;
+            anySpent = true;
+        }
+        if (!anySpent)
+            return store.hasUnspentOutputs(hash, numOutputs);
+        // Some outputs have been spent in the cache but not yet in the underlying store, so it can't answer for
+        // the whole transaction.
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        if (undoJournal != null)
+            return;
+        undoJournal = new HashMap<StoredTransactionOutPoint, CachedOutput>();
+        undoVerifiedChainHead = verifiedChainHead;
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        boolean flush = shouldFlush();
+        try {
+            if (flush)
+                writeChanges();
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            // None of the batch reached the underlying store, so the cache must forget it too. The journal is only
+            // dropped once the underlying store has committed, so it is still here to roll back with.
+            try {
+                store.abortDatabaseBatchWrite();
+            } catch (BlockStoreException e2) {
+                log.error("Failed to abort batch write after commit failed", e2);
+            }
+            rollBack();
+            throw e;
+        }
+        undoJournal = null;
+        undoVerifiedChainHead = null;
+        if (flush)
+            changesWritten();
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        store.abortDatabaseBatchWrite();
+        rollBack();
+    }
+
+    // Puts the cache back the way it was before the current batch write started, if there is one.
+    private void rollBack() {
+        if (undoJournal == null)
+            return;
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : undoJournal.entrySet()) {
+            removeEntry(entry.getKey());
+            if (entry.getValue() != null)
+                putEntry(entry.getKey(), entry.getValue());
+        }
+        verifiedChainHead = undoVerifiedChainHead;
+        undoJournal = null;
+        undoVerifiedChainHead = null;
+    }
+
+    /**
+     * Writes all changes held in memory to the underlying store. Must not be called during a batch write.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        checkState(undoJournal == null, "Cannot flush during a batch write");
+        store.beginDatabaseBatchWrite();
+        try {
+            writeChanges();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        store.commitDatabaseBatchWrite();
+        changesWritten();
+    }
+
+    /**
+     * Flushes any changes held in memory and closes the underlying store.
+     */
+    public synchronized void close() throws BlockStoreException {
+        if (undoJournal != null)
+            abortDatabaseBatchWrite();
+        flush();
+        cache.clear();
+        cacheBytes = 0;
+        store.close();
+    }
+
+    /** Returns how many output lookups have been answered from memory. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns how many output lookups had to go to the underlying store. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns how many times changes have been written to the underlying store. */
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+
+    /** Returns the number of outputs held in memory, including spent ones which have not been flushed yet. */
+    public synchronized int getCachedOutputCount() {
+        return cache.size();
+    }
+
+    /** Returns an estimate of the memory used by the cached outputs. */
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    private void maybeFlush() throws BlockStoreException {
+        if (shouldFlush())
+            flush();
+    }
+
+    private boolean shouldFlush() {
+        return cacheBytes > maxCacheBytes || Utils.currentTimeMillis() - lastFlushTime >= flushIntervalMillis;
+    }
+
+    private void writeChanges() throws BlockStoreException {
+        // Spent outputs are removed first, so that an output which was spent and then created again by a duplicate
+        // transaction replaces the old one instead of being ignored as a duplicate.
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        List<StoredTransactionOutput> removed = new ArrayList<StoredTransactionOutput>();
+        for (CachedOutput cached : cache.values()) {
+            if (!cached.dirty)
+                continue;
+            if (!cached.fresh)
+                removed.add(cached.output);
+            if (!cached.spent)
+                created.add(cached.output);
+        }
+        List<StoredTransactionOutput> none = Collections.emptyList();
+        if (!removed.isEmpty())
+            store.applyUnspentTransactionOutputChanges(none, removed);
+        if (!created.isEmpty())
+            store.applyUnspentTransactionOutputChanges(created, none);
+        if (verifiedChainHead != null)
+            store.setVerifiedChainHead(verifiedChainHead);
+        log.debug("Flushed {} created and {} spent outputs", created.size(), removed.size());
+    }
+
+    // Called once the changes have been committed to the underlying store, to mark everything in the cache as clean
+    // and evict the least recently used outputs until it is back under a comfortable fraction of the budget.
+    private void changesWritten() {
+        Iterator<CachedOutput> it = cache.values().iterator();
+        while (it.hasNext()) {
+            CachedOutput cached = it.next();
+            if (cached.spent) {
+                cacheBytes -= sizeOf(cached);
+                it.remove();
+            } else {
+                cached.dirty = false;
+                cached.fresh = false;
+            }
+        }
+        long target = maxCacheBytes / 4 * 3;
+        it = cache.values().iterator();
+        while (cacheBytes > target && it.hasNext()) {
+            cacheBytes -= sizeOf(it.next());
+            it.remove();
+        }
+        verifiedChainHead = null;
+        lastFlushTime = Utils.currentTimeMillis();
+        flushes++;
+    }
+
+    private void journal(StoredTransactionOutPoint key, @Nullable CachedOutput previous) {
+        if (undoJournal != null && !undoJournal.containsKey(key))
+            undoJournal.put(key, previous == null ? null : new CachedOutput(previous));
+    }
+
+    private void putEntry(StoredTransactionOutPoint key, CachedOutput value) {
+        CachedOutput previous = cache.put(key, value);
+        if (previous != null)
+            cacheBytes -= sizeOf(previous);
+        cacheBytes += sizeOf(value);
+    }
+
+    private void removeEntry(StoredTransactionOutPoint key) {
+        CachedOutput previous = cache.remove(key);
+        if (previous != null)
+            cacheBytes -= sizeOf(previous);
+    }
+
+    private static long sizeOf(CachedOutput cached) {
+        return ENTRY_OVERHEAD_BYTES + cached.output.getScriptBytes().length;
+    }
+}
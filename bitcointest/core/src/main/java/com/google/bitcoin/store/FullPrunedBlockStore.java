@@ -20,6 +20,10 @@ import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.StoredTransactionOutput;
 import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.bitcoin.core.TransactionOutPoint;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -77,6 +81,14 @@ public interface FullPrunedBlockStore extends BlockStore {
      * Gets a {@link StoredTransactionOutput} with the given hash and index, or null if none is found
      */
     StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
+
+    /**
+     * Gets the {@link StoredTransactionOutput}s for many outpoints in one call, which lets stores backed by a database
+     * fetch them in far fewer round trips than calling {@link #getTransactionOutput(Sha256Hash, long)} for each one.
+     * The returned list has one entry for each of the given outpoints, in the same order, which is null where that
+     * output is not in the list of unspent TransactionOutputs.
+     */
+    List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException;
     
     /**
      * Adds a {@link StoredTransactionOutput} to the list of unspent TransactionOutputs
@@ -89,6 +101,16 @@ public interface FullPrunedBlockStore extends BlockStore {
      * @throws BlockStoreException if there is an underlying storage issue, or out was not in the list.
      */
     void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException;
+
+    /**
+     * Applies a batch of changes to the list of unspent TransactionOutputs in one call. The result must be the same as
+     * calling {@link #addUnspentTransactionOutput(StoredTransactionOutput)} for each of created followed by
+     * {@link #removeUnspentTransactionOutput(StoredTransactionOutput)} for each of spent, so an output which appears
+     * in both ends up not being in the list.
+     * @throws BlockStoreException if there is an underlying storage issue, or a spent output was not in the list.
+     */
+    void applyUnspentTransactionOutputChanges(Collection<StoredTransactionOutput> created,
+                                              Collection<StoredTransactionOutput> spent) throws BlockStoreException;
     
     /**
      * True if this store has any unspent outputs from a transaction with a hash equal to the first parameter
@@ -27,6 +27,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -52,6 +53,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private String connectionURL;
     private int fullStoreDepth;
 
+    private final OpenOutputsTable openOutputs = new OpenOutputsTable("H2FullPrunedBlockStore");
+
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
         + "name VARCHAR(32) NOT NULL CONSTRAINT settings_pk PRIMARY KEY,"
@@ -706,6 +709,17 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException {
+        maybeConnect();
+        return openOutputs.getTransactionOutputs(conn.get(), outpoints);
+    }
+
+    public void applyUnspentTransactionOutputChanges(Collection<StoredTransactionOutput> created,
+                                                     Collection<StoredTransactionOutput> spent) throws BlockStoreException {
+        maybeConnect();
+        openOutputs.applyUnspentTransactionOutputChanges(conn.get(), OpenOutputsTable.BASIC_COLUMNS, created, spent);
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
@@ -0,0 +1,1124 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A full pruned block store that needs no external database. Every change is appended as a record to the end of
+ * a log split into segment files in a directory, and nothing is ever modified in place, so a spent output costs a
+ * small append instead of a random delete.</p>
+ *
+ * <p>The locations of the live records are kept in memory: the unspent outputs in an {@link OutPointIndex} outside
+ * of the Java heap, and the headers and undo blocks in ordinary maps. They are rebuilt by replaying the log when the
+ * store is opened. Segments which are mostly made up of records that have since been replaced or spent are compacted
+ * in the background by copying their remaining live records to the end of the log and deleting them.</p>
+ *
+ * <p>Changes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are followed by
+ * a commit record with a checksum, and only whole batches are replayed, so the store is always opened in the state
+ * of some committed batch. Segments are only forced to disk when they are filled up and when the store is closed,
+ * which means a crash may lose the most recently committed batches but will never leave a half written one.</p>
+ *
+ * <p>Like the other stores, changes made in a batch are visible to every thread before they are committed.</p>
+ */
+public class LogStructuredFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogStructuredFullPrunedBlockStore.class);
+
+    /** The size at which the segment being written is closed and a new one started. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final String SEGMENT_MAGIC = "UTXL";
+
+    // Segments whose live records take up less than this fraction of them are compacted.
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+    // File format:
+    //   4 header bytes = "UTXL"
+    //   4 bytes segment number
+    //
+    // Then records, each one made up of
+    //   1 byte record type
+    //   4 bytes length of the payload
+    //   the payload
+    //
+    // Record payloads:
+    //   HEADER                32 byte block hash, 1 byte was undoable flag, compact stored block
+    //   UNDO_BLOCK            32 byte block hash, 4 byte height, 1 byte flag set if the block is stored as
+    //                         transactions instead of output changes, then the transactions or output changes
+    //   REMOVE_UNDO_BLOCK     32 byte block hash, 4 byte segment number of the undo block being removed
+    //   OUTPUT                the output as serialized by StoredTransactionOutput
+    //   SPEND                 32 byte transaction hash, 4 byte index, 4 byte segment number of the output spent
+    //   CHAIN_HEAD            compact stored block
+    //   VERIFIED_CHAIN_HEAD   compact stored block
+    //   COMMIT                4 byte CRC32 of all records since the previous commit
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final byte HEADER = 1;
+    private static final byte UNDO_BLOCK = 2;
+    private static final byte REMOVE_UNDO_BLOCK = 3;
+    private static final byte OUTPUT = 4;
+    private static final byte SPEND = 5;
+    private static final byte CHAIN_HEAD = 6;
+    private static final byte VERIFIED_CHAIN_HEAD = 7;
+    private static final byte COMMIT = 8;
+
+    /** Where a record is in the log. */
+    static final class Location {
+        final int segment;
+        final int offset;
+        final int size;
+
+        Location(int segment, int offset, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Location)) return false;
+            Location other = (Location) o;
+            return segment == other.segment && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return segment * 31 + offset;
+        }
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final FileChannel channel;
+        // Bytes written, including any still sitting in the write buffer.
+        int length;
+        // Bytes taken up by records which are still referenced. Spends and other removals are not counted, as they
+        // are only needed until the segment holding what they removed is deleted.
+        long liveBytes;
+
+        Segment(int number, File file) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+        }
+    }
+
+    private static class UndoBlockEntry {
+        final Location location;
+        final int height;
+
+        UndoBlockEntry(Location location, int height) {
+            this.location = location;
+            this.height = height;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final int segmentSize;
+
+    private final ReentrantLock lock = Threading.lock("LogStructuredFullPrunedBlockStore");
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment activeSegment;
+    // Records at the end of the active segment waiting to be written, starting at writeBufferOffset.
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private int writeBufferOffset;
+    private final CRC32 crc = new CRC32();
+
+    private final OutPointIndex outputs = new OutPointIndex();
+    private final Map<Sha256Hash, Location> headers = new HashMap<Sha256Hash, Location>();
+    private final Map<Sha256Hash, UndoBlockEntry> undoBlocks = new HashMap<Sha256Hash, UndoBlockEntry>();
+    private final TreeMap<Integer, Set<Sha256Hash>> undoBlocksByHeight = new TreeMap<Integer, Set<Sha256Hash>>();
+    private StoredBlock chainHead;
+    private Location chainHeadLocation;
+    private StoredBlock verifiedChainHead;
+    private Location verifiedChainHeadLocation;
+
+    // While a batch write is in progress, where it started and how to put everything back if it is aborted. Each
+    // journal holds the value from before the batch first changed the key, which may be null.
+    private boolean inBatch;
+    private int batchStart;
+    private final Map<StoredTransactionOutPoint, Location> outputJournal = new HashMap<StoredTransactionOutPoint, Location>();
+    private final Map<Sha256Hash, Location> headerJournal = new HashMap<Sha256Hash, Location>();
+    private final Map<Sha256Hash, UndoBlockEntry> undoBlockJournal = new HashMap<Sha256Hash, UndoBlockEntry>();
+    private StoredBlock journalChainHead, journalVerifiedChainHead;
+    private Location journalChainHeadLocation, journalVerifiedChainHeadLocation;
+
+    private final ThreadPoolExecutor compactor;
+    private boolean compactionScheduled;
+
+    // Used to stop other applications/processes from opening the store.
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+    private boolean closed;
+
+    /**
+     * Opens the store in the given directory, creating it if it doesn't exist.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory the segment files are kept in
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if it doesn't exist.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory the segment files are kept in
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @param segmentSize The size at which a segment file is closed and a new one started
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth,
+                                             int segmentSize) throws BlockStoreException {
+        checkArgument(segmentSize > SEGMENT_HEADER_SIZE);
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentSize = segmentSize;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Block store compaction thread")
+                .setPriority(Thread.MIN_PRIORITY);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        this.compactor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                builder.build());
+        this.compactor.allowCoreThreadTimeOut(true);
+        lock.lock();
+        try {
+            open();
+        } catch (IOException e) {
+            closeFiles();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeFiles();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open() throws IOException, BlockStoreException {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+        fileLock = lockFile.getChannel().tryLock();
+        if (fileLock == null)
+            throw new BlockStoreException("Store directory is already locked by another process");
+
+        TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+        File[] listing = directory.listFiles();
+        if (listing != null) {
+            for (File file : listing) {
+                Matcher matcher = SEGMENT_FILE_NAME.matcher(file.getName());
+                if (matcher.matches())
+                    files.put(Integer.parseInt(matcher.group(1)), file);
+            }
+        }
+        for (Map.Entry<Integer, File> entry : files.entrySet()) {
+            Segment segment = new Segment(entry.getKey(), entry.getValue());
+            segments.put(segment.number, segment);
+            byte[] header = new byte[SEGMENT_HEADER_SIZE];
+            segment.randomAccessFile.readFully(header);
+            ByteBuffer buf = ByteBuffer.wrap(header);
+            byte[] magic = new byte[4];
+            buf.get(magic);
+            if (!new String(magic, "US-ASCII").equals(SEGMENT_MAGIC) || buf.getInt() != segment.number)
+                throw new BlockStoreException("Not a segment of this store: " + segment.file);
+        }
+
+        if (segments.isEmpty()) {
+            log.info("Creating new block store in {}", directory);
+            activeSegment = createSegment(1);
+            batchStart = writeBufferOffset = activeSegment.length;
+            // Insert the genesis block.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                    params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                    genesisTransactions);
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+        } else {
+            long start = System.currentTimeMillis();
+            for (Segment segment : segments.values())
+                replay(segment, segment == segments.lastEntry().getValue());
+            activeSegment = segments.lastEntry().getValue();
+            batchStart = writeBufferOffset = activeSegment.length;
+            if (chainHead == null || verifiedChainHead == null)
+                throw new BlockStoreException("Corrupted block store: no chain head found in " + directory);
+            log.info("Opened block store with {} unspent outputs and {} headers in {} segments in {}ms",
+                    outputs.size(), headers.size(), segments.size(), System.currentTimeMillis() - start);
+        }
+    }
+
+    private Segment createSegment(int number) throws IOException {
+        Segment segment = new Segment(number, new File(directory, String.format("segment-%08d.dat", number)));
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.put(SEGMENT_MAGIC.getBytes("US-ASCII"));
+        header.putInt(number);
+        header.flip();
+        segment.randomAccessFile.setLength(0);
+        writeFully(segment.channel, header, 0);
+        segment.length = SEGMENT_HEADER_SIZE;
+        segments.put(number, segment);
+        return segment;
+    }
+
+    // Reads the committed batches of a segment and applies them. Anything after the last good commit record of the
+    // last segment is a batch that was being written when the store was last shut down, and is thrown away.
+    private void replay(Segment segment, boolean last) throws IOException, BlockStoreException {
+        long fileLength = segment.channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segment.file), 1024 * 1024));
+        try {
+            in.skipBytes(SEGMENT_HEADER_SIZE);
+            int offset = SEGMENT_HEADER_SIZE;
+            int committedLength = offset;
+            List<Object[]> pending = new ArrayList<Object[]>();
+            CRC32 checksum = new CRC32();
+            while (offset + RECORD_HEADER_SIZE <= fileLength) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || offset + RECORD_HEADER_SIZE + length > fileLength)
+                    break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                Location location = new Location(segment.number, offset, RECORD_HEADER_SIZE + length);
+                offset += location.size;
+                if (type == COMMIT) {
+                    if (length != 4 || ByteBuffer.wrap(payload).getInt() != (int) checksum.getValue())
+                        break;
+                    for (Object[] record : pending)
+                        apply((Byte) record[0], (byte[]) record[1], (Location) record[2]);
+                    pending.clear();
+                    checksum.reset();
+                    committedLength = offset;
+                } else {
+                    updateChecksum(checksum, type, payload);
+                    pending.add(new Object[] {type, payload, location});
+                }
+            }
+            segment.length = committedLength;
+        } finally {
+            in.close();
+        }
+        if (segment.length != fileLength) {
+            if (!last)
+                throw new BlockStoreException("Corrupted block store: incomplete batch in " + segment.file);
+            log.warn("Discarding {} bytes of uncommitted data at the end of {}", fileLength - segment.length,
+                    segment.file);
+            segment.channel.truncate(segment.length);
+        }
+    }
+
+    // Records a change to the in-memory state, either when it is first written or when it is replayed or copied.
+    private void apply(byte type, byte[] payload, Location location) throws BlockStoreException {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        switch (type) {
+            case HEADER:
+                setHeader(readHash(buf), location);
+                break;
+            case UNDO_BLOCK: {
+                Sha256Hash hash = readHash(buf);
+                setUndoBlock(hash, new UndoBlockEntry(location, buf.getInt()));
+                break;
+            }
+            case REMOVE_UNDO_BLOCK: {
+                Sha256Hash hash = readHash(buf);
+                UndoBlockEntry entry = undoBlocks.get(hash);
+                if (entry != null && entry.location.segment == buf.getInt())
+                    setUndoBlock(hash, null);
+                break;
+            }
+            case OUTPUT: {
+                // The hash and index follow the value and script.
+                buf.position(8 + 4 + (int) Utils.readUint32(payload, 8));
+                Sha256Hash hash = readHash(buf);
+                setOutput(hash, Utils.readUint32(payload, buf.position()), location);
+                break;
+            }
+            case SPEND: {
+                Sha256Hash hash = readHash(buf);
+                long index = buf.getInt() & 0xFFFFFFFFL;
+                Location current = outputs.get(hash, index);
+                if (current != null && current.segment == buf.getInt())
+                    setOutput(hash, index, null);
+                break;
+            }
+            case CHAIN_HEAD:
+                setChainHead(deserializeBlock(buf), location);
+                break;
+            case VERIFIED_CHAIN_HEAD:
+                setVerifiedChainHead(deserializeBlock(buf), location);
+                break;
+            default:
+                throw new BlockStoreException("Corrupted block store: unknown record type " + type);
+        }
+    }
+
+    private void setOutput(Sha256Hash hash, long index, @Nullable Location location) {
+        Location previous = outputs.get(hash, index);
+        if (inBatch) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            if (!outputJournal.containsKey(key))
+                outputJournal.put(key, previous);
+        }
+        if (previous != null)
+            released(previous);
+        if (location != null) {
+            outputs.put(hash, index, location);
+            referenced(location);
+        } else if (previous != null) {
+            outputs.remove(hash, index);
+        }
+    }
+
+    private void setHeader(Sha256Hash hash, @Nullable Location location) {
+        Location previous = location == null ? headers.remove(hash) : headers.put(hash, location);
+        if (inBatch && !headerJournal.containsKey(hash))
+            headerJournal.put(hash, previous);
+        if (previous != null)
+            released(previous);
+        if (location != null)
+            referenced(location);
+    }
+
+    private void setUndoBlock(Sha256Hash hash, @Nullable UndoBlockEntry entry) {
+        UndoBlockEntry previous = entry == null ? undoBlocks.remove(hash) : undoBlocks.put(hash, entry);
+        if (inBatch && !undoBlockJournal.containsKey(hash))
+            undoBlockJournal.put(hash, previous);
+        if (previous != null) {
+            released(previous.location);
+            Set<Sha256Hash> atHeight = undoBlocksByHeight.get(previous.height);
+            atHeight.remove(hash);
+            if (atHeight.isEmpty())
+                undoBlocksByHeight.remove(previous.height);
+        }
+        if (entry != null) {
+            referenced(entry.location);
+            Set<Sha256Hash> atHeight = undoBlocksByHeight.get(entry.height);
+            if (atHeight == null) {
+                atHeight = new HashSet<Sha256Hash>();
+                undoBlocksByHeight.put(entry.height, atHeight);
+            }
+            atHeight.add(hash);
+        }
+    }
+
+    private void setChainHead(StoredBlock block, Location location) {
+        if (chainHeadLocation != null)
+            released(chainHeadLocation);
+        chainHead = block;
+        chainHeadLocation = location;
+        referenced(location);
+    }
+
+    private void setVerifiedChainHead(StoredBlock block, Location location) {
+        if (verifiedChainHeadLocation != null)
+            released(verifiedChainHeadLocation);
+        verifiedChainHead = block;
+        verifiedChainHeadLocation = location;
+        referenced(location);
+    }
+
+    private void referenced(Location location) {
+        segments.get(location.segment).liveBytes += location.size;
+    }
+
+    private void released(Location location) {
+        segments.get(location.segment).liveBytes -= location.size;
+    }
+
+    // Appends a record to the end of the active segment, returning where it was written.
+    private Location append(byte type, byte[] payload) throws BlockStoreException {
+        int size = RECORD_HEADER_SIZE + payload.length;
+        Location location = new Location(activeSegment.number, activeSegment.length, size);
+        try {
+            if (writeBuffer.remaining() < size)
+                flushWriteBuffer();
+            if (size > writeBuffer.capacity()) {
+                ByteBuffer record = ByteBuffer.allocate(size);
+                record.put(type).putInt(payload.length).put(payload);
+                record.flip();
+                writeFully(activeSegment.channel, record, location.offset);
+                writeBufferOffset = location.offset + size;
+            } else {
+                writeBuffer.put(type).putInt(payload.length).put(payload);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        updateChecksum(crc, type, payload);
+        activeSegment.length += size;
+        return location;
+    }
+
+    private void appendAndApply(byte type, byte[] payload) throws BlockStoreException {
+        apply(type, payload, append(type, payload));
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        int length = writeBuffer.remaining();
+        writeFully(activeSegment.channel, writeBuffer, writeBufferOffset);
+        writeBufferOffset += length;
+        writeBuffer.clear();
+    }
+
+    // Reads the payload of the record at the given location.
+    private ByteBuffer read(Location location) throws BlockStoreException {
+        Segment segment = segments.get(location.segment);
+        if (segment == null)
+            throw new BlockStoreException("Corrupted block store: missing segment " + location.segment);
+        ByteBuffer buf = ByteBuffer.allocate(location.size);
+        if (segment == activeSegment && location.offset >= writeBufferOffset) {
+            buf.put(writeBuffer.array(), location.offset - writeBufferOffset, location.size);
+        } else {
+            try {
+                while (buf.hasRemaining()) {
+                    if (segment.channel.read(buf, location.offset + buf.position()) < 0)
+                        throw new BlockStoreException("Corrupted block store: record beyond end of " + segment.file);
+                }
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+        buf.flip();
+        buf.position(RECORD_HEADER_SIZE);
+        return buf;
+    }
+
+    // Ends the current batch with a commit record. Called after every change made outside of a batch.
+    private void commit() throws BlockStoreException {
+        if (activeSegment.length == batchStart)
+            return;  // Nothing to commit.
+        try {
+            byte[] checksum = ByteBuffer.allocate(4).putInt((int) crc.getValue()).array();
+            append(COMMIT, checksum);
+            flushWriteBuffer();
+            crc.reset();
+            batchStart = activeSegment.length;
+            if (activeSegment.length >= segmentSize) {
+                activeSegment.channel.force(false);
+                activeSegment = createSegment(activeSegment.number + 1);
+                batchStart = writeBufferOffset = activeSegment.length;
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        maybeScheduleCompaction();
+    }
+
+    private void maybeCommit() throws BlockStoreException {
+        if (!inBatch)
+            commit();
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+    }
+
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            appendAndApply(HEADER, serializeHeader(storedBlock, false));
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream();
+        try {
+            bos.write(hash.getBytes());
+            bos.write(ByteBuffer.allocate(4).putInt(storedBlock.getHeight()).array());
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(1);
+                Utils.uint32ToByteStreamLE(undoableBlock.getTransactions().size(), bos);
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        byte[] payload = bos.toByteArray();
+        lock.lock();
+        try {
+            checkOpen();
+            appendAndApply(UNDO_BLOCK, payload);
+            appendAndApply(HEADER, serializeHeader(storedBlock, true));
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Location location = headers.get(hash);
+            if (location == null)
+                return null;
+            ByteBuffer buf = read(location);
+            buf.position(buf.position() + 32);
+            boolean wasUndoable = buf.get() != 0;
+            if (wasUndoableOnly && !wasUndoable)
+                return null;
+            return deserializeBlock(buf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            UndoBlockEntry entry = undoBlocks.get(hash);
+            if (entry == null)
+                return null;
+            ByteBuffer buf = read(entry.location);
+            byte[] data = buf.array();
+            int offset = buf.position() + 32 + 4;
+            try {
+                if (data[offset++] == 0) {
+                    return new StoredUndoableBlock(hash, new TransactionOutputChanges(
+                            new ByteArrayInputStream(data, offset, data.length - offset)));
+                }
+                long numTxn = Utils.readUint32(data, offset);
+                offset += 4;
+                List<Transaction> transactionList = new LinkedList<Transaction>();
+                for (int i = 0; i < numTxn; i++) {
+                    Transaction tx = new Transaction(params, data, offset);
+                    transactionList.add(tx);
+                    offset += tx.getMessageSize();
+                }
+                return new StoredUndoableBlock(hash, transactionList);
+            } catch (IOException e) {
+                // Corrupted database.
+                throw new BlockStoreException(e);
+            } catch (ProtocolException e) {
+                // Corrupted database.
+                throw new BlockStoreException(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            appendAndApply(CHAIN_HEAD, serializeBlock(chainHead));
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return verifiedChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            appendAndApply(VERIFIED_CHAIN_HEAD, serializeBlock(chainHead));
+            if (this.chainHead == null || this.chainHead.getHeight() < chainHead.getHeight())
+                appendAndApply(CHAIN_HEAD, serializeBlock(chainHead));
+            // Forget the undo blocks that are now too deep to be needed for a reorg.
+            List<Sha256Hash> pruned = new ArrayList<Sha256Hash>();
+            for (Set<Sha256Hash> atHeight : undoBlocksByHeight.headMap(chainHead.getHeight() - fullStoreDepth, true).values())
+                pruned.addAll(atHeight);
+            for (Sha256Hash hash : pruned) {
+                ByteBuffer buf = ByteBuffer.allocate(32 + 4);
+                buf.put(hash.getBytes()).putInt(undoBlocks.get(hash).location.segment);
+                appendAndApply(REMOVE_UNDO_BLOCK, buf.array());
+            }
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return readOutput(hash, index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            List<StoredTransactionOutput> result = new ArrayList<StoredTransactionOutput>(outpoints.size());
+            for (TransactionOutPoint outpoint : outpoints)
+                result.add(readOutput(outpoint.getHash(), outpoint.getIndex()));
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private StoredTransactionOutput readOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Location location = outputs.get(hash, index);
+        if (location == null)
+            return null;
+        ByteBuffer buf = read(location);
+        try {
+            return new StoredTransactionOutput(new ByteArrayInputStream(buf.array(), buf.position(), buf.remaining()));
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            addOutput(out);
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            removeOutput(out);
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void applyUnspentTransactionOutputChanges(Collection<StoredTransactionOutput> created,
+                                                     Collection<StoredTransactionOutput> spent)
+            throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            for (StoredTransactionOutput out : created)
+                addOutput(out);
+            for (StoredTransactionOutput out : spent)
+                removeOutput(out);
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addOutput(StoredTransactionOutput out) throws BlockStoreException {
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(out.getScriptBytes().length + 52);
+        try {
+            out.serializeToStream(bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        appendAndApply(OUTPUT, bos.toByteArray());
+    }
+
+    private void removeOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Location location = outputs.get(out.getHash(), out.getIndex());
+        if (location == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LogStructuredFullPrunedBlockStore that it didn't have!");
+        ByteBuffer buf = ByteBuffer.allocate(32 + 4 + 4);
+        buf.put(out.getHash().getBytes()).putInt((int) out.getIndex()).putInt(location.segment);
+        appendAndApply(SPEND, buf.array());
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            for (int i = 0; i < numOutputs; i++)
+                if (outputs.get(hash, i) != null)
+                    return true;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (inBatch)
+                return;
+            inBatch = true;
+            journalChainHead = chainHead;
+            journalChainHeadLocation = chainHeadLocation;
+            journalVerifiedChainHead = verifiedChainHead;
+            journalVerifiedChainHeadLocation = verifiedChainHeadLocation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            clearJournal();
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (!inBatch)
+                return;
+            inBatch = false;
+            // Throw away everything written since the batch started.
+            try {
+                if (batchStart >= writeBufferOffset) {
+                    writeBuffer.position(batchStart - writeBufferOffset);
+                } else {
+                    writeBuffer.clear();
+                    activeSegment.channel.truncate(batchStart);
+                    writeBufferOffset = batchStart;
+                }
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+            activeSegment.length = batchStart;
+            crc.reset();
+            // And put back what it changed.
+            for (Map.Entry<StoredTransactionOutPoint, Location> entry : outputJournal.entrySet())
+                setOutput(entry.getKey().getHash(), entry.getKey().getIndex(), entry.getValue());
+            for (Map.Entry<Sha256Hash, Location> entry : headerJournal.entrySet())
+                setHeader(entry.getKey(), entry.getValue());
+            for (Map.Entry<Sha256Hash, UndoBlockEntry> entry : undoBlockJournal.entrySet())
+                setUndoBlock(entry.getKey(), entry.getValue());
+            if (chainHeadLocation != journalChainHeadLocation)
+                setChainHead(journalChainHead, journalChainHeadLocation);
+            if (verifiedChainHeadLocation != journalVerifiedChainHeadLocation)
+                setVerifiedChainHead(journalVerifiedChainHead, journalVerifiedChainHeadLocation);
+            clearJournal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clearJournal() {
+        inBatch = false;
+        outputJournal.clear();
+        headerJournal.clear();
+        undoBlockJournal.clear();
+        journalChainHead = journalVerifiedChainHead = null;
+        journalChainHeadLocation = journalVerifiedChainHeadLocation = null;
+    }
+
+    /**
+     * Compacts every segment, other than the one currently being written, whose live records take up less than half
+     * of it. This normally happens by itself on a background thread, but may be called to reclaim space right away.
+     * Does nothing while a batch write is in progress.
+     */
+    public void compact() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Segment segment;
+            while (!inBatch && (segment = findSegmentToCompact()) != null)
+                compact(segment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of segment files the log is currently made up of. */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Segment findSegmentToCompact() {
+        Segment worst = null;
+        for (Segment segment : segments.values()) {
+            if (segment == activeSegment || segment.liveBytes >= segment.length * COMPACTION_THRESHOLD)
+                continue;
+            if (worst == null || segment.liveBytes * worst.length < worst.liveBytes * segment.length)
+                worst = segment;
+        }
+        return worst;
+    }
+
+    private void maybeScheduleCompaction() {
+        if (compactionScheduled || findSegmentToCompact() == null)
+            return;
+        compactionScheduled = true;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    compactionScheduled = false;
+                    if (closed || inBatch)
+                        return;  // The next commit will try again.
+                    Segment segment = findSegmentToCompact();
+                    if (segment != null)
+                        compact(segment);
+                    maybeScheduleCompaction();
+                } catch (BlockStoreException e) {
+                    log.error("Failed to compact block store", e);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    // Copies the live records of the given segment to the end of the log, then deletes it.
+    private void compact(Segment segment) throws BlockStoreException {
+        log.info("Compacting {}, {} of {} bytes live", segment.file, segment.liveBytes, segment.length);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(segment.file), 1024 * 1024));
+            try {
+                in.skipBytes(SEGMENT_HEADER_SIZE);
+                int offset = SEGMENT_HEADER_SIZE;
+                while (offset < segment.length) {
+                    byte type = in.readByte();
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    Location location = new Location(segment.number, offset, RECORD_HEADER_SIZE + payload.length);
+                    offset += location.size;
+                    if (isLive(type, payload, location))
+                        appendAndApply(type, payload);
+                }
+            } finally {
+                in.close();
+            }
+            commit();
+            activeSegment.channel.force(false);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        segments.remove(segment.number);
+        try {
+            segment.randomAccessFile.close();
+        } catch (IOException e) {
+            log.warn("Failed to close " + segment.file, e);
+        }
+        if (!segment.file.delete())
+            log.warn("Failed to delete {}", segment.file);
+    }
+
+    private boolean isLive(byte type, byte[] payload, Location location) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        switch (type) {
+            case HEADER:
+                return location.equals(headers.get(readHash(buf)));
+            case UNDO_BLOCK: {
+                UndoBlockEntry entry = undoBlocks.get(readHash(buf));
+                return entry != null && location.equals(entry.location);
+            }
+            case OUTPUT: {
+                buf.position(8 + 4 + (int) Utils.readUint32(payload, 8));
+                Sha256Hash hash = readHash(buf);
+                return location.equals(outputs.get(hash, Utils.readUint32(payload, buf.position())));
+            }
+            case SPEND:
+            case REMOVE_UNDO_BLOCK: {
+                // Needed for as long as the segment with what they removed is still around.
+                int target = buf.getInt(payload.length - 4);
+                return target != location.segment && segments.containsKey(target);
+            }
+            case CHAIN_HEAD:
+                return location.equals(chainHeadLocation);
+            case VERIFIED_CHAIN_HEAD:
+                return location.equals(verifiedChainHeadLocation);
+            default:
+                return false;
+        }
+    }
+
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            if (inBatch)
+                abortDatabaseBatchWrite();
+            try {
+                flushWriteBuffer();
+                activeSegment.channel.force(false);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            } finally {
+                closed = true;
+                compactor.shutdown();
+                closeFiles();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeFiles() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.randomAccessFile.close();
+            } catch (IOException e) {
+                log.warn("Failed to close " + segment.file, e);
+            }
+        }
+        try {
+            if (fileLock != null)
+                fileLock.release();
+            if (lockFile != null)
+                lockFile.close();
+        } catch (IOException e) {
+            log.warn("Failed to release lock on " + directory, e);
+        }
+    }
+
+    private static byte[] serializeHeader(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer buf = ByteBuffer.allocate(32 + 1 + StoredBlock.COMPACT_SERIALIZED_SIZE);
+        buf.put(block.getHeader().getHash().getBytes());
+        buf.put((byte) (wasUndoable ? 1 : 0));
+        block.serializeCompact(buf);
+        return buf.array();
+    }
+
+    private static byte[] serializeBlock(StoredBlock block) {
+        ByteBuffer buf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(buf);
+        return buf.array();
+    }
+
+    private StoredBlock deserializeBlock(ByteBuffer buf) throws BlockStoreException {
+        try {
+            return StoredBlock.deserializeCompact(params, buf);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static Sha256Hash readHash(ByteBuffer buf) {
+        byte[] bytes = new byte[32];
+        buf.get(bytes);
+        return new Sha256Hash(bytes);
+    }
+
+    private static void updateChecksum(CRC32 checksum, byte type, byte[] payload) {
+        checksum.update(type);
+        checksum.update(payload.length >>> 24);
+        checksum.update(payload.length >>> 16);
+        checksum.update(payload.length >>> 8);
+        checksum.update(payload.length);
+        checksum.update(payload);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.common.collect.Lists;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * The batched reads and writes of the openOutputs table which {@link H2FullPrunedBlockStore} and
+ * {@link PostgresFullPrunedBlockStore} share. Both have the hash, index, height, value and scriptBytes columns, with
+ * (hash, index) as the primary key; Postgres adds columns of its own, which are filled in by a {@link Columns}.
+ */
+class OpenOutputsTable {
+    // How many transaction hashes are looked up with a single query by getTransactionOutputs.
+    static final int LOOKUP_BATCH_SIZE = 100;
+
+    /** Fills in the columns of a row to be inserted into the openOutputs table. */
+    interface Columns {
+        /** The names of the columns, in the order their parameters are set. */
+        String[] names();
+
+        /** Sets parameters 1 to names().length of the given statement for the given output. */
+        void set(PreparedStatement s, StoredTransactionOutput out) throws SQLException;
+    }
+
+    /** The columns every openOutputs table has. */
+    static final Columns BASIC_COLUMNS = new Columns() {
+        @Override
+        public String[] names() {
+            return new String[] {"hash", "index", "height", "value", "scriptBytes"};
+        }
+
+        @Override
+        public void set(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+            setBasicColumns(s, out);
+        }
+    };
+
+    private final String storeName;
+
+    /** @param storeName The name of the store, used in error messages. */
+    OpenOutputsTable(String storeName) {
+        this.storeName = storeName;
+    }
+
+    /** Sets parameters 1 to 5 of the given statement to the hash, index, height, value and script of the output. */
+    static void setBasicColumns(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, out.getValue().toByteArray());
+        s.setBytes(5, out.getScriptBytes());
+    }
+
+    /** See {@link FullPrunedBlockStore#getTransactionOutputs(java.util.List)}. */
+    List<StoredTransactionOutput> getTransactionOutputs(Connection conn, List<TransactionOutPoint> outpoints)
+            throws BlockStoreException {
+        // Outputs are looked up by the hash of their transaction, many hashes per query, and then matched up with the
+        // requested indexes here. The hash is the leading column of the primary key so the lookups use the index.
+        Set<Sha256Hash> uniqueHashes = new LinkedHashSet<Sha256Hash>();
+        for (TransactionOutPoint outpoint : outpoints)
+            uniqueHashes.add(outpoint.getHash());
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(uniqueHashes);
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> found =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        try {
+            for (List<Sha256Hash> batch : Lists.partition(hashes, LOOKUP_BATCH_SIZE)) {
+                StringBuilder sql = new StringBuilder("SELECT hash, index, height, value, scriptBytes FROM openOutputs WHERE hash IN (?");
+                for (int i = 1; i < batch.size(); i++)
+                    sql.append(", ?");
+                sql.append(")");
+                PreparedStatement s = conn.prepareStatement(sql.toString());
+                try {
+                    for (int i = 0; i < batch.size(); i++)
+                        s.setBytes(i + 1, batch.get(i).getBytes());
+                    ResultSet results = s.executeQuery();
+                    while (results.next()) {
+                        Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                        // index is actually an unsigned int
+                        long index = results.getInt(2) & 0xFFFFFFFFL;
+                        int height = results.getInt(3);
+                        BigInteger value = new BigInteger(results.getBytes(4));
+                        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                        found.put(new StoredTransactionOutPoint(hash, index),
+                                new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(5)));
+                    }
+                } finally {
+                    s.close();
+                }
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        for (TransactionOutPoint outpoint : outpoints)
+            outputs.add(found.get(new StoredTransactionOutPoint(outpoint.getHash(), outpoint.getIndex())));
+        return outputs;
+    }
+
+    /** See {@link FullPrunedBlockStore#applyUnspentTransactionOutputChanges(java.util.Collection, java.util.Collection)}. */
+    void applyUnspentTransactionOutputChanges(Connection conn, Columns columns, Collection<StoredTransactionOutput> created,
+                                              Collection<StoredTransactionOutput> spent) throws BlockStoreException {
+        try {
+            if (!created.isEmpty())
+                insert(conn, columns, created);
+            if (!spent.isEmpty())
+                delete(conn, spent);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void insert(Connection conn, Columns columns, Collection<StoredTransactionOutput> outputs) throws SQLException {
+        // As in addUnspentTransactionOutput, outputs which are already present are ignored. Rather than inserting and
+        // catching duplicate key errors, which stop a Postgres batch at the first one and abort any surrounding database
+        // batch write, each row is only inserted if its key isn't there yet. That check is part of the insert itself,
+        // so it costs no extra round trip, and it also sees rows inserted earlier in the same batch.
+        String[] names = columns.names();
+        StringBuilder sql = new StringBuilder("INSERT INTO openOutputs (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(names[i]);
+            values.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") SELECT ").append(values)
+           .append(" WHERE NOT EXISTS (SELECT 1 FROM openOutputs WHERE hash = ? AND index = ?)");
+        PreparedStatement s = conn.prepareStatement(sql.toString());
+        try {
+            for (StoredTransactionOutput out : outputs) {
+                columns.set(s, out);
+                s.setBytes(names.length + 1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(names.length + 2, (int) out.getIndex());
+                s.addBatch();
+            }
+            s.executeBatch();
+        } finally {
+            s.close();
+        }
+    }
+
+    private void delete(Connection conn, Collection<StoredTransactionOutput> outputs)
+            throws SQLException, BlockStoreException {
+        // Unlike removeUnspentTransactionOutput, the update counts tell us whether each output existed, so there is no
+        // need to query for them first.
+        PreparedStatement s = conn.prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+        int[] updateCounts;
+        try {
+            for (StoredTransactionOutput out : outputs) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) out.getIndex());
+                s.addBatch();
+            }
+            updateCounts = s.executeBatch();
+        } finally {
+            s.close();
+        }
+        for (int updateCount : updateCounts)
+            if (updateCount == 0)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from " + storeName + " that it didn't have!");
+    }
+}
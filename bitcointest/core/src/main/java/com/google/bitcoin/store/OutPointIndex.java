@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.store.LogStructuredFullPrunedBlockStore.Location;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A hash table from outpoints (transaction hash and output index) to the location of a record in a
+ * {@link LogStructuredFullPrunedBlockStore} segment, kept outside of the Java heap in direct byte buffers so that it
+ * can hold the full unspent output set without putting pressure on the garbage collector.</p>
+ *
+ * <p>The table uses open addressing with linear probing, and is split into shards chosen by the transaction hash so
+ * that each one stays well below the size limit of a single buffer and growing one only rehashes a fraction of the
+ * entries. It is not thread safe.</p>
+ */
+class OutPointIndex {
+    // Slot layout: 32 bytes of transaction hash, 4 bytes output index, then the segment, offset and size of the
+    // record. A segment of zero marks an empty slot and -1 a deleted one, real segment numbers start at one.
+    private static final int SLOT_SIZE = 32 + 4 + 4 + 4 + 4;
+    private static final int SEGMENT_OFFSET = 36;
+    private static final int RECORD_OFFSET = 40;
+    private static final int SIZE_OFFSET = 44;
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    private static final int NUM_SHARDS = 16;
+    private static final int INITIAL_SLOTS = 1024;
+    // Largest number of slots a shard can have while still fitting in a single buffer.
+    private static final int MAX_SLOTS = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_SIZE);
+
+    private final ByteBuffer[] shards = new ByteBuffer[NUM_SHARDS];
+    private final int[] used = new int[NUM_SHARDS];     // Live and deleted slots, which both lengthen probes.
+    private final int[] live = new int[NUM_SHARDS];
+    private int size;
+
+    OutPointIndex() {
+        for (int i = 0; i < NUM_SHARDS; i++)
+            shards[i] = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+    }
+
+    /** The number of outpoints in the index. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the location of the record for the given outpoint, or null if it is not in the index. */
+    @Nullable
+    Location get(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        ByteBuffer shard = shards[shardOf(bytes)];
+        int position = find(shard, bytes, index);
+        if (position < 0)
+            return null;
+        return new Location(shard.getInt(position + SEGMENT_OFFSET), shard.getInt(position + RECORD_OFFSET),
+                shard.getInt(position + SIZE_OFFSET));
+    }
+
+    /** Adds the given outpoint, or moves it if it is already in the index. */
+    void put(Sha256Hash hash, long index, Location location) {
+        checkArgument(location.segment > 0);
+        byte[] bytes = hash.getBytes();
+        int shardNum = shardOf(bytes);
+        ByteBuffer shard = shards[shardNum];
+        int position = find(shard, bytes, index);
+        if (position < 0) {
+            if ((used[shardNum] + 1) * 10L > (shard.capacity() / SLOT_SIZE) * 7L)
+                shard = resize(shardNum);
+            position = insertionPoint(shard, bytes, index);
+            if (shard.getInt(position + SEGMENT_OFFSET) == EMPTY)
+                used[shardNum]++;
+            for (int i = 0; i < 32; i++)
+                shard.put(position + i, bytes[i]);
+            shard.putInt(position + 32, (int) index);
+            live[shardNum]++;
+            size++;
+        }
+        shard.putInt(position + SEGMENT_OFFSET, location.segment);
+        shard.putInt(position + RECORD_OFFSET, location.offset);
+        shard.putInt(position + SIZE_OFFSET, location.size);
+    }
+
+    /** Removes the given outpoint, returning true if it was in the index. */
+    boolean remove(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        int shardNum = shardOf(bytes);
+        int position = find(shards[shardNum], bytes, index);
+        if (position < 0)
+            return false;
+        shards[shardNum].putInt(position + SEGMENT_OFFSET, DELETED);
+        live[shardNum]--;
+        size--;
+        return true;
+    }
+
+    private static int find(ByteBuffer shard, byte[] hashBytes, long index) {
+        int mask = shard.capacity() / SLOT_SIZE - 1;
+        for (int slot = bucketOf(hashBytes, index) & mask; ; slot = (slot + 1) & mask) {
+            int position = slot * SLOT_SIZE;
+            int segment = shard.getInt(position + SEGMENT_OFFSET);
+            if (segment == EMPTY)
+                return -1;
+            if (segment != DELETED && matches(shard, position, hashBytes, index))
+                return position;
+        }
+    }
+
+    private static int shardOf(byte[] hashBytes) {
+        return hashBytes[31] & (NUM_SHARDS - 1);
+    }
+
+    private static int bucketOf(byte[] hashBytes, long index) {
+        // Transaction hashes are already uniformly distributed, so a few of their bytes make a fine hash code.
+        int h = ((hashBytes[27] & 0xFF) << 24) | ((hashBytes[28] & 0xFF) << 16) |
+                ((hashBytes[29] & 0xFF) << 8) | (hashBytes[30] & 0xFF);
+        return h ^ (int) (index * 0x9E3779B1L);
+    }
+
+    private static boolean matches(ByteBuffer shard, int position, byte[] hashBytes, long index) {
+        if (shard.getInt(position + 32) != (int) index)
+            return false;
+        for (int i = 31; i >= 0; i--)
+            if (shard.get(position + i) != hashBytes[i])
+                return false;
+        return true;
+    }
+
+    // Finds the first empty or deleted slot to put the given key in, assuming it is not already present.
+    private static int insertionPoint(ByteBuffer shard, byte[] hashBytes, long index) {
+        int mask = shard.capacity() / SLOT_SIZE - 1;
+        for (int slot = bucketOf(hashBytes, index) & mask; ; slot = (slot + 1) & mask) {
+            int position = slot * SLOT_SIZE;
+            int segment = shard.getInt(position + SEGMENT_OFFSET);
+            if (segment == EMPTY || segment == DELETED)
+                return position;
+        }
+    }
+
+    // Rehashes the given shard into a new buffer, doubling it unless most of the used slots are deleted ones.
+    private ByteBuffer resize(int shardNum) {
+        ByteBuffer old = shards[shardNum];
+        int oldSlots = old.capacity() / SLOT_SIZE;
+        int newSlots = live[shardNum] * 2 > oldSlots ? oldSlots * 2 : oldSlots;
+        if (newSlots > MAX_SLOTS)
+            throw new IllegalStateException("Outpoint index shard is full");
+        ByteBuffer shard = ByteBuffer.allocateDirect(newSlots * SLOT_SIZE);
+        byte[] hashBytes = new byte[32];
+        for (int position = 0; position < oldSlots * SLOT_SIZE; position += SLOT_SIZE) {
+            int segment = old.getInt(position + SEGMENT_OFFSET);
+            if (segment == EMPTY || segment == DELETED)
+                continue;
+            for (int i = 0; i < 32; i++)
+                hashBytes[i] = old.get(position + i);
+            long index = old.getInt(position + 32) & 0xFFFFFFFFL;
+            int newPosition = insertionPoint(shard, hashBytes, index);
+            for (int i = 0; i < SLOT_SIZE; i++)
+                shard.put(newPosition + i, old.get(position + i));
+        }
+        shards[shardNum] = shard;
+        used[shardNum] = live[shardNum];
+        return shard;
+    }
+}
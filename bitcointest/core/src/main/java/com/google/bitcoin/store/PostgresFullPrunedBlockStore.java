@@ -48,6 +48,21 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
+
+    private final OpenOutputsTable openOutputs = new OpenOutputsTable("PostgresFullPrunedBlockStore");
+    // The columns of openOutputs here also hold the address each output pays to, if any.
+    private final OpenOutputsTable.Columns openOutputColumns = new OpenOutputsTable.Columns() {
+        @Override
+        public String[] names() {
+            return new String[] {"hash", "index", "height", "value", "scriptBytes", "toAddress", "addressTargetable"};
+        }
+
+        @Override
+        public void set(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+            setOpenOutputParameters(s, out);
+        }
+    };
+
     private String username;
     private String password;
     private String schemaName;
@@ -87,6 +102,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     private static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
 
+    private static final String INSERT_OPEN_OUTPUT =
+            "INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
     // Some indexes to speed up inserts
     private static final String CREATE_HEADERS_HASH_INDEX = "CREATE INDEX headershashindex ON headers USING btree (hash);";
     private static final String CREATE_OUTPUTS_ADDRESS_INDEX = "CREATE INDEX idx_address ON openoutputs USING btree (hash, index, height, toaddress);";
@@ -761,7 +780,24 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
         PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement(INSERT_OPEN_OUTPUT);
+            setOpenOutputParameters(s, out);
+            s.executeUpdate();
+            s.close();
+        } catch (SQLException e) {
+            if (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)))
+                throw new BlockStoreException(e);
+        } finally {
+            if (s != null)
+                try {
+                    s.close();
+                } catch (SQLException e) { throw new BlockStoreException(e); }
+        }
+    }
 
+    /** Fills in the parameters of {@link #INSERT_OPEN_OUTPUT} for the given output. */
+    private void setOpenOutputParameters(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
         // Calculate the toAddress (if any)
         String dbAddress = "";
         int type = 0;
@@ -801,28 +837,9 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             }
         }
 
-        try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
-                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
-            s.setString(6, dbAddress);
-            s.setInt(7, type);
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)))
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
-        }
+        OpenOutputsTable.setBasicColumns(s, out);
+        s.setString(6, dbAddress);
+        s.setInt(7, type);
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
@@ -843,6 +860,17 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException {
+        maybeConnect();
+        return openOutputs.getTransactionOutputs(conn.get(), outpoints);
+    }
+
+    public void applyUnspentTransactionOutputChanges(Collection<StoredTransactionOutput> created,
+                                                     Collection<StoredTransactionOutput> spent) throws BlockStoreException {
+        maybeConnect();
+        openOutputs.applyUnspentTransactionOutputChanges(conn.get(), openOutputColumns, created, spent);
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
 
         maybeConnect();
@@ -31,12 +31,15 @@ import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -112,19 +115,141 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(takeSnapshot(wallet));
+    }
+
+    /**
+     * The parts of a wallet which {@link WalletProtobufSerializer#walletToProto(WalletSnapshot)} needs and which can
+     * change, copied whilst the wallet is locked. Copying them is much cheaper than building the protobuf, so a wallet
+     * can be saved without holding its lock for the whole save.
+     */
+    public static class WalletSnapshot {
+        private final String networkId;
+        @Nullable private final String description;
+        private final List<TransactionSnapshot> transactions;
+        private final List<ECKey> keys;
+        private final long[] keyCreationTimes;
+        private final List<Script> watchedScripts;
+        @Nullable private final Sha256Hash lastSeenBlockHash;
+        private final int lastSeenBlockHeight;
+        private final long lastSeenBlockTimeSecs;
+        @Nullable private final KeyCrypter keyCrypter;
+        @Nullable private final Date keyRotationTime;
+        private final List<Protos.Extension> extensions;
+        private final int version;
+
+        private WalletSnapshot(Wallet wallet, Iterable<WalletTransaction> transactions, Iterable<ECKey> keys,
+                               Iterable<Script> watchedScripts) {
+            networkId = wallet.getNetworkParameters().getId();
+            description = wallet.getDescription();
+            this.transactions = new ArrayList<TransactionSnapshot>();
+            for (WalletTransaction wtx : transactions)
+                this.transactions.add(new TransactionSnapshot(wtx));
+            this.keys = Lists.newArrayList(keys);
+            // The only part of a key that can change once it's in the wallet.
+            keyCreationTimes = new long[this.keys.size()];
+            for (int i = 0; i < keyCreationTimes.length; i++)
+                keyCreationTimes[i] = this.keys.get(i).getCreationTimeSeconds();
+            this.watchedScripts = Lists.newArrayList(watchedScripts);
+            lastSeenBlockHash = wallet.getLastBlockSeenHash();
+            lastSeenBlockHeight = wallet.getLastBlockSeenHeight();
+            lastSeenBlockTimeSecs = wallet.getLastBlockSeenTimeSecs();
+            keyCrypter = wallet.getKeyCrypter();
+            keyRotationTime = wallet.getKeyRotationTime();
+            // Extensions keep their own state, so they are serialized now to match the rest of the snapshot.
+            extensions = new ArrayList<Protos.Extension>();
+            for (WalletExtension extension : wallet.getExtensions().values()) {
+                Protos.Extension.Builder proto = Protos.Extension.newBuilder();
+                proto.setId(extension.getWalletExtensionID());
+                proto.setMandatory(extension.isWalletExtensionMandatory());
+                proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
+                extensions.add(proto.build());
+            }
+            version = wallet.getVersion();
+        }
+    }
+
+    // The parts of a wallet transaction that can change after it was added to the wallet. Scripts, values and the
+    // other contents of the transaction don't, so they are read when the protobuf is built.
+    private static class TransactionSnapshot {
+        final Transaction tx;
+        final WalletTransaction.Pool pool;
+        @Nullable final Long updatedAt;
+        final Transaction.Purpose purpose;
+        // For each output, the transaction and input index that spends it, or null if it's unspent.
+        final Sha256Hash[] spentByHashes;
+        final int[] spentByIndexes;
+        @Nullable final Map<Sha256Hash, Integer> appearsInHashes;
+        @Nullable final TransactionConfidence confidence;
+        final int depth;
+        @Nullable final BigInteger workDone;
+
+        TransactionSnapshot(WalletTransaction wtx) {
+            tx = wtx.getTransaction();
+            pool = wtx.getPool();
+            updatedAt = tx.getUpdateTime() != null ? tx.getUpdateTime().getTime() : null;
+            purpose = tx.getPurpose();
+            List<TransactionOutput> outputs = tx.getOutputs();
+            spentByHashes = new Sha256Hash[outputs.size()];
+            spentByIndexes = new int[outputs.size()];
+            for (int i = 0; i < outputs.size(); i++) {
+                TransactionInput spentBy = outputs.get(i).getSpentBy();
+                if (spentBy != null) {
+                    spentByHashes[i] = spentBy.getParentTransaction().getHash();
+                    spentByIndexes[i] = spentBy.getParentTransaction().getInputs().indexOf(spentBy);
+                }
+            }
+            appearsInHashes = tx.getAppearsInHashes();
+            if (tx.hasConfidence()) {
+                TransactionConfidence original = tx.getConfidence();
+                synchronized (original) {
+                    // The copy has the type, source, overriding transaction and peers, but not the depth or work done.
+                    confidence = original.duplicate();
+                    confidence.setSource(original.getSource());
+                    depth = original.getDepthInBlocks();
+                    workDone = original.getWorkDone();
+                }
+            } else {
+                confidence = null;
+                depth = 0;
+                workDone = null;
+            }
+        }
+    }
+
+    /**
+     * Copies the parts of the given wallet that can change, so that {@link #walletToProto(WalletSnapshot)} can build
+     * its protobuf later. The caller should hold the wallet lock, so that the snapshot is consistent.
+     */
+    public WalletSnapshot takeSnapshot(Wallet wallet) {
+        return new WalletSnapshot(wallet, wallet.getWalletTransactions(), wallet.getKeys(), wallet.getWatchedScripts());
+    }
+
+    /**
+     * Like {@link #takeSnapshot(com.google.bitcoin.core.Wallet)}, but only the given transactions and keys are
+     * included, and no watched scripts. Used to describe the changes to a wallet in a
+     * {@link com.google.bitcoin.wallet.WalletJournal}. The wallet should be locked by the caller.
+     */
+    public WalletSnapshot takeSnapshot(Wallet wallet, Iterable<WalletTransaction> transactions, Iterable<ECKey> keys) {
+        return new WalletSnapshot(wallet, transactions, keys, Collections.<Script>emptyList());
+    }
+
+    /** Builds the protobuf of a wallet from a snapshot of it. Doesn't need the wallet lock. */
+    public Protos.Wallet walletToProto(WalletSnapshot snapshot) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
+        walletBuilder.setNetworkIdentifier(snapshot.networkId);
+        if (snapshot.description != null) {
+            walletBuilder.setDescription(snapshot.description);
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
+        for (TransactionSnapshot tx : snapshot.transactions) {
+            Protos.Transaction txProto = makeTxProto(tx);
             walletBuilder.addTransaction(txProto);
         }
 
-        for (ECKey key : wallet.getKeys()) {
-            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+        for (int i = 0; i < snapshot.keys.size(); i++) {
+            ECKey key = snapshot.keys.get(i);
+            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(snapshot.keyCreationTimes[i] * 1000)
                                                          // .setLabel() TODO
                                                             .setType(Protos.Key.Type.ORIGINAL);
             if (key.getPrivKeyBytes() != null)
@@ -158,7 +283,7 @@ public class WalletProtobufSerializer {
             walletBuilder.addKey(keyBuilder);
         }
 
-        for (Script script : wallet.getWatchedScripts()) {
+        for (Script script : snapshot.watchedScripts) {
             Protos.Script protoScript =
                     Protos.Script.newBuilder()
                             .setProgram(ByteString.copyFrom(script.getProgram()))
@@ -169,16 +294,15 @@ public class WalletProtobufSerializer {
         }
 
         // Populate the lastSeenBlockHash field.
-        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
-        if (lastSeenBlockHash != null) {
-            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
-            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        if (snapshot.lastSeenBlockHash != null) {
+            walletBuilder.setLastSeenBlockHash(hashToByteString(snapshot.lastSeenBlockHash));
+            walletBuilder.setLastSeenBlockHeight(snapshot.lastSeenBlockHeight);
         }
-        if (wallet.getLastBlockSeenTimeSecs() > 0)
-            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+        if (snapshot.lastSeenBlockTimeSecs > 0)
+            walletBuilder.setLastSeenBlockTimeSecs(snapshot.lastSeenBlockTimeSecs);
 
         // Populate the scrypt parameters.
-        KeyCrypter keyCrypter = wallet.getKeyCrypter();
+        KeyCrypter keyCrypter = snapshot.keyCrypter;
         if (keyCrypter == null) {
             // The wallet is unencrypted.
             walletBuilder.setEncryptionType(EncryptionType.UNENCRYPTED);
@@ -194,39 +318,29 @@ public class WalletProtobufSerializer {
             }
         }
 
-        if (wallet.getKeyRotationTime() != null) {
-            long timeSecs = wallet.getKeyRotationTime().getTime() / 1000;
+        if (snapshot.keyRotationTime != null) {
+            long timeSecs = snapshot.keyRotationTime.getTime() / 1000;
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
+        walletBuilder.addAllExtension(snapshot.extensions);
 
         // Populate the wallet version.
-        walletBuilder.setVersion(wallet.getVersion());
+        walletBuilder.setVersion(snapshot.version);
 
         return walletBuilder.build();
     }
 
-    private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
-        for (WalletExtension extension : wallet.getExtensions().values()) {
-            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
-            proto.setId(extension.getWalletExtensionID());
-            proto.setMandatory(extension.isWalletExtensionMandatory());
-            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
-        }
-    }
-
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
-        Transaction tx = wtx.getTransaction();
+    private static Protos.Transaction makeTxProto(TransactionSnapshot snapshot) {
+        Transaction tx = snapshot.tx;
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
         
-        txBuilder.setPool(getProtoPool(wtx))
+        txBuilder.setPool(getProtoPool(snapshot.pool))
                  .setHash(hashToByteString(tx.getHash()))
                  .setVersion((int) tx.getVersion());
 
-        if (tx.getUpdateTime() != null) {
-            txBuilder.setUpdatedAt(tx.getUpdateTime().getTime());
+        if (snapshot.updatedAt != null) {
+            txBuilder.setUpdatedAt(snapshot.updatedAt);
         }
         
         if (tx.getLockTime() > 0) {
@@ -246,22 +360,21 @@ public class WalletProtobufSerializer {
         }
         
         // Handle outputs.
-        for (TransactionOutput output : tx.getOutputs()) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
             Protos.TransactionOutput.Builder outputBuilder = Protos.TransactionOutput.newBuilder()
                 .setScriptBytes(ByteString.copyFrom(output.getScriptBytes()))
                 .setValue(output.getValue().longValue());
-            final TransactionInput spentBy = output.getSpentBy();
-            if (spentBy != null) {
-                Sha256Hash spendingHash = spentBy.getParentTransaction().getHash();
-                int spentByTransactionIndex = spentBy.getParentTransaction().getInputs().indexOf(spentBy);
-                outputBuilder.setSpentByTransactionHash(hashToByteString(spendingHash))
-                             .setSpentByTransactionIndex(spentByTransactionIndex);
+            if (snapshot.spentByHashes[i] != null) {
+                outputBuilder.setSpentByTransactionHash(hashToByteString(snapshot.spentByHashes[i]))
+                             .setSpentByTransactionIndex(snapshot.spentByIndexes[i]);
             }
             txBuilder.addTransactionOutput(outputBuilder);
         }
         
         // Handle which blocks tx was seen in.
-        final Map<Sha256Hash, Integer> appearsInHashes = tx.getAppearsInHashes();
+        final Map<Sha256Hash, Integer> appearsInHashes = snapshot.appearsInHashes;
         if (appearsInHashes != null) {
             for (Map.Entry<Sha256Hash, Integer> entry : appearsInHashes.entrySet()) {
                 txBuilder.addBlockHash(hashToByteString(entry.getKey()));
@@ -269,14 +382,13 @@ public class WalletProtobufSerializer {
             }
         }
         
-        if (tx.hasConfidence()) {
-            TransactionConfidence confidence = tx.getConfidence();
+        if (snapshot.confidence != null) {
             Protos.TransactionConfidence.Builder confidenceBuilder = Protos.TransactionConfidence.newBuilder();
-            writeConfidence(txBuilder, confidence, confidenceBuilder);
+            writeConfidence(txBuilder, snapshot, confidenceBuilder);
         }
 
         Protos.Transaction.Purpose purpose;
-        switch (tx.getPurpose()) {
+        switch (snapshot.purpose) {
             case UNKNOWN: purpose = Protos.Transaction.Purpose.UNKNOWN; break;
             case USER_PAYMENT: purpose = Protos.Transaction.Purpose.USER_PAYMENT; break;
             case KEY_ROTATION: purpose = Protos.Transaction.Purpose.KEY_ROTATION; break;
@@ -288,8 +400,8 @@ public class WalletProtobufSerializer {
         return txBuilder.build();
     }
 
-    private static Protos.Transaction.Pool getProtoPool(WalletTransaction wtx) {
-        switch (wtx.getPool()) {
+    private static Protos.Transaction.Pool getProtoPool(WalletTransaction.Pool pool) {
+        switch (pool) {
             case UNSPENT: return Protos.Transaction.Pool.UNSPENT;
             case SPENT: return Protos.Transaction.Pool.SPENT;
             case DEAD: return Protos.Transaction.Pool.DEAD;
@@ -300,15 +412,16 @@ public class WalletProtobufSerializer {
     }
 
     private static void writeConfidence(Protos.Transaction.Builder txBuilder,
-                                        TransactionConfidence confidence,
+                                        TransactionSnapshot snapshot,
                                         Protos.TransactionConfidence.Builder confidenceBuilder) {
+        TransactionConfidence confidence = checkNotNull(snapshot.confidence);
         synchronized (confidence) {
             confidenceBuilder.setType(Protos.TransactionConfidence.Type.valueOf(confidence.getConfidenceType().getValue()));
             if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
                 confidenceBuilder.setAppearedAtHeight(confidence.getAppearedAtChainHeight());
-                confidenceBuilder.setDepth(confidence.getDepthInBlocks());
-                if (confidence.getWorkDone() != null) {
-                    confidenceBuilder.setWorkDone(confidence.getWorkDone().longValue());
+                confidenceBuilder.setDepth(snapshot.depth);
+                if (snapshot.workDone != null) {
+                    confidenceBuilder.setWorkDone(snapshot.workDone.longValue());
                 }
             }
             if (confidence.getConfidenceType() == ConfidenceType.DEAD) {
@@ -363,19 +476,27 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            Wallet wallet = new Wallet(params);
-            readWallet(walletProto, wallet);
-            return wallet;
+            return readWallet(parseToProto(input));
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         }
     }
 
+    /**
+     * Creates a wallet for the network named in the given protocol buffer and loads the protocol buffer into it.
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWallet(Protos.Wallet walletProto) throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        Wallet wallet = new Wallet(params);
+        readWallet(walletProto, wallet);
+        return wallet;
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
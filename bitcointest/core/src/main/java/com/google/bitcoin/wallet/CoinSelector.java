@@ -10,6 +10,10 @@ import java.util.LinkedList;
  * allows you to customize the policies for creation of transactions to suit your needs. The select operation
  * may return a {@link CoinSelection} that has a valueGathered lower than the requested target, if there's not
  * enough money in the wallet.
+ *
+ * When used by a {@link com.google.bitcoin.core.Wallet} to complete a send, the candidates don't include outputs
+ * that are reserved for other sends in progress. Selectors that look at the rest of the wallet can check for those
+ * with {@link com.google.bitcoin.core.Wallet#isReserved(TransactionOutput)}.
  */
 public interface CoinSelector {
     public CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates);
@@ -0,0 +1,318 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionOutput;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} that keeps an index of the candidates it is given, so that the repeated selections made
+ * whilst completing a transaction, and the ones for later transactions, don't have to sort the wallet's outputs from
+ * scratch each time. The index only changes by the outputs that were added or removed since the last call, and
+ * holds values and priorities as longs so comparing them doesn't allocate.</p>
+ *
+ * <p>First it looks for a set of coins adding up to at least the target but no more than the target plus the cost of
+ * change, so the transaction needs no change output, using a branch and bound search over the coins from the biggest
+ * down. The search gives up after {@link #MAX_TRIES} steps or when the time budget given to the constructor runs out.
+ * If there is no such match it picks coins the same way as {@link DefaultCoinSelector}: the highest value times depth
+ * first, so the transaction gets the highest priority possible. Value times depth is capped at {@link Long#MAX_VALUE},
+ * which only matters for coins worth millions of bitcoins buried under thousands of blocks. The depths are only read
+ * when coins are picked that way.</p>
+ *
+ * <p>Instances are thread safe, but as the index follows the candidates passed in, sharing one between wallets makes
+ * it rebuild the index whenever the wallet changes.</p>
+ */
+public class IndexedCoinSelector implements CoinSelector {
+    /** The longest the search for coins needing no change will run for by default. */
+    public static final long DEFAULT_SEARCH_TIME_MSEC = 1;
+    /**
+     * How much more than the target the coins found by the search can add up to by default. The wallet drops change
+     * up to this much rather than create a dust output, so there is no point creating change that small.
+     */
+    public static final BigInteger DEFAULT_COST_OF_CHANGE = Transaction.MIN_NONDUST_OUTPUT;
+    /** The most steps the search for coins needing no change will take, whatever the time budget. */
+    public static final int MAX_TRIES = 100000;
+
+    private static class Entry {
+        final TransactionOutput output;
+        final Transaction tx;
+        final long value;
+        final byte[] hash;
+        // Used to order outputs of the same transaction, which otherwise compare equal, by the order they came in.
+        final long sequence;
+        long coinDepth;
+        boolean selectable;
+        int generation;
+
+        Entry(TransactionOutput output, long sequence) {
+            this.output = output;
+            this.tx = output.getParentTransaction();
+            this.value = output.getValue().longValue();
+            this.hash = tx.getHash().getBytes();
+            this.sequence = sequence;
+        }
+    }
+
+    // Highest value times depth first, then highest value, then by transaction hash. The same order as
+    // DefaultCoinSelector.sortOutputs.
+    private static final Comparator<Entry> PRIORITY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.coinDepth != b.coinDepth)
+                return a.coinDepth > b.coinDepth ? -1 : 1;
+            return VALUE_ORDER.compare(a, b);
+        }
+    };
+
+    private static final Comparator<Entry> VALUE_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.value != b.value)
+                return a.value > b.value ? -1 : 1;
+            for (int i = 0; i < a.hash.length; i++) {
+                int c = (a.hash[i] & 0xFF) - (b.hash[i] & 0xFF);
+                if (c != 0)
+                    return c;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private final long searchTimeNanos;
+    private final long costOfChange;
+
+    private final HashMap<TransactionOutput, Entry> index = new HashMap<TransactionOutput, Entry>();
+    // The entries of the index sorted for the greedy selection and for the exact match search.
+    private final ArrayList<Entry> byPriority = new ArrayList<Entry>();
+    private final ArrayList<Entry> byValue = new ArrayList<Entry>();
+    private int generation;
+    private long nextSequence;
+    // Scratch space for the exact match search, kept between calls.
+    private long[] values = new long[0];
+    private long[] remaining = new long[1];
+    private int[] stack = new int[0];
+    private boolean[] chosen = new boolean[0];
+
+    public IndexedCoinSelector() {
+        this(DEFAULT_SEARCH_TIME_MSEC, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param searchTime how long to look for coins needing no change before falling back to picking coins by
+     *                   priority, zero to always pick coins by priority
+     */
+    public IndexedCoinSelector(long searchTime, TimeUnit unit) {
+        this(searchTime, unit, DEFAULT_COST_OF_CHANGE);
+    }
+
+    /**
+     * @param searchTime how long to look for coins needing no change before falling back to picking coins by
+     *                   priority, zero to always pick coins by priority
+     * @param costOfChange how much more than the target the coins found by the search can add up to, as that much
+     *                     more fee is cheaper than a change output which has to be spent again later. Zero to only
+     *                     look for coins adding up to exactly the target.
+     */
+    public IndexedCoinSelector(long searchTime, TimeUnit unit, BigInteger costOfChange) {
+        checkArgument(searchTime >= 0);
+        checkArgument(costOfChange.signum() >= 0);
+        this.searchTimeNanos = unit.toNanos(searchTime);
+        this.costOfChange = costOfChange.longValue();
+    }
+
+    @Override
+    public synchronized CoinSelection select(BigInteger biTarget, LinkedList<TransactionOutput> candidates) {
+        update(candidates);
+        ArrayList<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        // When calculating the wallet balance, we may be asked to select all possible coins. The order doesn't matter
+        // then, so avoid sorting them.
+        if (biTarget.equals(NetworkParameters.MAX_MONEY)) {
+            long total = 0;
+            for (Entry entry : byValue) {
+                if (!entry.selectable) continue;
+                selected.add(entry.output);
+                total += entry.value;
+            }
+            return new CoinSelection(BigInteger.valueOf(total), selected);
+        }
+        long target = biTarget.longValue();
+        if (target > 0 && searchTimeNanos > 0) {
+            long total = findMatch(target, target + costOfChange, selected);
+            if (total > 0)
+                return new CoinSelection(BigInteger.valueOf(total), selected);
+        }
+        updatePriorities();
+        sortByPriority();
+        long total = 0;
+        for (Entry entry : byPriority) {
+            if (total >= target) break;
+            if (!entry.selectable) continue;
+            selected.add(entry.output);
+            total += entry.value;
+        }
+        // Total may be lower than target here, if the given candidates were insufficient to create to requested
+        // transaction.
+        return new CoinSelection(BigInteger.valueOf(total), selected);
+    }
+
+    /** Sub-classes can override this to just customize whether transactions are usable, but keep the indexing. */
+    protected boolean shouldSelect(Transaction tx) {
+        return DefaultCoinSelector.isSelectable(tx);
+    }
+
+    // Brings the index up to date with the candidates, and refreshes whether each can be selected, as that changes with
+    // the confidence of their transactions.
+    private void update(List<TransactionOutput> candidates) {
+        generation++;
+        boolean added = false;
+        int seen = 0;
+        for (TransactionOutput output : candidates) {
+            Entry entry = index.get(output);
+            if (entry == null) {
+                entry = new Entry(output, nextSequence++);
+                index.put(output, entry);
+                byPriority.add(entry);
+                byValue.add(entry);
+                added = true;
+            }
+            if (entry.generation != generation) {
+                entry.generation = generation;
+                entry.selectable = shouldSelect(entry.tx);
+                seen++;
+            }
+        }
+        if (seen < index.size()) {
+            removeStale(byPriority);
+            removeStale(byValue);
+            for (Iterator<Entry> it = index.values().iterator(); it.hasNext();) {
+                if (it.next().generation != generation)
+                    it.remove();
+            }
+        }
+        if (added)
+            Collections.sort(byValue, VALUE_ORDER);
+    }
+
+    // Refreshes the value times depth of the coins that can be selected, which changes with every block. Only needed
+    // when picking coins by priority, so the depths aren't read at all when the search finds a match.
+    private void updatePriorities() {
+        for (Entry entry : byPriority) {
+            if (!entry.selectable) {
+                entry.coinDepth = 0;
+                continue;
+            }
+            TransactionConfidence confidence = entry.tx.getConfidence();
+            int depth = confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING ?
+                    confidence.getDepthInBlocks() : 0;
+            entry.coinDepth = depth > 0 && entry.value > Long.MAX_VALUE / depth ? Long.MAX_VALUE : entry.value * depth;
+        }
+    }
+
+    private void removeStale(ArrayList<Entry> entries) {
+        int kept = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.generation == generation)
+                entries.set(kept++, entry);
+        }
+        entries.subList(kept, entries.size()).clear();
+    }
+
+    // Priorities change as transactions get deeper, but mostly not relative to each other, so the list is usually
+    // still sorted from last time and sorting it is then a single pass.
+    private void sortByPriority() {
+        for (int i = 1; i < byPriority.size(); i++) {
+            if (PRIORITY_ORDER.compare(byPriority.get(i - 1), byPriority.get(i)) > 0) {
+                Collections.sort(byPriority, PRIORITY_ORDER);
+                return;
+            }
+        }
+    }
+
+    // Depth first search for coins adding up to between target and max, trying the biggest coins first. Adds them to
+    // selected and returns their total if it finds some, or zero if not.
+    private long findMatch(long target, long max, List<TransactionOutput> selected) {
+        // Coins bigger than the maximum can't be part of a match.
+        int n = 0;
+        ensureCapacity(byValue.size());
+        for (Entry entry : byValue) {
+            if (entry.selectable && entry.value > 0 && entry.value <= max)
+                values[n++] = entry.value;
+        }
+        remaining[n] = 0;
+        for (int i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[i];
+        if (remaining[0] < target)
+            return 0;
+        long deadline = System.nanoTime() + searchTimeNanos;
+        int tries = 0;
+        int top = 0;
+        long sum = 0;
+        int i = 0;
+        while (sum < target) {
+            if (i == n || sum + remaining[i] < target) {
+                // Dead end, undo the last coin taken and carry on without it.
+                if (top == 0 || ++tries >= MAX_TRIES || ((tries & 0x3FF) == 0 && System.nanoTime() > deadline)) {
+                    for (int j = 0; j < top; j++)
+                        chosen[stack[j]] = false;
+                    return 0;
+                }
+                int last = stack[--top];
+                chosen[last] = false;
+                sum -= values[last];
+                i = last + 1;
+                continue;
+            }
+            // Taking a coin of the same value as one we just left out would only find the same sets again.
+            boolean duplicate = i > 0 && values[i] == values[i - 1] && !chosen[i - 1];
+            if (sum + values[i] <= max && !duplicate) {
+                chosen[i] = true;
+                stack[top++] = i;
+                sum += values[i];
+            }
+            i++;
+        }
+        // Map the chosen positions back to the entries, which were filtered in the same order.
+        int position = 0;
+        for (Entry entry : byValue) {
+            if (entry.selectable && entry.value > 0 && entry.value <= max) {
+                if (chosen[position])
+                    selected.add(entry.output);
+                chosen[position] = false;
+                position++;
+            }
+        }
+        return sum;
+    }
+
+    private void ensureCapacity(int size) {
+        if (values.length >= size)
+            return;
+        // Cleared after every search, so nothing needs copying.
+        values = new long[size];
+        remaining = new long[size + 1];
+        stack = new int[size];
+        chosen = new boolean[size];
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Collects payments and sends them together, as a single transaction with one output per payment. Services that
+ * make lots of small payments, like withdrawals from an exchange, then need far fewer coin selections, signatures,
+ * change outputs and broadcasts than if each payment were sent with {@link Wallet#sendCoins(Wallet.SendRequest)}.</p>
+ *
+ * <p>Queued payments are sent once the oldest of them has waited for the delay given to the constructor, or as
+ * soon as they make up the maximum number of outputs. The future returned for each payment completes with the
+ * transaction that paid it once that transaction has been broadcast. If the batch can't be sent, for instance because
+ * the wallet doesn't have enough money, the futures of every payment in it fail with the exception.</p>
+ *
+ * <p>Batches are sent from a background thread using {@link Wallet#reserveCoins(Wallet.SendRequest, long, TimeUnit)},
+ * so the wallet is only locked whilst the coins are picked and the transaction is committed.</p>
+ */
+public class PayoutBatcher {
+    private static final Logger log = LoggerFactory.getLogger(PayoutBatcher.class);
+
+    // How long the coins for a batch stay reserved, which only matters if signing or broadcasting it gets stuck.
+    private static final long RESERVATION_TIMEOUT_SECS = 60;
+
+    private static class Payment {
+        final List<TransactionOutput> outputs;
+        final SettableFuture<Transaction> future = SettableFuture.create();
+
+        Payment(List<TransactionOutput> outputs) {
+            this.outputs = outputs;
+        }
+    }
+
+    private final Wallet wallet;
+    private final TransactionBroadcaster broadcaster;
+    private final long delay;
+    private final TimeUnit delayTimeUnit;
+    private final int maxOutputs;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Runnable sender;
+
+    private final ReentrantLock lock = Threading.lock("payout-batcher");
+    @GuardedBy("lock") private final List<Payment> queue = new ArrayList<Payment>();
+    @GuardedBy("lock") private int queuedOutputs;
+    @GuardedBy("lock") private boolean sendScheduled;
+
+    /**
+     * @param delay      how long a payment may wait for others to be batched with it
+     * @param maxOutputs how many outputs a batch may have, at most about 2900 fit into a standard transaction
+     */
+    public PayoutBatcher(Wallet wallet, TransactionBroadcaster broadcaster, long delay, TimeUnit delayTimeUnit,
+                         int maxOutputs) {
+        checkArgument(delay >= 0);
+        checkArgument(maxOutputs > 0);
+        this.wallet = checkNotNull(wallet);
+        this.broadcaster = checkNotNull(broadcaster);
+        this.delay = delay;
+        this.delayTimeUnit = checkNotNull(delayTimeUnit);
+        this.maxOutputs = maxOutputs;
+        final ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Payout batcher thread");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        this.executor = new ScheduledThreadPoolExecutor(1, builder.build());
+        this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.sender = new Runnable() {
+            @Override
+            public void run() {
+                sendQueued();
+            }
+        };
+    }
+
+    /** Queues a payment of the given value to the given address. */
+    public ListenableFuture<Transaction> queue(Address to, BigInteger value) {
+        return queue(Wallet.SendRequest.to(to, value));
+    }
+
+    /**
+     * <p>Queues the outputs of the given request. Only the outputs are used: the fee, change address and other
+     * settings of the transaction that pays them come from {@link #createBatchRequest(Transaction)}.</p>
+     *
+     * @throws IllegalArgumentException if the request has inputs, is emptying the wallet, has more outputs than fit
+     *         into a batch or an output is too small to be relayed.
+     * @throws IllegalStateException if the batcher was shut down.
+     */
+    public ListenableFuture<Transaction> queue(Wallet.SendRequest req) {
+        List<TransactionOutput> outputs = req.tx.getOutputs();
+        checkArgument(req.tx.getInputs().isEmpty(), "Batched requests can't have inputs");
+        checkArgument(!req.emptyWallet, "Batched requests can't empty the wallet");
+        checkArgument(!outputs.isEmpty() && outputs.size() <= maxOutputs, "Request has %s outputs", outputs.size());
+        // Dust would get the whole batch rejected, so turn it away here instead.
+        for (TransactionOutput output : outputs)
+            checkArgument(output.getValue().compareTo(output.getMinNonDustValue()) >= 0, "Output is dust: %s", output);
+        Payment payment = new Payment(new ArrayList<TransactionOutput>(outputs));
+        lock.lock();
+        try {
+            checkState(!executor.isShutdown(), "Payout batcher was shut down");
+            queue.add(payment);
+            queuedOutputs += payment.outputs.size();
+            if (queuedOutputs >= maxOutputs) {
+                executor.execute(sender);
+            } else if (!sendScheduled) {
+                sendScheduled = true;
+                executor.schedule(sender, delay, delayTimeUnit);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return payment.future;
+    }
+
+    /** Returns how many payments are waiting to be sent. */
+    public int getQueuedPayments() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the queued payments now rather than waiting for the delay.
+     *
+     * @throws IllegalStateException if the batcher was shut down.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            checkState(!executor.isShutdown(), "Payout batcher was shut down");
+            executor.execute(sender);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background thread and sends the queued payments from the calling thread, once any batch the
+     * background thread is sending has gone out. No more can be queued. If the calling thread is interrupted, before
+     * or whilst waiting, nothing more is sent: the payments still queued fail with an {@link IllegalStateException}
+     * and the thread's interrupt flag is left set.
+     */
+    public void shutdownAndWait() {
+        lock.lock();
+        try {
+            // Delayed sends are cancelled rather than run, the queue is sent below instead.
+            executor.shutdown();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            // The wait returns straight away if the executor was idle, without looking at the interrupt flag.
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            sendQueued();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } finally {
+            failQueued(new IllegalStateException("Payout batcher was shut down"));
+        }
+    }
+
+    /**
+     * Returns the request used to complete a batch, given a transaction holding the outputs of its payments. Override
+     * this to set the fee, change address, coin selector or AES key of batches.
+     */
+    protected Wallet.SendRequest createBatchRequest(Transaction tx) {
+        return Wallet.SendRequest.forTx(tx);
+    }
+
+    // Runs on the batcher thread. Sends everything that is queued, in as many batches as it takes.
+    private void sendQueued() {
+        while (true) {
+            List<Payment> batch = new ArrayList<Payment>();
+            lock.lock();
+            try {
+                sendScheduled = false;
+                int outputs = 0;
+                while (!queue.isEmpty() && outputs + queue.get(0).outputs.size() <= maxOutputs) {
+                    Payment payment = queue.remove(0);
+                    outputs += payment.outputs.size();
+                    batch.add(payment);
+                }
+                queuedOutputs -= outputs;
+            } finally {
+                lock.unlock();
+            }
+            if (batch.isEmpty())
+                return;
+            send(batch);
+        }
+    }
+
+    private void failQueued(Exception e) {
+        List<Payment> failed;
+        lock.lock();
+        try {
+            failed = new ArrayList<Payment>(queue);
+            queue.clear();
+            queuedOutputs = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (Payment payment : failed)
+            payment.future.setException(e);
+    }
+
+    private void send(final List<Payment> batch) {
+        Transaction tx = new Transaction(wallet.getParams());
+        for (Payment payment : batch) {
+            for (TransactionOutput output : payment.outputs)
+                tx.addOutput(new TransactionOutput(wallet.getParams(), tx, output.getValue(), output.getScriptBytes()));
+        }
+        try {
+            Wallet.Reservation reservation = wallet.reserveCoins(createBatchRequest(tx), RESERVATION_TIMEOUT_SECS,
+                    TimeUnit.SECONDS);
+            reservation.sign();
+            Wallet.SendResult result = reservation.broadcast(broadcaster);
+            log.info("Sent {} payments with {} outputs in {}", batch.size(), tx.getOutputs().size(),
+                    result.tx.getHashAsString());
+            Futures.addCallback(result.broadcastComplete, new FutureCallback<Transaction>() {
+                @Override
+                public void onSuccess(Transaction result) {
+                    for (Payment payment : batch)
+                        payment.future.set(result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    for (Payment payment : batch)
+                        payment.future.setException(t);
+                }
+            });
+        } catch (Exception e) {
+            log.error("Failed to send a batch of {} payments", batch.size(), e);
+            for (Payment payment : batch)
+                payment.future.setException(e);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.*;
@@ -47,8 +48,12 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    private final AtomicBoolean compactionPending;
+    private final Callable<Void> compactor;
 
     private volatile Listener vListener;
+    @Nullable private volatile StatsListener vStatsListener;
+    @Nullable private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -56,16 +61,66 @@ public class WalletFiles {
     public interface Listener {
         /**
          * Called on the auto-save thread when a new temporary file is created but before the wallet data is saved
-         * to it. If you want to do something here like adjust permissions, go ahead and do so.
+         * to it. If you want to do something here like adjust permissions, go ahead and do so. When saving to a
+         * {@link WalletJournal}, this is only called when the journal is compacted.
          */
         public void onBeforeAutoSave(File tempFile);
 
         /**
-         * Called on the auto-save thread after the newly created temporary file has been filled with data and renamed.
+         * Called on the auto-save thread after the newly created temporary file has been filled with data and renamed,
+         * or after the changes to the wallet were appended to its {@link WalletJournal}.
          */
         public void onAfterAutoSave(File newlySavedFile);
     }
 
+    /**
+     * Implementors are told how long each save took and how much was written, e.g. to monitor how long the wallet
+     * is locked for.
+     */
+    public interface StatsListener {
+        /**
+         * Called on the auto-save thread after {@link Listener#onAfterAutoSave(java.io.File)}, with how long the save
+         * took and how much was written.
+         */
+        public void onSaveStats(SaveStats stats);
+    }
+
+    /**
+     * How long a save of the wallet took and how big it was. The wallet is only locked for the snapshot part of the
+     * save; serializing the snapshot, writing and syncing it to disk make up the rest.
+     */
+    public static class SaveStats {
+        private final long snapshotMsec;
+        private final long saveMsec;
+        private final long bytesWritten;
+
+        public SaveStats(long snapshotMsec, long saveMsec, long bytesWritten) {
+            this.snapshotMsec = snapshotMsec;
+            this.saveMsec = saveMsec;
+            this.bytesWritten = bytesWritten;
+        }
+
+        /** Returns how long the wallet was locked for whilst a snapshot of it was taken, in milliseconds. */
+        public long getSnapshotMsec() {
+            return snapshotMsec;
+        }
+
+        /** Returns how long the whole save took, including the snapshot, in milliseconds. */
+        public long getSaveMsec() {
+            return saveMsec;
+        }
+
+        /** Returns how many bytes were written, which is the size of the wallet file unless a journal was appended to. */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes in %dmsec, snapshot took %dmsec", bytesWritten, saveMsec, snapshotMsec);
+        }
+    }
+
     public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit) {
         final ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
                 .setDaemon(true)
@@ -98,6 +153,19 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.compactionPending = new AtomicBoolean();
+        this.compactor = new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                // Runs in an auto save thread.
+                compactionPending.set(false);
+                WalletJournal journal = vJournal;
+                if (journal != null && journal.needsCompaction()) {
+                    log.info("Compacting wallet journal");
+                    saveFully(journal);
+                }
+                return null;
+            }
+        };
     }
 
     /**
@@ -107,25 +175,61 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /** The given listener will be called on the autosave thread after each save, or no longer called if null. */
+    public void setStatsListener(@Nullable StatsListener listener) {
+        this.vStatsListener = listener;
+    }
+
+    /**
+     * If set, saves append the changes made to the wallet since the last save to a {@link WalletJournal} instead of
+     * rewriting the whole wallet file, and the journal is compacted on the auto-save thread once it gets too big. The
+     * first save after this is called writes the whole wallet. {@link Wallet#loadFromFile(java.io.File)} replays the
+     * journal when loading the wallet.
+     */
+    public void setUseJournal(boolean useJournal) {
+        this.vJournal = useJournal ? new WalletJournal(file) : null;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
-        // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
-        // but they will serialize (using different temp files).
+        // Can be called by any thread. The wallet is only locked whilst a snapshot is taken, so we can have two saves
+        // in flight at once (using different temp files). The newest snapshot always wins the final rename.
         log.info("Saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
         saveNowInternal();
     }
 
     private void saveNowInternal() throws IOException {
-        long now = System.currentTimeMillis();
+        final WalletJournal journal = vJournal;
+        if (journal != null) {
+            SaveStats stats = journal.append(wallet);
+            if (stats != null) {
+                afterSave(stats);
+                if (journal.needsCompaction() && !executor.isShutdown() && !compactionPending.getAndSet(true))
+                    executor.submit(compactor);
+                return;
+            }
+        }
+        saveFully(journal);
+    }
+
+    // Writes the whole wallet, as a new snapshot if a journal is in use.
+    private void saveFully(@Nullable WalletJournal journal) throws IOException {
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        afterSave(journal != null ? journal.compact(wallet, temp) : wallet.saveToFile(temp, file));
+    }
+
+    private void afterSave(SaveStats stats) {
+        final Listener listener = vListener;
         if (listener != null)
             listener.onAfterAutoSave(file);
-        log.info("Save completed in {}msec", System.currentTimeMillis() - now);
+        final StatsListener statsListener = vStatsListener;
+        if (statsListener != null)
+            statsListener.onSaveStats(stats);
+        log.info("Save completed: {}", stats);
     }
 
     /** Queues up a save in the background. Useful for not very important wallet changes. */
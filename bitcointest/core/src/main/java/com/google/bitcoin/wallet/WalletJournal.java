@@ -0,0 +1,417 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.utils.Threading;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Saves a wallet as a snapshot of the whole wallet in the wallet file, plus a journal of the changes made since then
+ * in a file next to it (see {@link #getJournalFile(java.io.File)}). Appending the transactions that changed and the
+ * keys that were added is much cheaper than rewriting the whole wallet when it is big. Once the journal grows past
+ * {@link #COMPACTION_RATIO} of the size of the snapshot it should be compacted, which writes a new snapshot and starts
+ * a new journal. {@link WalletFiles} does that on its background thread if asked to use a journal, see
+ * {@link WalletFiles#setUseJournal(boolean)}.</p>
+ *
+ * <p>Journal entries are wallet protocol buffers that only hold the changes. The snapshot and the entries are tagged
+ * with a non-mandatory extension saying which snapshot they belong to and in what order they were taken, so the
+ * snapshot is still an ordinary wallet file that can be read without its journal. {@link #readWalletProto(java.io.File)}
+ * replays the journal on top of the snapshot, and is used by {@link Wallet#loadFromFile(java.io.File)}. Entries that
+ * belong to an older snapshot are skipped, as is a partly written entry at the end. The one exception is the snapshot
+ * the journal belonged to before compaction: its entries that were taken after the new snapshot are replayed too, as
+ * they are only carried over to the new journal once the new snapshot is in place.</p>
+ *
+ * <p>Building transactions that didn't change since the snapshot have their depth worked out from how far the last seen
+ * block moved, but their work done is left as it was in the snapshot.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The ID of the wallet extension that tags snapshots and journal entries. */
+    public static final String EXTENSION_ID = "org.bitcoinj.wallet.WalletJournal";
+    /** How big the journal can get compared to the snapshot before {@link #needsCompaction()} returns true. */
+    public static final double COMPACTION_RATIO = 0.5;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /** A snapshot of a wallet or the changes made to it, numbered in the order they were taken. */
+    public static class Entry {
+        private final long sequence;
+        private final Protos.Wallet walletProto;
+
+        public Entry(long sequence, Protos.Wallet walletProto) {
+            this.sequence = sequence;
+            this.walletProto = checkNotNull(walletProto);
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Protos.Wallet getWalletProto() {
+            return walletProto;
+        }
+    }
+
+    private final File file;
+    private final File journalFile;
+
+    // Never take the wallet lock whilst holding this one, as saves can be started by threads holding the wallet lock.
+    private final ReentrantLock lock = Threading.lock("wallet-journal");
+    // Identifies the snapshot this object last wrote, or zero if it didn't write one yet or the journal file may be
+    // damaged. Entries are only appended whilst this is set.
+    @GuardedBy("lock") private long snapshotId;
+    // The snapshot ID the entries in the journal file are tagged with, or zero if this object didn't write the journal
+    // file. Unlike snapshotId it isn't cleared when the journal may be damaged, as its entries can still be read.
+    @GuardedBy("lock") private long journalId;
+    @GuardedBy("lock") private long snapshotSequence;
+    @GuardedBy("lock") private long snapshotSize;
+    @GuardedBy("lock") private long journalSize;
+    // The entries in the journal file, so the ones taken after a snapshot written later can be carried over.
+    @GuardedBy("lock") private final List<Entry> entries = new ArrayList<Entry>();
+
+    public WalletJournal(File file) {
+        this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
+    }
+
+    /** Returns the file that holds the journal of the given wallet file. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Returns true if {@link #compact(com.google.bitcoin.core.Wallet, java.io.File)} should be called, either because
+     * no snapshot was written yet or because the journal has grown too big.
+     */
+    public boolean needsCompaction() {
+        lock.lock();
+        try {
+            return snapshotId == 0 || journalSize > snapshotSize * COMPACTION_RATIO;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the changes made to the wallet since it was last saved to the journal. Returns null if there is no
+     * snapshot to append to yet or the wallet changed in a way only a new snapshot can record, in which case
+     * {@link #compact(com.google.bitcoin.core.Wallet, java.io.File)} must be called to save the wallet.
+     */
+    @Nullable
+    public WalletFiles.SaveStats append(Wallet wallet) throws IOException {
+        long start = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (snapshotId == 0)
+                return null;
+        } finally {
+            lock.unlock();
+        }
+        Entry entry = wallet.takeJournalChanges();
+        if (entry == null)
+            return null;
+        long snapshotMsec = System.currentTimeMillis() - start;
+        lock.lock();
+        try {
+            // Writing the journal failed in the meantime. The changes are only safe in a new snapshot now.
+            if (snapshotId == 0)
+                return null;
+            // A snapshot taken after these changes was written first, so they are already saved.
+            if (entry.getSequence() < snapshotSequence)
+                return new WalletFiles.SaveStats(snapshotMsec, System.currentTimeMillis() - start, 0);
+            Protos.Wallet walletProto = tag(entry.getWalletProto(), snapshotId, entry.getSequence(), 0);
+            FileOutputStream stream = new FileOutputStream(journalFile, true);
+            try {
+                walletProto.writeDelimitedTo(stream);
+                stream.flush();
+                stream.getFD().sync();
+            } catch (IOException e) {
+                // The journal may end with part of this entry now, so nothing more can be appended to it.
+                snapshotId = 0;
+                throw e;
+            } finally {
+                stream.close();
+            }
+            long bytesWritten = journalFile.length() - journalSize;
+            journalSize += bytesWritten;
+            entries.add(entry);
+            return new WalletFiles.SaveStats(snapshotMsec, System.currentTimeMillis() - start, bytesWritten);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a new snapshot of the wallet to the given temp file and renames it over the wallet file, then starts a new
+     * journal holding only the entries appended in the meantime.
+     */
+    public WalletFiles.SaveStats compact(Wallet wallet, File temp) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            Entry snapshot = wallet.takeJournalSnapshot();
+            long snapshotMsec = System.currentTimeMillis() - start;
+            lock.lock();
+            try {
+                // Another thread wrote a newer snapshot first.
+                if (snapshot.getSequence() < snapshotSequence)
+                    return new WalletFiles.SaveStats(snapshotMsec, System.currentTimeMillis() - start, 0);
+                // Until the new journal is in place nothing can be appended.
+                snapshotId = 0;
+                long id = 0;
+                while (id == 0)
+                    id = random.nextLong();
+                // If the new journal isn't written, the entries of the old journal taken after the new snapshot still
+                // have to be loaded, so the snapshot says which journal they are in.
+                Protos.Wallet walletProto = tag(snapshot.getWalletProto(), id, snapshot.getSequence(), journalId);
+                write(temp, file, Collections.singletonList(walletProto), false);
+                // The new snapshot is in place, from now on only the entries of the old journal taken after it are
+                // loaded.
+                List<Entry> newer = new ArrayList<Entry>();
+                for (Entry entry : entries) {
+                    if (entry.getSequence() > snapshot.getSequence())
+                        newer.add(entry);
+                }
+                if (newer.isEmpty()) {
+                    if (journalFile.exists() && !journalFile.delete())
+                        throw new IOException("Failed to delete " + journalFile);
+                } else {
+                    List<Protos.Wallet> journal = new ArrayList<Protos.Wallet>(newer.size());
+                    for (Entry entry : newer)
+                        journal.add(tag(entry.getWalletProto(), id, entry.getSequence(), 0));
+                    File journalTemp = File.createTempFile("journal", null, journalFile.getAbsoluteFile().getParentFile());
+                    write(journalTemp, journalFile, journal, true);
+                }
+                journalId = id;
+                entries.clear();
+                entries.addAll(newer);
+                snapshotSize = file.length();
+                journalSize = newer.isEmpty() ? 0 : journalFile.length();
+                snapshotSequence = snapshot.getSequence();
+                snapshotId = id;
+                return new WalletFiles.SaveStats(snapshotMsec, System.currentTimeMillis() - start,
+                        snapshotSize + journalSize);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    // Writes the messages to the temp file, forces them to disk and renames the temp file over the dest file.
+    private static void write(File temp, File destFile, List<Protos.Wallet> messages, boolean delimited)
+            throws IOException {
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            for (Protos.Wallet message : messages) {
+                if (delimited)
+                    message.writeDelimitedTo(stream);
+                else
+                    message.writeTo(stream);
+            }
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            canonical.delete();
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
+    }
+
+    /**
+     * Reads the given wallet file and replays its journal, if it has one, on top of it. The result can be loaded with
+     * {@link com.google.bitcoin.store.WalletProtobufSerializer#readWallet(org.bitcoinj.wallet.Protos.Wallet)}.
+     */
+    public static Protos.Wallet readWalletProto(File walletFile) throws IOException {
+        Protos.Wallet snapshot;
+        InputStream input = new BufferedInputStream(new FileInputStream(walletFile));
+        try {
+            snapshot = Protos.Wallet.parseFrom(input);
+        } finally {
+            input.close();
+        }
+        long[] snapshotTag = getTag(snapshot);
+        File journalFile = getJournalFile(walletFile);
+        if (snapshotTag == null || !journalFile.exists())
+            return untag(snapshot.toBuilder()).build();
+        // Sorted by sequence number, as entries taken by different threads may be written out of order.
+        TreeMap<Long, Protos.Wallet> entries = new TreeMap<Long, Protos.Wallet>();
+        input = new BufferedInputStream(new FileInputStream(journalFile));
+        try {
+            while (true) {
+                Protos.Wallet entry;
+                try {
+                    entry = Protos.Wallet.parseDelimitedFrom(input);
+                } catch (InvalidProtocolBufferException e) {
+                    log.warn("Ignoring partly written entry at the end of {}", journalFile);
+                    break;
+                }
+                if (entry == null)
+                    break;
+                long[] tag = getTag(entry);
+                if (tag == null || tag[1] <= snapshotTag[1])
+                    continue;
+                // Entries of the previous snapshot taken after this one are left behind if a crash stopped compaction
+                // from carrying them over to the new journal.
+                if (tag[0] == snapshotTag[0] || (snapshotTag[2] != 0 && tag[0] == snapshotTag[2]))
+                    entries.put(tag[1], entry);
+            }
+        } finally {
+            input.close();
+        }
+        log.info("Replaying {} journal entries from {}", entries.size(), journalFile);
+        return replay(snapshot, entries.values());
+    }
+
+    private static Protos.Wallet replay(Protos.Wallet snapshot, Collection<Protos.Wallet> entries) {
+        Protos.Wallet.Builder builder = snapshot.toBuilder();
+        Map<ByteString, Integer> txIndexes = new HashMap<ByteString, Integer>();
+        for (int i = 0; i < builder.getTransactionCount(); i++)
+            txIndexes.put(builder.getTransaction(i).getHash(), i);
+        // The last seen block height when each transaction was last written, by index, or null if it wasn't known.
+        // Building transactions are a block deeper for every block the wallet saw since, which is added once all the
+        // entries have been replayed.
+        List<Integer> writtenAtHeight = new ArrayList<Integer>(builder.getTransactionCount());
+        Integer snapshotHeight = builder.hasLastSeenBlockHeight() ? builder.getLastSeenBlockHeight() : null;
+        for (int i = 0; i < builder.getTransactionCount(); i++)
+            writtenAtHeight.add(snapshotHeight);
+        Set<ByteString> pubKeys = new HashSet<ByteString>();
+        for (Protos.Key key : builder.getKeyList())
+            pubKeys.add(key.getPublicKey());
+        for (Protos.Wallet entry : entries) {
+            Integer entryHeight = entry.hasLastSeenBlockHeight() ? entry.getLastSeenBlockHeight() : null;
+            for (Protos.Transaction tx : entry.getTransactionList()) {
+                Integer index = txIndexes.get(tx.getHash());
+                if (index != null) {
+                    builder.setTransaction(index, tx);
+                    writtenAtHeight.set(index, entryHeight);
+                } else {
+                    txIndexes.put(tx.getHash(), builder.getTransactionCount());
+                    builder.addTransaction(tx);
+                    writtenAtHeight.add(entryHeight);
+                }
+            }
+            for (Protos.Key key : entry.getKeyList()) {
+                if (pubKeys.add(key.getPublicKey()))
+                    builder.addKey(key);
+            }
+            // Every entry holds the wallet wide fields and extensions as they were when it was taken.
+            if (entry.hasDescription())
+                builder.setDescription(entry.getDescription());
+            else
+                builder.clearDescription();
+            if (entry.hasLastSeenBlockHash())
+                builder.setLastSeenBlockHash(entry.getLastSeenBlockHash());
+            else
+                builder.clearLastSeenBlockHash();
+            if (entry.hasLastSeenBlockHeight())
+                builder.setLastSeenBlockHeight(entry.getLastSeenBlockHeight());
+            else
+                builder.clearLastSeenBlockHeight();
+            if (entry.hasLastSeenBlockTimeSecs())
+                builder.setLastSeenBlockTimeSecs(entry.getLastSeenBlockTimeSecs());
+            else
+                builder.clearLastSeenBlockTimeSecs();
+            if (entry.hasKeyRotationTime())
+                builder.setKeyRotationTime(entry.getKeyRotationTime());
+            else
+                builder.clearKeyRotationTime();
+            if (entry.hasVersion())
+                builder.setVersion(entry.getVersion());
+            else
+                builder.clearVersion();
+            builder.clearExtension();
+            builder.addAllExtension(entry.getExtensionList());
+        }
+        if (builder.hasLastSeenBlockHeight()) {
+            int height = builder.getLastSeenBlockHeight();
+            for (int i = 0; i < builder.getTransactionCount(); i++) {
+                Integer written = writtenAtHeight.get(i);
+                if (written == null || written == height)
+                    continue;
+                Protos.Transaction tx = builder.getTransaction(i);
+                Protos.TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getType() == Protos.TransactionConfidence.Type.BUILDING && confidence.hasDepth()) {
+                    builder.setTransaction(i, tx.toBuilder()
+                            .setConfidence(confidence.toBuilder().setDepth(confidence.getDepth() + height - written))
+                            .build());
+                }
+            }
+        }
+        return untag(builder).build();
+    }
+
+    // Tags a snapshot or journal entry. For a snapshot, previousId is the snapshot ID of the journal it replaces, or zero.
+    private static Protos.Wallet tag(Protos.Wallet walletProto, long snapshotId, long sequence, long previousId) {
+        ByteBuffer data = ByteBuffer.allocate(24);
+        data.putLong(snapshotId);
+        data.putLong(sequence);
+        data.putLong(previousId);
+        Protos.Extension extension = Protos.Extension.newBuilder()
+                .setId(EXTENSION_ID)
+                .setMandatory(false)
+                .setData(ByteString.copyFrom(data.array()))
+                .build();
+        return walletProto.toBuilder().addExtension(extension).build();
+    }
+
+    // Returns the snapshot ID, sequence number and previous snapshot ID the given wallet protobuf was tagged with, or null.
+    @Nullable
+    private static long[] getTag(Protos.Wallet walletProto) {
+        for (Protos.Extension extension : walletProto.getExtensionList()) {
+            if (extension.getId().equals(EXTENSION_ID) && extension.getData().size() == 24) {
+                ByteBuffer data = extension.getData().asReadOnlyByteBuffer();
+                return new long[] { data.getLong(), data.getLong(), data.getLong() };
+            }
+        }
+        return null;
+    }
+
+    private static Protos.Wallet.Builder untag(Protos.Wallet.Builder builder) {
+        List<Protos.Extension> extensions = new ArrayList<Protos.Extension>(builder.getExtensionList());
+        builder.clearExtension();
+        for (Protos.Extension extension : extensions) {
+            if (!extension.getId().equals(EXTENSION_ID))
+                builder.addExtension(extension);
+        }
+        return builder;
+    }
+}
@@ -31,7 +31,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -145,6 +148,50 @@ public abstract class AbstractFullPrunedBlockChainTest
         }
     }
 
+    @Test
+    public void testUnspentOutputBatches() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        Sha256Hash hash1 = Sha256Hash.create(new byte[] {1});
+        Sha256Hash hash2 = Sha256Hash.create(new byte[] {2});
+        StoredTransactionOutput a = new StoredTransactionOutput(hash1, 0, BigInteger.ONE, 1, false, new byte[] {1});
+        StoredTransactionOutput b = new StoredTransactionOutput(hash1, 1, BigInteger.TEN, 1, false, new byte[] {2});
+        StoredTransactionOutput c = new StoredTransactionOutput(hash2, 0, BigInteger.ONE, 2, true, new byte[] {3});
+        StoredTransactionOutput d = new StoredTransactionOutput(hash2, 1, BigInteger.TEN, 2, true, new byte[] {4});
+        List<TransactionOutPoint> outpoints = Arrays.asList(new TransactionOutPoint(params, 0, hash1),
+                new TransactionOutPoint(params, 1, hash1), new TransactionOutPoint(params, 0, hash2),
+                new TransactionOutPoint(params, 1, hash2));
+        List<StoredTransactionOutput> none = Collections.emptyList();
+
+        store.beginDatabaseBatchWrite();
+        store.applyUnspentTransactionOutputChanges(Arrays.asList(a, b), none);
+        // b is already there, like the outputs of a duplicated coinbase. It must be ignored without losing the outputs
+        // after it in the same batch, or breaking the rest of the batch write.
+        store.applyUnspentTransactionOutputChanges(Arrays.asList(b, c, b, d), Arrays.asList(a));
+        assertEquals(Arrays.asList(null, b, c, d), store.getTransactionOutputs(outpoints));
+        store.commitDatabaseBatchWrite();
+
+        List<StoredTransactionOutput> found = store.getTransactionOutputs(outpoints);
+        assertEquals(Arrays.asList(null, b, c, d), found);
+        assertEquals(BigInteger.TEN, found.get(1).getValue());
+        assertArrayEquals(new byte[] {4}, found.get(3).getScriptBytes());
+        assertTrue(store.hasUnspentOutputs(hash1, 2));
+        assertTrue(store.hasUnspentOutputs(hash2, 2));
+
+        // Outputs created and spent in the same call never show up.
+        StoredTransactionOutput e = new StoredTransactionOutput(hash1, 2, BigInteger.ONE, 3, false, new byte[] {5});
+        store.applyUnspentTransactionOutputChanges(Arrays.asList(e), Arrays.asList(b, e));
+        assertNull(store.getTransactionOutput(hash1, 1));
+        assertNull(store.getTransactionOutput(hash1, 2));
+
+        try {
+            store.applyUnspentTransactionOutputChanges(none, Arrays.asList(a));
+            fail("Removed an output which was not in the store");
+        } catch (BlockStoreException ex) {
+            // Expected.
+        }
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
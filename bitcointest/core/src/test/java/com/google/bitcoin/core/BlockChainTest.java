@@ -30,8 +30,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
 import static com.google.bitcoin.utils.TestUtils.createFakeTx;
@@ -174,6 +177,145 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphanChainsConnectInOrder() throws Exception {
+        // Two competing chains forking after b1, with everything after b1 arriving in reverse order.
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        Block c2 = b1.createNextBlock(new ECKey().toAddress(unitTestParams));
+        Block c3 = c2.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b4));
+        assertFalse(chain.add(c3));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(c2));
+        assertFalse(chain.add(b2));
+        assertEquals(5, chain.getOrphanCount());
+        assertEquals(b2.getHash(), chain.getOrphanRoot(b4.getHash()).getHash());
+        assertEquals(c2.getHash(), chain.getOrphanRoot(c3.getHash()).getHash());
+        // Asking again takes the cached route to the root, which must give the same answer.
+        assertEquals(b2.getHash(), chain.getOrphanRoot(b4.getHash()).getHash());
+        assertTrue(chain.add(b1));
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(0, chain.getOrphanBytes());
+        assertEquals(5, chain.getConnectedOrphanCount());
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(4, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void invalidOrphanInChainIsDropped() throws Exception {
+        // b3 changes the difficulty, which can only be noticed once its parent is known. It arrives before c3, which
+        // competes with it, so c3 has to be connected after b3 has been rejected.
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        b3.setDifficultyTarget(0x2007ffffL);
+        b3.solve();
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        Block b5 = b4.createNextBlock(coinbaseTo);
+        Block c3 = b2.createNextBlock(new ECKey().toAddress(unitTestParams));
+        Block c4 = c3.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b5));
+        assertFalse(chain.add(b4));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(c4));
+        assertFalse(chain.add(c3));
+        assertFalse(chain.add(b2));
+        assertEquals(6, chain.getOrphanCount());
+        // Connecting b1 reports b3 as invalid, but only once the other orphans were connected.
+        try {
+            chain.add(b1);
+            fail();
+        } catch (VerificationException e) {
+        }
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(0, chain.getOrphanBytes());
+        assertEquals(c4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(4, chain.getBestChainHeight());
+        // The dropped blocks are orphans again if they turn up on their own.
+        assertFalse(chain.add(b5));
+        assertEquals(1, chain.getOrphanCount());
+    }
+
+    @Test
+    public void addHeaders() throws Exception {
+        // Use a difficulty transition interval long enough that the headers don't have to adjust their difficulty.
+        NetworkParameters params = new UnitTestParams() {{
+            interval = 10000;
+        }};
+        BlockStore blockStore = new MemoryBlockStore(params);
+        BlockChain chain = new BlockChain(params, blockStore);
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < 600; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            headers.add(prev.cloneAsHeader());
+        }
+        ListenableFuture<StoredBlock> future = chain.getHeightFuture(600);
+        assertTrue(chain.addHeaders(headers.subList(0, 300)));
+        assertEquals(300, chain.getBestChainHeight());
+        assertEquals(chain.getChainHead(), blockStore.getChainHead());
+        // Headers which don't follow on from each other are rejected up front.
+        List<Block> gappy = new ArrayList<Block>(headers.subList(300, 600));
+        gappy.remove(100);
+        try {
+            chain.addHeaders(gappy);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(300, chain.getBestChainHeight());
+        // The first header which doesn't connect to the chain is kept as an orphan, and the rest are dropped.
+        assertFalse(chain.addHeaders(headers.subList(400, 600)));
+        assertTrue(chain.isOrphan(headers.get(400).getHash()));
+        assertFalse(chain.isOrphan(headers.get(401).getHash()));
+        assertTrue(chain.addHeaders(headers.subList(300, 400)));
+        assertEquals(401, chain.getBestChainHeight());
+        assertTrue(chain.addHeaders(headers.subList(401, 600)));
+        assertEquals(600, chain.getBestChainHeight());
+        assertEquals(chain.getChainHead(), blockStore.getChainHead());
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void orphanLimits() throws Exception {
+        chain.setOrphanLimits(3, 1000000, 2);
+        PeerAddress peer1 = new PeerAddress(InetAddress.getByAddress(new byte[] {1, 2, 3, 4}), 8333);
+        PeerAddress peer2 = new PeerAddress(InetAddress.getByAddress(new byte[] {5, 6, 7, 8}), 8333);
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block[] blocks = new Block[6];
+        blocks[0] = b1.createNextBlock(coinbaseTo);
+        for (int i = 1; i < blocks.length; i++)
+            blocks[i] = blocks[i - 1].createNextBlock(coinbaseTo);
+        // The first peer can only have two orphans waiting, so its oldest is pushed out by its third.
+        assertFalse(chain.add(blocks[0], peer1));
+        assertFalse(chain.add(blocks[1], peer1));
+        assertFalse(chain.add(blocks[2], peer1));
+        assertFalse(chain.isOrphan(blocks[0].getHash()));
+        assertEquals(2, chain.getOrphanCount());
+        assertEquals(1, chain.getEvictedOrphanCount());
+        // Other peers can still add orphans, which push out the oldest once the pool is full.
+        assertFalse(chain.add(blocks[3], peer2));
+        assertFalse(chain.add(blocks[4], peer2));
+        assertEquals(3, chain.getOrphanCount());
+        assertFalse(chain.isOrphan(blocks[1].getHash()));
+        assertEquals(blocks[2].getHash(), chain.getOrphanRoot(blocks[4].getHash()).getHash());
+        // Shrinking the limits evicts straight away.
+        chain.setOrphanLimits(1, 1000000, 1);
+        assertEquals(1, chain.getOrphanCount());
+        assertTrue(chain.isOrphan(blocks[4].getHash()));
+        // Connecting the missing blocks connects the remaining orphan after them.
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(blocks[0]));
+        assertTrue(chain.add(blocks[1]));
+        assertTrue(chain.add(blocks[2]));
+        assertTrue(chain.add(blocks[3]));
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(blocks[4].cloneAsHeader(), chain.getChainHead().getHeader());
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -0,0 +1,40 @@
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.H2FullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+
+/**
+ * A FullPrunedBlockStoreTest of a CachingFullPrunedBlockStore in front of an H2 store. The cache is made to flush
+ * on every commit so that the underlying store is checked along with the cache.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteFiles();
+        return new CachingFullPrunedBlockStore(new H2FullPrunedBlockStore(params, "cachetest", blockCount), 10000, 0);
+    }
+
+    private void deleteFiles() {
+        maybeDelete("cachetest.h2.db");
+        maybeDelete("cachetest.trace.db");
+    }
+
+    private void maybeDelete(String s) {
+        new File(s).delete();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((H2FullPrunedBlockStore) ((CachingFullPrunedBlockStore) store).getUnderlyingStore()).resetStore();
+    }
+}
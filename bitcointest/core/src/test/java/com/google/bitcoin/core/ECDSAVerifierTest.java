@@ -0,0 +1,203 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECFieldElement;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link ECDSAVerifier} against Spongy Castle's {@link ECDSASigner}, which it replaced, over random keys and
+ * signatures, corrupted ones, and the rare cases random signatures practically never reach.
+ */
+public class ECDSAVerifierTest {
+    private static final BigInteger N = ECKey.CURVE.getN();
+    private static final BigInteger P = ((ECCurve.Fp) ECKey.CURVE.getCurve()).getQ();
+    private static final ECPoint G = ECKey.CURVE.getG();
+
+    private final Random random = new Random(42);
+    private int valid, invalid;
+
+    @Test
+    public void randomSignatures() throws Exception {
+        for (int i = 0; i < 150; i++) {
+            // Mostly random keys, and some tiny private keys so that multiples of the key collide with multiples of
+            // the generator while adding them up.
+            BigInteger priv = i < 6 ? BigInteger.valueOf(i + 1) : new BigInteger(256, random).mod(N.subtract(BigInteger.ONE)).add(BigInteger.ONE);
+            ECKey key = new ECKey(priv, null, i % 2 == 0);
+            byte[] signed = randomBytes(32);
+            ECKey.ECDSASignature sig = key.sign(new Sha256Hash(signed));
+            BigInteger r = sig.r, s = sig.s;
+            byte[] pub = key.getPubKey();
+
+            check(signed, r, s, pub, true);
+            // High S is just as valid to ECDSA; only the standardness rules care.
+            check(signed, r, N.subtract(s), pub, true);
+            // Hashes longer than the order are cut down to its bit length, and shorter ones are just small numbers.
+            byte[] longer = new byte[40];
+            System.arraycopy(signed, 0, longer, 0, 32);
+            check(longer, r, s, pub, true);
+            byte[] shorter = randomBytes(20);
+            byte[] padded = new byte[32];
+            System.arraycopy(shorter, 0, padded, 12, 20);
+            ECKey.ECDSASignature shortSig = key.sign(new Sha256Hash(padded));
+            check(shorter, shortSig.r, shortSig.s, pub, true);
+
+            // Corrupted signatures.
+            check(signed, r.add(BigInteger.ONE), s, pub, false);
+            check(signed, r, s.add(BigInteger.ONE), pub, false);
+            check(signed, s, r, pub, false);
+            check(signed, new BigInteger(256, random), s, pub, null);
+            check(signed, r, new BigInteger(256, random), pub, null);
+            check(signed, r.add(N), s, pub, false);
+            check(signed, r, s.add(N), pub, false);
+            check(signed, BigInteger.ZERO, s, pub, false);
+            check(signed, r, BigInteger.ZERO, pub, false);
+            check(signed, N, s, pub, false);
+            check(signed, r, N, pub, false);
+            check(signed, r.negate(), s, pub, false);
+
+            // Wrong message and wrong key.
+            byte[] other = signed.clone();
+            other[random.nextInt(other.length)] ^= 1 << random.nextInt(8);
+            check(other, r, s, pub, false);
+            check(signed, r, s, new ECKey().getPubKey(), false);
+
+            // Corrupted public keys, which are often not on the curve at all.
+            byte[] corrupted = pub.clone();
+            int index = 1 + random.nextInt(corrupted.length - 1);
+            corrupted[index] ^= 1 << random.nextInt(8);
+            check(signed, r, s, corrupted, null);
+            corrupted = pub.clone();
+            corrupted[0] ^= 1;  // The other y for compressed keys, and an invalid prefix for uncompressed ones.
+            check(signed, r, s, corrupted, null);
+        }
+        assertTrue(valid > 300);
+        assertTrue(invalid > 2000);
+    }
+
+    @Test
+    public void xCoordinateAboveOrder() throws Exception {
+        // A signature whose R has an x co-ordinate above n, so r = x - n. That only happens for about one in
+        // 2^128 signatures, so the key is worked backwards from R: Q = (R - u1*G) / u2.
+        ECPoint point = null;
+        for (BigInteger x = N.add(BigInteger.ONE); point == null; x = x.add(BigInteger.ONE))
+            point = pointWithX(x);
+        BigInteger r = point.getX().toBigInteger().subtract(N);
+        assertTrue(r.add(N).compareTo(P) < 0);
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = randomBytes(32);
+            BigInteger s = new BigInteger(256, random).mod(N);
+            BigInteger w = s.modInverse(N);
+            BigInteger u1 = new BigInteger(1, hash).multiply(w).mod(N);
+            BigInteger u2 = r.multiply(w).mod(N);
+            ECPoint q = point.subtract(G.multiply(u1)).multiply(u2.modInverse(N));
+            byte[] pub = encode(q, i % 2 == 0);
+            check(hash, r, s, pub, true);
+            // x itself is out of range for r, and the neighbouring value is just wrong.
+            check(hash, r.add(N), s, pub, false);
+            check(hash, r.add(BigInteger.ONE), s, pub, false);
+        }
+    }
+
+    @Test
+    public void pointAtInfinity() throws Exception {
+        // Choose the key so that u1*G + u2*Q is the point at infinity: Q = -(u1 / u2) * G.
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = randomBytes(32);
+            BigInteger r = new BigInteger(256, random).mod(N);
+            BigInteger s = new BigInteger(256, random).mod(N);
+            BigInteger w = s.modInverse(N);
+            BigInteger u1 = new BigInteger(1, hash).multiply(w).mod(N);
+            BigInteger u2 = r.multiply(w).mod(N);
+            ECPoint q = G.multiply(u1.multiply(u2.modInverse(N)).negate().mod(N));
+            byte[] pub = encode(q, i % 2 == 0);
+            assertNotNull(ECDSAVerifier.decodePublicKey(pub));
+            assertFalse(ECDSAVerifier.verify(hash, r, s, ECDSAVerifier.decodePublicKey(pub)));
+            assertFalse(reference(hash, r, s, pub));
+        }
+    }
+
+    @Test
+    public void invalidPublicKeys() throws Exception {
+        byte[] pub = new ECKey(BigInteger.TEN, null, false).getPubKey();
+        byte[] offCurve = pub.clone();
+        offCurve[64] ^= 1;
+        assertNull(ECDSAVerifier.decodePublicKey(offCurve));
+        assertNull(ECDSAVerifier.decodePublicKey(new byte[0]));
+        assertNull(ECDSAVerifier.decodePublicKey(new byte[] {0}));
+        assertNull(ECDSAVerifier.decodePublicKey(new byte[] {4, 1, 2, 3}));
+        byte[] tooBig = new byte[33];
+        tooBig[0] = 2;
+        for (int i = 1; i < 33; i++)
+            tooBig[i] = (byte) 0xFF;
+        assertNull(ECDSAVerifier.decodePublicKey(tooBig));
+    }
+
+    // Checks that both implementations agree, and if expected isn't null that they give that answer.
+    private void check(byte[] hash, BigInteger r, BigInteger s, byte[] pub, Boolean expected) {
+        boolean reference = reference(hash, r, s, pub);
+        ECDSAVerifier.PublicKey key = ECDSAVerifier.decodePublicKey(pub);
+        boolean actual = key != null && ECDSAVerifier.verify(hash, r, s, key);
+        assertEquals("r=" + r + " s=" + s + " pub=" + Utils.bytesToHexString(pub), reference, actual);
+        if (expected != null)
+            assertEquals(expected, actual);
+        if (actual)
+            valid++;
+        else
+            invalid++;
+    }
+
+    private static boolean reference(byte[] hash, BigInteger r, BigInteger s, byte[] pub) {
+        ECDSASigner signer = new ECDSASigner();
+        try {
+            ECPoint point = ECKey.CURVE.getCurve().decodePoint(pub);
+            // Spongy Castle doesn't check that uncompressed keys are on the curve.
+            BigInteger x = point.getX().toBigInteger(), y = point.getY().toBigInteger();
+            if (!y.multiply(y).mod(P).equals(x.pow(3).add(BigInteger.valueOf(7)).mod(P)))
+                return false;
+            signer.init(false, new ECPublicKeyParameters(point, ECKey.CURVE));
+            return signer.verifySignature(hash, r, s);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private ECPoint pointWithX(BigInteger x) {
+        ECFieldElement fx = ECKey.CURVE.getCurve().fromBigInteger(x);
+        ECFieldElement y = fx.multiply(fx).multiply(fx).add(ECKey.CURVE.getCurve().fromBigInteger(BigInteger.valueOf(7))).sqrt();
+        return y == null ? null : ECKey.CURVE.getCurve().createPoint(x, y.toBigInteger(), false);
+    }
+
+    private static byte[] encode(ECPoint point, boolean compressed) {
+        return new ECPoint.Fp(ECKey.CURVE.getCurve(), point.getX(), point.getY(), compressed).getEncoded();
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -114,6 +114,23 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void verifyRejectsBadSignatures() throws Exception {
+        ECKey key = new ECKey(), other = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        ECKey.ECDSASignature sig = key.sign(hash);
+        assertTrue(ECKey.verify(hash.getBytes(), sig, key.getPubKey()));
+        // Signed by the wrong key.
+        assertFalse(ECKey.verify(hash.getBytes(), sig, other.getPubKey()));
+        // Not a point on the curve: flipping a bit of y leaves x with no matching y.
+        byte[] pub = ECKey.publicKeyFromPrivate(new BigInteger(1, key.getPrivKeyBytes()), false);
+        pub[64] ^= 1;
+        assertFalse(ECKey.verify(hash.getBytes(), sig, pub));
+        // A corrupted signature.
+        ECKey.ECDSASignature bad = new ECKey.ECDSASignature(sig.r, sig.s.add(BigInteger.ONE));
+        assertFalse(ECKey.verify(hash.getBytes(), bad, key.getPubKey()));
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = Hex.decode(
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderChainIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private BlockStore store;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryBlockStore(params);
+        to = new ECKey().toAddress(params);
+    }
+
+    // Builds a chain of the given length on top of the given block, with timestamps a second apart.
+    private List<StoredBlock> extend(StoredBlock from, int length) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = from;
+        for (int i = 0; i < length; i++) {
+            Block next = prev.getHeader().createNextBlock(to, prev.getHeader().getTimeSeconds() + 1);
+            StoredBlock stored = prev.build(next.cloneAsHeader());
+            store.put(stored);
+            blocks.add(stored);
+            prev = stored;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void ancestorsAndMedianTime() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = extend(genesis, HeaderChainIndex.INITIAL_DEPTH + 100);
+        StoredBlock head = chain.get(chain.size() - 1);
+        HeaderChainIndex index = new HeaderChainIndex(store);
+        index.setChainHead(head);
+        // Only the top of the chain is loaded to begin with.
+        assertEquals(HeaderChainIndex.INITIAL_DEPTH, index.size());
+        assertNull(index.getHash(10));
+        // Asking for something older loads it.
+        assertEquals(chain.get(9), index.getAncestor(head, 10));
+        assertEquals(genesis, index.getAncestor(head, 0));
+        assertEquals(0, index.getBaseHeight());
+        assertNull(index.getAncestor(head, head.getHeight() + 1));
+        assertEquals(head, index.getAncestor(head, head.getHeight()));
+        // The median of the last 11 blocks is the sixth from the top.
+        assertEquals(chain.get(chain.size() - 6).getHeader().getTimeSeconds(), index.getMedianTimestamp(head));
+        assertEquals(genesis.getHeader().getTimeSeconds(), index.getMedianTimestamp(genesis));
+        assertEquals(chain.get(0).getHeader().getTimeSeconds(), index.getMedianTimestamp(chain.get(1)));
+    }
+
+    @Test
+    public void forksAndReorgs() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> main = extend(genesis, 20);
+        List<StoredBlock> fork = extend(main.get(9), 15);
+        HeaderChainIndex index = new HeaderChainIndex(store);
+        index.setChainHead(main.get(19));
+        for (StoredBlock block : fork)
+            index.addSideBlock(block);
+        StoredBlock forkHead = fork.get(fork.size() - 1);
+        assertEquals(main.get(9), index.findSplit(forkHead, main.get(19)));
+        assertEquals(main.get(5), index.findSplit(main.get(5), main.get(19)));
+        // Ancestors of side chain blocks are found through the fork point.
+        assertEquals(fork.get(0), index.getAncestor(forkHead, 11));
+        assertEquals(main.get(4), index.getAncestor(forkHead, 5));
+        // Reorganize onto the fork.
+        index.setChainHead(forkHead);
+        assertEquals(forkHead.getHeader().getHash(), index.getHash(forkHead.getHeight()));
+        assertEquals(fork.get(0).getHeader().getHash(), index.getHash(11));
+        assertEquals(main.get(9).getHeader().getHash(), index.getHash(10));
+        assertEquals(main.get(9), index.findSplit(main.get(19), forkHead));
+        // And back to an ancestor.
+        index.setChainHead(main.get(3));
+        assertNull(index.getHash(5));
+        assertEquals(main.get(3).getHeader().getHash(), index.getHash(4));
+    }
+
+    @Test
+    public void blockLocator() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = extend(genesis, 300);
+        StoredBlock head = chain.get(chain.size() - 1);
+        HeaderChainIndex index = new HeaderChainIndex(store);
+        index.setChainHead(head);
+        List<Sha256Hash> locator = index.getBlockLocator(head);
+        // A hundred consecutive blocks, then gaps of 2, 4, 8, 16, 32 and 64 down to height 75.
+        assertEquals(106, locator.size());
+        assertEquals(head.getHeader().getHash(), locator.get(0));
+        assertEquals(chain.get(200).getHeader().getHash(), locator.get(99));
+        assertEquals(chain.get(198).getHeader().getHash(), locator.get(100));
+        assertEquals(chain.get(74).getHeader().getHash(), locator.get(105));
+        // A block which isn't on the indexed chain has no locator.
+        assertNull(index.getBlockLocator(new StoredBlock(chain.get(5).getHeader(), head.getChainWork(), 7)));
+    }
+}
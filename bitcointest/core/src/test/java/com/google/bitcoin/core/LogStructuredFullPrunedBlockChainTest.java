@@ -0,0 +1,48 @@
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.LogStructuredFullPrunedBlockStore;
+import com.google.common.io.Files;
+import org.junit.After;
+
+import java.io.File;
+
+/**
+ * A LogStructuredFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest. Small segments are used so
+ * that segment rollover and compaction happen during the tests.
+ */
+public class LogStructuredFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private LogStructuredFullPrunedBlockStore store;
+    private File directory;
+
+    @After
+    public void tearDown() throws Exception {
+        deleteStore();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteStore();
+        directory = Files.createTempDir();
+        store = new LogStructuredFullPrunedBlockStore(params, directory, blockCount, 64 * 1024);
+        return store;
+    }
+
+    private void deleteStore() throws BlockStoreException {
+        if (store != null)
+            store.close();
+        if (directory != null) {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+        store = null;
+        directory = null;
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        //No-op, because a new directory is used for every store
+    }
+}
@@ -418,6 +418,248 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void parallelBlockDownload() throws Exception {
+        Utils.setMockClock();
+        // Blocks after the fast catchup time are fetched from all the peers, reassigned if a peer stalls, and passed
+        // to the chain in order.
+        peerGroup.setMinRequiredProtocolVersion(Pong.MIN_PROTOCOL_VERSION);
+        peerGroup.startAndWait();
+        peerGroup.getBlockDownloadScheduler().setStallTimeoutMillis(10000);
+        VersionMessage versionMessage = new VersionMessage(params, 5);
+        versionMessage.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+        InboundMessageQueuer p3 = connectPeer(3, versionMessage);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+
+        Block b1 = TestUtils.createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Utils.rollMockClock(60 * 10);
+        Block b2 = TestUtils.makeSolvedTestBlock(b1);
+        Utils.rollMockClock(60 * 10);
+        Block b3 = TestUtils.makeSolvedTestBlock(b2);
+        Utils.rollMockClock(60 * 10);
+        Block b4 = TestUtils.makeSolvedTestBlock(b3);
+        Utils.rollMockClock(60 * 10);
+        Block b5 = TestUtils.makeSolvedTestBlock(b4);
+        peerGroup.waitForJobQueue();
+        peerGroup.setFastCatchupTimeSecs(b3.getTimeSeconds());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, b2.cloneAsHeader(), b3.cloneAsHeader(), b4.cloneAsHeader(),
+                b5.cloneAsHeader()));
+        // Each peer is asked for one of the blocks after the fast catchup time.
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, b3.getHash())), getdata.getItems());
+        getdata = (GetDataMessage) outbound(p2);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, b4.getHash())), getdata.getItems());
+        getdata = (GetDataMessage) outbound(p3);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, b5.getHash())), getdata.getItems());
+        assertEquals(2, blockChain.getBestChainHeight());
+        // The last block arrives first and waits for the ones before it.
+        inbound(p3, b5);
+        pingAndWait(p3);
+        inbound(p1, b3);
+        pingAndWait(p1);
+        peerGroup.getBlockDownloadScheduler().waitForDelivery();
+        assertEquals(3, blockChain.getBestChainHeight());
+        // Peer 2 doesn't send its block, so once the stall timeout passes it's asked for from peer 1 instead.
+        Utils.rollMockClock(11);
+        getdata = (GetDataMessage) waitForOutbound(p1);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, b4.getHash())), getdata.getItems());
+        inbound(p1, b4);
+        pingAndWait(p1);
+        peerGroup.getBlockDownloadScheduler().waitForDelivery();
+        // Once everything has arrived, the download peer carries on with getblocks.
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(p1);
+        assertEquals(b5.getHash(), getblocks.getLocator().get(0));
+        assertEquals(5, blockChain.getBestChainHeight());
+        Map<Peer, BlockDownloadScheduler.PeerStats> stats = peerGroup.getBlockDownloadScheduler().getStats();
+        assertEquals(2, stats.get(peerOf(p1)).getBlocksReceived());
+        assertEquals(0, stats.get(peerOf(p2)).getBlocksReceived());
+        assertEquals(1, stats.get(peerOf(p2)).getStalls());
+        assertEquals(1, stats.get(peerOf(p3)).getBlocksReceived());
+        assertEquals(0, stats.get(peerOf(p3)).getBlocksInFlight());
+        // A late copy of the block from peer 2 is ignored.
+        inbound(p2, b4);
+        assertNull(outbound(p2));
+        assertEquals(5, blockChain.getBestChainHeight());
+    }
+
+    @Test
+    public void parallelBlockDownloadBadBlock() throws Exception {
+        Utils.setMockClock();
+        // A peer which sends a block that fails verification is disconnected, and the block is asked for again.
+        peerGroup.setMinRequiredProtocolVersion(Pong.MIN_PROTOCOL_VERSION);
+        peerGroup.addEventListener(listener);
+        peerGroup.startAndWait();
+        VersionMessage versionMessage = new VersionMessage(params, 4);
+        versionMessage.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+
+        Block b1 = TestUtils.createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Utils.rollMockClock(60 * 10);
+        Block b2 = TestUtils.makeSolvedTestBlock(b1);
+        Utils.rollMockClock(60 * 10);
+        Block b3 = TestUtils.makeSolvedTestBlock(b2);
+        Utils.rollMockClock(60 * 10);
+        // Only the contents of blocks with transactions relevant to the wallet are checked, so b4 pays it.
+        Block b4 = TestUtils.makeSolvedTestBlock(b3, TestUtils.createFakeTx(params, Utils.COIN, address));
+        peerGroup.waitForJobQueue();
+        peerGroup.setFastCatchupTimeSecs(b3.getTimeSeconds());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, b2.cloneAsHeader(), b3.cloneAsHeader(), b4.cloneAsHeader()));
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, b3.getHash())), getdata.getItems());
+        getdata = (GetDataMessage) outbound(p2);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, b4.getHash())), getdata.getItems());
+        inbound(p1, b3);
+        pingAndWait(p1);
+        // Peer 2 sends a block with the right header but a transaction, changed in its lock time, that doesn't match
+        // the merkle root.
+        byte[] bits = b4.bitcoinSerialize();
+        bits[bits.length - 1]++;
+        Block bad = new Block(params, bits);
+        assertEquals(b4.getHash(), bad.getHash());
+        inbound(p2, bad);
+        assertEquals(peerOf(p2), disconnectedPeers.take());
+        // So the block is asked for from peer 1 instead.
+        getdata = (GetDataMessage) waitForOutbound(p1);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, b4.getHash())), getdata.getItems());
+        assertEquals(3, blockChain.getBestChainHeight());
+        inbound(p1, b4);
+        pingAndWait(p1);
+        peerGroup.getBlockDownloadScheduler().waitForDelivery();
+        assertEquals(4, blockChain.getBestChainHeight());
+    }
+
+    @Test
+    public void parallelBlockDownloadRestart() throws Exception {
+        Utils.setMockClock();
+        // If none of the scheduled blocks turns up for a long time, the download peer starts over with getblocks.
+        peerGroup.setMinRequiredProtocolVersion(Pong.MIN_PROTOCOL_VERSION);
+        peerGroup.startAndWait();
+        VersionMessage versionMessage = new VersionMessage(params, 4);
+        versionMessage.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+
+        Block b1 = TestUtils.createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Utils.rollMockClock(60 * 10);
+        Block b2 = TestUtils.makeSolvedTestBlock(b1);
+        Utils.rollMockClock(60 * 10);
+        Block b3 = TestUtils.makeSolvedTestBlock(b2);
+        Utils.rollMockClock(60 * 10);
+        Block b4 = TestUtils.makeSolvedTestBlock(b3);
+        peerGroup.waitForJobQueue();
+        peerGroup.setFastCatchupTimeSecs(b3.getTimeSeconds());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, b2.cloneAsHeader(), b3.cloneAsHeader(), b4.cloneAsHeader()));
+        assertTrue(outbound(p1) instanceof GetDataMessage);
+        assertTrue(outbound(p2) instanceof GetDataMessage);
+        Utils.rollMockClock((int) (Peer.BLOCKS_FROM_HEADERS_TIMEOUT_MSEC / 1000) + 1);
+        GetBlocksMessage getblocks = (GetBlocksMessage) waitForOutbound(p1);
+        assertEquals(b2.getHash(), getblocks.getLocator().get(0));
+        assertEquals(0, peerGroup.getBlockDownloadScheduler().getPendingCount());
+    }
+
+    @Test
+    public void parallelBlockDownloadBufferLimit() throws Exception {
+        Utils.setMockClock();
+        // Once the blocks waiting for a slow peer take up too much memory, only the missing blocks are requested.
+        peerGroup.setMinRequiredProtocolVersion(Pong.MIN_PROTOCOL_VERSION);
+        peerGroup.startAndWait();
+        BlockDownloadScheduler scheduler = peerGroup.getBlockDownloadScheduler();
+        scheduler.setWindowSize(1);
+        scheduler.setMaxBufferedBytes(1);
+        VersionMessage versionMessage = new VersionMessage(params, 6);
+        versionMessage.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+
+        Block b1 = TestUtils.createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Block[] blocks = new Block[7];
+        blocks[1] = b1;
+        for (int i = 2; i < blocks.length; i++) {
+            Utils.rollMockClock(60 * 10);
+            blocks[i] = TestUtils.makeSolvedTestBlock(blocks[i - 1]);
+        }
+        peerGroup.waitForJobQueue();
+        peerGroup.setFastCatchupTimeSecs(blocks[3].getTimeSeconds());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, blocks[2].cloneAsHeader(), blocks[3].cloneAsHeader(),
+                blocks[4].cloneAsHeader(), blocks[5].cloneAsHeader(), blocks[6].cloneAsHeader()));
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, blocks[3].getHash())), getdata.getItems());
+        getdata = (GetDataMessage) outbound(p2);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, blocks[4].getHash())), getdata.getItems());
+        // Peer 2 is quick, but its block has to wait for peer 1's, so it isn't given another.
+        inbound(p2, blocks[4]);
+        pingAndWait(p2);
+        scheduler.waitForDelivery();
+        assertNull(outbound(p2));
+        assertEquals(2, blockChain.getBestChainHeight());
+        // Once the gap is filled, the download carries on.
+        inbound(p1, blocks[3]);
+        pingAndWait(p1);
+        scheduler.waitForDelivery();
+        assertEquals(4, blockChain.getBestChainHeight());
+        getdata = (GetDataMessage) outbound(p1);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, blocks[5].getHash())), getdata.getItems());
+        getdata = (GetDataMessage) outbound(p2);
+        assertEquals(ImmutableList.of(new InventoryItem(InventoryItem.Type.Block, blocks[6].getHash())), getdata.getItems());
+    }
+
+    @Test
+    public void downloadPeerSwitching() throws Exception {
+        Utils.setMockClock();
+        // A download peer that stops sending us blocks is replaced by a better scoring one, but not straight away.
+        peerGroup.setMinRequiredProtocolVersion(Pong.MIN_PROTOCOL_VERSION);
+        peerGroup.startAndWait();
+        VersionMessage versionMessage = new VersionMessage(params, 5);
+        versionMessage.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        assertEquals(peerGroup.getPeerScore(peerOf(p1)), peerGroup.getPeerScore(peerOf(p2)), 0.0);
+        // Peer 1 has blocks for us but sends nothing, which eventually counts as a stall.
+        for (int i = 0; i < 4; i++) {
+            Utils.rollMockClock(5);
+            peerGroup.updatePeerScores();
+        }
+        assertTrue(peerGroup.getPeerScore(peerOf(p1)) < peerGroup.getPeerScore(peerOf(p2)));
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        // Once it has had its chance, the download moves over to peer 2.
+        Utils.rollMockClock(15);
+        peerGroup.updatePeerScores();
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        assertTrue(outbound(p2) instanceof GetBlocksMessage);
+        assertEquals(2, peerGroup.getPeerScores().size());
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         peerGroup.startAndWait();
@@ -437,7 +437,8 @@ public class PeerTest extends TestWithNetworkConnections {
     public void fastCatchup() throws Exception {
         connect();
         
-        // Check that blocks before the fast catchup point are retrieved using getheaders, and after using getblocks.
+        // Check that blocks before the fast catchup point are retrieved using getheaders, the blocks of the headers
+        // after it are requested straight away, and then we carry on using getblocks.
         // This test is INCOMPLETE because it does not check we handle >2000 blocks correctly.
         Block b1 = createFakeBlock(blockStore).block;
         blockChain.add(b1);
@@ -461,26 +462,116 @@ public class PeerTest extends TestWithNetworkConnections {
         HeadersMessage headers = new HeadersMessage(unitTestParams, b2.cloneAsHeader(),
                 b3.cloneAsHeader(), b4.cloneAsHeader());
         // We expect to be asked for b3 and b4 again, but this time, with a body.
+        inbound(writeTarget, headers);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(2, getdata.getItems().size());
+        assertEquals(b3.getHash(), getdata.getItems().get(0).hash);
+        assertEquals(b4.getHash(), getdata.getItems().get(1).hash);
+        assertEquals(2, blockChain.getBestChainHeight());
+        inbound(writeTarget, b3);
+        inbound(writeTarget, b4);
+        // Once the last of them arrives, we ask for whatever comes after.
         expectedLocator.clear();
+        expectedLocator.add(b4.getHash());
+        expectedLocator.add(b3.getHash());
         expectedLocator.add(b2.getHash());
         expectedLocator.add(b1.getHash());
         expectedLocator.add(unitTestParams.getGenesisBlock().getHash());
-        inbound(writeTarget, headers);
         GetBlocksMessage getblocks = (GetBlocksMessage) outbound(writeTarget);
         assertEquals(expectedLocator, getblocks.getLocator());
         assertEquals(Sha256Hash.ZERO_HASH, getblocks.getStopHash());
-        // We're supposed to get an inv here.
+        assertEquals(4, blockChain.getBestChainHeight());
+        // Headers are counted apart from blocks, so they don't make the peer look faster than it is.
+        assertEquals(2, peer.getBlocksReceived());
+        assertEquals(3, peer.getHeadersReceived());
+        // All done.
+        pingAndWait(writeTarget);
+        closePeer(peer);
+    }
+
+    @Test
+    public void fastCatchupBlockNotFound() throws Exception {
+        // The peer sends the headers of b3 and b4 but then says it doesn't have b3, so we start again from the chain
+        // head rather than waiting for it forever.
+        Block[] blocks = requestBlocksFromHeaders();
+        Block b2 = blocks[1], b3 = blocks[2], b4 = blocks[3];
+        NotFoundMessage notFound = new NotFoundMessage(unitTestParams);
+        notFound.addItem(new InventoryItem(InventoryItem.Type.Block, b3.getHash()));
+        inbound(writeTarget, notFound);
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(writeTarget);
+        assertEquals(b2.getHash(), getblocks.getLocator().get(0));
+        assertEquals(Sha256Hash.ZERO_HASH, getblocks.getStopHash());
+        // The peer announces the blocks after b2, and this time b3 turns up.
+        inbound(writeTarget, b4);
+        getblocks = (GetBlocksMessage) outbound(writeTarget);
+        assertEquals(b4.getHash(), getblocks.getStopHash());
         InventoryMessage inv = new InventoryMessage(unitTestParams);
-        inv.addItem(new InventoryItem(InventoryItem.Type.Block, b3.getHash()));
+        inv.addBlock(b3);
+        inv.addBlock(b4);
         inbound(writeTarget, inv);
         GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
         assertEquals(b3.getHash(), getdata.getItems().get(0).hash);
-        // All done.
         inbound(writeTarget, b3);
         pingAndWait(writeTarget);
+        assertEquals(4, blockChain.getBestChainHeight());
         closePeer(peer);
     }
 
+    @Test
+    public void fastCatchupBlockNeverArrives() throws Exception {
+        // The peer sends b4 but silently leaves out b3.
+        Block[] blocks = requestBlocksFromHeaders();
+        Block b2 = blocks[1], b3 = blocks[2], b4 = blocks[3];
+        inbound(writeTarget, b4);
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(writeTarget);
+        assertEquals(b4.getHash(), getblocks.getStopHash());
+        // b3 is still outstanding, so announcing it again doesn't get it requested.
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        inv.addBlock(b3);
+        inv.addBlock(b4);
+        inbound(writeTarget, inv);
+        assertNull(outbound(writeTarget));
+        // Once we've waited long enough for it, the next message from the peer restarts the download.
+        Utils.rollMockClockMillis(Peer.BLOCKS_FROM_HEADERS_TIMEOUT_MSEC);
+        inbound(writeTarget, inv);
+        getblocks = (GetBlocksMessage) outbound(writeTarget);
+        assertEquals(b2.getHash(), getblocks.getLocator().get(0));
+        assertEquals(Sha256Hash.ZERO_HASH, getblocks.getStopHash());
+        getblocks = (GetBlocksMessage) outbound(writeTarget);
+        assertEquals(b4.getHash(), getblocks.getStopHash());
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(b3.getHash(), getdata.getItems().get(0).hash);
+        inbound(writeTarget, b3);
+        pingAndWait(writeTarget);
+        assertEquals(4, blockChain.getBestChainHeight());
+        closePeer(peer);
+    }
+
+    // Sets up a fast catchup in which b1 is in the chain, the header of b2 is added to it and the bodies of b3 and b4
+    // have just been requested, and returns b1 to b4.
+    private Block[] requestBlocksFromHeaders() throws Exception {
+        connect();
+        Block b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Utils.rollMockClock(60 * 10);
+        Block b2 = makeSolvedTestBlock(b1);
+        Utils.rollMockClock(60 * 10);
+        Block b3 = makeSolvedTestBlock(b2);
+        Utils.rollMockClock(60 * 10);
+        Block b4 = makeSolvedTestBlock(b3);
+        peer.setDownloadParameters(Utils.currentTimeSeconds() - (600*2) + 1, false);
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        inbound(writeTarget, new HeadersMessage(unitTestParams, b2.cloneAsHeader(), b3.cloneAsHeader(),
+                b4.cloneAsHeader()));
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(2, getdata.getItems().size());
+        assertEquals(2, blockChain.getBestChainHeight());
+        return new Block[] {b1, b2, b3, b4};
+    }
+
     @Test
     public void pingPong() throws Exception {
         connect();
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScriptVerificationPoolTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private ScriptVerificationPool pool;
+    private ECKey key;
+    private Script scriptPubKey;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ScriptVerificationPool(3);
+        key = new ECKey();
+        scriptPubKey = ScriptBuilder.createOutputScript(key);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+    }
+
+    // Creates a transaction with the given number of inputs, all signed.
+    private Transaction createTransaction(int numInputs) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.toNanoCoins(1, 0), key);
+        for (int i = 0; i < numInputs; i++) {
+            Sha256Hash prevHash = Sha256Hash.create(new byte[] {(byte) i, (byte) numInputs});
+            tx.addInput(new TransactionInput(params, tx, new byte[] {}, new TransactionOutPoint(params, 0, prevHash)));
+        }
+        for (int i = 0; i < numInputs; i++) {
+            TransactionSignature signature = tx.calculateSignature(i, key, scriptPubKey, Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature));
+        }
+        return tx;
+    }
+
+    private List<Script> prevOutScripts(Transaction tx) {
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            scripts.add(scriptPubKey);
+        return scripts;
+    }
+
+    @Test
+    public void verifiesEveryInput() throws Exception {
+        Transaction big = createTransaction(40);
+        Transaction small = createTransaction(2);
+        ScriptVerificationPool.Job job = pool.newJob();
+        job.add(big, prevOutScripts(big), true);
+        job.add(small, prevOutScripts(small), true);
+        job.await();
+        assertEquals(42, job.getInputCount());
+    }
+
+    @Test
+    public void failureIsReported() throws Exception {
+        Transaction tx = createTransaction(20);
+        // Break the signature of one input in the middle.
+        tx.getInput(10).setScriptSig(tx.getInput(3).getScriptSig());
+        ScriptVerificationPool.Job job = pool.newJob();
+        job.add(tx, prevOutScripts(tx), true);
+        try {
+            job.await();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // The pool is still usable afterwards.
+        Transaction good = createTransaction(5);
+        job = pool.newJob();
+        job.add(good, prevOutScripts(good), true);
+        job.await();
+    }
+
+    @Test
+    public void cancelledJobFinishes() throws Exception {
+        // Nothing gets verified, so waiting must not look like success.
+        ScriptVerificationPool empty = new ScriptVerificationPool(0);
+        Transaction tx = createTransaction(20);
+        ScriptVerificationPool.Job job = empty.newJob();
+        job.add(tx, prevOutScripts(tx), true);
+        job.cancel();
+        try {
+            job.await();
+            fail();
+        } catch (CancellationException e) {
+            assertTrue(e.getMessage().contains("20 of 20"));
+        }
+        empty.shutdown();
+    }
+
+    @Test
+    public void cancelAfterVerificationSucceeds() throws Exception {
+        Transaction tx = createTransaction(5);
+        ScriptVerificationPool.Job job = pool.newJob();
+        job.add(tx, prevOutScripts(tx), true);
+        job.await();
+        // Every input was verified before the cancellation, so there's nothing to skip.
+        job.cancel();
+        job.await();
+    }
+
+    @Test
+    public void poolWithoutThreads() throws Exception {
+        ScriptVerificationPool empty = new ScriptVerificationPool(0);
+        Transaction tx = createTransaction(10);
+        ScriptVerificationPool.Job job = empty.newJob();
+        job.add(tx, prevOutScripts(tx), true);
+        job.await();
+        assertEquals(10, job.getInputCount());
+        empty.shutdown();
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptOpCodes;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link SigHashCalculator} against the original algorithm, which blanked out the transaction in place and
+ * reserialized it for every input.
+ */
+public class SigHashCalculatorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final Sha256Hash SIGHASH_SINGLE_BUG_HASH =
+            new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void allModesMatchReference() throws Exception {
+        for (int round = 0; round < 40; round++) {
+            Transaction tx = randomTransaction(1 + random.nextInt(6), random.nextInt(6));
+            for (int inputIndex = 0; inputIndex < tx.getInputs().size(); inputIndex++) {
+                byte[] connectedScript = randomConnectedScript();
+                for (Transaction.SigHash type : new Transaction.SigHash[] {
+                        Transaction.SigHash.ALL, Transaction.SigHash.NONE, Transaction.SigHash.SINGLE}) {
+                    for (boolean anyoneCanPay : new boolean[] {false, true}) {
+                        byte sigHashType = (byte) ((type.ordinal() + 1) | (anyoneCanPay ? 0x80 : 0));
+                        assertEquals("type " + sigHashType + " input " + inputIndex + " of " + tx,
+                                referenceHash(tx, inputIndex, connectedScript, sigHashType),
+                                tx.hashForSignature(inputIndex, connectedScript, sigHashType));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unusualHashTypesMatchReference() throws Exception {
+        // Only the low five bits select the mode, anything unrecognised is treated like SIGHASH_ALL and the whole
+        // byte is still committed to.
+        Transaction tx = randomTransaction(3, 2);
+        byte[] connectedScript = randomConnectedScript();
+        for (int sigHashType : new int[] {0, 4, 0x21, 0x42, 0x83, 0x7f, 0xff}) {
+            for (int inputIndex = 0; inputIndex < 3; inputIndex++) {
+                assertEquals(referenceHash(tx, inputIndex, connectedScript, (byte) sigHashType),
+                        tx.hashForSignature(inputIndex, connectedScript, (byte) sigHashType));
+            }
+        }
+    }
+
+    @Test
+    public void singleWithoutMatchingOutputReturnsBugHash() throws Exception {
+        Transaction tx = randomTransaction(4, 2);
+        byte[] connectedScript = randomConnectedScript();
+        for (boolean anyoneCanPay : new boolean[] {false, true}) {
+            byte sigHashType = (byte) ((Transaction.SigHash.SINGLE.ordinal() + 1) | (anyoneCanPay ? 0x80 : 0));
+            assertFalse(SIGHASH_SINGLE_BUG_HASH.equals(tx.hashForSignature(1, connectedScript, sigHashType)));
+            assertEquals(SIGHASH_SINGLE_BUG_HASH, tx.hashForSignature(2, connectedScript, sigHashType));
+            assertEquals(SIGHASH_SINGLE_BUG_HASH, tx.hashForSignature(3, connectedScript, sigHashType));
+            assertEquals(referenceHash(tx, 3, connectedScript, sigHashType),
+                    tx.hashForSignature(3, connectedScript, sigHashType));
+        }
+    }
+
+    @Test
+    public void changesInvalidateSnapshot() throws Exception {
+        Transaction tx = randomTransaction(2, 2);
+        byte[] connectedScript = randomConnectedScript();
+        byte all = (byte) (Transaction.SigHash.ALL.ordinal() + 1);
+        Sha256Hash before = tx.hashForSignature(0, connectedScript, all);
+        tx.addOutput(new TransactionOutput(params, tx, BigInteger.TEN, new byte[] {ScriptOpCodes.OP_TRUE}));
+        Sha256Hash after = tx.hashForSignature(0, connectedScript, all);
+        assertFalse(before.equals(after));
+        assertEquals(referenceHash(tx, 0, connectedScript, all), after);
+    }
+
+    private Transaction randomTransaction(int numInputs, int numOutputs) {
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < numInputs; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            TransactionOutPoint outpoint = new TransactionOutPoint(params, random.nextInt(4), new Sha256Hash(hash));
+            byte[] scriptSig = new byte[random.nextInt(80)];
+            random.nextBytes(scriptSig);
+            TransactionInput input = tx.addInput(new TransactionInput(params, tx, scriptSig, outpoint));
+            if (random.nextBoolean())
+                input.setSequenceNumber(random.nextInt() & 0xFFFFFFFFL);
+        }
+        for (int i = 0; i < numOutputs; i++) {
+            byte[] scriptPubKey = new byte[1 + random.nextInt(40)];
+            random.nextBytes(scriptPubKey);
+            tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(random.nextInt(1000000)), scriptPubKey));
+        }
+        tx.setLockTime(random.nextInt() & 0xFFFFFFFFL);
+        // Round trip so that the version and lock time come from a parsed transaction, as they do when verifying.
+        return new Transaction(params, tx.bitcoinSerialize());
+    }
+
+    private byte[] randomConnectedScript() {
+        // Sprinkle in some OP_CODESEPARATORs, which have to be removed before hashing.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int ops = 1 + random.nextInt(6);
+        for (int i = 0; i < ops; i++) {
+            if (random.nextBoolean()) {
+                bos.write(ScriptOpCodes.OP_CODESEPARATOR);
+            } else {
+                bos.write(20);
+                byte[] push = new byte[20];
+                random.nextBytes(push);
+                bos.write(push, 0, push.length);
+            }
+        }
+        bos.write(ScriptOpCodes.OP_CHECKSIG);
+        return bos.toByteArray();
+    }
+
+    /**
+     * The signature hash algorithm as Transaction.hashForSignature used to implement it, applied to a copy of the
+     * transaction so that the original is left alone.
+     */
+    private static Sha256Hash referenceHash(Transaction original, int inputIndex, byte[] connectedScript,
+                                            byte sigHashType) throws Exception {
+        Transaction tx = new Transaction(params, original.bitcoinSerialize());
+        for (TransactionInput input : tx.getInputs())
+            input.setScriptBytes(TransactionInput.EMPTY_ARRAY);
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        TransactionInput input = tx.getInputs().get(inputIndex);
+        input.setScriptBytes(connectedScript);
+
+        if ((sigHashType & 0x1f) == (Transaction.SigHash.NONE.ordinal() + 1)) {
+            tx.clearOutputs();
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                if (i != inputIndex)
+                    tx.getInputs().get(i).setSequenceNumber(0);
+        } else if ((sigHashType & 0x1f) == (Transaction.SigHash.SINGLE.ordinal() + 1)) {
+            if (inputIndex >= tx.getOutputs().size())
+                return SIGHASH_SINGLE_BUG_HASH;
+            TransactionOutput signed = tx.getOutputs().get(inputIndex);
+            tx.clearOutputs();
+            for (int i = 0; i < inputIndex; i++)
+                tx.addOutput(new TransactionOutput(params, tx, BigInteger.ONE.negate(), new byte[] {}));
+            tx.addOutput(signed);
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                if (i != inputIndex)
+                    tx.getInputs().get(i).setSequenceNumber(0);
+        }
+
+        if ((sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == Transaction.SIGHASH_ANYONECANPAY_VALUE) {
+            tx.clearInputs();
+            tx.addInput(input);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        tx.bitcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
+}
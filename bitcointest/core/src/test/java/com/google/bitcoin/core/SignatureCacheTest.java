@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private SignatureCache previous;
+    private SignatureCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        previous = ECKey.getSignatureCache();
+        cache = new SignatureCache(10);
+        ECKey.setSignatureCache(cache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ECKey.setSignatureCache(previous);
+    }
+
+    @Test
+    public void validSignaturesAreCached() throws Exception {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        ECKey.ECDSASignature sig = key.sign(hash);
+        assertTrue(key.verify(hash, sig));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+        assertTrue(key.verify(hash.getBytes(), sig.encodeToDER()));
+        assertEquals(1, cache.getHits());
+        assertEquals(0.5, cache.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void invalidSignaturesAreNotCached() throws Exception {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        Sha256Hash other = Sha256Hash.create(new byte[] {2});
+        ECKey.ECDSASignature sig = key.sign(hash);
+        assertFalse(key.verify(other, sig));
+        assertFalse(key.verify(other, sig));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getMisses());
+        // A valid entry for the same signature doesn't make it valid for anything else.
+        assertTrue(key.verify(hash, sig));
+        assertFalse(key.verify(other, sig));
+        assertFalse(new ECKey().verify(hash, sig));
+    }
+
+    @Test
+    public void evictsWhenFull() throws Exception {
+        ECKey key = new ECKey();
+        for (int i = 0; i < 25; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i});
+            ECKey.ECDSASignature sig = key.sign(hash);
+            cache.add(hash.getBytes(), sig, key.getPubKey());
+            assertTrue(cache.contains(hash.getBytes(), sig, key.getPubKey()));
+        }
+        assertEquals(10, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void concurrentAddsStayBounded() throws Exception {
+        final ECKey key = new ECKey();
+        final ECKey.ECDSASignature sig = key.sign(Sha256Hash.create(new byte[] {0}));
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 1000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 1000; i++) {
+                        byte[] data = new byte[4];
+                        Utils.uint32ToByteArrayBE(offset + i, data, 0);
+                        cache.add(data, sig, key.getPubKey());
+                        cache.contains(data, sig, key.getPubKey());
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(10, cache.size());
+        assertEquals(4000, cache.getHits() + cache.getMisses());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+}
@@ -20,6 +20,13 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.google.bitcoin.core.Utils.*;
 import static org.junit.Assert.*;
@@ -115,4 +122,52 @@ public class UtilsTest {
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[] {4,3,2,1,8,7,6,5}, 0));
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[0], 0));
     }
+
+    @Test
+    public void testDigests() {
+        byte[] input = "hello world".getBytes();
+        // Known SHA-256 and double SHA-256 values.
+        assertEquals("b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9",
+                bytesToHexString(singleDigest(input)));
+        assertEquals("bc62d4b80d9e36da29c16c5d4d9f11731f36052c72401a76c23c0fb5a9b74423",
+                bytesToHexString(doubleDigest(input)));
+        // Ranges and split inputs must all agree with hashing the plain array.
+        byte[] padded = new byte[input.length + 6];
+        System.arraycopy(input, 0, padded, 3, input.length);
+        assertArrayEquals(doubleDigest(input), doubleDigest(padded, 3, input.length));
+        assertArrayEquals(doubleDigest(input), doubleDigestTwoBuffers(input, 0, 5, input, 5, input.length - 5));
+        assertArrayEquals(doubleDigest(input), Sha256Hash.createDouble(padded, 3, input.length).getBytes());
+    }
+
+    @Test
+    public void testConcurrentDigests() throws Exception {
+        // Hash from many threads at once and check nothing gets mixed up between them.
+        final byte[][] inputs = new byte[64][];
+        final byte[][] expected = new byte[64][];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new byte[i * 17 + 1];
+            inputs[i][0] = (byte) i;
+            expected[i] = doubleDigest(inputs[i]);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int round = 0; round < 200; round++)
+                            for (int i = 0; i < inputs.length; i++)
+                                if (!Arrays.equals(expected[i], doubleDigest(inputs[i])))
+                                    return false;
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
@@ -21,6 +21,7 @@ import com.google.bitcoin.core.Transaction.SigHash;
 import com.google.bitcoin.core.Wallet.SendRequest;
 import com.google.bitcoin.wallet.DefaultCoinSelector;
 import com.google.bitcoin.wallet.RiskAnalysis;
+import com.google.bitcoin.crypto.EncryptedPrivateKey;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import com.google.bitcoin.crypto.KeyCrypterScrypt;
@@ -48,12 +49,15 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.encoders.Hex;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -550,6 +554,155 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, confTxns.size());
     }
 
+    @Test
+    public void eventHorizon() throws Exception {
+        // New blocks are only reported for transactions that are not buried too deep, or that asked for them.
+        wallet.setEventHorizon(2);
+        final LinkedList<Transaction> confTxns = new LinkedList<Transaction>();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confTxns.add(tx);
+            }
+        });
+        Transaction tx1 = sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        BigInteger work = tx1.getConfidence().getWorkDone();
+        ListenableFuture<Transaction> depthFuture = tx1.getConfidence().getDepthFuture(4);
+        Threading.waitForUserCode();
+        confTxns.clear();
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(2, confTxns.size());
+        assertEquals(3, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(work.multiply(BigInteger.valueOf(3)), tx1.getConfidence().getWorkDone());
+        assertFalse(depthFuture.isDone());
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(tx1, depthFuture.get());
+        // The depth future asked for blocks up to depth 4, after that nothing is reported but the depth is still right.
+        Threading.waitForUserCode();
+        confTxns.clear();
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(0, confTxns.size());
+        assertEquals(5, tx1.getConfidence().getDepthInBlocks());
+        tx1.getConfidence().requestDepthNotifications(10);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(1, confTxns.size());
+        assertEquals(6, tx1.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void depthReadBeforeNewBestBlock() throws Exception {
+        // The depth can be read without the wallet lock, for instance by another thread in between the wallet receiving
+        // a transaction in a block and being told about the block itself. It mustn't count that block twice.
+        Transaction tx = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        TestUtils.BlockPair bp = createFakeBlock(blockStore, tx);
+        wallet.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        BigInteger work = tx.getConfidence().getWorkDone();
+        assertEquals(1, tx.getConfidence().getDepthInBlocks());
+        wallet.notifyNewBestBlock(bp.storedBlock);
+        assertEquals(1, tx.getConfidence().getDepthInBlocks());
+        assertEquals(work, tx.getConfidence().getWorkDone());
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+        assertEquals(work.multiply(BigInteger.valueOf(2)), tx.getConfidence().getWorkDone());
+    }
+
+    @Test
+    public void eventHorizonAppliesToExistingTransactions() throws Exception {
+        final LinkedList<Transaction> confTxns = new LinkedList<Transaction>();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confTxns.add(tx);
+            }
+        });
+        Transaction tx1 = sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        assertEquals(3, tx1.getConfidence().getDepthInBlocks());
+        // Lowering the horizon below the depth of the transaction stops the reports.
+        wallet.setEventHorizon(2);
+        Threading.waitForUserCode();
+        confTxns.clear();
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(0, confTxns.size());
+        assertEquals(4, tx1.getConfidence().getDepthInBlocks());
+        // Raising it above the depth starts them again.
+        wallet.setEventHorizon(10);
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+        Threading.waitForUserCode();
+        assertEquals(1, confTxns.size());
+        assertEquals(5, tx1.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void eventHorizonIsNotSaved() throws Exception {
+        wallet.setEventHorizon(5);
+        Wallet wallet2 = new WalletProtobufSerializer().readWallet(
+                new ByteArrayInputStream(new WalletProtobufSerializer().walletToProto(wallet).toByteArray()));
+        assertEquals(Wallet.DEFAULT_EVENT_HORIZON, wallet2.getEventHorizon());
+    }
+
+    @Test
+    public void transactionInTwoWallets() throws Exception {
+        // The same transaction object can be in two wallets, each of which reports new blocks up to its own horizon,
+        // and its depth carries on being counted when one of them lets go of it.
+        Wallet wallet2 = new Wallet(params);
+        wallet2.addKey(myKey);
+        wallet2.setEventHorizon(3);
+        final LinkedList<Transaction> confTxns = new LinkedList<Transaction>();
+        final LinkedList<Transaction> confTxns2 = new LinkedList<Transaction>();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confTxns.add(tx);
+            }
+        });
+        wallet2.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                confTxns2.add(tx);
+            }
+        });
+        Transaction tx = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        TestUtils.BlockPair bp = createFakeBlock(blockStore, tx);
+        wallet.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(bp.storedBlock);
+        wallet2.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet2.notifyNewBestBlock(bp.storedBlock);
+        assertSame(tx, wallet.getTransaction(tx.getHash()));
+        assertSame(tx, wallet2.getTransaction(tx.getHash()));
+        assertEquals(1, tx.getConfidence().getDepthInBlocks());
+        Threading.waitForUserCode();
+        confTxns.clear();
+        confTxns2.clear();
+        for (int i = 0; i < 4; i++) {
+            StoredBlock block = createFakeBlock(blockStore).storedBlock;
+            wallet.notifyNewBestBlock(block);
+            wallet2.notifyNewBestBlock(block);
+        }
+        Threading.waitForUserCode();
+        assertEquals(5, tx.getConfidence().getDepthInBlocks());
+        assertEquals(4, confTxns.size());
+        // The second wallet stopped once the transaction was 3 deep.
+        assertEquals(2, confTxns2.size());
+        // Once the first wallet forgets the transaction, the second one carries on counting.
+        wallet.clearTransactions(0);
+        confTxns.clear();
+        wallet2.setEventHorizon(10);
+        StoredBlock block = createFakeBlock(blockStore).storedBlock;
+        wallet.notifyNewBestBlock(block);
+        wallet2.notifyNewBestBlock(block);
+        Threading.waitForUserCode();
+        assertEquals(6, tx.getConfidence().getDepthInBlocks());
+        assertEquals(0, confTxns.size());
+        assertEquals(3, confTxns2.size());
+    }
+
     @Test
     public void balances() throws Exception {
         BigInteger nanos = Utils.toNanoCoins(1, 0);
@@ -563,6 +716,43 @@ public class WalletTest extends TestWithWallet {
         assertEquals(BigInteger.ZERO.subtract(toNanoCoins(0, 10)), send2.getValue(wallet));
     }
 
+    @Test
+    public void spendCandidatesFollowWalletChanges() throws Exception {
+        // The wallet keeps its unspent outputs and estimated balance up to date as transactions come and go.
+        Transaction t1 = sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(Lists.newArrayList(t1.getOutput(0)), wallet.calculateAllSpendCandidates(true));
+        // Money to a key we don't have yet is picked up once the key is added.
+        ECKey key2 = new ECKey();
+        Transaction t2 = createFakeTx(params, Utils.toNanoCoins(2, 0), key2.toAddress(params));
+        wallet.receiveFromBlock(t2, null, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(Utils.toNanoCoins(1, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        wallet.addKey(key2);
+        assertEquals(Utils.toNanoCoins(1, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        sendMoneyToWallet(t2, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(Utils.toNanoCoins(3, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(Utils.toNanoCoins(3, 0), wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        // Spending removes the spent output and adds the change.
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(0, 50));
+        wallet.commitTx(send);
+        assertEquals(Utils.toNanoCoins(2, 50), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        List<TransactionOutput> candidates = wallet.calculateAllSpendCandidates(true);
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains(send.getOutput(1)));
+        // A double spend from the chain kills the spend, so its change goes away and the coin stays spent.
+        Transaction doubleSpend = new Transaction(params);
+        doubleSpend.addInput(send.getInput(0).getOutpoint().getConnectedOutput());
+        doubleSpend.addOutput(Utils.toNanoCoins(0, 1), new ECKey());
+        wallet.receiveFromBlock(doubleSpend, null, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(TransactionConfidence.ConfidenceType.DEAD, send.getConfidence().getConfidenceType());
+        TransactionOutput lost = doubleSpend.getInput(0).getConnectedOutput();
+        assertFalse(wallet.calculateAllSpendCandidates(true).contains(send.getOutput(1)));
+        assertFalse(wallet.calculateAllSpendCandidates(true).contains(lost));
+        assertEquals(Utils.toNanoCoins(3, 0).subtract(lost.getValue()), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        wallet.clearTransactions(0);
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.calculateAllSpendCandidates(false).isEmpty());
+    }
+
     @Test
     public void isConsistent_duplicates() throws Exception {
         // This test ensures that isConsistent catches duplicate transactions, eg, because we submitted the same block
@@ -1088,6 +1278,30 @@ public class WalletTest extends TestWithWallet {
         log.info(t2.toString(chain));
     }
 
+    @Test
+    public void keyLookup() throws Exception {
+        // Keys can be found by public key and by hash, and the lookups follow removal and encryption.
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        assertEquals(2, wallet.addKeys(Lists.newArrayList(key1, key2, new ECKey(null, key1.getPubKey()))));
+        assertEquals(key1, wallet.findKeyFromPubHash(key1.getPubKeyHash()));
+        assertEquals(key2, wallet.findKeyFromPubKey(key2.getPubKey()));
+        assertTrue(wallet.hasKey(new ECKey(null, key2.getPubKey())));
+        assertNull(wallet.findKeyFromPubKey(new ECKey().getPubKey()));
+        assertTrue(wallet.removeKey(key1));
+        assertFalse(wallet.removeKey(key1));
+        assertFalse(wallet.isPubKeyHashMine(key1.getPubKeyHash()));
+        assertFalse(wallet.isPubKeyMine(key1.getPubKey()));
+        assertTrue(wallet.isPubKeyMine(key2.getPubKey()));
+
+        wallet.encrypt(keyCrypter, aesKey);
+        ECKey encrypted = wallet.findKeyFromPubHash(key2.getPubKeyHash());
+        assertTrue(encrypted.isEncrypted());
+        assertEquals(encrypted, wallet.findKeyFromPubKey(key2.getPubKey()));
+        wallet.decrypt(aesKey);
+        assertFalse(wallet.findKeyFromPubHash(key2.getPubKeyHash()).isEncrypted());
+    }
+
     @Test
     public void watchingScripts() throws Exception {
         // Verify that pending transactions to watched addresses are relevant
@@ -1161,6 +1375,77 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.bitcoinSerialize()));
     }
 
+    @Test
+    public void bloomFilterKeptUpToDate() throws Exception {
+        // The wallet adds to its filter as keys and transactions turn up rather than building it again each time it
+        // is asked for, so check it always matches one built from scratch.
+        assertBloomFilterUpToDate(100);
+        ECKey key = new ECKey();
+        Transaction prevTx = new Transaction(params);
+        prevTx.addOutput(COIN, new ECKey());
+        prevTx.addOutput(COIN, new ECKey());
+        Transaction t1 = new Transaction(params);
+        t1.addOutput(CENT, myKey);
+        t1.addOutput(CENT, key);
+        t1.addInput(prevTx.getOutput(0));
+        t1 = roundTripTransaction(params, t1);
+        sendMoneyToWallet(t1, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        byte[] mine = new TransactionOutPoint(params, 0, t1).bitcoinSerialize();
+        byte[] theirs = new TransactionOutPoint(params, 1, t1).bitcoinSerialize();
+        // Note that these have a 1e-12 chance of failing this unit test due to a false positive
+        assertTrue(wallet.getBloomFilter(1e-12).contains(mine));
+        assertFalse(wallet.getBloomFilter(1e-12).contains(theirs));
+        assertBloomFilterUpToDate(100);
+
+        // The output paying the key's public key becomes part of the filter once we have the key.
+        wallet.addKey(key);
+        assertTrue(wallet.getBloomFilter(1e-12).contains(theirs));
+        assertBloomFilterUpToDate(100);
+
+        // A pending transaction is killed by a double spend. Its outpoint can't be taken out of the filter we already
+        // have, but it is left out of filters built with other parameters.
+        Transaction t2 = new Transaction(params);
+        t2.addOutput(CENT, myKey);
+        t2.addInput(prevTx.getOutput(1));
+        t2 = roundTripTransaction(params, t2);
+        sendMoneyToWallet(t2, null);
+        assertBloomFilterUpToDate(100);
+        Transaction t3 = new Transaction(params);
+        t3.addOutput(CENT, myAddress);
+        t3.addInput(prevTx.getOutput(1));
+        t3 = roundTripTransaction(params, t3);
+        sendMoneyToWallet(t3, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, wallet.getPoolSize(Pool.DEAD));
+        byte[] dead = new TransactionOutPoint(params, 0, t2).bitcoinSerialize();
+        assertTrue(wallet.getBloomFilter(100, 0.001, 0).contains(dead));
+        assertFalse(wallet.getBloomFilter(1e-12).contains(dead));
+        assertBloomFilterUpToDate(101);
+
+        wallet.removeKey(key);
+        assertFalse(wallet.getBloomFilter(1e-12).contains(theirs));
+        assertBloomFilterUpToDate(101);
+    }
+
+    private void assertBloomFilterUpToDate(int size) throws Exception {
+        List<byte[]> elements = new ArrayList<byte[]>();
+        for (ECKey key : wallet.getKeys()) {
+            elements.add(key.getPubKey());
+            elements.add(key.getPubKeyHash());
+        }
+        for (Transaction tx : wallet.getTransactions(false)) {
+            for (int i = 0; i < tx.getOutputs().size(); i++) {
+                TransactionOutput output = tx.getOutput(i);
+                if (output.isMine(wallet) && output.getScriptPubKey().isSentToRawPubKey())
+                    elements.add(new TransactionOutPoint(params, i, tx).bitcoinSerialize());
+            }
+        }
+        assertEquals(elements.size(), wallet.getBloomFilterElementCount());
+        BloomFilter expected = new BloomFilter(size, 0.001, 0);
+        for (byte[] element : elements)
+            expected.insert(element);
+        assertEquals(expected, wallet.getBloomFilter(size, 0.001, 0));
+    }
+
     @Test
     public void autosaveImmediate() throws Exception {
         // Test that the wallet will save itself automatically when it changes.
@@ -1180,6 +1465,171 @@ public class WalletTest extends TestWithWallet {
         assertFalse("Wallet not saved after receivePending", hash2.equals(hash3));  // File has changed again.
     }
 
+    @Test
+    public void saveStats() throws Exception {
+        // Test that the auto-save listener is told how the save went.
+        final WalletFiles.SaveStats[] results = new WalletFiles.SaveStats[1];
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        WalletFiles files = wallet.autosaveToFile(f, 0, TimeUnit.SECONDS, null);
+        files.setStatsListener(new WalletFiles.StatsListener() {
+            public void onSaveStats(WalletFiles.SaveStats stats) {
+                results[0] = stats;
+            }
+        });
+        wallet.addKey(new ECKey());
+        WalletFiles.SaveStats stats = results[0];
+        assertNotNull(stats);
+        assertEquals(f.length(), stats.getBytesWritten());
+        assertTrue(stats.getSnapshotMsec() <= stats.getSaveMsec());
+        Wallet wallet2 = Wallet.loadFromFile(f);
+        assertEquals(wallet.getKeys().size(), wallet2.getKeys().size());
+
+        // Saving by hand returns the same information.
+        wallet.shutdownAutosaveAndWait();
+        wallet.addKey(new ECKey());
+        File temp = File.createTempFile("bitcoinj-unit-test", null);
+        stats = wallet.saveToFile(temp, f);
+        assertEquals(f.length(), stats.getBytesWritten());
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void reserveCoins() throws Exception {
+        sendMoneyToWallet(wallet, COIN, myAddress, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(wallet, COIN, myAddress, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Address dest = new ECKey().toAddress(params);
+        Wallet.Reservation reservation = wallet.reserveCoins(SendRequest.to(dest, CENT), 1, TimeUnit.MINUTES);
+        assertTrue(reservation.isHeld());
+        assertEquals(1, reservation.getOutputs().size());
+        TransactionOutput reserved = reservation.getOutputs().get(0);
+        assertTrue(wallet.isReserved(reserved));
+        assertEquals(Collections.singleton(reserved), wallet.getReservedOutputs());
+        // The same request can't have coins reserved twice.
+        try {
+            wallet.reserveCoins(reservation.getRequest(), 1, TimeUnit.MINUTES);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        // Other sends don't use the reserved coin, and the balance doesn't change until the send is committed.
+        SendRequest req = SendRequest.to(dest, CENT);
+        wallet.completeTx(req);
+        assertNotSame(reserved, req.tx.getInput(0).getConnectedOutput());
+        try {
+            wallet.reserveCoins(SendRequest.to(dest, toNanoCoins(1, 1)), 1, TimeUnit.MINUTES);
+            fail();
+        } catch (InsufficientMoneyException e) {
+        }
+        assertEquals(toNanoCoins(2, 0), wallet.getBalance());
+        // It has to be signed before it's committed.
+        try {
+            reservation.commit();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        Transaction tx = reservation.sign();
+        assertTrue(tx.getInput(0).getScriptBytes().length > 0);
+        MockTransactionBroadcaster broadcaster = new MockTransactionBroadcaster(wallet);
+        Wallet.SendResult result = reservation.broadcast(broadcaster);
+        assertEquals(tx, broadcaster.waitForTransaction());
+        assertEquals(tx, result.tx);
+        assertFalse(reservation.isHeld());
+        assertFalse(wallet.isReserved(reserved));
+        assertFalse(reserved.isAvailableForSpending());
+        assertEquals(toNanoCoins(1, 99), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void reservationExpiresAndReleases() throws Exception {
+        Utils.setMockClock();
+        sendMoneyToWallet(wallet, COIN, myAddress, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Address dest = new ECKey().toAddress(params);
+        Wallet.Reservation reservation = wallet.reserveCoins(SendRequest.to(dest, CENT), 10, TimeUnit.SECONDS);
+        try {
+            wallet.completeTx(SendRequest.to(dest, CENT));
+            fail();
+        } catch (InsufficientMoneyException e) {
+        }
+        // Once the reservation expires the coin can be used again, and the reservation can't be signed.
+        Utils.rollMockClock(11);
+        assertFalse(reservation.isHeld());
+        assertTrue(wallet.getReservedOutputs().isEmpty());
+        try {
+            reservation.sign();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        Wallet.Reservation second = wallet.reserveCoins(SendRequest.to(dest, CENT), 10, TimeUnit.SECONDS);
+        second.release();
+        assertFalse(second.isHeld());
+        wallet.completeTx(SendRequest.to(dest, CENT));
+    }
+
+    @Test
+    public void reservationExpiresAfterSigning() throws Exception {
+        Utils.setMockClock();
+        sendMoneyToWallet(wallet, COIN, myAddress, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Address dest = new ECKey().toAddress(params);
+        Wallet.Reservation reservation = wallet.reserveCoins(SendRequest.to(dest, CENT), 10, TimeUnit.SECONDS);
+        reservation.sign();
+        // Once it expires the signed transaction can't be committed, and the coin goes to the next send.
+        Utils.rollMockClock(11);
+        try {
+            reservation.commit();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.getPendingTransactions().isEmpty());
+        SendRequest req = SendRequest.to(dest, CENT);
+        wallet.completeTx(req);
+        assertEquals(reservation.getOutputs().get(0), req.tx.getInput(0).getConnectedOutput());
+        // The expired request is completed, so it can't have coins reserved again.
+        try {
+            wallet.reserveCoins(reservation.getRequest(), 10, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void concurrentReservations() throws Exception {
+        final int sends = 20;
+        for (int i = 0; i < sends; i++)
+            sendMoneyToWallet(wallet, CENT, myAddress, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        final Address dest = new ECKey().toAddress(params);
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < sends / 4; j++) {
+                            SendRequest req = SendRequest.to(dest, CENT);
+                            req.fee = BigInteger.ZERO;
+                            req.feePerKb = BigInteger.ZERO;
+                            req.ensureMinRequiredFee = false;
+                            Wallet.Reservation reservation = wallet.reserveCoins(req, 1, TimeUnit.MINUTES);
+                            reservation.sign();
+                            reservation.commit();
+                        }
+                    } catch (Exception e) {
+                        log.error("Send failed", e);
+                        failures.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+        latch.await();
+        // Every coin was spent exactly once.
+        assertEquals(0, failures.get());
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(sends, wallet.getPendingTransactions().size());
+        assertTrue(wallet.getReservedOutputs().isEmpty());
+    }
+
     @Test
     public void autosaveDelayed() throws Exception {
         // Test that the wallet will save itself automatically when it changes, but not immediately and near-by
@@ -1252,6 +1702,62 @@ public class WalletTest extends TestWithWallet {
         assertNull(results[1]);
     }
 
+    @Test
+    public void signInputsInParallel() throws Exception {
+        // Inputs spending to two encrypted keys are signed across several threads, each key being decrypted once.
+        final AtomicInteger decryptions = new AtomicInteger();
+        KeyCrypter countingCrypter = new KeyCrypter() {
+            @Override
+            public EncryptionType getUnderstoodEncryptionType() {
+                return keyCrypter.getUnderstoodEncryptionType();
+            }
+
+            @Override
+            public KeyParameter deriveKey(CharSequence password) throws KeyCrypterException {
+                return keyCrypter.deriveKey(password);
+            }
+
+            @Override
+            public byte[] decrypt(EncryptedPrivateKey encryptedBytesToDecode, KeyParameter aesKey) throws KeyCrypterException {
+                decryptions.incrementAndGet();
+                return keyCrypter.decrypt(encryptedBytesToDecode, aesKey);
+            }
+
+            @Override
+            public EncryptedPrivateKey encrypt(byte[] plainBytes, KeyParameter aesKey) throws KeyCrypterException {
+                return keyCrypter.encrypt(plainBytes, aesKey);
+            }
+        };
+        Wallet countingWallet = new Wallet(params, countingCrypter);
+        Address firstAddress = countingWallet.addNewEncryptedKey(countingCrypter, aesKey).toAddress(params);
+        Address otherAddress = countingWallet.addNewEncryptedKey(countingCrypter, aesKey).toAddress(params);
+        Transaction tx = new Transaction(params);
+        List<TransactionOutput> spent = new ArrayList<TransactionOutput>();
+        for (int i = 0; i < 10; i++) {
+            TransactionOutput output = createFakeTx(params, CENT, i % 2 == 0 ? firstAddress : otherAddress)
+                    .getOutput(0);
+            spent.add(output);
+            tx.addInput(output);
+        }
+        tx.addOutput(toNanoCoins(0, 10), new ECKey().toAddress(params));
+        // Without the AES key signing fails, and the failure comes back to the calling thread.
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            tx.signInputs(SigHash.ALL, countingWallet, null, executor);
+            fail();
+        } catch (KeyCrypterException e) {
+        }
+        decryptions.set(0);
+        Transaction.SigningStats stats = tx.signInputs(SigHash.ALL, countingWallet, aesKey, executor);
+        executor.shutdown();
+        assertEquals(10, stats.getInputsSigned());
+        assertEquals(2, decryptions.get());
+        for (int i = 0; i < spent.size(); i++)
+            tx.getInput(i).getScriptSig().correctlySpends(tx, i, spent.get(i).getScriptPubKey(), true);
+        // Inputs that are already signed are left alone.
+        assertEquals(0, tx.signInputs(SigHash.ALL, countingWallet, aesKey, null).getInputsSigned());
+    }
+
     @Test
     public void spendOutputFromPendingTransaction() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -18,6 +18,7 @@
 package com.google.bitcoin.script;
 
 import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.TestNet3Params;
 import com.google.common.collect.Lists;
@@ -433,4 +434,79 @@ public class ScriptTest {
         }
         in.close();
     }
+
+    @Test
+    public void numbersMatchBigIntegerEncoding() throws Exception {
+        long[] values = {0, 1, -1, 16, 17, -17, 127, 128, -128, 255, 256, 0x7FFF, 0x8000, -0x8000, 0x7FFFFFFFL,
+                -0x7FFFFFFFL, 0x80000000L, 0xFFFFFFFEL, -0xFFFFFFFEL};
+        for (long value : values) {
+            byte[] expected = Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false));
+            assertArrayEquals(expected, Script.encodeNumber(value));
+            if (expected.length <= 4)
+                assertEquals(value, Script.castToLong(expected));
+        }
+        // Negative zero.
+        assertEquals(0, Script.castToLong(new byte[] {0, (byte) 0x80}));
+        try {
+            Script.castToLong(new byte[5]);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    // Returns whether correctlySpends accepts the given scriptSig for input 0 of tx.
+    private static boolean spends(Transaction tx, Script scriptSig, Script scriptPubKey) {
+        // Round trip through bytes so the chunks are parsed as they would be off the network.
+        scriptSig = new Script(scriptSig.getProgram());
+        try {
+            scriptSig.correctlySpends(tx, 0, scriptPubKey, true);
+            return true;
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void standardTemplates() throws Exception {
+        ECKey key1 = new ECKey(), key2 = new ECKey(), key3 = new ECKey();
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.toNanoCoins(1, 0), key1);
+        tx.addInput(new TransactionInput(params, tx, new byte[] {},
+                new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] {1}))));
+
+        // Pay to address.
+        Script p2pkh = ScriptBuilder.createOutputScript(key1.toAddress(params));
+        TransactionSignature sig1 = tx.calculateSignature(0, key1, p2pkh, Transaction.SigHash.ALL, false);
+        assertTrue(spends(tx, ScriptBuilder.createInputScript(sig1, key1), p2pkh));
+        assertFalse(spends(tx, ScriptBuilder.createInputScript(sig1, key2), p2pkh));
+        TransactionSignature wrongSig = tx.calculateSignature(0, key2, p2pkh, Transaction.SigHash.ALL, false);
+        assertFalse(spends(tx, ScriptBuilder.createInputScript(wrongSig, key1), p2pkh));
+        assertFalse(spends(tx, new ScriptBuilder().data(key1.getPubKey()).build(), p2pkh));
+
+        // Pay to pubkey.
+        Script p2pk = ScriptBuilder.createOutputScript(key1);
+        sig1 = tx.calculateSignature(0, key1, p2pk, Transaction.SigHash.ALL, false);
+        assertTrue(spends(tx, ScriptBuilder.createInputScript(sig1), p2pk));
+        assertFalse(spends(tx, ScriptBuilder.createInputScript(wrongSig), p2pk));
+
+        // Bare 2 of 3 multisig. Signatures must be in the same order as the keys.
+        Script multisig = ScriptBuilder.createMultiSigOutputScript(2, Lists.newArrayList(key1, key2, key3));
+        sig1 = tx.calculateSignature(0, key1, multisig, Transaction.SigHash.ALL, false);
+        TransactionSignature sig3 = tx.calculateSignature(0, key3, multisig, Transaction.SigHash.ALL, false);
+        assertTrue(spends(tx, ScriptBuilder.createMultiSigInputScript(sig1, sig3), multisig));
+        assertFalse(spends(tx, ScriptBuilder.createMultiSigInputScript(sig3, sig1), multisig));
+        assertFalse(spends(tx, ScriptBuilder.createMultiSigInputScript(sig1), multisig));
+
+        // The same multisig script wrapped in P2SH.
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(Utils.sha256hash160(multisig.getProgram()));
+        sig1 = tx.calculateSignature(0, key1, multisig, Transaction.SigHash.ALL, false);
+        sig3 = tx.calculateSignature(0, key3, multisig, Transaction.SigHash.ALL, false);
+        Script p2shSig = new ScriptBuilder().data(new byte[] {}).data(sig1.encodeToBitcoin())
+                .data(sig3.encodeToBitcoin()).data(multisig.getProgram()).build();
+        assertTrue(spends(tx, p2shSig, p2sh));
+        Script wrongRedeemScript = new ScriptBuilder().data(new byte[] {}).data(sig1.encodeToBitcoin())
+                .data(sig3.encodeToBitcoin()).data(p2pk.getProgram()).build();
+        assertFalse(spends(tx, wrongRedeemScript, p2sh));
+    }
 }
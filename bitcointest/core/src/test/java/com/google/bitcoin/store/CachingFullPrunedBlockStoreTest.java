@@ -0,0 +1,219 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private int underlyingAdds;
+    private boolean failWrites;
+    private MemoryFullPrunedBlockStore underlying;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        underlyingAdds = 0;
+        failWrites = false;
+        underlying = new MemoryFullPrunedBlockStore(params, 10) {
+            @Override
+            public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+                underlyingAdds++;
+                super.addUnspentTransactionOutput(out);
+            }
+
+            @Override
+            public synchronized void applyUnspentTransactionOutputChanges(Collection<StoredTransactionOutput> created,
+                                                                          Collection<StoredTransactionOutput> spent)
+                    throws BlockStoreException {
+                if (failWrites)
+                    throw new BlockStoreException("Disk full");
+                super.applyUnspentTransactionOutputChanges(created, spent);
+            }
+        };
+        store = new CachingFullPrunedBlockStore(underlying, 1000000, Long.MAX_VALUE);
+    }
+
+    private static StoredTransactionOutput createOutput(int index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) index});
+        return new StoredTransactionOutput(hash, 0, BigInteger.TEN, 1, false, new byte[] {1, 2, 3});
+    }
+
+    private static TransactionOutPoint outPoint(NetworkParameters params, StoredTransactionOutput out) {
+        return new TransactionOutPoint(params, out.getIndex(), out.getHash());
+    }
+
+    @Test
+    public void createdAndSpentBeforeFlushNeverReachesStore() throws Exception {
+        StoredTransactionOutput a = createOutput(1);
+        StoredTransactionOutput b = createOutput(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertNull(underlying.getTransactionOutput(a.getHash(), 0));
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+
+        store.flush();
+        assertEquals(1, store.getFlushCount());
+        assertEquals(1, underlyingAdds);
+        assertNull(underlying.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, underlying.getTransactionOutput(b.getHash(), 0));
+    }
+
+    @Test
+    public void spentOutputIsRemovedFromStoreOnFlush() throws Exception {
+        StoredTransactionOutput a = createOutput(1);
+        underlying.addUnspentTransactionOutput(a);
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 1));
+        store.removeUnspentTransactionOutput(a);
+        // Not yet written, but the cache must hide it anyway.
+        assertNotNull(underlying.getTransactionOutput(a.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 1));
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        try {
+            store.removeUnspentTransactionOutput(a);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.flush();
+        assertNull(underlying.getTransactionOutput(a.getHash(), 0));
+        assertEquals(0, store.getCachedOutputCount());
+    }
+
+    @Test
+    public void abortRollsBackChanges() throws Exception {
+        StoredTransactionOutput a = createOutput(1);
+        StoredTransactionOutput b = createOutput(2);
+        store.addUnspentTransactionOutput(a);
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock next = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.setVerifiedChainHead(next);
+        assertEquals(next, store.getChainHead());
+        store.abortDatabaseBatchWrite();
+
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertNull(store.getTransactionOutput(b.getHash(), 0));
+        assertEquals(genesis, store.getVerifiedChainHead());
+        store.flush();
+        assertEquals(a, underlying.getTransactionOutput(a.getHash(), 0));
+        assertNull(underlying.getTransactionOutput(b.getHash(), 0));
+    }
+
+    @Test
+    public void failedCommitRollsBackChanges() throws Exception {
+        StoredTransactionOutput a = createOutput(1);
+        StoredTransactionOutput b = createOutput(2);
+        underlying.addUnspentTransactionOutput(a);
+        // Flush on every commit.
+        store = new CachingFullPrunedBlockStore(underlying, 1000000, 0);
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock next = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.setVerifiedChainHead(next);
+        failWrites = true;
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        failWrites = false;
+
+        // The cache matches the underlying store again, and takes new batches as usual.
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertNull(store.getTransactionOutput(b.getHash(), 0));
+        assertEquals(genesis, store.getVerifiedChainHead());
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertEquals(a, underlying.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, underlying.getTransactionOutput(b.getHash(), 0));
+        assertEquals(genesis, underlying.getVerifiedChainHead());
+    }
+
+    @Test
+    public void verifiedChainHeadWrittenWithOutputs() throws Exception {
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock next = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(createOutput(1));
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+        assertEquals(next, store.getVerifiedChainHead());
+        assertEquals(genesis, underlying.getVerifiedChainHead());
+        store.flush();
+        assertEquals(next, underlying.getVerifiedChainHead());
+        assertEquals(next, underlying.getChainHead());
+    }
+
+    @Test
+    public void flushesAndEvictsWhenOverBudget() throws Exception {
+        store = new CachingFullPrunedBlockStore(underlying, 2000, Long.MAX_VALUE);
+        for (int i = 0; i < 20; i++) {
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(createOutput(i));
+            store.commitDatabaseBatchWrite();
+        }
+        assertTrue(store.getFlushCount() > 0);
+        assertTrue(store.getCacheBytes() <= 2000);
+        for (int i = 0; i < 20; i++)
+            assertEquals(createOutput(i), store.getTransactionOutput(createOutput(i).getHash(), 0));
+    }
+
+    @Test
+    public void hitsAndMisses() throws Exception {
+        StoredTransactionOutput a = createOutput(1);
+        StoredTransactionOutput b = createOutput(2);
+        underlying.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        List<StoredTransactionOutput> outputs = store.getTransactionOutputs(Arrays.asList(
+                outPoint(params, a), outPoint(params, b), outPoint(params, createOutput(3))));
+        assertEquals(Arrays.asList(a, b, null), outputs);
+        assertEquals(1, store.getHits());
+        assertEquals(2, store.getMisses());
+        // Now cached.
+        assertEquals(Collections.singletonList(a), store.getTransactionOutputs(Arrays.asList(outPoint(params, a))));
+        assertEquals(2, store.getHits());
+        assertEquals(2, store.getMisses());
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogStructuredFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private File directory;
+    private LogStructuredFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = Files.createTempDir();
+        store = new LogStructuredFullPrunedBlockStore(params, directory, 10, 4096);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    private static StoredTransactionOutput createOutput(int i) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8)});
+        return new StoredTransactionOutput(hash, i % 3, BigInteger.valueOf(i), 1, false, new byte[] {1, 2, 3});
+    }
+
+    private void reopen() throws Exception {
+        store.close();
+        store = new LogStructuredFullPrunedBlockStore(params, directory, 10, 4096);
+    }
+
+    private StoredBlock nextBlock(StoredBlock prev) throws Exception {
+        return prev.build(prev.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+    }
+
+    @Test
+    public void reopenReplaysLog() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        StoredBlock b1 = nextBlock(genesis);
+        StoredTransactionOutput a = createOutput(1);
+        StoredTransactionOutput b = createOutput(2);
+        store.beginDatabaseBatchWrite();
+        store.put(b1, new StoredUndoableBlock(b1.getHeader().getHash(),
+                new TransactionOutputChanges(Collections.singletonList(a), new ArrayList<StoredTransactionOutput>())));
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.removeUnspentTransactionOutput(b);
+        store.setVerifiedChainHead(b1);
+        store.commitDatabaseBatchWrite();
+
+        reopen();
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertEquals(b1, store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+        StoredUndoableBlock undo = store.getUndoBlock(b1.getHeader().getHash());
+        assertEquals(Collections.singletonList(a), undo.getTxOutChanges().txOutsCreated);
+        try {
+            store.removeUnspentTransactionOutput(b);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void abortAndIncompleteBatches() throws Exception {
+        StoredTransactionOutput a = createOutput(1);
+        StoredTransactionOutput b = createOutput(2);
+        store.addUnspentTransactionOutput(a);
+        StoredBlock genesis = store.getChainHead();
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.setVerifiedChainHead(nextBlock(genesis));
+        store.abortDatabaseBatchWrite();
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertEquals(genesis, store.getChainHead());
+        assertEquals(genesis, store.getVerifiedChainHead());
+
+        // A batch which was never committed is thrown away when the store is opened again.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.close();
+        store = new LogStructuredFullPrunedBlockStore(params, directory, 10, 4096);
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+
+        // As is a torn write at the end of the last segment.
+        store.addUnspentTransactionOutput(b);
+        store.close();
+        File[] files = directory.listFiles();
+        File last = null;
+        for (File file : files)
+            if (file.getName().startsWith("segment-") && (last == null || file.getName().compareTo(last.getName()) > 0))
+                last = file;
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+        store = new LogStructuredFullPrunedBlockStore(params, directory, 10, 4096);
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        List<StoredTransactionOutput> kept = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 1000; i++) {
+            StoredTransactionOutput out = createOutput(i);
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+            if (i % 10 == 0) {
+                kept.add(out);
+            } else {
+                store.beginDatabaseBatchWrite();
+                store.removeUnspentTransactionOutput(out);
+                store.commitDatabaseBatchWrite();
+            }
+        }
+        store.compact();
+        // Almost all of the data is dead, so it should have been compacted down to a handful of segments.
+        int segments = store.getSegmentCount();
+        assertTrue("Too many segments: " + segments, segments < 10);
+        for (StoredTransactionOutput out : kept)
+            assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertFalse(store.hasUnspentOutputs(createOutput(1).getHash(), 3));
+
+        reopen();
+        for (int i = 0; i < 1000; i++) {
+            StoredTransactionOutput out = createOutput(i);
+            if (i % 10 == 0)
+                assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+            else
+                assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        }
+        assertEquals(params.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+        assertNotNull(store.get(params.getGenesisBlock().getHash()));
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.bitcoin.utils.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class IndexedCoinSelectorTest extends TestWithWallet {
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock(); // Use mock clock
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private TransactionOutput output(long value, int depth) throws Exception {
+        Transaction tx = createFakeTx(params, BigInteger.valueOf(value), myAddress);
+        tx.getConfidence().setAppearedAtChainHeight(1);
+        tx.getConfidence().setDepthInBlocks(depth);
+        return tx.getOutput(0);
+    }
+
+    @Test
+    public void exactMatch() throws Exception {
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        TransactionOutput four = output(4, 1);
+        TransactionOutput three = output(3, 1);
+        TransactionOutput two = output(2, 1);
+        candidates.add(four);
+        candidates.add(three);
+        candidates.add(two);
+        // Picking by priority would take 4 and 3 and need change, but 3 and 2 is exactly 5.
+        CoinSelection selection = new IndexedCoinSelector(IndexedCoinSelector.DEFAULT_SEARCH_TIME_MSEC,
+                TimeUnit.MILLISECONDS, BigInteger.ZERO).select(BigInteger.valueOf(5), candidates);
+        assertEquals(BigInteger.valueOf(5), selection.valueGathered);
+        assertEquals(new HashSet<TransactionOutput>(Arrays.asList(three, two)),
+                new HashSet<TransactionOutput>(selection.gathered));
+        // Without the search it does the same as the default selector.
+        selection = new IndexedCoinSelector(0, TimeUnit.MILLISECONDS).select(BigInteger.valueOf(5), candidates);
+        assertEquals(BigInteger.valueOf(7), selection.valueGathered);
+        assertTrue(selection.gathered.contains(four));
+        assertTrue(selection.gathered.contains(three));
+    }
+
+    @Test
+    public void sameAsDefaultWithoutExactMatch() throws Exception {
+        // Odd targets can't be matched exactly by even coins, so selection falls back to priority order.
+        Random random = new Random(1);
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        for (int i = 0; i < 200; i++)
+            candidates.add(output((random.nextInt(1000) + 1) * 2, random.nextInt(10) + 1));
+        IndexedCoinSelector selector = new IndexedCoinSelector(IndexedCoinSelector.DEFAULT_SEARCH_TIME_MSEC,
+                TimeUnit.MILLISECONDS, BigInteger.ZERO);
+        DefaultCoinSelector defaultSelector = new DefaultCoinSelector();
+        for (int i = 0; i < 20; i++) {
+            BigInteger target = BigInteger.valueOf(random.nextInt(50000) * 2 + 1);
+            CoinSelection expected = defaultSelector.select(target, candidates);
+            CoinSelection selection = selector.select(target, candidates);
+            assertEquals(expected.valueGathered, selection.valueGathered);
+            assertEquals(new HashSet<TransactionOutput>(expected.gathered),
+                    new HashSet<TransactionOutput>(selection.gathered));
+            // The index follows changes to the candidates and their depths.
+            candidates.removeFirst();
+            candidates.add(output((random.nextInt(1000) + 1) * 2, random.nextInt(10) + 1));
+            for (TransactionOutput output : candidates) {
+                TransactionConfidence confidence = output.getParentTransaction().getConfidence();
+                confidence.setDepthInBlocks(confidence.getDepthInBlocks() + 1);
+            }
+        }
+    }
+
+    @Test
+    public void matchWithinCostOfChange() throws Exception {
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        TransactionOutput ten = output(10, 1);
+        TransactionOutput six = output(6, 1);
+        candidates.add(ten);
+        candidates.add(six);
+        // Nothing adds up to exactly 5, but 6 is close enough that making change would cost more than the extra fee.
+        CoinSelection selection = new IndexedCoinSelector(IndexedCoinSelector.DEFAULT_SEARCH_TIME_MSEC,
+                TimeUnit.MILLISECONDS, BigInteger.ONE).select(BigInteger.valueOf(5), candidates);
+        assertEquals(BigInteger.valueOf(6), selection.valueGathered);
+        assertEquals(Arrays.asList(six), selection.gathered);
+        // Without that allowance it picks by priority, and needs change.
+        selection = new IndexedCoinSelector(IndexedCoinSelector.DEFAULT_SEARCH_TIME_MSEC,
+                TimeUnit.MILLISECONDS, BigInteger.ZERO).select(BigInteger.valueOf(5), candidates);
+        assertEquals(Arrays.asList(ten), selection.gathered);
+    }
+
+    @Test
+    public void insufficientMoney() throws Exception {
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        candidates.add(output(4, 1));
+        candidates.add(output(3, 1));
+        // Pending transactions that aren't ours can't be spent.
+        TransactionOutput pending = output(10, 1);
+        pending.getParentTransaction().getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        candidates.add(pending);
+        CoinSelection selection = new IndexedCoinSelector().select(BigInteger.valueOf(10), candidates);
+        assertEquals(BigInteger.valueOf(7), selection.valueGathered);
+        assertFalse(selection.gathered.contains(pending));
+        selection = new IndexedCoinSelector().select(NetworkParameters.MAX_MONEY, candidates);
+        assertEquals(BigInteger.valueOf(7), selection.valueGathered);
+    }
+
+    @Test
+    public void walletSend() throws Exception {
+        wallet.setCoinSelector(new IndexedCoinSelector());
+        sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(Utils.CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(Utils.COIN.add(Utils.CENT), wallet.getBalance());
+        Wallet.SendRequest req = Wallet.SendRequest.to(new ECKey().toAddress(params), Utils.CENT);
+        wallet.completeTx(req);
+        assertEquals(1, req.tx.getInputs().size());
+        // The cent matches exactly, so there's no change output even though the coin has higher priority.
+        assertEquals(Utils.CENT, req.tx.getInput(0).getConnectedOutput().getValue());
+        assertEquals(1, req.tx.getOutputs().size());
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.MockTransactionBroadcaster;
+import com.google.bitcoin.utils.TestWithWallet;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.bitcoin.core.Utils.CENT;
+import static com.google.bitcoin.core.Utils.COIN;
+import static org.junit.Assert.*;
+
+public class PayoutBatcherTest extends TestWithWallet {
+    private MockTransactionBroadcaster broadcaster;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // Batches pay the usual fee. That also leaves the default as it was, so there's nothing to tear down.
+        Wallet.SendRequest.DEFAULT_FEE_PER_KB = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+        broadcaster = new MockTransactionBroadcaster(wallet);
+    }
+
+    @Test
+    public void batchesByCount() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        PayoutBatcher batcher = new PayoutBatcher(wallet, broadcaster, 1, TimeUnit.HOURS, 5);
+        List<Address> addresses = new ArrayList<Address>();
+        List<ListenableFuture<Transaction>> futures = new ArrayList<ListenableFuture<Transaction>>();
+        for (int i = 0; i < 5; i++) {
+            Address address = new ECKey().toAddress(params);
+            addresses.add(address);
+            futures.add(batcher.queue(address, CENT));
+        }
+        // The fifth payment fills the batch, so it goes out without waiting for the delay.
+        MockTransactionBroadcaster.TxFuturePair pair = broadcaster.waitForTxFuture();
+        Transaction tx = pair.tx;
+        assertEquals(6, tx.getOutputs().size());  // Five payments and the change.
+        for (int i = 0; i < 5; i++)
+            assertEquals(addresses.get(i), tx.getOutput(i).getScriptPubKey().getToAddress(params));
+        assertEquals(1, tx.getInputs().size());
+        assertFalse(futures.get(0).isDone());
+        pair.future.set(tx);
+        for (ListenableFuture<Transaction> future : futures)
+            assertEquals(tx, future.get());
+        assertEquals(0, batcher.getQueuedPayments());
+        // Only the change is left.
+        assertEquals(tx.getOutput(5).getValue(), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        batcher.shutdownAndWait();
+    }
+
+    @Test
+    public void batchesByTime() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        PayoutBatcher batcher = new PayoutBatcher(wallet, broadcaster, 100, TimeUnit.MILLISECONDS, 100);
+        ListenableFuture<Transaction> first = batcher.queue(new ECKey().toAddress(params), CENT);
+        Wallet.SendRequest req = Wallet.SendRequest.to(new ECKey().toAddress(params), CENT);
+        req.tx.addOutput(CENT, new ECKey().toAddress(params));
+        ListenableFuture<Transaction> second = batcher.queue(req);
+        MockTransactionBroadcaster.TxFuturePair pair = broadcaster.waitForTxFuture();
+        assertEquals(4, pair.tx.getOutputs().size());
+        pair.future.set(pair.tx);
+        assertEquals(pair.tx, first.get());
+        assertEquals(pair.tx, second.get());
+        batcher.shutdownAndWait();
+        try {
+            batcher.queue(new ECKey().toAddress(params), CENT);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void failedBatch() throws Exception {
+        sendMoneyToWallet(CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        PayoutBatcher batcher = new PayoutBatcher(wallet, broadcaster, 1, TimeUnit.HOURS, 100);
+        ListenableFuture<Transaction> first = batcher.queue(new ECKey().toAddress(params), CENT);
+        ListenableFuture<Transaction> second = batcher.queue(new ECKey().toAddress(params), CENT);
+        // Dust is turned away before it can spoil the batch.
+        try {
+            batcher.queue(new ECKey().toAddress(params), BigInteger.ONE);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        batcher.shutdownAndWait();
+        try {
+            first.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InsufficientMoneyException);
+        }
+        assertTrue(second.isDone());
+        assertEquals(0, broadcaster.size());
+        assertTrue(wallet.getReservedOutputs().isEmpty());
+        assertEquals(CENT, wallet.getBalance());
+    }
+
+    @Test
+    public void shutdownSendsQueued() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        PayoutBatcher batcher = new PayoutBatcher(wallet, broadcaster, 1, TimeUnit.HOURS, 100);
+        ListenableFuture<Transaction> future = batcher.queue(new ECKey().toAddress(params), CENT);
+        // The send is due in an hour, but shutting down sends it straight away.
+        batcher.shutdownAndWait();
+        assertEquals(0, batcher.getQueuedPayments());
+        MockTransactionBroadcaster.TxFuturePair pair = broadcaster.waitForTxFuture();
+        pair.future.set(pair.tx);
+        assertEquals(pair.tx, future.get());
+    }
+
+    @Test
+    public void shutdownWhenInterrupted() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        PayoutBatcher batcher = new PayoutBatcher(wallet, broadcaster, 1, TimeUnit.HOURS, 100);
+        ListenableFuture<Transaction> future = batcher.queue(new ECKey().toAddress(params), CENT);
+        Thread.currentThread().interrupt();
+        batcher.shutdownAndWait();
+        // The interrupt is kept, and the payment fails rather than being sent or left waiting forever.
+        assertTrue(Thread.interrupted());
+        assertEquals(0, batcher.getQueuedPayments());
+        assertEquals(0, broadcaster.size());
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        try {
+            batcher.flush();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+}
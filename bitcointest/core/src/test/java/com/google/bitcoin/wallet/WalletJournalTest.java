@@ -0,0 +1,260 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.utils.TestWithWallet;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.bitcoin.core.Utils.CENT;
+import static com.google.bitcoin.core.Utils.toNanoCoins;
+import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
+import static com.google.bitcoin.utils.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file;
+    private File journalFile;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        file.deleteOnExit();
+        journalFile = WalletJournal.getJournalFile(file);
+        journalFile.deleteOnExit();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private File newTempFile() throws Exception {
+        File temp = File.createTempFile("bitcoinj-unit-test", null);
+        temp.deleteOnExit();
+        return temp;
+    }
+
+    private void assertLoadsAs(Wallet expected) throws Exception {
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(expected.getKeys().size(), loaded.getKeys().size());
+        for (ECKey key : expected.getKeys())
+            assertTrue(loaded.hasKey(key));
+        assertEquals(expected.getTransactions(true).size(), loaded.getTransactions(true).size());
+        for (Transaction tx : expected.getTransactions(true)) {
+            TransactionConfidence confidence = loaded.getTransaction(tx.getHash()).getConfidence();
+            assertEquals(tx.getConfidence().getConfidenceType(), confidence.getConfidenceType());
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING)
+                assertEquals(tx.getConfidence().getDepthInBlocks(), confidence.getDepthInBlocks());
+        }
+        assertEquals(expected.getBalance(), loaded.getBalance());
+        assertEquals(expected.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(expected.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        if (expected.getLastBlockSeenHash() != null)
+            assertEquals(expected.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void appendAndReplay() throws Exception {
+        WalletJournal journal = new WalletJournal(file);
+        // Nothing can be appended until there is a snapshot.
+        assertTrue(journal.needsCompaction());
+        assertNull(journal.append(wallet));
+        journal.compact(wallet, newTempFile());
+        assertFalse(journal.needsCompaction());
+        assertFalse(journalFile.exists());
+
+        // Receive a payment, spend some of it and add a key.
+        Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        chain.add(createFakeBlock(blockStore, t1).block);
+        assertTrue(journal.append(wallet).getBytesWritten() > 0);
+        Transaction t2 = wallet.createSend(new ECKey().toAddress(params), CENT);
+        wallet.commitTx(t2);
+        wallet.addKey(new ECKey());
+        journal.append(wallet);
+        assertLoadsAs(wallet);
+
+        // Blocks that don't involve the wallet only change the last seen block, but make t1 deeper.
+        chain.add(createFakeBlock(blockStore).block);
+        chain.add(createFakeBlock(blockStore).block);
+        journal.append(wallet);
+        assertEquals(3, wallet.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+        assertLoadsAs(wallet);
+
+        // Compaction starts over with a new snapshot.
+        journal.compact(wallet, newTempFile());
+        assertFalse(journalFile.exists());
+        assertLoadsAs(wallet);
+    }
+
+    @Test
+    public void snapshotNeeded() throws Exception {
+        WalletJournal journal = new WalletJournal(file);
+        journal.compact(wallet, newTempFile());
+        sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertNotNull(journal.append(wallet));
+        // Removing a key can't be described by a journal entry.
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        wallet.removeKey(key);
+        assertNull(journal.append(wallet));
+        journal.compact(wallet, newTempFile());
+        assertLoadsAs(wallet);
+    }
+
+    @Test
+    public void skipsStaleAndPartialEntries() throws Exception {
+        WalletJournal journal = new WalletJournal(file);
+        journal.compact(wallet, newTempFile());
+        sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        journal.append(wallet);
+        File oldJournal = newTempFile();
+        Files.copy(journalFile, oldJournal);
+
+        // A crash after writing a new snapshot but before replacing the journal leaves the old journal behind.
+        sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        journal.compact(wallet, newTempFile());
+        Files.copy(oldJournal, journalFile);
+        assertLoadsAs(wallet);
+
+        // A crash whilst appending leaves a partly written entry at the end.
+        journalFile.delete();
+        sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        journal.append(wallet);
+        FileOutputStream stream = new FileOutputStream(journalFile, true);
+        stream.write(new byte[] { 100, 10, 3 });
+        stream.close();
+        assertLoadsAs(wallet);
+
+        // An ordinary save makes the journal irrelevant.
+        wallet.saveToFile(newTempFile(), file);
+        assertTrue(journalFile.exists());
+        assertLoadsAs(wallet);
+    }
+
+    @Test
+    public void entriesTakenDuringCompaction() throws Exception {
+        // An entry can be appended after compaction took its snapshot but before it wrote the snapshot out. A crash
+        // after writing the snapshot but before carrying the entry over to the new journal mustn't lose it.
+        final WalletJournal journal = new WalletJournal(file);
+        final File oldJournal = newTempFile();
+        final ECKey key = new ECKey();
+        Wallet wallet = new Wallet(params) {
+            boolean compacting;
+
+            @Override
+            public WalletJournal.Entry takeJournalSnapshot() {
+                WalletJournal.Entry snapshot = super.takeJournalSnapshot();
+                if (compacting) {
+                    addKey(key);
+                    try {
+                        assertNotNull(journal.append(this));
+                        Files.copy(journalFile, oldJournal);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                compacting = true;
+                return snapshot;
+            }
+        };
+        wallet.addKey(new ECKey());
+        journal.compact(wallet, newTempFile());
+        wallet.addKey(new ECKey());
+        assertNotNull(journal.append(wallet));
+        journal.compact(wallet, newTempFile());
+        assertLoadsAs(wallet);
+        Files.copy(oldJournal, journalFile);
+        assertLoadsAs(wallet);
+        assertTrue(Wallet.loadFromFile(file).hasKey(key));
+    }
+
+    @Test
+    public void autosave() throws Exception {
+        // Enough keys that receiving a payment doesn't make the journal need compacting.
+        for (int i = 0; i < 50; i++)
+            wallet.addKey(new ECKey());
+        WalletFiles files = wallet.autosaveToFile(file, 0, TimeUnit.SECONDS, null);
+        files.setUseJournal(true);
+        // The first save writes the whole wallet.
+        wallet.addKey(new ECKey());
+        assertFalse(journalFile.exists());
+        assertLoadsAs(wallet);
+        // Later ones only append the changes.
+        long size = file.length();
+        sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.shutdownAutosaveAndWait();
+        // The new best block is saved later, don't wait for it.
+        files.saveNow();
+        assertTrue(journalFile.exists());
+        assertEquals(size, file.length());
+        assertLoadsAs(wallet);
+    }
+
+    @Test
+    public void autosaveWithCompaction() throws Exception {
+        // Payments and blocks are saved to the journal by the autosave thread, which compacts it once it gets too big,
+        // and the wallet always loads back the same, with building transactions at the right depth.
+        final LinkedBlockingQueue<WalletFiles.SaveStats> saves = new LinkedBlockingQueue<WalletFiles.SaveStats>();
+        WalletFiles files = wallet.autosaveToFile(file, 0, TimeUnit.SECONDS, null);
+        files.setStatsListener(new WalletFiles.StatsListener() {
+            @Override
+            public void onSaveStats(WalletFiles.SaveStats stats) {
+                saves.add(stats);
+            }
+        });
+        files.setUseJournal(true);
+        wallet.addKey(new ECKey());
+        long snapshotSize = file.length();
+        boolean journalUsed = false;
+        for (int i = 0; i < 50 && file.length() == snapshotSize; i++) {
+            saves.clear();
+            chain.add(createFakeBlock(blockStore, createFakeTx(params, Utils.COIN, myAddress)).block);
+            assertNotNull(saves.poll(5, TimeUnit.SECONDS));
+            journalUsed |= journalFile.exists();
+        }
+        assertTrue(journalUsed);
+        // Wait for the compaction to finish, which it has once a save leaves the snapshot alone.
+        long size;
+        do {
+            size = file.length();
+            saves.clear();
+            chain.add(createFakeBlock(blockStore).block);
+            assertNotNull(saves.poll(5, TimeUnit.SECONDS));
+        } while (file.length() != size);
+        assertTrue(size > snapshotSize);
+        // Blocks seen since the compaction only make the transactions in the snapshot deeper.
+        chain.add(createFakeBlock(blockStore).block);
+        chain.add(createFakeBlock(blockStore).block);
+        wallet.shutdownAutosaveAndWait();
+        files.saveNow();
+        assertTrue(journalFile.exists());
+        assertLoadsAs(wallet);
+    }
+}
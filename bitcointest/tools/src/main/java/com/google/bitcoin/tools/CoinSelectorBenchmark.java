@@ -0,0 +1,98 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+import com.google.bitcoin.wallet.IndexedCoinSelector;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link IndexedCoinSelector} with {@link DefaultCoinSelector} on a wallet with many unspent outputs. Each
+ * round selects coins for a random payment, the way completing a transaction does, then spends them and adds a change
+ * output unless the change is small enough for the wallet to drop, so the candidates change a little between selections
+ * as they do in a busy wallet.
+ */
+public class CoinSelectorBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    public static void main(String[] args) {
+        System.out.println("USAGE: CoinSelectorBenchmark [coins] [rounds]");
+        int coins = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Address address = new ECKey().toAddress(PARAMS);
+
+        // Warm up, then measure each selector over the same coins and payments.
+        for (int i = 0; i < 2; i++) {
+            run(new DefaultCoinSelector(), coins, rounds, address);
+            run(new IndexedCoinSelector(), coins, rounds, address);
+        }
+        report("DefaultCoinSelector", run(new DefaultCoinSelector(), coins, rounds, address), rounds);
+        report("IndexedCoinSelector", run(new IndexedCoinSelector(), coins, rounds, address), rounds);
+        report("IndexedCoinSelector, exact matches only",
+                run(new IndexedCoinSelector(IndexedCoinSelector.DEFAULT_SEARCH_TIME_MSEC, TimeUnit.MILLISECONDS,
+                        BigInteger.ZERO), coins, rounds, address), rounds);
+        report("IndexedCoinSelector without search",
+                run(new IndexedCoinSelector(0, TimeUnit.MILLISECONDS), coins, rounds, address), rounds);
+    }
+
+    private static void report(String name, long[] result, int rounds) {
+        System.out.printf("%-45s %8.3f ms per selection %5.1f%% with change%n", name, result[0] / 1e6 / rounds,
+                100.0 * result[1] / rounds);
+    }
+
+    // Returns the total time spent selecting coins and how many selections needed change.
+    private static long[] run(CoinSelector selector, int coins, int rounds, Address address) {
+        Random random = new Random(1);
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        for (int i = 0; i < coins; i++)
+            candidates.add(newCoin(random, BigInteger.valueOf(1 + random.nextInt(100000000)), address));
+        long elapsed = 0;
+        long withChange = 0;
+        for (int round = 0; round < rounds; round++) {
+            BigInteger target = BigInteger.valueOf(1 + random.nextInt(200000000));
+            long start = System.nanoTime();
+            CoinSelection selection = selector.select(target, candidates);
+            elapsed += System.nanoTime() - start;
+            candidates.removeAll(selection.gathered);
+            BigInteger change = selection.valueGathered.subtract(target);
+            if (change.compareTo(IndexedCoinSelector.DEFAULT_COST_OF_CHANGE) > 0) {
+                candidates.add(newCoin(random, change, address));
+                withChange++;
+            }
+            if (candidates.isEmpty())
+                candidates.add(newCoin(random, BigInteger.valueOf(1 + random.nextInt(100000000)), address));
+        }
+        return new long[] {elapsed, withChange};
+    }
+
+    private static TransactionOutput newCoin(Random random, BigInteger value, Address address) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(value, address);
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        confidence.setDepthInBlocks(1 + random.nextInt(1000));
+        return tx.getOutput(0);
+    }
+}
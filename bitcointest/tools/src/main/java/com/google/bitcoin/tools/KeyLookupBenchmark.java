@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+
+/**
+ * Measures {@link Wallet#findKeyFromPubHash} and {@link Wallet#isPubKeyMine} as the keychain grows, against a scan of
+ * the keychain, which is how the wallet used to answer them. Half of the lookups are for keys in the wallet and half
+ * for keys that aren't, as when checking the outputs of transactions seen on the network.
+ */
+public class KeyLookupBenchmark {
+    public static void main(String[] args) {
+        System.out.println("USAGE: KeyLookupBenchmark [max keys] [lookups]");
+        int maxKeys = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        // Logging every key added would be most of what's measured while building the wallet.
+        LogManager.getLogManager().getLogger("").setLevel(Level.SEVERE);
+
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < maxKeys; i++)
+            keys.add(new ECKey());
+        List<ECKey> strangers = new ArrayList<ECKey>();
+        for (int i = 0; i < 100; i++)
+            strangers.add(new ECKey());
+
+        for (int size = 100; size <= maxKeys; size *= 10) {
+            Wallet wallet = new Wallet(UnitTestParams.get());
+            wallet.addKeys(keys.subList(0, size));
+            byte[][] pubKeys = new byte[200][];
+            byte[][] pubKeyHashes = new byte[200][];
+            for (int i = 0; i < 100; i++) {
+                ECKey key = keys.get(i * size / 100);
+                pubKeys[2 * i] = key.getPubKey();
+                pubKeyHashes[2 * i] = key.getPubKeyHash();
+                pubKeys[2 * i + 1] = strangers.get(i).getPubKey();
+                pubKeyHashes[2 * i + 1] = strangers.get(i).getPubKeyHash();
+            }
+            // A scan of a big keychain is slow enough that it's measured over fewer lookups.
+            int scanLookups = Math.max(200, lookups / size);
+            // Warm up, then measure each way of looking keys up.
+            findKeyFromPubHash(wallet, pubKeyHashes, lookups);
+            isPubKeyMine(wallet, pubKeys, lookups);
+            scan(wallet, pubKeyHashes, scanLookups);
+            System.out.println(size + " keys");
+            report("findKeyFromPubHash", lookups, findKeyFromPubHash(wallet, pubKeyHashes, lookups));
+            report("isPubKeyMine", lookups, isPubKeyMine(wallet, pubKeys, lookups));
+            report("keychain scan by public key hash", scanLookups, scan(wallet, pubKeyHashes, scanLookups));
+        }
+    }
+
+    private static void report(String name, int lookups, long nanos) {
+        System.out.printf("  %-35s %10.3f us per lookup%n", name, nanos / 1e3 / lookups);
+    }
+
+    private static long findKeyFromPubHash(Wallet wallet, byte[][] pubKeyHashes, int lookups) {
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+            wallet.findKeyFromPubHash(pubKeyHashes[i % pubKeyHashes.length]);
+        return System.nanoTime() - start;
+    }
+
+    private static long isPubKeyMine(Wallet wallet, byte[][] pubKeys, int lookups) {
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+            wallet.isPubKeyMine(pubKeys[i % pubKeys.length]);
+        return System.nanoTime() - start;
+    }
+
+    private static long scan(Wallet wallet, byte[][] pubKeyHashes, int lookups) {
+        List<ECKey> keychain = wallet.getKeys();
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            byte[] pubKeyHash = pubKeyHashes[i % pubKeyHashes.length];
+            for (ECKey key : keychain) {
+                if (Arrays.equals(key.getPubKeyHash(), pubKeyHash))
+                    break;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+
+import static com.google.bitcoin.script.ScriptOpCodes.*;
+import static com.google.bitcoin.utils.TestUtils.createFakeTx;
+
+/**
+ * Measures how many scripts per second {@link Script#correctlySpends} can run when the time goes on interpreting
+ * opcodes rather than checking signatures: one script doing arithmetic on script numbers, and one shuffling elements
+ * around the stack. It only uses the public script API, so the same tool can be built against older versions of the
+ * interpreter to compare them.
+ */
+public class ScriptBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: ScriptBenchmark [runs]");
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Transaction tx = createFakeTx(PARAMS, Utils.COIN, new ECKey().toAddress(PARAMS));
+
+        // Arithmetic: keep adding one to a number and moving it about, 200 opcodes in all.
+        Script arithmeticSig = new ScriptBuilder().smallNum(1).build();
+        ScriptBuilder arithmetic = new ScriptBuilder();
+        for (int i = 0; i < 40; i++)
+            arithmetic.smallNum(1).op(OP_ADD).op(OP_DUP).op(OP_DROP).smallNum(2).op(OP_SWAP).op(OP_DROP);
+        Script arithmeticPubKey = arithmetic.build();
+
+        // Stack shuffling: six elements rotated, swapped, picked and rolled, 198 opcodes in all.
+        ScriptBuilder shuffleSig = new ScriptBuilder();
+        for (int i = 1; i <= 6; i++)
+            shuffleSig.smallNum(i);
+        ScriptBuilder shuffle = new ScriptBuilder();
+        for (int i = 0; i < 22; i++) {
+            shuffle.op(OP_2ROT).op(OP_2SWAP).op(OP_ROT).op(OP_SWAP).op(OP_OVER).op(OP_DROP)
+                   .smallNum(3).op(OP_PICK).op(OP_DROP).smallNum(2).op(OP_ROLL);
+        }
+
+        // Warm up, then measure each script.
+        run(tx, arithmeticSig, arithmeticPubKey, runs);
+        run(tx, shuffleSig.build(), shuffle.build(), runs);
+        report("arithmetic", runs, run(tx, arithmeticSig, arithmeticPubKey, runs));
+        report("stack shuffling", runs, run(tx, shuffleSig.build(), shuffle.build(), runs));
+    }
+
+    private static void report(String name, int runs, long nanos) {
+        System.out.printf("%-20s %8.2f us per script %10.0f scripts/s%n", name, nanos / 1e3 / runs, runs / (nanos / 1e9));
+    }
+
+    private static long run(Transaction tx, Script scriptSig, Script scriptPubKey, int runs) throws ScriptException {
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+            scriptSig.correctlySpends(tx, 0, scriptPubKey, false);
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+
+import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
+import static com.google.bitcoin.utils.TestUtils.createFakeTx;
+
+/**
+ * Measures how many sends per second a wallet can make, one at a time with {@link Wallet#sendCoinsOffline} and from
+ * several threads at once with {@link Wallet#reserveCoins}, which only holds the wallet lock while picking coins. A
+ * sleep after each send stands in for the time taken to broadcast it.
+ */
+public class SendBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: SendBenchmark [sends] [threads] [latency ms]");
+        int sends = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 5;
+        // Logging every send would be most of what's measured.
+        LogManager.getLogManager().getLogger("").setLevel(Level.SEVERE);
+
+        // Warm up, then measure each way of sending.
+        serial(newWallet(sends), sends, latency);
+        concurrent(newWallet(sends), sends, threads, latency);
+        report("serial sendCoinsOffline", sends, serial(newWallet(sends), sends, latency));
+        report(threads + " threads reserving coins", sends, concurrent(newWallet(sends), sends, threads, latency));
+    }
+
+    private static void report(String name, int sends, long nanos) {
+        System.out.printf("%-40s %8.1f sends/s%n", name, sends / (nanos / 1e9));
+    }
+
+    // A wallet with one coin for every send, as the change of a send can't be spent until it's broadcast.
+    private static Wallet newWallet(int sends) throws Exception {
+        Wallet wallet = new Wallet(PARAMS);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        MemoryBlockStore blockStore = new MemoryBlockStore(PARAMS);
+        BlockChain chain = new BlockChain(PARAMS, wallet, blockStore);
+        Transaction[] txns = new Transaction[sends];
+        for (int i = 0; i < sends; i++)
+            txns[i] = createFakeTx(PARAMS, Utils.COIN, key.toAddress(PARAMS));
+        chain.add(createFakeBlock(blockStore, txns).block);
+        return wallet;
+    }
+
+    private static long serial(Wallet wallet, int sends, long latency) throws Exception {
+        Address dest = new ECKey().toAddress(PARAMS);
+        long start = System.nanoTime();
+        for (int i = 0; i < sends; i++) {
+            wallet.sendCoinsOffline(Wallet.SendRequest.to(dest, Utils.CENT));
+            Uninterruptibles.sleepUninterruptibly(latency, TimeUnit.MILLISECONDS);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long concurrent(final Wallet wallet, int sends, int threads, final long latency) throws Exception {
+        final Address dest = new ECKey().toAddress(PARAMS);
+        final AtomicInteger remaining = new AtomicInteger(sends);
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (remaining.getAndDecrement() > 0) {
+                            Wallet.Reservation reservation =
+                                    wallet.reserveCoins(Wallet.SendRequest.to(dest, Utils.CENT), 1, TimeUnit.MINUTES);
+                            reservation.sign();
+                            reservation.commit();
+                            Uninterruptibles.sleepUninterruptibly(latency, TimeUnit.MILLISECONDS);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - start;
+        if (failures.get() > 0)
+            throw new IllegalStateException(failures.get() + " threads failed");
+        return elapsed;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Utils;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how double SHA-256 hashing scales with the number of threads. {@link Utils#doubleDigest(byte[])} gives
+ * each thread its own digest, whereas the shared digest it replaced had to be locked around every hash, so only one
+ * thread could hash at a time. Each hash is of a transaction sized buffer.
+ */
+public class Sha256Benchmark {
+    private static final MessageDigest sharedDigest = Utils.newSha256Digest();
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: Sha256Benchmark [hashes per thread] [max threads] [bytes per hash]");
+        int hashes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 250;
+        byte[] input = new byte[size];
+        new Random(1).nextBytes(input);
+        System.out.println(Runtime.getRuntime().availableProcessors() + " CPUs available");
+
+        // Warm up, then measure both ways of hashing from a growing number of threads.
+        run(input, hashes, maxThreads, true);
+        run(input, hashes, maxThreads, false);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            report("shared locked digest", threads, hashes, run(input, hashes, threads, true));
+            report("per thread digest", threads, hashes, run(input, hashes, threads, false));
+        }
+    }
+
+    private static void report(String name, int threads, int hashes, long nanos) {
+        System.out.printf("%-25s %3d threads %12.0f hashes/s%n", name, threads, threads * hashes / (nanos / 1e9));
+    }
+
+    // Returns how long it took for every thread to do its hashes.
+    private static long run(final byte[] input, final int hashes, int threads, final boolean shared)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < hashes; j++) {
+                            if (shared)
+                                sharedDoubleDigest(input);
+                            else
+                                Utils.doubleDigest(input);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - startTime;
+    }
+
+    private static byte[] sharedDoubleDigest(byte[] input) {
+        synchronized (sharedDigest) {
+            sharedDigest.reset();
+            byte[] first = sharedDigest.digest(input);
+            return sharedDigest.digest(first);
+        }
+    }
+}
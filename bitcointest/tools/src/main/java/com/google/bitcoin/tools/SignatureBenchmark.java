@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how many signatures per second can be verified: by Spongy Castle's ECDSASigner, which is how
+ * {@link ECKey#verify} used to check them, by {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, which decodes
+ * the public key every time, and by {@link ECKey#verify(Sha256Hash, ECKey.ECDSASignature)}, which decodes it only once
+ * per key. The signature cache is turned off so that every signature is really checked.
+ */
+public class SignatureBenchmark {
+    private interface Verifier {
+        boolean verify(int i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: SignatureBenchmark [signatures] [threads]");
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        ECKey.setSignatureCache(null);
+
+        // Ten keys, each signing a tenth of the hashes, much as a few busy keys show up again and again in a block.
+        final ECKey[] keys = new ECKey[10];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new ECKey();
+        final Sha256Hash[] hashes = new Sha256Hash[count];
+        final ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16)});
+            sigs[i] = keys[i % keys.length].sign(hashes[i]);
+        }
+
+        Verifier spongyCastle = new Verifier() {
+            @Override
+            public boolean verify(int i) {
+                ECDSASigner signer = new ECDSASigner();
+                signer.init(false, new ECPublicKeyParameters(
+                        ECKey.CURVE.getCurve().decodePoint(keys[i % keys.length].getPubKey()), ECKey.CURVE));
+                return signer.verifySignature(hashes[i].getBytes(), sigs[i].r, sigs[i].s);
+            }
+        };
+        Verifier staticVerify = new Verifier() {
+            @Override
+            public boolean verify(int i) {
+                return ECKey.verify(hashes[i].getBytes(), sigs[i], keys[i % keys.length].getPubKey());
+            }
+        };
+        Verifier keyVerify = new Verifier() {
+            @Override
+            public boolean verify(int i) {
+                return keys[i % keys.length].verify(hashes[i], sigs[i]);
+            }
+        };
+
+        // Warm up, then measure each way of verifying, on one thread and on several.
+        run(spongyCastle, count, 1);
+        run(staticVerify, count, 1);
+        run(keyVerify, count, 1);
+        report("Spongy Castle ECDSASigner", 1, count, run(spongyCastle, count, 1));
+        report("ECKey.verify(data, sig, pub)", 1, count, run(staticVerify, count, 1));
+        report("key.verify(hash, sig)", 1, count, run(keyVerify, count, 1));
+        if (threads > 1) {
+            report("Spongy Castle ECDSASigner", threads, count, run(spongyCastle, count, threads));
+            report("ECKey.verify(data, sig, pub)", threads, count, run(staticVerify, count, threads));
+            report("key.verify(hash, sig)", threads, count, run(keyVerify, count, threads));
+        }
+    }
+
+    private static void report(String name, int threads, int count, long nanos) {
+        System.out.printf("%-30s %3d threads %10.0f signatures/s%n", name, threads, count / (nanos / 1e9));
+    }
+
+    // Verifies every signature once, shared out between the given number of threads, and returns how long it took.
+    private static long run(final Verifier verifier, final int count, int threads) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < count) {
+                        if (!verifier.verify(i))
+                            failures.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        if (failures.get() > 0)
+            throw new IllegalStateException(failures.get() + " signatures failed to verify");
+        return elapsed;
+    }
+}